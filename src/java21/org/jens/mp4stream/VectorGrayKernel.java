@@ -0,0 +1,85 @@
+package org.jens.mp4stream;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link GrayKernel} with the Vector API (Java 21, jdk.incubator.vector).
+ * Built into META-INF/versions/21 of the multi-release JAR; loaded by
+ * {@link GrayKernel#ACTIVE} only after it matched the scalar loop.
+ *
+ * <p>Each step is the lane-wise form of the scalar one (float multiply,
+ * subtract, clamp, truncating convert), so the output is identical.
+ */
+final class VectorGrayKernel extends GrayKernel {
+
+   // Float lanes as wide as the CPU prefers; the 16- and 8-bit inputs are
+   // loaded with the same lane count at a half and a quarter of the width.
+   private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+   private static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+   private static final VectorSpecies<Short> S =
+         VectorSpecies.of(short.class, VectorShape.forBitSize(F.vectorBitSize() / 2));
+   private static final VectorSpecies<Byte> B =
+         VectorSpecies.of(byte.class, VectorShape.forBitSize(F.vectorBitSize() / 4));
+
+   VectorGrayKernel() {
+      if (F.length() < 8) {
+         // No 32-bit byte vectors exist, and 4 lanes do not beat the scalar loop
+         throw new UnsupportedOperationException("vectors too narrow: " + F);
+      }
+   }
+
+   @Override
+   String name() {
+      return "Vector API, " + F.length() + " lanes";
+   }
+
+   @Override
+   void scale8(byte[] in, byte[] out, int from, int to, float min, float invRange,
+         float[] gain, float[] offset) {
+      final int step = F.length();
+      int i = from;
+      for (; i <= to - step; i += step) {
+         IntVector u = ((IntVector) ByteVector.fromArray(B, in, i).convertShape(VectorOperators.B2I, I, 0))
+               .lanewise(VectorOperators.AND, 0xFF);
+         store(u, out, i, min, invRange, gain, offset);
+      }
+      for (; i < to; i++) {
+         float v = (gain == null) ? (in[i] & 0xFF) : (in[i] & 0xFF) * gain[i] - offset[i];
+         out[i] = level(v, min, invRange);
+      }
+   }
+
+   @Override
+   void scale16(short[] in, byte[] out, int from, int to, float min, float invRange,
+         float[] gain, float[] offset) {
+      final int step = F.length();
+      int i = from;
+      for (; i <= to - step; i += step) {
+         IntVector u = ((IntVector) ShortVector.fromArray(S, in, i).convertShape(VectorOperators.S2I, I, 0))
+               .lanewise(VectorOperators.AND, 0xFFFF);
+         store(u, out, i, min, invRange, gain, offset);
+      }
+      for (; i < to; i++) {
+         float v = (gain == null) ? (in[i] & 0xFFFF) : (in[i] & 0xFFFF) * gain[i] - offset[i];
+         out[i] = level(v, min, invRange);
+      }
+   }
+
+   // Lane-wise GrayKernel.level() of the unsigned values u, written to out[i..]
+   private static void store(IntVector u, byte[] out, int i, float min, float invRange,
+         float[] gain, float[] offset) {
+      FloatVector v = (FloatVector) u.convert(VectorOperators.I2F, 0);
+      if (gain != null) {
+         v = v.mul(FloatVector.fromArray(F, gain, i)).sub(FloatVector.fromArray(F, offset, i));
+      }
+      FloatVector x = v.sub(min).mul(invRange).min(1.0f).max(0.0f);
+      IntVector level = (IntVector) x.mul(255.0f).add(0.5f).convert(VectorOperators.F2I, 0);
+      level.convertShape(VectorOperators.I2B, B, 0).reinterpretAsBytes().intoArray(out, i);
+   }
+}
@@ -0,0 +1,131 @@
+package org.jens.mp4stream;
+
+import java.util.Arrays;
+
+/**
+ * Display range from percentiles of the pixel histogram, for frames that
+ * have no display window to take contrast from. The histogram is built from
+ * a strided sample of about {@link #TARGET_SAMPLES} pixels and only every
+ * {@link #UPDATE_EVERY} frames; the range follows new values with an
+ * exponential moving average so it does not flicker.
+ */
+final class AutoContrast {
+
+   static final int UPDATE_EVERY = 10;        // frames between histograms
+   static final int TARGET_SAMPLES = 1 << 16; // pixels sampled per histogram
+   static final double SMOOTHING = 0.3;       // weight of a new histogram
+
+   private final double lowPct_;
+   private final double highPct_;
+
+   private int[] hist_ = null;
+   private long frames_ = 0;
+   private boolean valid_ = false;
+   private double min_ = 0.0;
+   private double max_ = 0.0;
+
+   /** Percentiles in 0..100, e.g. 0.1 and 99.9. */
+   AutoContrast(double lowPct, double highPct) {
+      lowPct_ = clampPct(Math.min(lowPct, highPct));
+      highPct_ = clampPct(Math.max(lowPct, highPct));
+   }
+
+   /** Whether this instance was built with (the clamped form of) these percentiles. */
+   boolean hasPercentiles(double lowPct, double highPct) {
+      return clampPct(Math.min(lowPct, highPct)) == lowPct_
+            && clampPct(Math.max(lowPct, highPct)) == highPct_;
+   }
+
+   /**
+    * Takes a frame into account. Recomputes the range on the first frame
+    * and then every {@link #UPDATE_EVERY} frames (or on a change of pixel
+    * depth); other frames return at once.
+    *
+    * @param raw           byte[] (8-bit) or short[] (16-bit, unsigned) pixels
+    * @param bytesPerPixel 1 or 2; other depths are ignored
+    */
+   void update(Object raw, int bytesPerPixel) {
+      final int bins = (bytesPerPixel == 1) ? 256 : (bytesPerPixel == 2) ? 65536 : 0;
+      if (bins == 0) {
+         return;
+      }
+      final boolean depthChanged = (hist_ == null || hist_.length != bins);
+      if (!depthChanged && frames_++ % UPDATE_EVERY != 0) {
+         return;
+      }
+      if (depthChanged) {
+         hist_ = new int[bins];
+         frames_ = 1;
+         valid_ = false;
+      } else {
+         Arrays.fill(hist_, 0);
+      }
+
+      int sampled = 0;
+      if (bytesPerPixel == 1) {
+         final byte[] in = (byte[]) raw;
+         final int step = Math.max(1, in.length / TARGET_SAMPLES);
+         for (int i = (step / 2); i < in.length; i += step) {
+            hist_[in[i] & 0xFF]++;
+            sampled++;
+         }
+      } else {
+         final short[] in16 = (short[]) raw;
+         final int step = Math.max(1, in16.length / TARGET_SAMPLES);
+         for (int i = (step / 2); i < in16.length; i += step) {
+            hist_[in16[i] & 0xFFFF]++;
+            sampled++;
+         }
+      }
+      if (sampled == 0) {
+         return;
+      }
+
+      final long lowRank = (long) Math.floor(sampled * lowPct_ / 100.0);
+      final long highRank = Math.min(sampled - 1, (long) Math.ceil(sampled * highPct_ / 100.0) - 1);
+      int lo = -1;
+      int hi = bins - 1;
+      long seen = 0;
+      for (int v = 0; v < bins; v++) {
+         seen += hist_[v];
+         if (lo < 0 && seen > lowRank) {
+            lo = v;
+         }
+         if (seen > highRank) {
+            hi = v;
+            break;
+         }
+      }
+      if (lo < 0) {
+         lo = 0;
+      }
+
+      if (!valid_) {
+         min_ = lo;
+         max_ = hi;
+         valid_ = true;
+      } else {
+         min_ += SMOOTHING * (lo - min_);
+         max_ += SMOOTHING * (hi - max_);
+      }
+   }
+
+   /** Whether update() has produced a range yet. */
+   boolean valid() {
+      return valid_;
+   }
+
+   /** Value to map to black. */
+   long min() {
+      return Math.round(min_);
+   }
+
+   /** Value to map to white; always above min() (a flat frame gets a one-count range). */
+   long max() {
+      return Math.max(min() + 1, Math.round(max_));
+   }
+
+   private static double clampPct(double pct) {
+      return Math.max(0.0, Math.min(100.0, pct));
+   }
+}
@@ -0,0 +1,118 @@
+package org.jens.mp4stream;
+
+/**
+ * Fixed output canvas: places frames of another size (binning, ROI)
+ * scaled to fit and centered, with black bars, so one encoder keeps
+ * running. The nearest-neighbour column and row maps are computed once per
+ * source size; per frame, the raw pixels are gathered into a canvas-sized
+ * raw buffer that the normal conversion then processes, so scaling costs
+ * one indexed copy and the conversion runs on canvas pixels only.
+ */
+final class CanvasMap {
+
+   final int sourceWidth;
+   final int sourceHeight;
+   final int width;
+   final int height;
+
+   // The fitted image inside the canvas
+   private final int x0_;
+   private final int y0_;
+   private final int[] cols_; // source column per fitted column
+   private final int[] rows_; // source row offset per fitted row
+
+   private byte[] raw8_ = null;
+   private short[] raw16_ = null;
+
+   CanvasMap(int sourceWidth, int sourceHeight, int width, int height) {
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.width = width;
+      this.height = height;
+      final double scale = fitScale(sourceWidth, sourceHeight, width, height);
+      final int fw = Math.max(1, Math.min(width, (int) Math.round(sourceWidth * scale)));
+      final int fh = Math.max(1, Math.min(height, (int) Math.round(sourceHeight * scale)));
+      x0_ = (width - fw) / 2;
+      y0_ = (height - fh) / 2;
+      cols_ = new int[fw];
+      for (int x = 0; x < fw; x++) {
+         cols_[x] = Math.min(sourceWidth - 1, (int) ((x + 0.5) * sourceWidth / fw));
+      }
+      rows_ = new int[fh];
+      for (int y = 0; y < fh; y++) {
+         rows_[y] = Math.min(sourceHeight - 1, (int) ((y + 0.5) * sourceHeight / fh)) * sourceWidth;
+      }
+   }
+
+   /** Scale at which frames of sw x sh fit a canvas of w x h. */
+   static double fitScale(int sw, int sh, int w, int h) {
+      return Math.min((double) w / sw, (double) h / sh);
+   }
+
+   /** Canvas pixels per source pixel, as placed (for the scale bar). */
+   double scale() {
+      return (double) cols_.length / sourceWidth;
+   }
+
+   boolean maps(int sw, int sh, int w, int h) {
+      return sw == sourceWidth && sh == sourceHeight && w == width && h == height;
+   }
+
+   /** For the log, e.g. "1152x1152 -> 2304x2304 (scaled 2.00)". */
+   String describe() {
+      return String.format(java.util.Locale.US, "%dx%d -> %dx%d (scaled %.2f)", sourceWidth, sourceHeight,
+            width, height, scale());
+   }
+
+   /**
+    * The raw source pixels (byte[] or short[], as from the camera) gathered
+    * onto the canvas; the returned buffer is reused by the next call. Bars
+    * are 0, which every display range maps to black.
+    */
+   Object gather(Object raw, int bytesPerPixel) {
+      if (bytesPerPixel == 1) {
+         if (raw8_ == null) {
+            raw8_ = new byte[width * height];
+         }
+         final byte[] in = (byte[]) raw;
+         final byte[] out = raw8_;
+         for (int y = 0; y < rows_.length; y++) {
+            final int src = rows_[y];
+            final int dst = (y0_ + y) * width + x0_;
+            for (int x = 0; x < cols_.length; x++) {
+               out[dst + x] = in[src + cols_[x]];
+            }
+         }
+         return out;
+      }
+      if (bytesPerPixel == 2) {
+         if (raw16_ == null) {
+            raw16_ = new short[width * height];
+         }
+         final short[] in = (short[]) raw;
+         final short[] out = raw16_;
+         for (int y = 0; y < rows_.length; y++) {
+            final int src = rows_[y];
+            final int dst = (y0_ + y) * width + x0_;
+            for (int x = 0; x < cols_.length; x++) {
+               out[dst + x] = in[src + cols_[x]];
+            }
+         }
+         return out;
+      }
+      return raw; // unsupported; the conversion gives black
+   }
+
+   /** Per-pixel source values (flat-field references) on the canvas; bars are 0. */
+   float[] gather(float[] in) {
+      final float[] out = new float[width * height];
+      for (int y = 0; y < rows_.length; y++) {
+         final int src = rows_[y];
+         final int dst = (y0_ + y) * width + x0_;
+         for (int x = 0; x < cols_.length; x++) {
+            out[dst + x] = in[src + cols_[x]];
+         }
+      }
+      return out;
+   }
+}
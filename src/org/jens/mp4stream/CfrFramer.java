@@ -0,0 +1,99 @@
+package org.jens.mp4stream;
+
+import java.io.IOException;
+
+/**
+ * Constant-frame-rate timing. Each frame's time selects an index on the
+ * output frame grid; gaps are filled by repeating the previous frame, and a
+ * frame whose index was already written is dropped (but still becomes the
+ * frame used for the next gap).
+ */
+final class CfrFramer {
+
+   /** Receives the frames to encode, in order. */
+   interface Sink {
+      /**
+       * @param unchanged frame8 holds the same pixels as the frame written
+       *                  just before (a gap fill), so output derived from
+       *                  that one can be reused
+       */
+      void write(byte[] frame8, double dtSec, boolean unchanged) throws IOException;
+   }
+
+   private final double fps_;
+   private final long maxGapFrames_;
+
+   private long nextIndex_ = 0;
+   private boolean haveLast_ = false;
+   private byte[] last_ = null;
+   private boolean lastWritten_ = false; // last_ is what the sink got most recently
+   private double lastDtSec_ = 0.0;
+
+   CfrFramer(double fps) {
+      fps_ = fps;
+      maxGapFrames_ = Math.max(300, (long) (fps * 10));
+   }
+
+   /** Longest gap filled with repeats; longer gaps are skipped. */
+   long maxGapFrames() {
+      return maxGapFrames_;
+   }
+
+   /** Index of the next output frame (the frame count if the first frame was at t = 0). */
+   long nextIndex() {
+      return nextIndex_;
+   }
+
+   /**
+    * @param overlayDtSec time passed on with the frame (shown in the overlay)
+    * @param framingDtSec time that selects the output index (differs in timelapse mode)
+    * @param beforeWrite  run just before frame8 itself is written (burns in the
+    *                     overlay), or null; repeats reuse the frame as written
+    * @return frames skipped because a gap exceeded the fill limit, normally 0
+    */
+   long accept(byte[] frame8, double overlayDtSec, double framingDtSec, Runnable beforeWrite, Sink sink)
+         throws IOException {
+      long targetIndex = (long) Math.floor((framingDtSec * fps_) + 1e-9);
+
+      if (last_ == null || last_.length != frame8.length) {
+         last_ = new byte[frame8.length];
+         haveLast_ = false;
+         lastWritten_ = false;
+      }
+
+      // Fill gaps using last frame (CFR), capped to prevent runaway writes
+      long skipped = 0;
+      if (haveLast_) {
+         long filled = 0;
+         while (nextIndex_ < targetIndex && filled < maxGapFrames_) {
+            sink.write(last_, lastDtSec_, lastWritten_);
+            lastWritten_ = true;
+            nextIndex_++;
+            filled++;
+         }
+         if (nextIndex_ < targetIndex) {
+            skipped = targetIndex - nextIndex_;
+            nextIndex_ = targetIndex;
+         }
+      } else {
+         nextIndex_ = targetIndex;
+      }
+
+      // Write at target index
+      final boolean written = (nextIndex_ == targetIndex);
+      if (written) {
+         if (beforeWrite != null) {
+            beforeWrite.run();
+         }
+         sink.write(frame8, overlayDtSec, false);
+         nextIndex_++;
+      }
+
+      // Always update last frame (whether written or dropped)
+      System.arraycopy(frame8, 0, last_, 0, frame8.length);
+      lastWritten_ = written;
+      lastDtSec_ = overlayDtSec;
+      haveLast_ = true;
+      return skipped;
+   }
+}
@@ -0,0 +1,99 @@
+package org.jens.mp4stream;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Shared, bounded pool for per-pixel frame conversion. A frame is split
+ * into contiguous bands; the calling thread takes the first band itself, so
+ * a pool of N threads keeps at most N + 1 cores busy. Sized from the
+ * {@link CpuBudget}; small frames run inline.
+ */
+final class ConversionPool {
+
+   /** Work for pixels [from, to). */
+   interface Band {
+      void run(int from, int to);
+   }
+
+   private static final int MIN_PIXELS_PER_BAND = 1 << 18;
+
+   private static ExecutorService pool_ = null;
+   private static int threads_ = 1;
+
+   private ConversionPool() {}
+
+   /** Total threads to use per frame, including the caller. */
+   static synchronized void setThreads(int threads) {
+      threads = Math.max(1, threads);
+      if (threads == threads_) {
+         return;
+      }
+      if (pool_ != null) {
+         pool_.shutdown();
+         pool_ = null;
+      }
+      threads_ = threads;
+      if (threads > 1) {
+         pool_ = Executors.newFixedThreadPool(threads - 1, r -> {
+            Thread t = new Thread(r, "mp4stream-convert");
+            t.setDaemon(true);
+            // A hint only (ignored by Linux JVMs by default); the pool's
+            // share of the CPU budget is what keeps it from acquisition
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+         });
+      }
+   }
+
+   /** Runs band over [0, n), in parallel when n is large enough. */
+   static void forEach(int n, Band band) {
+      final ExecutorService pool;
+      final int threads;
+      synchronized (ConversionPool.class) {
+         pool = pool_;
+         threads = threads_;
+      }
+      int bands = Math.min(threads, n / MIN_PIXELS_PER_BAND);
+      if (pool == null || bands <= 1) {
+         band.run(0, n);
+         return;
+      }
+
+      final int step = (n + bands - 1) / bands;
+      Future<?>[] pending = new Future<?>[bands - 1];
+      for (int i = 1; i < bands; i++) {
+         final int from = i * step;
+         final int to = Math.min(n, from + step);
+         try {
+            pending[i - 1] = pool.submit(() -> band.run(from, to));
+         } catch (RejectedExecutionException e) {
+            band.run(from, to); // pool replaced concurrently
+         }
+      }
+      band.run(0, Math.min(n, step));
+
+      boolean interrupted = false;
+      for (Future<?> f : pending) {
+         if (f == null) {
+            continue;
+         }
+         while (true) {
+            try {
+               f.get();
+               break;
+            } catch (InterruptedException e) {
+               interrupted = true; // the frame must be complete before it is encoded
+            } catch (ExecutionException e) {
+               throw new IllegalStateException("Frame conversion failed", e.getCause());
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -0,0 +1,178 @@
+package org.jens.mp4stream;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.prefs.Preferences;
+
+/**
+ * How much CPU video work may take away from acquisition. The budget is one
+ * core count split between frame conversion, the secondary (downscaled)
+ * encoders and the archive encoder, which gets the rest; only when the
+ * budget is smaller than the number of consumers does each still get one
+ * thread. FFmpeg additionally runs at lower priority and can be pinned to
+ * the highest-numbered cores, leaving the low cores (where drivers and
+ * interrupts usually run) to the camera and MMCore. Java thread priorities
+ * are ignored by default on Linux, so conversion is held back only by its
+ * share of the budget.
+ */
+final class CpuBudget {
+
+   /** Cores left to acquisition when the budget is automatic. */
+   static final int RESERVED_CORES = 2;
+
+   private static final int NICE_LEVEL = 10;
+
+   private final int cores_;
+   private final boolean lowPriority_;
+   private final boolean pinCpus_;
+
+   /**
+    * @param cores budget in cores, 0 = all but {@link #RESERVED_CORES}
+    */
+   CpuBudget(int cores, boolean lowPriority, boolean pinCpus) {
+      int available = Runtime.getRuntime().availableProcessors();
+      int c = (cores > 0) ? cores : available - RESERVED_CORES;
+      cores_ = Math.max(1, Math.min(available, c));
+      lowPriority_ = lowPriority;
+      pinCpus_ = pinCpus;
+   }
+
+   /** The budget as configured in the plugin settings. */
+   static CpuBudget fromPreferences(Preferences prefs) {
+      return new CpuBudget(
+            prefs.getInt(MP4StreamConfigurator.KEY_CPU_BUDGET, MP4StreamConfigurator.DEFAULT_CPU_BUDGET),
+            prefs.getBoolean(MP4StreamConfigurator.KEY_ENCODER_LOW_PRIORITY,
+                  MP4StreamConfigurator.DEFAULT_ENCODER_LOW_PRIORITY),
+            prefs.getBoolean(MP4StreamConfigurator.KEY_ENCODER_PIN_CPUS,
+                  MP4StreamConfigurator.DEFAULT_ENCODER_PIN_CPUS));
+   }
+
+   int cores() {
+      return cores_;
+   }
+
+   /**
+    * Threads for the full-resolution encoder: what conversion and the
+    * secondary encoders leave of the budget.
+    *
+    * @param secondaries number of downscaled outputs encoded alongside
+    */
+   int encoderThreads(int secondaries) {
+      return Math.max(1, cores_ - conversionThreads() - secondaries * secondaryEncoderThreads());
+   }
+
+   /** Threads for each secondary (downscaled) encoder, which needs far less. */
+   int secondaryEncoderThreads() {
+      return Math.max(1, cores_ / 8);
+   }
+
+   /** Threads (including the caller) for frame conversion. */
+   int conversionThreads() {
+      return Math.max(1, cores_ / 4);
+   }
+
+   /** For the log, e.g. "archive 4, 1 secondary x 1, conversion 2 threads". */
+   String split(int secondaries) {
+      return String.format(Locale.US, "archive %d, %sconversion %d threads", encoderThreads(secondaries),
+            (secondaries > 0) ? secondaries + " secondary x " + secondaryEncoderThreads() + ", " : "",
+            conversionThreads());
+   }
+
+   @Override
+   public String toString() {
+      return String.format(Locale.US, "%d of %d cores%s%s", cores_,
+            Runtime.getRuntime().availableProcessors(),
+            lowPriority_ ? ", low priority" : "", pinCpus_ ? ", pinned " + cpuRange() : "");
+   }
+
+   /**
+    * Prefixes the FFmpeg command with nice/taskset where available. These
+    * exec FFmpeg in place, so pipes and the Process handle are unaffected.
+    */
+   List<String> wrapCommand(List<String> cmd) {
+      if (isWindows()) {
+         return cmd; // see applyToProcess
+      }
+      List<String> wrapped = new ArrayList<>();
+      if (pinCpus_ && onPath("taskset")) {
+         wrapped.add("taskset");
+         wrapped.add("-c");
+         wrapped.add(cpuRange());
+      }
+      if (lowPriority_ && onPath("nice")) {
+         wrapped.add("nice");
+         wrapped.add("-n");
+         wrapped.add(Integer.toString(NICE_LEVEL));
+      }
+      wrapped.addAll(cmd);
+      return wrapped;
+   }
+
+   /**
+    * On Windows, lowers priority and sets affinity of the started process
+    * through PowerShell (needs Process.pid(), Java 9+). Asynchronous; FFmpeg
+    * runs at normal priority for the first moments.
+    */
+   void applyToProcess(Process proc) {
+      if (!isWindows() || (!lowPriority_ && !pinCpus_)) {
+         return;
+      }
+      long pid;
+      try {
+         pid = (Long) Process.class.getMethod("pid").invoke(proc);
+      } catch (Exception e) {
+         return; // Java 8
+      }
+      StringBuilder ps = new StringBuilder("$p = Get-Process -Id ").append(pid).append(';');
+      if (lowPriority_) {
+         ps.append(" $p.PriorityClass = 'BelowNormal';");
+      }
+      if (pinCpus_) {
+         ps.append(" $p.ProcessorAffinity = [IntPtr]").append(affinityMask()).append(';');
+      }
+      try {
+         new ProcessBuilder("powershell", "-NoProfile", "-NonInteractive", "-Command", ps.toString())
+               .redirectErrorStream(true)
+               .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("NUL")))
+               .start();
+      } catch (Exception ignored) {
+         // Best effort; FFmpeg keeps normal priority
+      }
+   }
+
+   // Highest-numbered cores, e.g. "6-7" for 2 of 8
+   private String cpuRange() {
+      int n = Runtime.getRuntime().availableProcessors();
+      int first = n - cores_;
+      return (cores_ == 1) ? Integer.toString(first) : first + "-" + (n - 1);
+   }
+
+   private long affinityMask() {
+      int n = Math.min(63, Runtime.getRuntime().availableProcessors());
+      int c = Math.min(cores_, n);
+      long mask = 0L;
+      for (int i = n - c; i < n; i++) {
+         mask |= 1L << i;
+      }
+      return mask;
+   }
+
+   private static boolean isWindows() {
+      return System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+   }
+
+   private static boolean onPath(String tool) {
+      String path = System.getenv("PATH");
+      if (path == null) {
+         return false;
+      }
+      for (String dir : path.split(File.pathSeparator)) {
+         if (!dir.isEmpty() && new File(dir, tool).canExecute()) {
+            return true;
+         }
+      }
+      return false;
+   }
+}
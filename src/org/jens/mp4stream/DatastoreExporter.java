@@ -0,0 +1,502 @@
+package org.jens.mp4stream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders saved datasets to MP4 without Micro-Manager running. Each position
+ * and channel becomes one video, converted, overlaid and framed by the same
+ * code as live recording ({@link GrayConversion}, {@link OverlayCompositor},
+ * {@link CfrFramer}), with Δt taken from the stored ElapsedTime-ms. Videos
+ * are encoded in parallel within a {@link CpuBudget}.
+ *
+ * <pre>
+ * java -cp MP4Stream.jar org.jens.mp4stream.DatastoreExporter [options] DATASET...
+ * </pre>
+ */
+public final class DatastoreExporter {
+
+   private static final String USAGE = String.join("\n",
+         "Usage: java -cp MP4Stream.jar org.jens.mp4stream.DatastoreExporter [options] DATASET...",
+         "",
+         "DATASET is an NDTiff folder, a folder of Micro-Manager TIFF files, or one TIFF file.",
+         "One MP4 is written per position and channel, next to the dataset unless -o is given.",
+         "",
+         "  -o DIR            output folder",
+         "  --mode MODE       constant (default), realtime or timelapse",
+         "  --fps F           output frame rate (default 30)",
+         "  --speed X         timelapse speed-up (default 10)",
+         "  --z N             z slice to export (default 0)",
+         "  --range MIN:MAX   display range (default: the camera's bit depth)",
+         "  --range auto      display range from the 0.1 and 99.9 percentiles, smoothed",
+         "  --gamma G         display gamma (default 1)",
+         "  --dark FILE       dark frame TIFF to subtract (a stack is averaged)",
+         "  --flat FILE       flat-field TIFF for illumination correction",
+         "  --color C         gray (default), green, red, blue, cyan, magenta or yellow",
+         "  --no-timestamp    no elapsed-time overlay",
+         "  --scalebar [UM]   scale bar, optionally of a fixed length in um",
+         "  --font-size PX    overlay font size (default 18)",
+         "  --black-text      black overlay text instead of white",
+         "  --no-background   overlay text without a background box",
+         "  --codec C         libx264 (default), libx265, libsvtav1 or libvpx-vp9",
+         "  --crf N           quality on the x264 scale (default 18)",
+         "  --preset P        encoder preset (default veryfast; a number for AV1/VP9, default 10/8)",
+         "  --jobs N          videos encoded at once (default: a quarter of the cores)",
+         "  --cores N         CPU budget (default: all but 2)",
+         "  --ffmpeg PATH     FFmpeg binary (default: ffmpeg on PATH)",
+         "  --overwrite       replace existing videos (default: skip them)");
+
+   interface Listener {
+      void progress(String message);
+   }
+
+   /** Command-line settings; defaults match the plugin's. */
+   static final class Options {
+      final List<File> datasets = new ArrayList<>();
+      File outDir = null;
+      String mode = MP4StreamConfigurator.MODE_CONSTANT_FPS;
+      double fps = MP4StreamConfigurator.DEFAULT_TARGET_FPS;
+      double timelapseFactor = MP4StreamConfigurator.DEFAULT_TIMELAPSE_FACTOR;
+      int z = 0;
+      long min = 0;
+      long max = 0; // 0 = full range of the stored bit depth
+      boolean autoContrast = false;
+      double gamma = 1.0;
+      String dark = "";
+      String flat = "";
+      String color = MP4StreamConfigurator.DEFAULT_VIDEO_COLOR;
+      boolean timestamp = MP4StreamConfigurator.DEFAULT_TIMESTAMP_ENABLED;
+      boolean scalebar = false;
+      double scalebarLengthUm = MP4StreamConfigurator.DEFAULT_SCALEBAR_LENGTH_UM;
+      int fontSize = MP4StreamConfigurator.DEFAULT_FONT_SIZE;
+      boolean blackText = false;
+      boolean background = MP4StreamConfigurator.DEFAULT_TIMESTAMP_BACKGROUND;
+      String codec = EncoderProfile.X264;
+      int crf = MP4StreamConfigurator.DEFAULT_ARCHIVE_CRF;
+      String preset = null; // null = EncoderProfile.defaultPreset(codec)
+      int jobs = 0;  // 0 = from the CPU budget
+      int cores = 0; // 0 = all but CpuBudget.RESERVED_CORES
+      String ffmpeg = "ffmpeg";
+      boolean overwrite = false;
+
+      static Options parse(String[] args) {
+         Options o = new Options();
+         for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+               case "-o": o.outDir = new File(value(args, ++i, a)); break;
+               case "--mode": o.mode = mode(value(args, ++i, a)); break;
+               case "--fps": o.fps = positive(value(args, ++i, a), a); break;
+               case "--speed": o.timelapseFactor = positive(value(args, ++i, a), a); break;
+               case "--z": o.z = (int) number(value(args, ++i, a), a); break;
+               case "--range": {
+                  String v = value(args, ++i, a);
+                  if ("auto".equals(v)) {
+                     o.autoContrast = true;
+                     break;
+                  }
+                  String[] r = v.split(":");
+                  if (r.length != 2) {
+                     throw new IllegalArgumentException("--range needs MIN:MAX");
+                  }
+                  o.min = (long) number(r[0], a);
+                  o.max = (long) number(r[1], a);
+                  if (o.max <= o.min) {
+                     throw new IllegalArgumentException("--range: MAX must be above MIN");
+                  }
+                  break;
+               }
+               case "--gamma": o.gamma = positive(value(args, ++i, a), a); break;
+               case "--dark": o.dark = value(args, ++i, a); break;
+               case "--flat": o.flat = value(args, ++i, a); break;
+               case "--color": {
+                  o.color = value(args, ++i, a).toLowerCase(Locale.ROOT);
+                  if (!Arrays.asList(YuvFrames.COLOR_NAMES).contains(o.color)) {
+                     throw new IllegalArgumentException("--color: one of " + String.join(", ", YuvFrames.COLOR_NAMES));
+                  }
+                  break;
+               }
+               case "--no-timestamp": o.timestamp = false; break;
+               case "--scalebar":
+                  o.scalebar = true;
+                  if (i + 1 < args.length && args[i + 1].matches("[0-9.]+")) {
+                     o.scalebarLengthUm = number(args[++i], a);
+                  }
+                  break;
+               case "--font-size": o.fontSize = (int) positive(value(args, ++i, a), a); break;
+               case "--black-text": o.blackText = true; break;
+               case "--no-background": o.background = false; break;
+               case "--codec": {
+                  o.codec = value(args, ++i, a);
+                  if (!Arrays.asList(EncoderProfile.CODECS).contains(o.codec)) {
+                     throw new IllegalArgumentException("--codec: one of " + String.join(", ", EncoderProfile.CODECS));
+                  }
+                  break;
+               }
+               case "--crf": o.crf = (int) number(value(args, ++i, a), a); break;
+               case "--preset": o.preset = value(args, ++i, a); break;
+               case "--jobs": o.jobs = (int) positive(value(args, ++i, a), a); break;
+               case "--cores": o.cores = (int) positive(value(args, ++i, a), a); break;
+               case "--ffmpeg": o.ffmpeg = value(args, ++i, a); break;
+               case "--overwrite": o.overwrite = true; break;
+               default:
+                  if (a.startsWith("-")) {
+                     throw new IllegalArgumentException("Unknown option " + a);
+                  }
+                  o.datasets.add(new File(a));
+            }
+         }
+         if (o.preset == null) {
+            o.preset = EncoderProfile.defaultPreset(o.codec);
+         } else if (EncoderProfile.numericPreset(o.codec) && !o.preset.matches("[0-9]+")) {
+            throw new IllegalArgumentException("--preset: " + o.codec + " needs a number, not " + o.preset);
+         }
+         return o;
+      }
+
+      private static String value(String[] args, int i, String option) {
+         if (i >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+         }
+         return args[i];
+      }
+
+      private static double number(String s, String option) {
+         try {
+            return Double.parseDouble(s);
+         } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + ": not a number: " + s);
+         }
+      }
+
+      private static double positive(String s, String option) {
+         double d = number(s, option);
+         if (!(d > 0)) {
+            throw new IllegalArgumentException(option + " must be positive");
+         }
+         return d;
+      }
+
+      private static String mode(String s) {
+         switch (s) {
+            case "constant": return MP4StreamConfigurator.MODE_CONSTANT_FPS;
+            case "realtime": return MP4StreamConfigurator.MODE_REALTIME;
+            case "timelapse": return MP4StreamConfigurator.MODE_TIMELAPSE;
+            default: throw new IllegalArgumentException("--mode: constant, realtime or timelapse");
+         }
+      }
+   }
+
+   /** The planes of one position/channel at the exported z, in time order. */
+   private static final class Series {
+      final String label;
+      final File out;
+      final List<StoredDataset.Plane> planes;
+
+      Series(String label, File out, List<StoredDataset.Plane> planes) {
+         this.label = label;
+         this.out = out;
+         this.planes = planes;
+      }
+   }
+
+   private final Options opt_;
+
+   DatastoreExporter(Options options) {
+      opt_ = options;
+   }
+
+   public static void main(String[] args) {
+      System.setProperty("java.awt.headless", "true"); // overlays render without a display
+      if (args.length == 1 && ("-h".equals(args[0]) || "--help".equals(args[0]))) {
+         System.out.println(USAGE);
+         return;
+      }
+      Options opt;
+      try {
+         opt = Options.parse(args);
+      } catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         System.err.println(USAGE);
+         System.exit(2);
+         return;
+      }
+      if (opt.datasets.isEmpty()) {
+         System.err.println(USAGE);
+         System.exit(2);
+      }
+      int failed = new DatastoreExporter(opt).run(System.out::println);
+      System.exit(failed == 0 ? 0 : 1);
+   }
+
+   /** Exports every dataset. Blocks; returns the number of datasets and videos that failed. */
+   int run(Listener listener) {
+      final AtomicInteger failed = new AtomicInteger();
+      List<StoredDataset> open = new ArrayList<>();
+      List<Series> series = new ArrayList<>();
+      Set<String> outputs = new HashSet<>();
+      for (File path : opt_.datasets) {
+         try {
+            StoredDataset ds = StoredDataset.open(path);
+            open.add(ds);
+            File dir = (opt_.outDir != null) ? opt_.outDir : path.getAbsoluteFile().getParentFile();
+            List<Series> found = series(ds, dir, outputs);
+            listener.progress(path + ": " + ds.planes().size() + " images, " + found.size() + " videos");
+            series.addAll(found);
+         } catch (IOException e) {
+            listener.progress("Cannot read " + path + ": " + e.getMessage());
+            failed.incrementAndGet();
+         }
+      }
+
+      final CpuBudget budget = new CpuBudget(opt_.cores, true, false);
+      int jobs = Math.max(1, Math.min(series.size(),
+            (opt_.jobs > 0) ? opt_.jobs : Math.max(1, budget.cores() / 4)));
+      // Parallel videos already keep the cores busy; split frames only for a
+      // single one. Each other job converts on its own thread, out of its share.
+      ConversionPool.setThreads((jobs == 1) ? budget.conversionThreads() : 1);
+      final int encoderThreads = (jobs == 1) ? budget.encoderThreads(0) : Math.max(1, budget.cores() / jobs - 1);
+      listener.progress(String.format(Locale.US, "Encoding %d videos, %d at a time (CPU budget: %s)",
+            series.size(), jobs, budget));
+
+      ExecutorService pool = Executors.newFixedThreadPool(jobs, r -> {
+         Thread t = new Thread(r, "mp4stream-export");
+         t.setDaemon(true);
+         return t;
+      });
+      List<Future<?>> pending = new ArrayList<>();
+      for (Series s : series) {
+         pending.add(pool.submit(() -> {
+            try {
+               if (s.out.exists() && !opt_.overwrite) {
+                  listener.progress("Skipping " + s.label + ": " + s.out + " exists");
+                  return;
+               }
+               listener.progress(export(s, encoderThreads, budget));
+            } catch (IOException e) {
+               listener.progress("Failed " + s.label + ": " + e.getMessage());
+               failed.incrementAndGet();
+            } catch (RuntimeException e) {
+               // One bad video must not end the others (or close their datasets)
+               listener.progress("Failed " + s.label + ": " + e);
+               failed.incrementAndGet();
+            }
+         }));
+      }
+      boolean interrupted = false;
+      try {
+         for (Future<?> f : pending) {
+            try {
+               f.get();
+            } catch (ExecutionException e) {
+               listener.progress("Export failed: " + e.getCause());
+               failed.incrementAndGet();
+            }
+         }
+      } catch (InterruptedException e) {
+         pool.shutdownNow(); // exports stop at the interrupt and kill FFmpeg
+         interrupted = true;
+      } finally {
+         pool.shutdown();
+         // Datasets are closed only when no job reads them any more
+         while (!pool.isTerminated()) {
+            try {
+               pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+               pool.shutdownNow();
+               interrupted = true;
+            }
+         }
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+         for (StoredDataset ds : open) {
+            try { ds.close(); } catch (IOException ignored) {}
+         }
+      }
+      return failed.get();
+   }
+
+   // One series per position and channel; suffixes only for axes that vary
+   private List<Series> series(StoredDataset ds, File dir, Set<String> taken) {
+      Map<String, List<StoredDataset.Plane>> groups = new LinkedHashMap<>();
+      Set<String> positions = new HashSet<>();
+      Set<String> channels = new HashSet<>();
+      for (StoredDataset.Plane p : ds.planes()) {
+         if (p.z != opt_.z) {
+            continue;
+         }
+         positions.add(p.position);
+         channels.add(p.channel);
+         groups.computeIfAbsent(p.position + '\u0000' + p.channel, k -> new ArrayList<>()).add(p);
+      }
+
+      List<Series> out = new ArrayList<>();
+      for (List<StoredDataset.Plane> planes : groups.values()) {
+         planes.sort((a, b) -> Integer.compare(a.time, b.time)); // stable: file order within a time point
+         StoredDataset.Plane first = planes.get(0);
+         String name = ds.name();
+         if (positions.size() > 1) {
+            name += "_" + axisLabel("Pos", first.position);
+         }
+         if (channels.size() > 1) {
+            name += "_" + axisLabel("Ch", first.channel);
+         }
+         String unique = name;
+         for (int k = 2; !taken.add(new File(dir, unique + ".mp4").getAbsolutePath()); k++) {
+            unique = name + "_" + k;
+         }
+         out.add(new Series(unique, new File(dir, unique + ".mp4"), planes));
+      }
+      return out;
+   }
+
+   private static String axisLabel(String prefix, String value) {
+      String v = value.replaceAll("[^A-Za-z0-9._-]", "_");
+      return v.matches("[0-9]+") ? prefix + v : v;
+   }
+
+   /** Encodes one series; returns the summary line. */
+   private String export(Series s, int threads, CpuBudget budget) throws IOException {
+      final StoredDataset.Plane first = s.planes.get(0);
+      final int w = first.width;
+      final int h = first.height;
+      final long min = opt_.min;
+      final long max = (opt_.max > 0) ? opt_.max : (1L << first.bitDepth) - 1;
+      final FlatField flat = FlatField.load(opt_.dark, opt_.flat, w, h);
+      // Colored video goes to FFmpeg as yuv420p (even sizes); gray is
+      // converted by FFmpeg, which costs less than piping 1.5x the bytes
+      final YuvFrames yuv = (YuvFrames.named(opt_.color) != null && YuvFrames.supports(w, h))
+            ? new YuvFrames(w, h, YuvFrames.named(opt_.color)) : null;
+      final boolean realtime = MP4StreamConfigurator.MODE_REALTIME.equals(opt_.mode);
+      final double framingScale = MP4StreamConfigurator.MODE_TIMELAPSE.equals(opt_.mode)
+            ? 1.0 / opt_.timelapseFactor : 1.0;
+
+      List<String> cmd = new ArrayList<>();
+      cmd.add(opt_.ffmpeg);
+      cmd.add("-y"); cmd.add("-nostats"); cmd.add("-loglevel"); cmd.add("error");
+      cmd.add("-f"); cmd.add("rawvideo");
+      cmd.add("-pix_fmt"); cmd.add((yuv != null) ? YuvFrames.PIX_FMT : "gray");
+      cmd.add("-s"); cmd.add(w + "x" + h);
+      cmd.add("-r"); cmd.add(String.format(Locale.US, "%.3f", opt_.fps));
+      cmd.add("-i"); cmd.add("-");
+      cmd.add("-an");
+      if (yuv == null) {
+         cmd.add("-vf"); cmd.add("crop=" + (w & ~1) + ":" + (h & ~1) + ":0:0"); // yuv420p needs even sizes
+      }
+      EncoderProfile.addCodecArgs(cmd, opt_.codec, opt_.preset, EncoderProfile.equivalentCrf(opt_.codec, opt_.crf));
+      cmd.add("-threads"); cmd.add(Integer.toString(threads));
+      cmd.add("-pix_fmt"); cmd.add("yuv420p");
+      // Encoded next to the target and renamed when complete, so a failed or
+      // interrupted export never leaves a truncated file that counts as done
+      final File part = new File(s.out.getAbsolutePath() + ".part");
+      cmd.add("-f"); cmd.add("mp4");
+      cmd.add(part.getPath());
+
+      File log = File.createTempFile("mp4s-export-", ".log");
+      Process p = null;
+      try {
+         p = new ProcessBuilder(budget.wrapCommand(cmd))
+               .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+               .redirectError(ProcessBuilder.Redirect.appendTo(log))
+               .start();
+         budget.applyToProcess(p);
+
+         final OverlayCompositor overlay = OverlayCompositor.standard(opt_.timestamp, opt_.scalebar,
+               opt_.fontSize, opt_.blackText, opt_.background, opt_.scalebarLengthUm);
+         final CfrFramer cfr = new CfrFramer(opt_.fps);
+         final Object raw = first.newBuffer();
+         final AutoContrast auto = opt_.autoContrast
+               ? new AutoContrast(MP4StreamConfigurator.DEFAULT_AUTO_CONTRAST_LOW_PCT,
+                     MP4StreamConfigurator.DEFAULT_AUTO_CONTRAST_HIGH_PCT)
+               : null;
+         final byte[] frame8 = new byte[w * h];
+         final long[] written = {0};
+         int mismatched = 0;
+         IOException writeError = null;
+         try (OutputStream os = new BufferedOutputStream(p.getOutputStream(), 1 << 20)) {
+            CfrFramer.Sink sink = (f, dt, unchanged) -> {
+               os.write((yuv == null) ? f : unchanged ? yuv.packed() : yuv.pack(f));
+               written[0]++;
+            };
+            for (int i = 0; i < s.planes.size(); i++) {
+               final StoredDataset.Plane pl = s.planes.get(i);
+               if (pl.width != w || pl.height != h || pl.bytesPerPixel != first.bytesPerPixel) {
+                  mismatched++;
+                  continue;
+               }
+               pl.read(raw);
+               if (auto != null) {
+                  auto.update(raw, pl.bytesPerPixel);
+                  GrayConversion.toGray8(raw, pl.bytesPerPixel, frame8, auto.min(), auto.max(), opt_.gamma, flat);
+               } else {
+                  GrayConversion.toGray8(raw, pl.bytesPerPixel, frame8, min, max, opt_.gamma, flat);
+               }
+
+               // Δt from the stored acquisition time, else one frame per output frame
+               final double dt = (Double.isNaN(pl.elapsedMs) || Double.isNaN(first.elapsedMs))
+                     ? i / opt_.fps : Math.max(0.0, (pl.elapsedMs - first.elapsedMs) / 1000.0);
+               Runnable burn = (overlay == null) ? null : () -> {
+                  OverlayLayer.Context ctx = overlay.context();
+                  ctx.dtSec = dt;
+                  ctx.pixelSizeUm = pl.pixelSizeUm;
+                  overlay.apply(frame8, w, h);
+               };
+               if (realtime) {
+                  if (burn != null) {
+                     burn.run();
+                  }
+                  sink.write(frame8, dt, false);
+               } else {
+                  cfr.accept(frame8, dt, dt * framingScale, burn, sink);
+               }
+            }
+         } catch (IOException e) {
+            writeError = e; // FFmpeg exited early (its log says why) or a plane was unreadable
+         }
+         if (p.waitFor() != 0) {
+            throw new IOException(EncoderCalibration.lastLine(log));
+         }
+         if (writeError != null) {
+            throw writeError;
+         }
+         Files.move(part.toPath(), s.out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         return String.format(Locale.US, "Wrote %s (%d frames from %d images%s)", s.out, written[0],
+               s.planes.size() - mismatched,
+               (mismatched > 0) ? ", " + mismatched + " of another size skipped" : "");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Export interrupted");
+      } finally {
+         if (p != null && p.isAlive()) {
+            p.destroyForcibly();
+            try {
+               p.waitFor(); // it must have let go of the file before it is deleted
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         part.delete();
+         log.delete();
+      }
+   }
+}
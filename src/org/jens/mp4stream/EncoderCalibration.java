@@ -0,0 +1,290 @@
+package org.jens.mp4stream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures which codec settings this machine can sustain for a frame size.
+ * Synthetic frames are piped through FFmpeg once per candidate (fastest
+ * preset first); encode fps and output size decide the recommendation.
+ */
+final class EncoderCalibration {
+
+   /** Required encode speed relative to the target rate. */
+   static final double HEADROOM = 1.25;
+
+   private static final double SECONDS_PER_CANDIDATE = 3.0; // of content at the target fps
+   private static final int MIN_FRAMES = 30;
+   private static final int MAX_FRAMES = 150;
+   private static final long TIME_LIMIT_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+   // Fastest first per codec; a codec's slower presets are skipped once one falls short
+   private static final String[][] CANDIDATES = {
+         {EncoderProfile.X264, "ultrafast", "superfast", "veryfast", "faster", "fast", "medium"},
+         {EncoderProfile.X265, "ultrafast", "superfast", "veryfast", "faster"},
+         {EncoderProfile.SVT_AV1, "12", "10", "8"},
+         {EncoderProfile.VP9, "8", "6"},
+   };
+
+   interface Listener {
+      void progress(String message);
+   }
+
+   static final class Result {
+      final String codec;
+      final String preset;
+      final double fps;
+      final double kbps;
+      final String error; // null if the encode finished
+
+      Result(String codec, String preset, double fps, double kbps, String error) {
+         this.codec = codec;
+         this.preset = preset;
+         this.fps = fps;
+         this.kbps = kbps;
+         this.error = error;
+      }
+
+      boolean sustains(double targetFps) {
+         return error == null && fps >= targetFps * HEADROOM;
+      }
+
+      @Override
+      public String toString() {
+         if (error != null) {
+            return String.format(Locale.US, "%-11s %-9s failed: %s", codec, preset, error);
+         }
+         return String.format(Locale.US, "%-11s %-9s %7.1f fps %9.0f kbit/s", codec, preset, fps, kbps);
+      }
+   }
+
+   private final String exe_;
+   private final int w_;
+   private final int h_;
+   private final double targetFps_;
+   private final int x264Crf_;
+   private final CpuBudget budget_;
+   private final AtomicBoolean cancelled_ = new AtomicBoolean(false);
+
+   /**
+    * @param budget thread count and priority the archive encoder gets while
+    *               recording, so the measurement matches
+    */
+   EncoderCalibration(String exe, int w, int h, double targetFps, int x264Crf, CpuBudget budget) {
+      exe_ = exe;
+      w_ = w;
+      h_ = h;
+      targetFps_ = targetFps;
+      x264Crf_ = x264Crf;
+      budget_ = budget;
+   }
+
+   void cancel() {
+      cancelled_.set(true);
+   }
+
+   boolean isCancelled() {
+      return cancelled_.get();
+   }
+
+   /** Runs all candidates the FFmpeg build supports. Blocks; call off the EDT. */
+   List<Result> run(FfmpegCapabilities caps, Listener listener) {
+      List<String[]> todo = new ArrayList<>();
+      for (String[] c : CANDIDATES) {
+         if (caps == null || caps.hasEncoder(c[0])) {
+            todo.add(c);
+         }
+      }
+      int total = 0;
+      for (String[] c : todo) {
+         total += c.length - 1;
+      }
+
+      int frames = (int) Math.max(MIN_FRAMES, Math.min(MAX_FRAMES, Math.round(targetFps_ * SECONDS_PER_CANDIDATE)));
+      SyntheticFrames source = new SyntheticFrames(w_, h_);
+      List<Result> results = new ArrayList<>();
+      int n = 0;
+      for (String[] c : todo) {
+         for (int i = 1; i < c.length && !isCancelled(); i++) {
+            n++;
+            listener.progress(String.format(Locale.US, "%s %s (%d/%d)...", c[0], c[i], n, total));
+            Result r = encode(c[0], c[i], frames, source);
+            results.add(r);
+            if (!r.sustains(targetFps_)) {
+               n += c.length - 1 - i;
+               break;
+            }
+         }
+      }
+      return results;
+   }
+
+   /**
+    * Among the settings that sustain the target rate, the one with the
+    * smallest output; if none does, the fastest. Null if nothing worked.
+    */
+   EncoderProfile recommend(List<Result> results) {
+      Result best = null;
+      for (Result r : results) {
+         if (r.sustains(targetFps_) && (best == null || r.kbps < best.kbps)) {
+            best = r;
+         }
+      }
+      if (best == null) {
+         for (Result r : results) {
+            if (r.error == null && (best == null || r.fps > best.fps)) {
+               best = r;
+            }
+         }
+      }
+      return (best == null) ? null : new EncoderProfile(best.codec, best.preset, best.fps, best.kbps);
+   }
+
+   private Result encode(String codec, String preset, int frames, SyntheticFrames source) {
+      File out = null;
+      File log = null;
+      Process p = null;
+      try {
+         out = File.createTempFile("mp4s-cal-", ".mp4");
+         log = File.createTempFile("mp4s-cal-", ".log");
+         List<String> cmd = new ArrayList<>();
+         cmd.add(exe_);
+         cmd.add("-y"); cmd.add("-nostats"); cmd.add("-loglevel"); cmd.add("error");
+         cmd.add("-f"); cmd.add("rawvideo");
+         cmd.add("-pix_fmt"); cmd.add("gray");
+         cmd.add("-s"); cmd.add(w_ + "x" + h_);
+         cmd.add("-r"); cmd.add(String.format(Locale.US, "%.3f", targetFps_));
+         cmd.add("-i"); cmd.add("-");
+         cmd.add("-an");
+         EncoderProfile.addCodecArgs(cmd, codec, preset, EncoderProfile.equivalentCrf(codec, x264Crf_));
+         cmd.add("-threads"); cmd.add(Integer.toString(budget_.encoderThreads(0)));
+         cmd.add("-pix_fmt"); cmd.add("yuv420p");
+         cmd.add("-f"); cmd.add("mp4");
+         cmd.add(out.getAbsolutePath());
+
+         p = new ProcessBuilder(budget_.wrapCommand(cmd))
+               .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+               .redirectError(ProcessBuilder.Redirect.appendTo(log))
+               .start();
+         budget_.applyToProcess(p);
+         long t0 = System.nanoTime();
+         int written = 0;
+         try (OutputStream os = new BufferedOutputStream(p.getOutputStream(), 1 << 20)) {
+            while (written < frames && !isCancelled() && System.nanoTime() - t0 < TIME_LIMIT_NANOS) {
+               os.write(source.next());
+               written++;
+            }
+         } catch (IOException e) {
+            // FFmpeg exited early; reported below from its log
+         }
+         if (!p.waitFor(30, TimeUnit.SECONDS)) {
+            p.destroyForcibly();
+            return new Result(codec, preset, 0, 0, "did not finish");
+         }
+         double sec = (System.nanoTime() - t0) / 1e9;
+         if (p.exitValue() != 0 || written == 0) {
+            return new Result(codec, preset, 0, 0, lastLine(log));
+         }
+         double kbps = out.length() * 8.0 / (written / targetFps_) / 1000.0;
+         return new Result(codec, preset, written / sec, kbps, null);
+      } catch (IOException e) {
+         return new Result(codec, preset, 0, 0, e.getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         cancel();
+         return new Result(codec, preset, 0, 0, "interrupted");
+      } finally {
+         if (p != null && p.isAlive()) {
+            p.destroyForcibly();
+         }
+         if (out != null) {
+            out.delete();
+         }
+         if (log != null) {
+            log.delete();
+         }
+      }
+   }
+
+   /** Last non-empty line of an FFmpeg log, the usual place for its error. */
+   static String lastLine(File log) {
+      try {
+         List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+         for (int i = lines.size() - 1; i >= 0; i--) {
+            if (!lines.get(i).trim().isEmpty()) {
+               return lines.get(i).trim();
+            }
+         }
+      } catch (IOException ignored) {}
+      return "FFmpeg exited with an error";
+   }
+
+   /**
+    * Smooth drifting structure plus shot noise, so encoders see neither a
+    * static image nor pure noise. Rows are cut from a wider background at a
+    * per-frame offset and get noise from a table at a per-row offset.
+    */
+   private static final class SyntheticFrames {
+      private static final int DRIFT = 64;
+      private static final int NOISE_LEN = 1 << 16;
+
+      private final int w_;
+      private final int h_;
+      private final byte[] background_;
+      private final byte[] noise_ = new byte[NOISE_LEN];
+      private final byte[] frame_;
+      private int index_ = 0;
+      private long rng_ = 0x9E3779B97F4A7C15L;
+
+      SyntheticFrames(int w, int h) {
+         w_ = w;
+         h_ = h;
+         frame_ = new byte[w * h];
+         int bw = w + DRIFT;
+         background_ = new byte[bw * h];
+         for (int y = 0; y < h; y++) {
+            for (int x = 0; x < bw; x++) {
+               double v = 90
+                     + 50 * Math.sin(x * 0.021) * Math.sin(y * 0.017)
+                     + 30 * Math.sin((x + y) * 0.053)
+                     + 20 * Math.sin(x * 0.11 + y * 0.07);
+               background_[y * bw + x] = (byte) Math.max(0, Math.min(255, (int) v));
+            }
+         }
+         for (int i = 0; i < NOISE_LEN; i++) {
+            noise_[i] = (byte) ((nextRandom() & 15) - 8);
+         }
+      }
+
+      byte[] next() {
+         int bw = w_ + DRIFT;
+         int shift = index_++ % DRIFT;
+         for (int y = 0; y < h_; y++) {
+            int src = y * bw + shift;
+            int dst = y * w_;
+            int n = (int) (nextRandom() & (NOISE_LEN - 1));
+            for (int x = 0; x < w_; x++) {
+               int v = (background_[src + x] & 0xFF) + noise_[(n + x) & (NOISE_LEN - 1)];
+               frame_[dst + x] = (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+            }
+         }
+         return frame_;
+      }
+
+      private long nextRandom() {
+         rng_ ^= rng_ << 13;
+         rng_ ^= rng_ >>> 7;
+         rng_ ^= rng_ << 17;
+         return rng_;
+      }
+   }
+}
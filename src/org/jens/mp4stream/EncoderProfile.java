@@ -0,0 +1,126 @@
+package org.jens.mp4stream;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.prefs.Preferences;
+
+/**
+ * Codec and preset for the archive output, as recommended by
+ * {@link EncoderCalibration} for one frame size. Profiles are stored in
+ * Preferences per resolution; quality still follows the archive CRF, mapped
+ * onto each codec's scale by {@link #equivalentCrf}.
+ */
+final class EncoderProfile {
+
+   static final String X264 = "libx264";
+   static final String X265 = "libx265";
+   static final String SVT_AV1 = "libsvtav1";
+   static final String VP9 = "libvpx-vp9";
+
+   /** The codecs the calibration and the exporter know options for. */
+   static final String[] CODECS = {X264, X265, SVT_AV1, VP9};
+
+   final String codec;
+   final String preset;      // codec-specific: x26x preset name, SVT-AV1 preset number, VP9 cpu-used
+   final double measuredFps; // encode speed during calibration
+   final double kbps;        // output bitrate during calibration, at the target fps
+
+   EncoderProfile(String codec, String preset, double measuredFps, double kbps) {
+      this.codec = codec;
+      this.preset = preset;
+      this.measuredFps = measuredFps;
+      this.kbps = kbps;
+   }
+
+   @Override
+   public String toString() {
+      return String.format(Locale.US, "%s %s (%.0f fps, %.0f kbit/s)", codec, preset, measuredFps, kbps);
+   }
+
+   /** Stored profile for w x h, or null if that size was never calibrated. */
+   static EncoderProfile load(int w, int h) {
+      String s = node().get(w + "x" + h, null);
+      if (s == null) {
+         return null;
+      }
+      String[] f = s.split(" ");
+      if (f.length != 4) {
+         return null;
+      }
+      try {
+         return new EncoderProfile(f[0], f[1], Double.parseDouble(f[2]), Double.parseDouble(f[3]));
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   void save(int w, int h) {
+      node().put(w + "x" + h, String.format(Locale.US, "%s %s %.1f %.1f", codec, preset, measuredFps, kbps));
+   }
+
+   // Looked up on use, so the headless exporter can use the codec helpers
+   // without Micro-Manager on the classpath
+   private static Preferences node() {
+      return Preferences.userNodeForPackage(MP4StreamConfigurator.class).node("encoderProfiles");
+   }
+
+   /**
+    * Roughly the same visual quality as x264 at x264Crf. Offsets follow the
+    * usual rules of thumb (x265 CRF 28 ~ x264 CRF 23, and so on).
+    */
+   static int equivalentCrf(String codec, int x264Crf) {
+      int crf;
+      int max;
+      if (X265.equals(codec)) {
+         crf = x264Crf + 5;
+         max = 51;
+      } else if (SVT_AV1.equals(codec)) {
+         crf = x264Crf + 12;
+         max = 63;
+      } else if (VP9.equals(codec)) {
+         crf = x264Crf + 8;
+         max = 63;
+      } else {
+         return x264Crf;
+      }
+      return Math.max(0, Math.min(max, crf));
+   }
+
+   /**
+    * Preset for codec when none is chosen: the plugin's archive preset for
+    * x264/x265, otherwise a similarly balanced speed number.
+    */
+   static String defaultPreset(String codec) {
+      if (SVT_AV1.equals(codec)) {
+         return "10";
+      }
+      if (VP9.equals(codec)) {
+         return "8";
+      }
+      return MP4StreamConfigurator.DEFAULT_ARCHIVE_PRESET;
+   }
+
+   /** Whether codec takes a speed number (SVT-AV1 preset, VP9 cpu-used) rather than a preset name. */
+   static boolean numericPreset(String codec) {
+      return SVT_AV1.equals(codec) || VP9.equals(codec);
+   }
+
+   /** Appends -c:v and the codec's speed/quality options. */
+   static void addCodecArgs(List<String> cmd, String codec, String preset, int crf) {
+      cmd.add("-c:v"); cmd.add(codec);
+      if (VP9.equals(codec)) {
+         // Constant quality; realtime deadline with cpu-used as the speed knob
+         cmd.add("-deadline"); cmd.add("realtime");
+         cmd.add("-cpu-used"); cmd.add(preset);
+         cmd.add("-row-mt"); cmd.add("1");
+         cmd.add("-b:v"); cmd.add("0");
+      } else {
+         cmd.add("-preset"); cmd.add(preset);
+      }
+      cmd.add("-crf"); cmd.add(Integer.toString(crf));
+      if (X265.equals(codec)) {
+         cmd.add("-tag:v"); cmd.add("hvc1"); // plays in QuickTime/Safari
+         cmd.add("-x265-params"); cmd.add("log-level=error");
+      }
+   }
+}
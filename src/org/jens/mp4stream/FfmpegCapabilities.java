@@ -0,0 +1,325 @@
+package org.jens.mp4stream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+/**
+ * What an FFmpeg binary can do: version, encoders, pixel formats, muxers,
+ * filters and protocols, plus how long a trivial run takes (spawn latency).
+ *
+ * <p>Probing runs a handful of short FFmpeg processes, so it is started in
+ * the background at plugin load ({@link #probeAsync}) and recording only
+ * consults the finished result ({@link #cached}). Results are kept in memory
+ * and in Preferences, keyed by the binary's resolved path and mtime, so an
+ * unchanged FFmpeg is not probed again on the next start.
+ */
+final class FfmpegCapabilities {
+
+   private static final Preferences CACHE_NODE =
+         Preferences.userNodeForPackage(MP4StreamConfigurator.class).node("ffmpegCapabilities");
+   private static final long PROBE_TIMEOUT_SEC = 15;
+   // Preferences.MAX_VALUE_LENGTH; longer lists are only cached in memory
+   private static final int MAX_PERSISTED_LENGTH = 8192;
+
+   private static final ConcurrentHashMap<String, CompletableFuture<FfmpegCapabilities>> PROBES =
+         new ConcurrentHashMap<>();
+
+   final String path;      // resolved binary, or the configured name if not found
+   final long mtime;       // 0 if the binary could not be resolved
+   final String error;     // null if the probe succeeded
+   final String version;   // first line of -version
+   final long spawnMs;     // wall time of "ffmpeg -version"
+   private final Set<String> encoders_;
+   private final Set<String> pixFmts_;
+   private final Set<String> muxers_;
+   private final Set<String> filters_;
+   private final Set<String> protocols_;
+
+   private FfmpegCapabilities(String path, long mtime, String error, String version, long spawnMs,
+         Set<String> encoders, Set<String> pixFmts, Set<String> muxers, Set<String> filters,
+         Set<String> protocols) {
+      this.path = path;
+      this.mtime = mtime;
+      this.error = error;
+      this.version = version;
+      this.spawnMs = spawnMs;
+      encoders_ = encoders;
+      pixFmts_ = pixFmts;
+      muxers_ = muxers;
+      filters_ = filters;
+      protocols_ = protocols;
+   }
+
+   boolean isUsable() {
+      return error == null;
+   }
+
+   boolean hasEncoder(String name) {
+      return encoders_.contains(name);
+   }
+
+   boolean hasPixFmt(String name) {
+      return pixFmts_.contains(name);
+   }
+
+   boolean hasMuxer(String name) {
+      return muxers_.contains(name);
+   }
+
+   boolean hasFilter(String name) {
+      return filters_.contains(name);
+   }
+
+   boolean hasProtocol(String name) {
+      return protocols_.contains(name);
+   }
+
+   /** One-line summary for the log. */
+   String describe() {
+      if (!isUsable()) {
+         return path + ": " + error;
+      }
+      return String.format(java.util.Locale.US, "%s (%s; %d encoders, %d muxers; spawn %d ms)",
+            version, path, encoders_.size(), muxers_.size(), spawnMs);
+   }
+
+   /** The binary to run for a configured path ("" = ffmpeg from PATH). */
+   static String executable(String configuredPath) {
+      return (configuredPath == null || configuredPath.trim().isEmpty()) ? "ffmpeg" : configuredPath.trim();
+   }
+
+   /**
+    * Returns the probe result for exe if it has finished, else null (and
+    * starts a probe if none is running). Never blocks.
+    */
+   static FfmpegCapabilities cached(String exe) {
+      return probeAsync(exe).getNow(null);
+   }
+
+   /**
+    * Starts probing exe on a background thread unless a result for the same
+    * binary (path and mtime) is already known or in flight. Failures are
+    * neither persisted nor kept: a timeout or a share that mounts late must
+    * not disable a working binary, so the next segment probes again.
+    */
+   static CompletableFuture<FfmpegCapabilities> probeAsync(String exe) {
+      final File bin = resolve(exe);
+      final String path = (bin != null) ? bin.getAbsolutePath() : exe;
+      final long mtime = (bin != null) ? bin.lastModified() : 0L;
+      final String key = path + "|" + mtime;
+
+      CompletableFuture<FfmpegCapabilities> known = PROBES.get(key);
+      if (known != null) {
+         return known;
+      }
+      FfmpegCapabilities persisted = loadPersisted(path, mtime);
+      if (persisted != null) {
+         return PROBES.computeIfAbsent(key, k -> CompletableFuture.completedFuture(persisted));
+      }
+      CompletableFuture<FfmpegCapabilities> f = new CompletableFuture<>();
+      known = PROBES.putIfAbsent(key, f);
+      if (known != null) {
+         return known;
+      }
+      Thread t = new Thread(() -> {
+         FfmpegCapabilities caps = probe(exe, path, mtime);
+         if (caps.isUsable()) {
+            persist(caps);
+         } else {
+            PROBES.remove(key, f);
+         }
+         f.complete(caps);
+      }, "mp4stream-ffmpeg-probe");
+      t.setDaemon(true);
+      t.start();
+      return f;
+   }
+
+   private static FfmpegCapabilities probe(String exe, String path, long mtime) {
+      final Set<String> none = Collections.emptySet();
+      try {
+         long t0 = System.nanoTime();
+         List<String> versionOut = run(exe, "-version");
+         long spawnMs = (System.nanoTime() - t0) / 1_000_000L;
+         String version = versionOut.isEmpty() ? "unknown version" : versionOut.get(0).trim();
+         if (!version.startsWith("ffmpeg")) {
+            return new FfmpegCapabilities(path, mtime, "not an FFmpeg binary (" + version + ")",
+                  version, spawnMs, none, none, none, none, none);
+         }
+         int cut = version.indexOf(" Copyright");
+         if (cut > 0) {
+            version = version.substring(0, cut);
+         }
+         return new FfmpegCapabilities(path, mtime, null, version, spawnMs,
+               parseNames(run(exe, "-encoders")),
+               parseNames(run(exe, "-pix_fmts")),
+               parseNames(run(exe, "-muxers")),
+               parseNames(run(exe, "-filters")),
+               parseProtocols(run(exe, "-protocols")));
+      } catch (IOException e) {
+         return new FfmpegCapabilities(path, mtime, e.getMessage(), null, 0L,
+               none, none, none, none, none);
+      }
+   }
+
+   private static List<String> run(String exe, String what) throws IOException {
+      final Process p = new ProcessBuilder(exe, "-hide_banner", what).redirectErrorStream(true).start();
+      final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+      // Read on another thread, so a binary that hangs with its output open still times out
+      Thread reader = new Thread(() -> {
+         try (BufferedReader r = new BufferedReader(
+               new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+               lines.add(line);
+            }
+         } catch (IOException ignored) {
+            // destroyed on timeout
+         }
+      }, "mp4stream-ffmpeg-probe-output");
+      reader.setDaemon(true);
+      reader.start();
+      try {
+         if (!p.waitFor(PROBE_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+            p.destroyForcibly();
+            throw new IOException("'" + exe + " " + what + "' timed out");
+         }
+         reader.join(TimeUnit.SECONDS.toMillis(PROBE_TIMEOUT_SEC)); // the output ends with the process
+      } catch (InterruptedException ie) {
+         p.destroyForcibly();
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while probing FFmpeg");
+      }
+      if (p.exitValue() != 0) {
+         throw new IOException("'" + exe + " " + what + "' exited with code " + p.exitValue());
+      }
+      synchronized (lines) {
+         return new ArrayList<>(lines);
+      }
+   }
+
+   /**
+    * Listing lines look like "FLAGS name description..."; legend lines have
+    * "=" as the second token. Comma-separated aliases count individually.
+    */
+   private static Set<String> parseNames(List<String> lines) {
+      Set<String> names = new HashSet<>();
+      for (String line : lines) {
+         String[] tok = line.trim().split("\\s+");
+         if (tok.length < 2 || "=".equals(tok[1])) {
+            continue;
+         }
+         Collections.addAll(names, tok[1].split(","));
+      }
+      return names;
+   }
+
+   // "-protocols" lists one name per line under "Input:" and "Output:"; keep the input side
+   private static Set<String> parseProtocols(List<String> lines) {
+      Set<String> names = new HashSet<>();
+      boolean input = false;
+      for (String line : lines) {
+         String s = line.trim();
+         if (s.endsWith(":")) {
+            input = "Input:".equals(s);
+         } else if (input && !s.isEmpty()) {
+            names.add(s);
+         }
+      }
+      return names;
+   }
+
+   // Finds the file the OS would run for exe, searching PATH for bare names
+   private static File resolve(String exe) {
+      File f = new File(exe);
+      if (f.getParent() != null || f.isAbsolute()) {
+         return f.isFile() ? f : null;
+      }
+      String pathEnv = System.getenv("PATH");
+      if (pathEnv == null) {
+         return null;
+      }
+      boolean windows = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+      for (String dir : pathEnv.split(File.pathSeparator)) {
+         if (dir.isEmpty()) {
+            continue;
+         }
+         File c = new File(dir, exe);
+         if (c.isFile()) {
+            return c;
+         }
+         if (windows) {
+            c = new File(dir, exe + ".exe");
+            if (c.isFile()) {
+               return c;
+            }
+         }
+      }
+      return null;
+   }
+
+   private static FfmpegCapabilities loadPersisted(String path, long mtime) {
+      if (mtime == 0L || !path.equals(CACHE_NODE.get("path", null))
+            || CACHE_NODE.getLong("mtime", -1L) != mtime) {
+         return null;
+      }
+      return new FfmpegCapabilities(path, mtime, null,
+            CACHE_NODE.get("version", "unknown version"), CACHE_NODE.getLong("spawnMs", 0L),
+            split(CACHE_NODE.get("encoders", "")), split(CACHE_NODE.get("pixFmts", "")),
+            split(CACHE_NODE.get("muxers", "")), split(CACHE_NODE.get("filters", "")),
+            split(CACHE_NODE.get("protocols", "")));
+   }
+
+   private static void persist(FfmpegCapabilities c) {
+      if (c.mtime == 0L) {
+         return;
+      }
+      String encoders = String.join(" ", c.encoders_);
+      String pixFmts = String.join(" ", c.pixFmts_);
+      String muxers = String.join(" ", c.muxers_);
+      String filters = String.join(" ", c.filters_);
+      String protocols = String.join(" ", c.protocols_);
+      for (String v : new String[]{encoders, pixFmts, muxers, filters, protocols}) {
+         if (v.length() > MAX_PERSISTED_LENGTH) {
+            return;
+         }
+      }
+      try {
+         CACHE_NODE.remove("path");
+         CACHE_NODE.put("encoders", encoders);
+         CACHE_NODE.put("pixFmts", pixFmts);
+         CACHE_NODE.put("muxers", muxers);
+         CACHE_NODE.put("filters", filters);
+         CACHE_NODE.put("protocols", protocols);
+         CACHE_NODE.put("version", c.version);
+         CACHE_NODE.putLong("spawnMs", c.spawnMs);
+         // Written last so a partial write never looks like a valid entry
+         CACHE_NODE.putLong("mtime", c.mtime);
+         CACHE_NODE.put("path", c.path);
+      } catch (IllegalArgumentException | IllegalStateException ignored) {
+         // Cache only; the in-memory result is still used
+      }
+   }
+
+   private static Set<String> split(String s) {
+      Set<String> names = new HashSet<>();
+      for (String n : s.split(" ")) {
+         if (!n.isEmpty()) {
+            names.add(n);
+         }
+      }
+      return names;
+   }
+}
@@ -0,0 +1,104 @@
+package org.jens.mp4stream;
+
+import java.util.Locale;
+
+/**
+ * Builds FFmpeg filter chains (drawtext/drawbox) that render the overlays
+ * inside FFmpeg instead of on the camera thread. Layout follows
+ * {@link TimestampLayer} and {@link ScaleBarLayer}; fonts come from
+ * fontconfig, so glyph shapes differ slightly from the Java rendering.
+ *
+ * <p>Values are escaped for a filtergraph: the graph parser strips one level
+ * of quoting, the filter option parser another ("\:"), and drawtext expands
+ * the %{...} functions that remain.
+ */
+final class FfmpegOverlayFilter {
+
+   // Matches the alpha of the Java background box (180/255)
+   private static final String BG_ALPHA = "0.71";
+
+   private FfmpegOverlayFilter() {}
+
+   /**
+    * Δt from the frame PTS. With constant-rate input, t = frame number / fps;
+    * timeScale maps that back to acquisition time (the timelapse factor).
+    */
+   static String timestamp(int fontSize, String textColor, String shadowColor,
+         boolean background, double timeScale) {
+      // Whole milliseconds, rounded like TimestampLayer.formatElapsedHhMmSsMmm
+      String ms = (timeScale == 1.0)
+            ? "trunc(t*1000+0.5)"
+            : String.format(Locale.US, "trunc(t*%.6f+0.5)", timeScale * 1000.0);
+      String text = "\u0394t "
+            + eif("trunc(" + ms + "/3600000)", 2) + "\\:"
+            + eif("mod(trunc(" + ms + "/60000),60)", 2) + "\\:"
+            + eif("mod(trunc(" + ms + "/1000),60)", 2) + "."
+            + eif("mod(" + ms + ",1000)", 3);
+
+      StringBuilder f = new StringBuilder("drawtext=font=Monospace")
+            .append(":fontsize=").append(fontSize)
+            .append(":fontcolor=").append(textColor)
+            .append(":shadowcolor=").append(shadowColor)
+            .append(":shadowx=1:shadowy=1")
+            .append(":x=10:y=10")
+            .append(":text='").append(text).append('\'');
+      if (background) {
+         f.append(":box=1:boxborderw=5:boxcolor=").append(shadowColor).append('@').append(BG_ALPHA);
+      }
+      return f.toString();
+   }
+
+   /**
+    * Scale bar for a fixed pixel size. Returns null if the pixel size is
+    * unknown. Unlike the Java layer it does not follow objective changes
+    * within a segment.
+    */
+   static String scaleBar(int w, int h, double pixelSizeUm, double fixedLengthUm, int fontSize,
+         String textColor, String shadowColor, boolean background) {
+      if (!(pixelSizeUm > 0)) {
+         return null;
+      }
+      final double scaleUm = ScaleBarLayer.chooseScaleUm(w, pixelSizeUm, fixedLengthUm);
+
+      int barLengthPx = (int) Math.round(scaleUm / pixelSizeUm);
+      if (barLengthPx < 20) barLengthPx = 20;
+      if (barLengthPx > w - 20) barLengthPx = w - 20;
+
+      int barHeight = Math.max(4, fontSize / 3);
+      int barX = w - 15 - barLengthPx;
+      int barY = h - 15 - barHeight;
+      int labelFontSize = Math.max(10, fontSize * 3 / 4);
+      int labelBaseline = barY - 4;
+
+      String label = (scaleUm >= 1000) ?
+            String.format(Locale.US, "%.0f mm", scaleUm / 1000) :
+            String.format(Locale.US, "%.0f µm", scaleUm);
+
+      StringBuilder f = new StringBuilder();
+      if (background) {
+         // Line height is not known before FFmpeg picks the font; use the font size
+         int top = labelBaseline - labelFontSize - 2;
+         int bottom = barY + barHeight + 5;
+         f.append(box(barX - 5, top, barLengthPx + 10, bottom - top, shadowColor + '@' + BG_ALPHA)).append(',');
+      }
+      f.append(box(barX + 1, barY + 1, barLengthPx, barHeight, shadowColor)).append(',');
+      f.append(box(barX, barY, barLengthPx, barHeight, textColor)).append(',');
+      f.append("drawtext=font=Sans")
+            .append(":fontsize=").append(labelFontSize)
+            .append(":fontcolor=").append(textColor)
+            .append(":shadowcolor=").append(shadowColor)
+            .append(":shadowx=1:shadowy=1")
+            .append(":x=").append(barX).append("+(").append(barLengthPx).append("-text_w)/2")
+            .append(":y=").append(labelBaseline).append("-ascent")
+            .append(":text='").append(label).append('\'');
+      return f.toString();
+   }
+
+   private static String eif(String expr, int digits) {
+      return "%{eif\\:" + expr + "\\:d\\:" + digits + "}";
+   }
+
+   private static String box(int x, int y, int w, int h, String color) {
+      return String.format(Locale.US, "drawbox=x=%d:y=%d:w=%d:h=%d:color=%s:t=fill", x, y, w, h, color);
+   }
+}
@@ -0,0 +1,213 @@
+package org.jens.mp4stream;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Dark-frame subtraction and flat-field gain correction, applied by
+ * {@link GrayConversion} in its per-pixel pass:
+ * corrected = raw * gain - offset, with gain = mean(flat - dark) /
+ * (flat - dark) and offset = dark * gain - mean(dark) precomputed here.
+ * The mean levels are kept, so display contrast set on uncorrected images
+ * still fits.
+ *
+ * <p>Reference frames are TIFF files, averaged over all planes of a stack:
+ * captured from the configurator or made elsewhere (e.g. in Fiji).
+ */
+final class FlatField {
+
+   /** Frames averaged when capturing a reference. */
+   static final int CAPTURE_FRAMES = 16;
+
+   // Dead or saturated flat pixels would otherwise be amplified without bound
+   private static final float MAX_GAIN = 8.0f;
+
+   final int width;
+   final int height;
+   final float[] gain;   // 1 everywhere without a flat-field frame
+   final float[] offset; // 0 everywhere without a dark frame
+   private final String description_;
+
+   private FlatField(int width, int height, float[] gain, float[] offset, String description) {
+      this.width = width;
+      this.height = height;
+      this.gain = gain;
+      this.offset = offset;
+      description_ = description;
+   }
+
+   /**
+    * Loads the references for frames of w x h.
+    *
+    * @param darkPath dark-frame TIFF, or empty for none
+    * @param flatPath flat-field TIFF, or empty for none
+    * @return null if both paths are empty
+    * @throws IOException if a file cannot be read or does not match w x h
+    */
+   static FlatField load(String darkPath, String flatPath, int w, int h) throws IOException {
+      final boolean haveDark = darkPath != null && !darkPath.trim().isEmpty();
+      final boolean haveFlat = flatPath != null && !flatPath.trim().isEmpty();
+      if (!haveDark && !haveFlat) {
+         return null;
+      }
+      final int n = w * h;
+      final double[] dark = haveDark ? readMean(new File(darkPath.trim()), w, h) : new double[n];
+      final double meanDark = mean(dark);
+
+      final float[] gain = new float[n];
+      int clipped = 0;
+      if (haveFlat) {
+         final double[] flat = readMean(new File(flatPath.trim()), w, h);
+         for (int i = 0; i < n; i++) {
+            flat[i] -= dark[i];
+         }
+         final double meanFlat = mean(flat);
+         if (!(meanFlat > 0.0)) {
+            throw new IOException("Flat-field frame is not brighter than the dark frame: " + flatPath);
+         }
+         for (int i = 0; i < n; i++) {
+            double g = (flat[i] > 0.0) ? meanFlat / flat[i] : MAX_GAIN;
+            if (g > MAX_GAIN) {
+               g = MAX_GAIN;
+               clipped++;
+            }
+            gain[i] = (float) g;
+         }
+      } else {
+         Arrays.fill(gain, 1.0f);
+      }
+
+      final float[] offset = new float[n];
+      for (int i = 0; i < n; i++) {
+         offset[i] = (float) (dark[i] * gain[i] - meanDark);
+      }
+
+      StringBuilder sb = new StringBuilder();
+      sb.append(w).append('x').append(h);
+      if (haveDark) {
+         sb.append(String.format(Locale.US, ", dark %s (mean %.1f)", new File(darkPath.trim()).getName(), meanDark));
+      }
+      if (haveFlat) {
+         sb.append(", flat ").append(new File(flatPath.trim()).getName());
+         if (clipped > 0) {
+            sb.append(String.format(Locale.US, " (%d pixels capped at %.0fx gain)", clipped, MAX_GAIN));
+         }
+      }
+      return new FlatField(w, h, gain, offset, sb.toString());
+   }
+
+   /** Whether this correction applies to frames of w x h. */
+   boolean matches(int w, int h) {
+      return w == width && h == height;
+   }
+
+   /**
+    * This correction resampled like the frames it was loaded for when they
+    * are placed on a fixed canvas; the bars get gain 0, so they stay black.
+    */
+   FlatField onCanvas(CanvasMap map) {
+      return new FlatField(map.width, map.height, map.gather(gain), map.gather(offset),
+            description_ + " on " + map.width + "x" + map.height + " canvas");
+   }
+
+   @Override
+   public String toString() {
+      return description_;
+   }
+
+   // Pixel-wise mean over all planes of the file that have the frame size
+   private static double[] readMean(File f, int w, int h) throws IOException {
+      final int n = w * h;
+      final double[] sum = new double[n];
+      int planes = 0;
+      String otherSize = null;
+      try (StoredDataset ds = StoredDataset.open(f)) {
+         for (StoredDataset.Plane p : ds.planes()) {
+            if (p.width != w || p.height != h) {
+               otherSize = p.width + "x" + p.height;
+               continue;
+            }
+            Object raw = p.newBuffer();
+            p.read(raw);
+            if (raw instanceof byte[]) {
+               byte[] b = (byte[]) raw;
+               for (int i = 0; i < n; i++) {
+                  sum[i] += b[i] & 0xFF;
+               }
+            } else {
+               short[] s = (short[]) raw;
+               for (int i = 0; i < n; i++) {
+                  sum[i] += s[i] & 0xFFFF;
+               }
+            }
+            planes++;
+         }
+      }
+      if (planes == 0) {
+         throw new IOException(f.getName() + (otherSize != null
+               ? " is " + otherSize + ", frames are " + w + "x" + h : " has no images"));
+      }
+      for (int i = 0; i < n; i++) {
+         sum[i] /= planes;
+      }
+      return sum;
+   }
+
+   private static double mean(double[] v) {
+      double s = 0.0;
+      for (double x : v) {
+         s += x;
+      }
+      return (v.length > 0) ? s / v.length : 0.0;
+   }
+
+   /**
+    * Writes a single-plane uncompressed gray TIFF (little-endian) that
+    * {@link #load} reads back.
+    *
+    * @param pixels byte[] (8-bit) or short[] (16-bit) of w x h
+    */
+   static void writeTiff(File f, Object pixels, int w, int h) throws IOException {
+      final int bytesPerPixel = (pixels instanceof byte[]) ? 1 : 2;
+      final int entries = 8;
+      final int ifdSize = 2 + entries * 12 + 4;
+      final long dataOffset = 8 + ifdSize;
+      final int dataBytes = w * h * bytesPerPixel;
+
+      ByteBuffer head = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+      head.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+      head.putShort((short) entries);
+      entry(head, 256, w);                      // ImageWidth
+      entry(head, 257, h);                      // ImageLength
+      entry(head, 258, bytesPerPixel * 8);      // BitsPerSample
+      entry(head, 259, 1);                      // Compression: none
+      entry(head, 262, 1);                      // Photometric: black is zero
+      entry(head, 273, (int) dataOffset);       // StripOffsets
+      entry(head, 277, 1);                      // SamplesPerPixel
+      entry(head, 279, dataBytes);              // StripByteCounts
+      head.putInt(0);                           // no next IFD
+
+      ByteBuffer data = ByteBuffer.allocate(dataBytes).order(ByteOrder.LITTLE_ENDIAN);
+      if (bytesPerPixel == 1) {
+         data.put((byte[]) pixels, 0, w * h);
+      } else {
+         data.asShortBuffer().put((short[]) pixels, 0, w * h);
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+         out.write(head.array());
+         out.write(data.array());
+      }
+   }
+
+   // One LONG-typed IFD entry
+   private static void entry(ByteBuffer b, int tag, int value) {
+      b.putShort((short) tag).putShort((short) 4).putInt(1).putInt(value);
+   }
+}
@@ -0,0 +1,314 @@
+package org.jens.mp4stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-frame sidecar of a segment ({@code segment.mp4.frames}): one
+ * fixed-width record per frame sent to FFmpeg, in encoding order, so record
+ * n describes video frame n. Records collect in a direct buffer and are
+ * appended to the file 64 KB at a time, so a frame costs a few stores.
+ *
+ * <p>Layout, little-endian. Header of {@link #HEADER_BYTES}:
+ * <pre>
+ *  0  8 bytes  magic "MP4SFRM1"
+ *  8  int      record size ({@link #RECORD_BYTES})
+ * 12  int      width
+ * 16  int      height
+ * 20  int      reserved
+ * 24  double   video frame rate (frame n plays at n / rate)
+ * 32  long     segment start, epoch ms
+ * 40  long     reserved
+ * </pre>
+ * Record:
+ * <pre>
+ *  0  long     source frame (counted from 0 in the segment)
+ *  8  long     output slot (CFR grid index; jumps where a gap was skipped)
+ * 16  double   source Δt, seconds (acquisition time, as shown in the overlay)
+ * 24  int      flags ({@link #REPEAT}, {@link #BUFFERED})
+ * 28  int      source frames dropped since the previous record
+ * 32  int      display min
+ * 36  int      display max
+ * 40  float    display gamma
+ * 44  float    exposure, ms (NaN if unknown)
+ * 48  double   stage x, um (NaN if unknown)
+ * 56  double   stage y, um
+ * 64  double   stage z, um
+ * 72  long     time the source frame was received, epoch ms
+ * </pre>
+ * {@link Reader} maps a finished file for random lookup by frame or time;
+ * {@code main} prints a file as CSV.
+ */
+final class FrameIndex implements Closeable {
+
+   static final String EXTENSION = ".frames";
+   static final int HEADER_BYTES = 48;
+   static final int RECORD_BYTES = 80;
+
+   /** A repeat of the source frame, written to fill a gap (CFR). */
+   static final int REPEAT = 1;
+   /** Flushed from the pre-trigger buffer; only time is known. */
+   static final int BUFFERED = 2;
+
+   private static final byte[] MAGIC = "MP4SFRM1".getBytes(StandardCharsets.US_ASCII);
+   private static final int BUFFER_RECORDS = 819; // ~64 KB
+
+   /** What is known about a source frame; reused, the processor fills it in per frame. */
+   static final class Source {
+      long frame = -1;
+      double dtSec = Double.NaN;
+      long wallMs = 0L;
+      int flags = 0;
+      int displayMin = 0;
+      int displayMax = 0;
+      float gamma = 1.0f;
+      float exposureMs = Float.NaN;
+      double xUm = Double.NaN;
+      double yUm = Double.NaN;
+      double zUm = Double.NaN;
+
+      void copyFrom(Source o) {
+         frame = o.frame;
+         dtSec = o.dtSec;
+         wallMs = o.wallMs;
+         flags = o.flags;
+         displayMin = o.displayMin;
+         displayMax = o.displayMax;
+         gamma = o.gamma;
+         exposureMs = o.exposureMs;
+         xUm = o.xUm;
+         yUm = o.yUm;
+         zUm = o.zUm;
+      }
+   }
+
+   private final FileChannel ch_;
+   private final ByteBuffer buf_;
+   private long lastFrame_ = -1;
+   private long records_ = 0;
+
+   private FrameIndex(FileChannel ch) {
+      ch_ = ch;
+      buf_ = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /** Creates (or truncates) the sidecar and writes its header. */
+   static FrameIndex create(File f, int w, int h, double fps) throws IOException {
+      FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+         ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+         head.put(MAGIC).putInt(RECORD_BYTES).putInt(w).putInt(h).putInt(0);
+         head.putDouble(fps).putLong(System.currentTimeMillis()).putLong(0L);
+         head.flip();
+         while (head.hasRemaining()) {
+            ch.write(head);
+         }
+      } catch (IOException e) {
+         ch.close();
+         throw e;
+      }
+      return new FrameIndex(ch);
+   }
+
+   /**
+    * Appends the record of the next encoded frame.
+    *
+    * @param slot   output slot (CFR grid index, or the running count)
+    * @param repeat whether src is repeated to fill a gap
+    */
+   void append(Source src, long slot, boolean repeat) throws IOException {
+      if (!buf_.hasRemaining()) {
+         flush();
+      }
+      final int dropped = (src.frame > lastFrame_ + 1 && lastFrame_ >= 0)
+            ? (int) Math.min(Integer.MAX_VALUE, src.frame - lastFrame_ - 1) : 0;
+      lastFrame_ = Math.max(lastFrame_, src.frame);
+      buf_.putLong(src.frame).putLong(slot).putDouble(src.dtSec);
+      buf_.putInt(src.flags | (repeat ? REPEAT : 0)).putInt(dropped);
+      buf_.putInt(src.displayMin).putInt(src.displayMax).putFloat(src.gamma).putFloat(src.exposureMs);
+      buf_.putDouble(src.xUm).putDouble(src.yUm).putDouble(src.zUm).putLong(src.wallMs);
+      records_++;
+   }
+
+   /** Records appended so far. */
+   long records() {
+      return records_;
+   }
+
+   /** Writes buffered records to the file. */
+   void flush() throws IOException {
+      buf_.flip();
+      while (buf_.hasRemaining()) {
+         ch_.write(buf_);
+      }
+      buf_.clear();
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         flush();
+      } finally {
+         ch_.close();
+      }
+   }
+
+   /** One record, as read back. */
+   static final class Entry {
+      final long outputFrame;
+      final long sourceFrame;
+      final long slot;
+      final double dtSec;
+      final int flags;
+      final int droppedBefore;
+      final int displayMin;
+      final int displayMax;
+      final float gamma;
+      final float exposureMs;
+      final double xUm;
+      final double yUm;
+      final double zUm;
+      final long wallMs;
+
+      private Entry(long outputFrame, ByteBuffer b, int at) {
+         this.outputFrame = outputFrame;
+         sourceFrame = b.getLong(at);
+         slot = b.getLong(at + 8);
+         dtSec = b.getDouble(at + 16);
+         flags = b.getInt(at + 24);
+         droppedBefore = b.getInt(at + 28);
+         displayMin = b.getInt(at + 32);
+         displayMax = b.getInt(at + 36);
+         gamma = b.getFloat(at + 40);
+         exposureMs = b.getFloat(at + 44);
+         xUm = b.getDouble(at + 48);
+         yUm = b.getDouble(at + 56);
+         zUm = b.getDouble(at + 64);
+         wallMs = b.getLong(at + 72);
+      }
+   }
+
+   /** Read-only, memory-mapped view of a sidecar; lookups do not read the file. */
+   static final class Reader implements Closeable {
+      private final FileChannel ch_;
+      private final MappedByteBuffer map_;
+      private final int recordBytes_;
+      private final int records_;
+      final int width;
+      final int height;
+      final double fps;
+      final long startEpochMs;
+
+      Reader(File f) throws IOException {
+         ch_ = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+         try {
+            final long size = ch_.size();
+            if (size < HEADER_BYTES) {
+               throw new IOException(f.getName() + " is not a frame index (too short)");
+            }
+            if (size > Integer.MAX_VALUE) {
+               throw new IOException(f.getName() + " is too large to map");
+            }
+            map_ = ch_.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map_.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            map_.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+               throw new IOException(f.getName() + " is not a frame index");
+            }
+            recordBytes_ = map_.getInt(8);
+            if (recordBytes_ < RECORD_BYTES) {
+               throw new IOException(f.getName() + ": unsupported record size " + recordBytes_);
+            }
+            width = map_.getInt(12);
+            height = map_.getInt(16);
+            fps = map_.getDouble(24);
+            startEpochMs = map_.getLong(32);
+            // A partial record at the end (crash mid-write) is ignored
+            records_ = (int) ((size - HEADER_BYTES) / recordBytes_);
+         } catch (IOException | RuntimeException e) {
+            ch_.close();
+            throw e;
+         }
+      }
+
+      /** Number of frames, i.e. of records. */
+      int size() {
+         return records_;
+      }
+
+      /** The record of video frame n. */
+      Entry get(int n) {
+         if (n < 0 || n >= records_) {
+            throw new IndexOutOfBoundsException("frame " + n + " of " + records_);
+         }
+         return new Entry(n, map_, HEADER_BYTES + n * recordBytes_);
+      }
+
+      /**
+       * The last video frame whose source Δt is at most dtSec (binary
+       * search; Δt does not decrease within a segment), or -1 if none.
+       */
+      int frameAt(double dtSec) {
+         int lo = 0;
+         int hi = records_ - 1;
+         int found = -1;
+         while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (map_.getDouble(HEADER_BYTES + mid * recordBytes_ + 16) <= dtSec) {
+               found = mid;
+               lo = mid + 1;
+            } else {
+               hi = mid - 1;
+            }
+         }
+         return found;
+      }
+
+      @Override
+      public void close() throws IOException {
+         ch_.close();
+      }
+   }
+
+   /** Prints a sidecar as CSV: {@code FrameIndex FILE [FRAME | @SECONDS]}. */
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1 || args.length > 2) {
+         System.err.println("Usage: java -cp MP4Stream.jar org.jens.mp4stream.FrameIndex FILE.frames [FRAME | @SECONDS]");
+         System.exit(2);
+      }
+      try (Reader r = new Reader(new File(args[0]))) {
+         PrintStream out = System.out;
+         out.println("frame,source_frame,slot,dt_s,flags,dropped_before,display_min,display_max,gamma,"
+               + "exposure_ms,x_um,y_um,z_um,received_ms");
+         int from = 0;
+         int to = r.size();
+         if (args.length == 2) {
+            from = args[1].startsWith("@") ? r.frameAt(Double.parseDouble(args[1].substring(1)))
+                  : Integer.parseInt(args[1]);
+            if (from < 0 || from >= r.size()) {
+               System.err.println("No such frame (" + r.size() + " frames)");
+               System.exit(1);
+            }
+            to = from + 1;
+         }
+         for (int i = from; i < to; i++) {
+            Entry e = r.get(i);
+            out.println(String.format(Locale.US, "%d,%d,%d,%.6f,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d",
+                  e.outputFrame, e.sourceFrame, e.slot, e.dtSec, e.flags, e.droppedBefore,
+                  e.displayMin, e.displayMax, e.gamma, e.exposureMs, e.xUm, e.yUm, e.zUm, e.wallMs));
+         }
+      }
+   }
+}
@@ -0,0 +1,100 @@
+package org.jens.mp4stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-capacity ring of converted gray8 frames and their Δt timestamps.
+ * All slots are allocated up front (on or off heap), so memory is strictly
+ * bounded and the per-frame cost is a single copy into the next slot.
+ */
+final class FrameRingBuffer {
+
+   private final ByteBuffer[] slots_;
+   private final double[] times_;
+   private final int frameBytes_;
+   private final boolean direct_;
+   private int head_ = 0;  // next slot to write
+   private int count_ = 0;
+
+   FrameRingBuffer(int capacity, int frameBytes, boolean direct) {
+      if (capacity < 1 || frameBytes < 1) {
+         throw new IllegalArgumentException("capacity=" + capacity + ", frameBytes=" + frameBytes);
+      }
+      slots_ = new ByteBuffer[capacity];
+      times_ = new double[capacity];
+      frameBytes_ = frameBytes;
+      direct_ = direct;
+      for (int i = 0; i < capacity; i++) {
+         slots_[i] = direct ? ByteBuffer.allocateDirect(frameBytes) : ByteBuffer.allocate(frameBytes);
+      }
+   }
+
+   /**
+    * Number of frames that fit in the given byte budget, further capped so a
+    * small frame size does not allocate far more slots than can ever be used.
+    */
+   static int capacityFor(long budgetBytes, int frameBytes, double seconds, double maxFps) {
+      long byBudget = budgetBytes / Math.max(1, frameBytes);
+      long byTime = (long) Math.ceil(Math.max(0.0, seconds) * maxFps) + 1;
+      return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, Math.min(byBudget, byTime)));
+   }
+
+   int capacity() {
+      return slots_.length;
+   }
+
+   int frameBytes() {
+      return frameBytes_;
+   }
+
+   boolean isDirect() {
+      return direct_;
+   }
+
+   int size() {
+      return count_;
+   }
+
+   void put(byte[] frame8, double tSec) {
+      ByteBuffer slot = slots_[head_];
+      slot.clear();
+      slot.put(frame8, 0, Math.min(frame8.length, frameBytes_));
+      times_[head_] = tSec;
+      head_ = (head_ + 1) % slots_.length;
+      if (count_ < slots_.length) {
+         count_++;
+      }
+   }
+
+   /** Drops the oldest frames whose timestamp is before minTSec. */
+   void trimOlderThan(double minTSec) {
+      while (count_ > 1 && times_[indexOf(0)] < minTSec) {
+         count_--;
+      }
+   }
+
+   /** Timestamp of the i-th oldest frame. */
+   double timeAt(int i) {
+      return times_[indexOf(i)];
+   }
+
+   /** Copies the i-th oldest frame into out. */
+   void copyTo(int i, byte[] out) {
+      ByteBuffer slot = slots_[indexOf(i)].duplicate();
+      slot.clear();
+      slot.get(out, 0, Math.min(out.length, frameBytes_));
+   }
+
+   void clear() {
+      head_ = 0;
+      count_ = 0;
+   }
+
+   private int indexOf(int i) {
+      if (i < 0 || i >= count_) {
+         throw new IndexOutOfBoundsException("index " + i + ", size " + count_);
+      }
+      int idx = head_ - count_ + i;
+      return (idx < 0) ? idx + slots_.length : idx;
+   }
+}
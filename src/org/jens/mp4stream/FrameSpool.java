@@ -0,0 +1,343 @@
+package org.jens.mp4stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped FIFO of gray8 frames and timestamps on local disk. Used when
+ * the encoder falls behind: frames are appended at the live edge and drained
+ * into FFmpeg in order behind it. Read/write positions live in the mapped
+ * header, so after a crash the undrained frames can still be replayed.
+ *
+ * <p>Layout: a 4 KiB header, then records of
+ * [int RECORD_MAGIC][int length][double tSec][length bytes] in a ring up
+ * to the size limit: a record that does not fit before the end starts over
+ * behind the header (after an int WRAP_MAGIC, if there is room for one)
+ * once the reader has freed the space there. So the limit bounds the
+ * backlog, not the frames spooled since the encoder was last caught up.
+ * Not thread-safe; callers synchronize.
+ */
+final class FrameSpool implements AutoCloseable {
+
+   static final String EXTENSION = ".spool";
+
+   private static final long MAGIC = 0x4D503453504F4F4CL; // "MP4SPOOL"
+   private static final int VERSION = 2;               // 1: append-only, no capacity in the header
+   private static final int RECORD_MAGIC = 0x46524D31;  // "FRM1"
+   private static final int WRAP_MAGIC = 0x57524150;    // "WRAP": next record is behind the header
+   private static final int HEADER_BYTES = 4096;
+   private static final int RECORD_HEADER_BYTES = 4 + 4 + 8;
+   private static final long WINDOW_BYTES = 64L << 20;
+
+   // Header field offsets
+   private static final int H_MAGIC = 0;
+   private static final int H_VERSION = 8;
+   private static final int H_WIDTH = 12;
+   private static final int H_HEIGHT = 16;
+   private static final int H_FPS = 20;
+   private static final int H_READ_POS = 28;
+   private static final int H_WRITE_POS = 36;
+   private static final int H_COUNT = 44;
+   private static final int H_CAPACITY = 52;
+
+   private final File file_;
+   private final RandomAccessFile raf_;
+   private final FileChannel ch_;
+   private final FileLock lock_;
+   private final MappedByteBuffer header_;
+   private final List<MappedByteBuffer> windows_ = new ArrayList<>();
+   private final long maxBytes_;
+   private final int width_;
+   private final int height_;
+   private final double fps_;
+
+   private long readPos_;
+   private long writePos_;
+   private long count_;
+   private long peakCount_ = 0;
+
+   private FrameSpool(File file, RandomAccessFile raf, FileLock lock, long maxBytes,
+         boolean create, int w, int h, double fps) throws IOException {
+      file_ = file;
+      raf_ = raf;
+      ch_ = raf.getChannel();
+      lock_ = lock;
+      header_ = ch_.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      if (create) {
+         maxBytes_ = maxBytes;
+         width_ = w;
+         height_ = h;
+         fps_ = fps;
+         header_.putLong(H_MAGIC, MAGIC);
+         header_.putInt(H_VERSION, VERSION);
+         header_.putInt(H_WIDTH, w);
+         header_.putInt(H_HEIGHT, h);
+         header_.putDouble(H_FPS, fps);
+         header_.putLong(H_CAPACITY, maxBytes);
+         readPos_ = HEADER_BYTES;
+         writePos_ = HEADER_BYTES;
+         count_ = 0;
+         syncHeader();
+      } else {
+         final int version = header_.getInt(H_VERSION);
+         if (header_.getLong(H_MAGIC) != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException("Not a frame spool: " + file);
+         }
+         maxBytes_ = (version >= 2) ? header_.getLong(H_CAPACITY) : Long.MAX_VALUE;
+         width_ = header_.getInt(H_WIDTH);
+         height_ = header_.getInt(H_HEIGHT);
+         fps_ = header_.getDouble(H_FPS);
+         readPos_ = header_.getLong(H_READ_POS);
+         writePos_ = header_.getLong(H_WRITE_POS);
+         count_ = header_.getLong(H_COUNT);
+      }
+   }
+
+   /**
+    * Creates (or truncates) a spool for frames of w x h bytes.
+    *
+    * @throws IOException if another session holds the file; it is left as it is
+    */
+   static FrameSpool create(File file, int w, int h, double fps, long maxBytes) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         FileLock lock;
+         try {
+            lock = raf.getChannel().tryLock();
+         } catch (OverlappingFileLockException e) {
+            lock = null;
+         }
+         if (lock == null) {
+            throw new IOException("Spool is in use by another session: " + file);
+         }
+         raf.setLength(0);
+         return new FrameSpool(file, raf, lock, Math.max(maxBytes, HEADER_BYTES + WINDOW_BYTES),
+               true, w, h, fps);
+      } catch (IOException | RuntimeException e) {
+         raf.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Opens a spool left behind by a crashed session. Returns null if another
+    * session still holds it.
+    */
+   static FrameSpool openExisting(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         FileLock lock;
+         try {
+            lock = raf.getChannel().tryLock();
+         } catch (OverlappingFileLockException e) {
+            lock = null;
+         }
+         if (lock == null || raf.length() < HEADER_BYTES) {
+            raf.close();
+            return null;
+         }
+         return new FrameSpool(file, raf, lock, 0L, false, 0, 0, 0.0); // size limit from the header
+      } catch (IOException | RuntimeException e) {
+         raf.close();
+         throw e;
+      }
+   }
+
+   File getFile() {
+      return file_;
+   }
+
+   int getWidth() {
+      return width_;
+   }
+
+   int getHeight() {
+      return height_;
+   }
+
+   double getFps() {
+      return fps_;
+   }
+
+   boolean isEmpty() {
+      return count_ == 0;
+   }
+
+   long count() {
+      return count_;
+   }
+
+   long peakCount() {
+      return peakCount_;
+   }
+
+   /** Appends a frame; returns false if the spool is full. */
+   boolean append(byte[] frame8, double tSec) throws IOException {
+      final long recordBytes = RECORD_HEADER_BYTES + frame8.length;
+      // Wrapped: the free space is between the write and the read position
+      final boolean wrapped = writePos_ < readPos_ || (writePos_ == readPos_ && count_ > 0);
+      long p = writePos_;
+      if (wrapped) {
+         if (p + recordBytes > readPos_) {
+            return false;
+         }
+      } else if (p + recordBytes > maxBytes_) {
+         if (HEADER_BYTES + recordBytes > readPos_) {
+            return false; // nothing drained behind the header yet
+         }
+         if (p + 4 <= maxBytes_) {
+            putInt(p, WRAP_MAGIC);
+         }
+         p = HEADER_BYTES;
+      }
+      putInt(p, RECORD_MAGIC);
+      putInt(p + 4, frame8.length);
+      putDouble(p + 8, tSec);
+      putBytes(p + RECORD_HEADER_BYTES, frame8, frame8.length);
+      writePos_ = p + recordBytes;
+      count_++;
+      peakCount_ = Math.max(peakCount_, count_);
+      syncHeader();
+      return true;
+   }
+
+   /**
+    * Reads the oldest frame into out (sized to the record) and removes it.
+    * Returns its timestamp.
+    */
+   double readNext(byte[] out) throws IOException {
+      if (count_ == 0) {
+         throw new IOException("Spool is empty");
+      }
+      long p = readPos_;
+      if (p + 4 > maxBytes_ || getInt(p) == WRAP_MAGIC) {
+         p = HEADER_BYTES;
+      }
+      if (getInt(p) != RECORD_MAGIC) {
+         throw new IOException("Corrupt spool record at " + p + " in " + file_);
+      }
+      int len = getInt(p + 4);
+      double tSec = getDouble(p + 8);
+      if (len != out.length) {
+         throw new IOException("Spool record length " + len + " != frame size " + out.length);
+      }
+      getBytes(p + RECORD_HEADER_BYTES, out, len);
+      readPos_ = p + RECORD_HEADER_BYTES + len;
+      count_--;
+      if (count_ == 0) {
+         // Caught up: reuse the file from the start instead of growing it
+         readPos_ = HEADER_BYTES;
+         writePos_ = HEADER_BYTES;
+      }
+      syncHeader();
+      return tSec;
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         if (lock_ != null && lock_.isValid()) {
+            lock_.release();
+         }
+      } finally {
+         raf_.close();
+      }
+   }
+
+   /** Closes and deletes the file if nothing is left to replay. */
+   void closeAndDeleteIfEmpty() throws IOException {
+      boolean empty = isEmpty();
+      close();
+      if (empty && !file_.delete()) {
+         // Mapped regions may keep the file open (Windows) until GC
+         file_.deleteOnExit();
+      }
+   }
+
+   private void syncHeader() {
+      header_.putLong(H_READ_POS, readPos_);
+      header_.putLong(H_WRITE_POS, writePos_);
+      header_.putLong(H_COUNT, count_);
+   }
+
+   private MappedByteBuffer window(long pos) throws IOException {
+      int idx = (int) ((pos - HEADER_BYTES) / WINDOW_BYTES);
+      while (windows_.size() <= idx) {
+         long start = HEADER_BYTES + windows_.size() * WINDOW_BYTES;
+         // Mapping grows the file, so the last window ends at the size limit
+         windows_.add(ch_.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_BYTES, maxBytes_ - start)));
+      }
+      return windows_.get(idx);
+   }
+
+   private static int offsetIn(long pos) {
+      return (int) ((pos - HEADER_BYTES) % WINDOW_BYTES);
+   }
+
+   private void putBytes(long pos, byte[] src, int len) throws IOException {
+      int done = 0;
+      while (done < len) {
+         MappedByteBuffer w = window(pos + done);
+         int off = offsetIn(pos + done);
+         int n = (int) Math.min(len - done, WINDOW_BYTES - off);
+         w.position(off);
+         w.put(src, done, n);
+         done += n;
+      }
+   }
+
+   private void getBytes(long pos, byte[] dst, int len) throws IOException {
+      int done = 0;
+      while (done < len) {
+         MappedByteBuffer w = window(pos + done);
+         int off = offsetIn(pos + done);
+         int n = (int) Math.min(len - done, WINDOW_BYTES - off);
+         w.position(off);
+         w.get(dst, done, n);
+         done += n;
+      }
+   }
+
+   // Scalars go through the byte path so they may straddle window boundaries
+   private final byte[] scratch_ = new byte[8];
+
+   private void putInt(long pos, int v) throws IOException {
+      for (int i = 0; i < 4; i++) {
+         scratch_[i] = (byte) (v >>> (24 - 8 * i));
+      }
+      putBytes(pos, scratch_, 4);
+   }
+
+   private int getInt(long pos) throws IOException {
+      getBytes(pos, scratch_, 4);
+      int v = 0;
+      for (int i = 0; i < 4; i++) {
+         v = (v << 8) | (scratch_[i] & 0xFF);
+      }
+      return v;
+   }
+
+   private void putDouble(long pos, double d) throws IOException {
+      long v = Double.doubleToRawLongBits(d);
+      for (int i = 0; i < 8; i++) {
+         scratch_[i] = (byte) (v >>> (56 - 8 * i));
+      }
+      putBytes(pos, scratch_, 8);
+   }
+
+   private double getDouble(long pos) throws IOException {
+      getBytes(pos, scratch_, 8);
+      long v = 0;
+      for (int i = 0; i < 8; i++) {
+         v = (v << 8) | (scratch_[i] & 0xFF);
+      }
+      return Double.longBitsToDouble(v);
+   }
+}
@@ -0,0 +1,48 @@
+package org.jens.mp4stream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * How raw frames get from Java into the FFmpeg process: its stdin, through
+ * a 1 MB BufferedOutputStream. The transport is created before the process
+ * (it decides FFmpeg's -i argument) and connected right after it starts.
+ */
+final class FrameTransport implements AutoCloseable {
+
+   private OutputStream out_ = null;
+
+   private FrameTransport() {}
+
+   static FrameTransport stdin() {
+      return new FrameTransport();
+   }
+
+   /** FFmpeg -i argument for this transport. */
+   String inputUrl() {
+      return "-";
+   }
+
+   /** Binds the transport to the freshly started process. */
+   void connect(Process proc) {
+      out_ = new BufferedOutputStream(proc.getOutputStream(), 1 << 20);
+   }
+
+   void write(byte[] frame) throws IOException {
+      out_.write(frame);
+   }
+
+   /** Flushes and closes; FFmpeg sees end of input. */
+   @Override
+   public void close() throws IOException {
+      if (out_ == null) {
+         return; // never connected
+      }
+      try {
+         out_.flush();
+      } finally {
+         out_.close();
+      }
+   }
+}
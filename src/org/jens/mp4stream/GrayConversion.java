@@ -0,0 +1,116 @@
+package org.jens.mp4stream;
+
+/**
+ * Raw camera pixels to the gray8 plane FFmpeg encodes, with a display range
+ * and gamma. Shared by live recording and the offline exporter; large
+ * frames are split across the {@link ConversionPool}.
+ */
+final class GrayConversion {
+
+   private GrayConversion() {}
+
+   /**
+    * @param raw           byte[] (8-bit) or short[] (16-bit, unsigned) pixels
+    * @param bytesPerPixel 1 or 2; anything else gives a black frame
+    * @param min           value mapped to 0
+    * @param max           value mapped to 255; max <= min takes the high byte
+    * @param gamma         applied after normalizing to [0, 1]
+    */
+   static void toGray8(Object raw, int bytesPerPixel, byte[] out8, long min, long max, double gamma) {
+      toGray8(raw, bytesPerPixel, out8, min, max, gamma, null);
+   }
+
+   /**
+    * As above, with dark/flat-field correction in the same pass (before the
+    * range is applied). A null or differently sized correction is ignored,
+    * as is any correction when max <= min.
+    */
+   static void toGray8(Object raw, int bytesPerPixel, byte[] out8, long min, long max, double gamma,
+         FlatField flat) {
+      if (max <= min) {
+         toGray8(raw, bytesPerPixel, out8);
+         return;
+      }
+      if (!(gamma > 0.0)) {
+         gamma = 1.0;
+      }
+
+      final double invRange = 1.0 / (double) (max - min);
+      final boolean useGamma = (gamma != 1.0);
+      final double g = gamma;
+      final float[] gain = (flat != null && flat.gain.length >= out8.length) ? flat.gain : null;
+      final float[] offset = (gain != null) ? flat.offset : null;
+
+      // Large frames are split across the conversion pool (capped by the CPU budget)
+      if (!useGamma && (bytesPerPixel == 1 || bytesPerPixel == 2)) {
+         // Linear: float kernel, vectorized on Java 21 (see GrayKernel)
+         final GrayKernel k = GrayKernel.ACTIVE;
+         final float minF = (float) min;
+         final float invRangeF = (float) invRange;
+         if (bytesPerPixel == 1) {
+            final byte[] in = (byte[]) raw;
+            ConversionPool.forEach(Math.min(in.length, out8.length),
+                  (from, to) -> k.scale8(in, out8, from, to, minF, invRangeF, gain, offset));
+         } else {
+            final short[] in16 = (short[]) raw;
+            ConversionPool.forEach(Math.min(in16.length, out8.length),
+                  (from, to) -> k.scale16(in16, out8, from, to, minF, invRangeF, gain, offset));
+         }
+         return;
+      }
+
+      // With gamma: double precision, scalar
+      if (bytesPerPixel == 1) {
+         final byte[] in = (byte[]) raw;
+         ConversionPool.forEach(Math.min(in.length, out8.length), (from, to) -> {
+            for (int i = from; i < to; i++) {
+               double v = (gain == null) ? (in[i] & 0xFF) : (in[i] & 0xFF) * gain[i] - offset[i];
+               double x = Math.max(0.0, Math.min(1.0, (v - min) * invRange));
+               out8[i] = (byte) (int) Math.round(255.0 * Math.pow(x, g));
+            }
+         });
+         return;
+      }
+
+      if (bytesPerPixel == 2) {
+         final short[] in16 = (short[]) raw;
+         ConversionPool.forEach(Math.min(in16.length, out8.length), (from, to) -> {
+            for (int i = from; i < to; i++) {
+               int u = in16[i] & 0xFFFF; // unsigned
+               double v = (gain == null) ? u : u * gain[i] - offset[i];
+               double x = Math.max(0.0, Math.min(1.0, (v - min) * invRange));
+               out8[i] = (byte) (int) Math.round(255.0 * Math.pow(x, g));
+            }
+         });
+         return;
+      }
+
+      // Unsupported; black
+      for (int i = 0; i < out8.length; i++) {
+         out8[i] = 0;
+      }
+   }
+
+   // Without a usable range: 8-bit as is, 16-bit high byte
+   private static void toGray8(Object raw, int bytesPerPixel, byte[] out8) {
+      if (bytesPerPixel == 1) {
+         byte[] in = (byte[]) raw;
+         System.arraycopy(in, 0, out8, 0, Math.min(in.length, out8.length));
+         return;
+      }
+
+      if (bytesPerPixel == 2) {
+         short[] in16 = (short[]) raw;
+         int n = Math.min(in16.length, out8.length);
+         for (int i = 0; i < n; i++) {
+            out8[i] = (byte) ((in16[i] >>> 8) & 0xFF);
+         }
+         return;
+      }
+
+      // Unsupported; leave black
+      for (int i = 0; i < out8.length; i++) {
+         out8[i] = 0;
+      }
+   }
+}
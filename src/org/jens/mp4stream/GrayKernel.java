@@ -0,0 +1,129 @@
+package org.jens.mp4stream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The linear (gamma 1) pixel loop of {@link GrayConversion}. Per pixel, in
+ * float and in this order:
+ * <pre>
+ * v = raw                       (unsigned)
+ * v = v * gain[i] - offset[i]   (with flat-field correction)
+ * x = max(0, min(1, (v - min) * invRange))
+ * out = (int) (x * 255 + 0.5)
+ * </pre>
+ * Every implementation follows these steps exactly, so all give the same
+ * bytes. The multi-release JAR carries a Vector API implementation for
+ * Java 21 ({@code src/java21}); {@link #ACTIVE} uses it when the JVM has the
+ * jdk.incubator.vector module and it matches the scalar loop on a test
+ * pattern, and the scalar loop otherwise.
+ */
+abstract class GrayKernel {
+
+   static final GrayKernel SCALAR = new Scalar();
+   static final GrayKernel ACTIVE = select();
+
+   /** For the log, e.g. "scalar" or "Vector API, 8 lanes". */
+   abstract String name();
+
+   /** Pixels [from, to) of 8-bit input; gain and offset are both null or both set. */
+   abstract void scale8(byte[] in, byte[] out, int from, int to, float min, float invRange,
+         float[] gain, float[] offset);
+
+   /** Pixels [from, to) of 16-bit (unsigned) input; gain and offset are both null or both set. */
+   abstract void scale16(short[] in, byte[] out, int from, int to, float min, float invRange,
+         float[] gain, float[] offset);
+
+   /** The output level of one corrected value; vector kernels use it for their tails. */
+   static byte level(float v, float min, float invRange) {
+      float x = Math.max(0.0f, Math.min(1.0f, (v - min) * invRange));
+      return (byte) (int) (x * 255.0f + 0.5f);
+   }
+
+   static final class Scalar extends GrayKernel {
+
+      @Override
+      String name() {
+         return "scalar";
+      }
+
+      @Override
+      void scale8(byte[] in, byte[] out, int from, int to, float min, float invRange,
+            float[] gain, float[] offset) {
+         if (gain == null) {
+            for (int i = from; i < to; i++) {
+               out[i] = level(in[i] & 0xFF, min, invRange);
+            }
+         } else {
+            for (int i = from; i < to; i++) {
+               out[i] = level((in[i] & 0xFF) * gain[i] - offset[i], min, invRange);
+            }
+         }
+      }
+
+      @Override
+      void scale16(short[] in, byte[] out, int from, int to, float min, float invRange,
+            float[] gain, float[] offset) {
+         if (gain == null) {
+            for (int i = from; i < to; i++) {
+               out[i] = level(in[i] & 0xFFFF, min, invRange);
+            }
+         } else {
+            for (int i = from; i < to; i++) {
+               out[i] = level((in[i] & 0xFFFF) * gain[i] - offset[i], min, invRange);
+            }
+         }
+      }
+   }
+
+   // The Vector API kernel if this JVM can run it and it agrees with the scalar loop
+   private static GrayKernel select() {
+      GrayKernel vector;
+      try {
+         // Only in META-INF/versions/21 of the JAR; needs --add-modules jdk.incubator.vector
+         vector = (GrayKernel) Class.forName("org.jens.mp4stream.VectorGrayKernel")
+               .getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+         return SCALAR;
+      }
+      return sameOutput(vector, SCALAR) ? vector : SCALAR;
+   }
+
+   /** Compares two kernels on every 8- and 16-bit value, with and without correction. */
+   static boolean sameOutput(GrayKernel a, GrayKernel b) {
+      final int n = 65536 + 37; // odd tail for the vector loops
+      Random rnd = new Random(42);
+      short[] in16 = new short[n];
+      byte[] in8 = new byte[n];
+      float[] gain = new float[n];
+      float[] offset = new float[n];
+      for (int i = 0; i < n; i++) {
+         in16[i] = (short) i;
+         in8[i] = (byte) i;
+         gain[i] = 0.5f + 2.0f * rnd.nextFloat();
+         offset[i] = 200.0f * rnd.nextFloat() - 100.0f;
+      }
+      byte[] outA = new byte[n];
+      byte[] outB = new byte[n];
+      final long[][] ranges = {{0, 65535}, {0, 255}, {100, 4095}, {1000, 1001}, {37, 200}};
+      for (long[] r : ranges) {
+         float min = (float) r[0];
+         float invRange = (float) (1.0 / (double) (r[1] - r[0]));
+         for (int corrected = 0; corrected < 2; corrected++) {
+            float[] g = (corrected == 1) ? gain : null;
+            float[] o = (corrected == 1) ? offset : null;
+            a.scale16(in16, outA, 3, n, min, invRange, g, o);
+            b.scale16(in16, outB, 3, n, min, invRange, g, o);
+            if (!Arrays.equals(outA, outB)) {
+               return false;
+            }
+            a.scale8(in8, outA, 3, n, min, invRange, g, o);
+            b.scale8(in8, outB, 3, n, min, invRange, g, o);
+            if (!Arrays.equals(outA, outB)) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+}
@@ -0,0 +1,68 @@
+package org.jens.mp4stream;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts the per-session I/O threads (FFmpeg stderr, spool writer). They
+ * mostly block on pipes, so on Java 21 they can run as virtual threads and
+ * do not each hold a platform thread and its stack; older JVMs, or with
+ * the setting off, get daemon platform threads.
+ */
+final class IoThreads {
+
+   private static volatile boolean virtual_ = false;
+
+   // Thread.ofVirtual() and its builder, resolved reflectively (Java 21+)
+   private static final Method OF_VIRTUAL;
+   private static final Method NAME;
+   private static final Method START;
+
+   static {
+      Method ofVirtual = null;
+      Method name = null;
+      Method start = null;
+      try {
+         ofVirtual = Thread.class.getMethod("ofVirtual");
+         Class<?> builder = ofVirtual.getReturnType();
+         name = builder.getMethod("name", String.class);
+         start = builder.getMethod("start", Runnable.class);
+      } catch (ReflectiveOperationException | LinkageError e) {
+         ofVirtual = null;
+      }
+      OF_VIRTUAL = ofVirtual;
+      NAME = name;
+      START = start;
+   }
+
+   private IoThreads() {}
+
+   /** Whether this JVM has virtual threads. */
+   static boolean virtualAvailable() {
+      return OF_VIRTUAL != null;
+   }
+
+   /** Applies to threads started afterwards; ignored where virtual threads are unavailable. */
+   static void setVirtual(boolean virtual) {
+      virtual_ = virtual;
+   }
+
+   /** "virtual" or "platform", for the log. */
+   static String kind() {
+      return (virtual_ && virtualAvailable()) ? "virtual" : "platform";
+   }
+
+   static Thread start(String name, Runnable task) {
+      if (virtual_ && OF_VIRTUAL != null) {
+         try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) START.invoke(builder, task);
+         } catch (ReflectiveOperationException | RuntimeException e) {
+            // fall through to a platform thread
+         }
+      }
+      Thread t = new Thread(task, name);
+      t.setDaemon(true);
+      t.start();
+      return t;
+   }
+}
@@ -0,0 +1,74 @@
+package org.jens.mp4stream;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Keyframe-time table of a seek-optimized segment
+ * ({@code segment.mp4.keyframes}, CSV). The archive encoder is forced to a
+ * keyframe every {@code gop} frames, so keyframe k is video frame k * gop
+ * at k * gop / fps seconds; the table adds the acquisition Δt of each, so
+ * a script can go from a Δt to the keyframe before it with a binary search
+ * and from a video time to it with a division.
+ */
+final class KeyframeTable implements Closeable {
+
+   static final String EXTENSION = ".keyframes";
+
+   private final File video_;
+   private final int gop_;
+   private final double fps_;
+   private final Writer out_;
+   private long frames_ = 0;
+
+   /**
+    * @param video the segment's archive file; the table is written next to it
+    * @param gop   keyframe interval in frames
+    * @param fps   video frame rate
+    */
+   KeyframeTable(File video, int gop, double fps) throws IOException {
+      video_ = video;
+      gop_ = Math.max(1, gop);
+      fps_ = fps;
+      out_ = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(video.getPath() + EXTENSION), StandardCharsets.UTF_8));
+      try {
+         out_.write(String.format(Locale.US, "# keyframe every %d frames (%.3f s at %.3f fps)\n",
+               gop_, gop_ / fps_, fps_));
+         out_.write("keyframe,frame,video_s,dt_s\n");
+      } catch (IOException e) {
+         out_.close();
+         throw e;
+      }
+   }
+
+   /** The segment's archive file. */
+   File video() {
+      return video_;
+   }
+
+   /** Keyframe interval in frames. */
+   int gop() {
+      return gop_;
+   }
+
+   /** Counts a frame sent to the encoder; writes a row if it is a keyframe. */
+   void frameSent(double dtSec) throws IOException {
+      final long n = frames_++;
+      if (n % gop_ == 0) {
+         out_.write(String.format(Locale.US, "%d,%d,%.6f,%.6f\n", n / gop_, n, n / fps_, dtSec));
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      out_.close();
+   }
+}
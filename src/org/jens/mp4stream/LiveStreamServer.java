@@ -0,0 +1,520 @@
+package org.jens.mp4stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal embedded HTTP server for the live stream, as Low-Latency HLS.
+ * FFmpeg writes short keyframe-aligned segments into a local directory;
+ * this server publishes them as the partial segments of ~1 s segments
+ * (served by concatenating their parts), with blocking playlist reload and
+ * a preload hint for the next part, so LL-HLS players stay
+ * PART-HOLD-BACK (3 parts) behind the live edge. Other players play the
+ * whole segments, 3 target durations behind. Uses the JDK's built-in
+ * com.sun.net.httpserver, so there are no extra dependencies and it can be
+ * exercised on localhost (e.g. ffplay http://localhost:8090/live.m3u8).
+ *
+ * <p>The playlist is rebuilt from FFmpeg's own playlist of the current run
+ * (one FFmpeg process), so sequence numbers keep counting across runs,
+ * which are joined with a discontinuity. Parts are deleted when their
+ * segment leaves the playlist.
+ */
+final class LiveStreamServer {
+
+   static final String PLAYLIST_NAME = "live.m3u8";
+
+   private static final double SEGMENT_SEC = 1.0;
+   private static final int LIST_SEGMENTS = 4; // complete segments kept in the playlist
+   private static final long POLL_MS = 20;
+   private static final long PRELOAD_WAIT_MS = 3000;
+
+   // Only flat file names FFmpeg produces; rejects path traversal outright.
+   private static final Pattern SAFE_NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+   private static final Pattern SEGMENT_NAME = Pattern.compile("seg_([0-9]+)\\.ts");
+   private static final Pattern PART_NAME = Pattern.compile("run([0-9]+)_([0-9]+)\\.ts");
+
+   private static final class Part {
+      final String name;
+      final double sec;
+
+      Part(String name, double sec) {
+         this.name = name;
+         this.sec = sec;
+      }
+   }
+
+   private static final class Segment {
+      final long msn;
+      final boolean discontinuity;
+      final long startMillis;
+      final List<Part> parts = new ArrayList<>();
+      boolean complete = false;
+
+      Segment(long msn, boolean discontinuity, long startMillis) {
+         this.msn = msn;
+         this.discontinuity = discontinuity;
+         this.startMillis = startMillis;
+      }
+
+      double sec() {
+         double s = 0.0;
+         for (Part p : parts) {
+            s += p.sec;
+         }
+         return s;
+      }
+   }
+
+   private final File root_;
+   private final int port_;
+   private final HttpServer server_;
+   private final ExecutorService pool_;
+   private final ScheduledExecutorService poller_;
+
+   // Playlist model; all guarded by this
+   private final ArrayDeque<Segment> segments_ = new ArrayDeque<>();
+   private long nextMsn_ = 0;
+   private long discontinuitySeq_ = 0; // discontinuities dropped off the front
+   private boolean discontinuityNext_ = false;
+   private int run_ = 0;
+   private File runPlaylist_ = null;
+   private long lastPart_ = -1;       // number of the newest part of this run
+   private double partTarget_ = 0.5;
+   private int partsPerSegment_ = 2;
+   private boolean stopped_ = false;
+
+   LiveStreamServer(File root, int port) throws IOException {
+      root_ = root;
+      port_ = port;
+      server_ = HttpServer.create(new InetSocketAddress(port), 0);
+      // Blocking playlist and preload requests hold a thread each
+      pool_ = Executors.newFixedThreadPool(8, r -> {
+         Thread t = new Thread(r, "mp4stream-http");
+         t.setDaemon(true);
+         return t;
+      });
+      server_.setExecutor(pool_);
+      server_.createContext("/", this::handle);
+      server_.start();
+      poller_ = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "mp4stream-hls-poll");
+         t.setDaemon(true);
+         return t;
+      });
+      poller_.scheduleWithFixedDelay(this::poll, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+   }
+
+   int getPort() {
+      return port_;
+   }
+
+   File getRoot() {
+      return root_;
+   }
+
+   String getPlaylistUrl() {
+      return "http://localhost:" + port_ + "/" + PLAYLIST_NAME;
+   }
+
+   /**
+    * Starts a run: returns the playlist FFmpeg is to write, with its
+    * segments (the parts) named after it, e.g. run3.m3u8 and run3_%d.ts.
+    *
+    * @param partSec duration of FFmpeg's segments (its keyframe interval)
+    */
+   synchronized File beginRun(double partSec) {
+      Segment open = segments_.peekLast();
+      if (open != null && !open.complete) {
+         if (open.parts.isEmpty()) {
+            segments_.removeLast();
+            nextMsn_--;
+         } else {
+            open.complete = true; // short: the previous run ended inside it
+         }
+      }
+      discontinuityNext_ = !segments_.isEmpty();
+      if (runPlaylist_ != null) {
+         runPlaylist_.delete();
+      }
+      run_++;
+      runPlaylist_ = new File(root_, "run" + run_ + ".m3u8");
+      lastPart_ = -1;
+      partTarget_ = partSec;
+      partsPerSegment_ = Math.max(1, (int) Math.round(SEGMENT_SEC / partSec));
+      trim();
+      notifyAll();
+      return runPlaylist_;
+   }
+
+   void stop() {
+      synchronized (this) {
+         stopped_ = true;
+         notifyAll();
+      }
+      poller_.shutdownNow();
+      server_.stop(0);
+      pool_.shutdownNow();
+   }
+
+   /** Removes stale playlist and segment files, e.g. between recordings. */
+   void clearRoot() {
+      File[] files = root_.listFiles();
+      if (files == null) {
+         return;
+      }
+      for (File f : files) {
+         String n = f.getName();
+         if (n.endsWith(".ts") || n.endsWith(".m3u8") || n.endsWith(".tmp")) {
+            f.delete();
+         }
+      }
+   }
+
+   // Picks up the parts FFmpeg has completed since the last poll
+   private void poll() {
+      final File playlist;
+      final String prefix;
+      synchronized (this) {
+         playlist = runPlaylist_;
+         prefix = "run" + run_ + "_";
+      }
+      if (playlist == null) {
+         return;
+      }
+      List<String> lines;
+      try {
+         lines = Files.readAllLines(playlist.toPath(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+         return; // not written yet, or being replaced (temp_file)
+      }
+      synchronized (this) {
+         if (playlist != runPlaylist_) {
+            return; // a new run started meanwhile
+         }
+         double sec = -1.0;
+         for (String line : lines) {
+            line = line.trim();
+            if (line.startsWith("#EXTINF:")) {
+               try {
+                  sec = Double.parseDouble(line.substring(8).split(",", 2)[0]);
+               } catch (NumberFormatException e) {
+                  sec = -1.0;
+               }
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+               String name = new File(line).getName();
+               Matcher m = PART_NAME.matcher(name);
+               if (sec >= 0.0 && name.startsWith(prefix) && m.matches()) {
+                  long n = Long.parseLong(m.group(2));
+                  if (n > lastPart_) {
+                     addPart(name, sec);
+                     lastPart_ = n;
+                  }
+               }
+               sec = -1.0;
+            }
+         }
+      }
+   }
+
+   private void addPart(String name, double sec) {
+      Segment open = segments_.peekLast();
+      if (open == null || open.complete) {
+         open = new Segment(nextMsn_++, discontinuityNext_, System.currentTimeMillis() - (long) (sec * 1000));
+         discontinuityNext_ = false;
+         segments_.addLast(open);
+      }
+      open.parts.add(new Part(name, sec));
+      if (open.parts.size() >= partsPerSegment_) {
+         open.complete = true;
+      }
+      trim();
+      notifyAll();
+   }
+
+   // Drops the oldest complete segments beyond LIST_SEGMENTS, with their files
+   private void trim() {
+      int complete = 0;
+      for (Segment s : segments_) {
+         if (s.complete) {
+            complete++;
+         }
+      }
+      while (complete > LIST_SEGMENTS) {
+         Segment s = segments_.removeFirst();
+         if (s.discontinuity) {
+            discontinuitySeq_++;
+         }
+         for (Part p : s.parts) {
+            new File(root_, p.name).delete();
+         }
+         complete--;
+      }
+   }
+
+   private double targetSec() {
+      double max = partTarget_ * partsPerSegment_;
+      for (Segment s : segments_) {
+         max = Math.max(max, s.sec());
+      }
+      return Math.max(1.0, Math.ceil(max));
+   }
+
+   private double partTargetSec() {
+      double max = partTarget_;
+      for (Segment s : segments_) {
+         for (Part p : s.parts) {
+            max = Math.max(max, p.sec);
+         }
+      }
+      return max;
+   }
+
+   // Whether the playlist has segment msn (complete) or its part, or anything later
+   private boolean has(long msn, int part) {
+      Segment last = segments_.peekLast();
+      if (last == null) {
+         return false;
+      }
+      for (Segment s : segments_) {
+         if (s.msn > msn) {
+            return true;
+         }
+         if (s.msn == msn) {
+            return s.complete || (part >= 0 && s.parts.size() > part);
+         }
+      }
+      return segments_.peekFirst().msn > msn;
+   }
+
+   /** The LL-HLS playlist, or null before the first part. */
+   private String playlist() {
+      if (segments_.isEmpty()) {
+         return null;
+      }
+      final double partTarget = partTargetSec();
+      StringBuilder sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:6\n");
+      sb.append(String.format(Locale.US, "#EXT-X-TARGETDURATION:%d\n", (int) targetSec()));
+      sb.append(String.format(Locale.US, "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.5f\n",
+            3 * partTarget));
+      sb.append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.5f\n", partTarget));
+      sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segments_.peekFirst().msn).append('\n');
+      if (discontinuitySeq_ > 0) {
+         sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySeq_).append('\n');
+      }
+      for (Segment s : segments_) {
+         if (s.discontinuity) {
+            sb.append("#EXT-X-DISCONTINUITY\n");
+         }
+         sb.append("#EXT-X-PROGRAM-DATE-TIME:").append(Instant.ofEpochMilli(s.startMillis)).append('\n');
+         for (Part p : s.parts) {
+            // Every part starts on a keyframe (GOP = part length)
+            sb.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.5f,URI=\"%s\",INDEPENDENT=YES\n",
+                  p.sec, p.name));
+         }
+         if (s.complete) {
+            sb.append(String.format(Locale.US, "#EXTINF:%.5f,\nseg_%d.ts\n", s.sec(), s.msn));
+         }
+      }
+      if (runPlaylist_ != null) {
+         sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"run").append(run_).append('_')
+               .append(lastPart_ + 1).append(".ts\"\n");
+      }
+      return sb.toString();
+   }
+
+   private void handle(HttpExchange ex) throws IOException {
+      try {
+         if (!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+            send(ex, 405, "text/plain", "Method not allowed".getBytes(StandardCharsets.UTF_8));
+            return;
+         }
+
+         String path = ex.getRequestURI().getPath();
+         String name = path.startsWith("/") ? path.substring(1) : path;
+         if (name.isEmpty()) {
+            send(ex, 200, "text/html; charset=utf-8", indexPage().getBytes(StandardCharsets.UTF_8));
+            return;
+         }
+         if (PLAYLIST_NAME.equals(name)) {
+            servePlaylist(ex);
+            return;
+         }
+         if (!SAFE_NAME.matcher(name).matches()) {
+            send(ex, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+            return;
+         }
+         Matcher seg = SEGMENT_NAME.matcher(name);
+         byte[] body = seg.matches() ? segment(Long.parseLong(seg.group(1))) : part(name);
+         if (body == null) {
+            // Segment may have just been rotated out
+            send(ex, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+            return;
+         }
+         send(ex, 200, contentType(name), body);
+      } finally {
+         ex.close();
+      }
+   }
+
+   // Blocking reload: ?_HLS_msn=M[&_HLS_part=P] waits until that part is listed
+   private void servePlaylist(HttpExchange ex) throws IOException {
+      long msn = -1;
+      int part = -1;
+      String query = ex.getRequestURI().getRawQuery();
+      if (query != null) {
+         for (String kv : query.split("&")) {
+            try {
+               if (kv.startsWith("_HLS_msn=")) {
+                  msn = Long.parseLong(kv.substring(9));
+               } else if (kv.startsWith("_HLS_part=")) {
+                  part = Integer.parseInt(kv.substring(10));
+               }
+            } catch (NumberFormatException e) {
+               send(ex, 400, "text/plain", "Bad request".getBytes(StandardCharsets.UTF_8));
+               return;
+            }
+         }
+      }
+      String body;
+      int status = 200;
+      synchronized (this) {
+         if (msn >= 0) {
+            final long deadline = System.currentTimeMillis() + (long) (3000 * targetSec());
+            while (!stopped_ && !has(msn, part)) {
+               if (msn > nextMsn_ + 1) {
+                  status = 400; // more than two segments ahead
+                  break;
+               }
+               long left = deadline - System.currentTimeMillis();
+               if (left <= 0) {
+                  status = 503;
+                  break;
+               }
+               try {
+                  wait(left);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  status = 503;
+                  break;
+               }
+            }
+         }
+         body = (status == 200) ? playlist() : null;
+      }
+      if (body == null) {
+         send(ex, (status == 200) ? 404 : status, "text/plain", "Not available".getBytes(StandardCharsets.UTF_8));
+         return;
+      }
+      send(ex, 200, contentType(PLAYLIST_NAME), body.getBytes(StandardCharsets.UTF_8));
+   }
+
+   // A whole segment: its parts back to back (MPEG-TS concatenates)
+   private byte[] segment(long msn) {
+      List<String> names = new ArrayList<>();
+      synchronized (this) {
+         for (Segment s : segments_) {
+            if (s.msn == msn && s.complete) {
+               for (Part p : s.parts) {
+                  names.add(p.name);
+               }
+            }
+         }
+      }
+      if (names.isEmpty()) {
+         return null;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+         for (String n : names) {
+            out.write(Files.readAllBytes(new File(root_, n).toPath()));
+         }
+      } catch (IOException e) {
+         return null;
+      }
+      return out.toByteArray();
+   }
+
+   // A part file; the hinted next part is held until FFmpeg completes it
+   private byte[] part(String name) {
+      Matcher m = PART_NAME.matcher(name);
+      if (m.matches()) {
+         final int run = Integer.parseInt(m.group(1));
+         final long n = Long.parseLong(m.group(2));
+         final long deadline = System.currentTimeMillis() + PRELOAD_WAIT_MS;
+         synchronized (this) {
+            while (!stopped_ && run == run_ && n > lastPart_ && n <= lastPart_ + 1) {
+               long left = deadline - System.currentTimeMillis();
+               if (left <= 0) {
+                  return null;
+               }
+               try {
+                  wait(left);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  return null;
+               }
+            }
+         }
+      }
+      try {
+         return Files.readAllBytes(new File(root_, name).toPath());
+      } catch (IOException e) {
+         return null;
+      }
+   }
+
+   private static void send(HttpExchange ex, int status, String type, byte[] body) throws IOException {
+      ex.getResponseHeaders().set("Content-Type", type);
+      // Playlists change every part; players must always re-fetch
+      ex.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+      ex.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+      boolean head = "HEAD".equals(ex.getRequestMethod());
+      ex.sendResponseHeaders(status, head ? -1 : body.length);
+      if (!head) {
+         try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+         }
+      }
+   }
+
+   private static String contentType(String name) {
+      if (name.endsWith(".m3u8")) {
+         return "application/vnd.apple.mpegurl";
+      }
+      if (name.endsWith(".ts")) {
+         return "video/mp2t";
+      }
+      return "application/octet-stream";
+   }
+
+   private static String indexPage() {
+      // Native HLS playback works in Safari/Edge; other browsers can open the
+      // playlist URL in VLC or ffplay. No external scripts are loaded.
+      return "<!DOCTYPE html><html><head><title>MP4 Stream Live</title></head>"
+            + "<body style=\"background:#111;color:#ddd;font-family:sans-serif\">"
+            + "<video src=\"" + PLAYLIST_NAME + "\" autoplay muted controls "
+            + "style=\"max-width:100%\"></video>"
+            + "<p>Playlist: <a style=\"color:#8cf\" href=\"" + PLAYLIST_NAME + "\">"
+            + PLAYLIST_NAME + "</a> (open in VLC or ffplay if the browser cannot play HLS)</p>"
+            + "</body></html>";
+   }
+}
@@ -4,7 +4,9 @@ import java.awt.BorderLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.Font;
 import java.io.File;
+import java.util.List;
 import java.util.prefs.Preferences;
 
 import javax.swing.BorderFactory;
@@ -15,15 +17,21 @@ import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.JTextArea;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import mmcorej.CMMCore;
+
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
+import org.micromanager.Studio;
 import org.micromanager.data.ProcessorConfigurator;
 
 public final class MP4StreamConfigurator implements ProcessorConfigurator {
@@ -37,9 +45,17 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
    // Settings keys
    public static final String KEY_OUTPUT_PATH = "mp4stream.outputPath";
    public static final String KEY_FFMPEG_PATH = "mp4stream.ffmpegPath";
+   public static final String KEY_SCRATCH_ENABLED = "mp4stream.scratchEnabled";
+   public static final String KEY_SCRATCH_DIR = "mp4stream.scratchDir";
+   public static final String KEY_MIGRATE_MBPS = "mp4stream.migrateMbps";
    public static final String KEY_RECORDING_MODE = "mp4stream.recordingMode";
    public static final String KEY_TARGET_FPS = "mp4stream.targetFps";
    public static final String KEY_TIMELAPSE_FACTOR = "mp4stream.timelapseFactor";
+   public static final String KEY_SKIP_STATIC = "mp4stream.skipStatic";
+   public static final String KEY_STATIC_TOLERANCE = "mp4stream.staticTolerance";
+   public static final String KEY_SESSION_MODE = "mp4stream.sessionMode";
+   public static final String KEY_SESSION_GAP_SEC = "mp4stream.sessionGapSec";
+   public static final String KEY_SESSION_TIMEOUT_SEC = "mp4stream.sessionTimeoutSec";
 
    // Overlay settings keys
    public static final String KEY_TIMESTAMP_ENABLED = "mp4stream.timestampEnabled";
@@ -48,6 +64,56 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
    public static final String KEY_SCALEBAR_ENABLED = "mp4stream.scalebarEnabled";
    public static final String KEY_FONT_SIZE = "mp4stream.fontSize";
    public static final String KEY_SCALEBAR_LENGTH_UM = "mp4stream.scalebarLengthUm";
+   public static final String KEY_OVERLAY_BACKEND = "mp4stream.overlayBackend";
+
+   // Encoder / output settings keys
+   public static final String KEY_ARCHIVE_CRF = "mp4stream.archiveCrf";
+   public static final String KEY_ARCHIVE_PRESET = "mp4stream.archivePreset";
+   public static final String KEY_PREVIEW_ENABLED = "mp4stream.previewEnabled";
+   public static final String KEY_PREVIEW_WIDTH = "mp4stream.previewWidth";
+   public static final String KEY_PREVIEW_CRF = "mp4stream.previewCrf";
+   public static final String KEY_PREVIEW_PRESET = "mp4stream.previewPreset";
+   public static final String KEY_STREAM_ENABLED = "mp4stream.streamEnabled";
+   public static final String KEY_STREAM_PORT = "mp4stream.streamPort";
+   public static final String KEY_SPOOL_ENABLED = "mp4stream.spoolEnabled";
+   public static final String KEY_SPOOL_MAX_MB = "mp4stream.spoolMaxMb";
+   public static final String KEY_USE_CALIBRATED_PROFILE = "mp4stream.useCalibratedProfile";
+   public static final String KEY_JAVA_YUV = "mp4stream.javaYuv";
+   public static final String KEY_VIDEO_COLOR = "mp4stream.videoColor";
+   public static final String KEY_FRAME_INDEX = "mp4stream.frameIndex";
+   public static final String KEY_SEEK_OPTIMIZED = "mp4stream.seekOptimized";
+   public static final String KEY_KEYFRAME_SEC = "mp4stream.keyframeSec";
+   public static final String KEY_THUMBNAILS = "mp4stream.thumbnails";
+   public static final String KEY_THUMB_INTERVAL_SEC = "mp4stream.thumbIntervalSec";
+   public static final String KEY_FIXED_CANVAS = "mp4stream.fixedCanvas";
+   public static final String KEY_CANVAS_WIDTH = "mp4stream.canvasWidth";
+   public static final String KEY_CANVAS_HEIGHT = "mp4stream.canvasHeight";
+   public static final String KEY_MOSAIC = "mp4stream.mosaic";
+   public static final String KEY_MOSAIC_COLUMNS = "mp4stream.mosaicColumns";
+   public static final String KEY_MOSAIC_WAIT_MS = "mp4stream.mosaicWaitMs";
+
+   // CPU budget keys
+   public static final String KEY_CPU_BUDGET = "mp4stream.cpuBudget";
+   public static final String KEY_ENCODER_LOW_PRIORITY = "mp4stream.encoderLowPriority";
+   public static final String KEY_ENCODER_PIN_CPUS = "mp4stream.encoderPinCpus";
+   public static final String KEY_VIRTUAL_THREADS = "mp4stream.virtualThreads";
+
+   // Contrast used when there is no display window
+   public static final String KEY_AUTO_CONTRAST = "mp4stream.autoContrast";
+   public static final String KEY_AUTO_CONTRAST_LOW_PCT = "mp4stream.autoContrastLowPct";
+   public static final String KEY_AUTO_CONTRAST_HIGH_PCT = "mp4stream.autoContrastHighPct";
+
+   // Flat-field correction keys
+   public static final String KEY_FLATFIELD_ENABLED = "mp4stream.flatFieldEnabled";
+   public static final String KEY_DARK_FRAME_PATH = "mp4stream.darkFramePath";
+   public static final String KEY_FLAT_FRAME_PATH = "mp4stream.flatFramePath";
+
+   // Pre-trigger buffer keys
+   public static final String KEY_PRETRIGGER_ENABLED = "mp4stream.pretriggerEnabled";
+   public static final String KEY_PRETRIGGER_SEC = "mp4stream.pretriggerSec";
+   public static final String KEY_POSTTRIGGER_SEC = "mp4stream.posttriggerSec";
+   public static final String KEY_PRETRIGGER_BUDGET_MB = "mp4stream.pretriggerBudgetMb";
+   public static final String KEY_PRETRIGGER_OFFHEAP = "mp4stream.pretriggerOffHeap";
 
    // Recording modes
    public static final String MODE_CONSTANT_FPS = "constant_fps";
@@ -58,15 +124,69 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
    public static final String COLOR_WHITE = "white";
    public static final String COLOR_BLACK = "black";
 
+   // Where overlays are rendered
+   public static final String OVERLAY_BACKEND_JAVA = "java";
+   public static final String OVERLAY_BACKEND_FFMPEG = "ffmpeg";
+
+   // libx264 presets offered in the UI (fastest first)
+   public static final String[] X264_PRESETS = {
+         "ultrafast", "superfast", "veryfast", "faster", "fast", "medium", "slow"};
+
    // Defaults
    public static final double DEFAULT_TARGET_FPS = 30.0;
+   public static final boolean DEFAULT_SCRATCH_ENABLED = false;
+   public static final double DEFAULT_MIGRATE_MBPS = 0.0; // 0 = unlimited
    public static final double DEFAULT_TIMELAPSE_FACTOR = 10.0;
+   public static final boolean DEFAULT_SKIP_STATIC = false;
+   public static final int DEFAULT_STATIC_TOLERANCE = 4; // 8-bit levels
+   public static final boolean DEFAULT_SESSION_MODE = false;
+   public static final double DEFAULT_SESSION_GAP_SEC = 1.0; // video seconds marking a pause
+   public static final double DEFAULT_SESSION_TIMEOUT_SEC = 600.0;
    public static final boolean DEFAULT_TIMESTAMP_ENABLED = true;
    public static final String DEFAULT_TIMESTAMP_COLOR = COLOR_WHITE;
    public static final boolean DEFAULT_TIMESTAMP_BACKGROUND = true;
    public static final boolean DEFAULT_SCALEBAR_ENABLED = false;
    public static final int DEFAULT_FONT_SIZE = 18;
    public static final double DEFAULT_SCALEBAR_LENGTH_UM = 0.0; // 0 = auto
+   public static final String DEFAULT_OVERLAY_BACKEND = OVERLAY_BACKEND_JAVA;
+   public static final int DEFAULT_ARCHIVE_CRF = 18;
+   public static final String DEFAULT_ARCHIVE_PRESET = "veryfast";
+   public static final boolean DEFAULT_PREVIEW_ENABLED = false;
+   public static final int DEFAULT_PREVIEW_WIDTH = 640;
+   public static final int DEFAULT_PREVIEW_CRF = 28;
+   public static final String DEFAULT_PREVIEW_PRESET = "veryfast";
+   public static final boolean DEFAULT_STREAM_ENABLED = false;
+   public static final int DEFAULT_STREAM_PORT = 8090;
+   public static final boolean DEFAULT_SPOOL_ENABLED = false;
+   public static final int DEFAULT_SPOOL_MAX_MB = 8192;
+   public static final boolean DEFAULT_USE_CALIBRATED_PROFILE = true;
+   public static final boolean DEFAULT_JAVA_YUV = false;
+   public static final String VIDEO_COLOR_DISPLAY = "display"; // channel color of the Live display
+   public static final String DEFAULT_VIDEO_COLOR = "gray";
+   public static final boolean DEFAULT_FRAME_INDEX = true;
+   public static final boolean DEFAULT_SEEK_OPTIMIZED = false;
+   public static final double DEFAULT_KEYFRAME_SEC = 1.0; // video seconds between keyframes
+   public static final boolean DEFAULT_THUMBNAILS = false;
+   public static final double DEFAULT_THUMB_INTERVAL_SEC = 10.0; // 0 = first and last frame only
+   public static final boolean DEFAULT_FIXED_CANVAS = false;
+   public static final int DEFAULT_CANVAS_WIDTH = 0; // 0 = size of the segment's first frame
+   public static final int DEFAULT_CANVAS_HEIGHT = 0;
+   public static final boolean DEFAULT_MOSAIC = false;
+   public static final int DEFAULT_MOSAIC_COLUMNS = 0; // 0 = side by side up to 3 cameras, else a grid
+   public static final int DEFAULT_MOSAIC_WAIT_MS = 100; // Δt a mosaic frame waits for late cameras
+   public static final int DEFAULT_CPU_BUDGET = 0; // 0 = all but CpuBudget.RESERVED_CORES
+   public static final boolean DEFAULT_ENCODER_LOW_PRIORITY = true;
+   public static final boolean DEFAULT_ENCODER_PIN_CPUS = false;
+   public static final boolean DEFAULT_VIRTUAL_THREADS = false;
+   public static final boolean DEFAULT_AUTO_CONTRAST = true;
+   public static final double DEFAULT_AUTO_CONTRAST_LOW_PCT = 0.1;
+   public static final double DEFAULT_AUTO_CONTRAST_HIGH_PCT = 99.9;
+   public static final boolean DEFAULT_FLATFIELD_ENABLED = false;
+   public static final boolean DEFAULT_PRETRIGGER_ENABLED = false;
+   public static final double DEFAULT_PRETRIGGER_SEC = 10.0;
+   public static final double DEFAULT_POSTTRIGGER_SEC = 10.0;
+   public static final int DEFAULT_PRETRIGGER_BUDGET_MB = 512;
+   public static final boolean DEFAULT_PRETRIGGER_OFFHEAP = false;
 
    public MP4StreamConfigurator(PropertyMap settings) {
       settings_ = settings;
@@ -118,25 +238,179 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       return PREFS.getInt(key, defaultVal);
    }
 
+   // Current camera frame size, or null without a camera
+   private static int[] cameraSize() {
+      Studio studio = MP4StreamPlugin.getStudio();
+      if (studio == null) {
+         return null;
+      }
+      try {
+         int w = (int) studio.core().getImageWidth();
+         int h = (int) studio.core().getImageHeight();
+         return (w > 0 && h > 0) ? new int[]{w, h} : null;
+      } catch (Exception e) {
+         return null;
+      }
+   }
+
+   // Averages FlatField.CAPTURE_FRAMES snapped images into a TIFF; returns a status line
+   private static String captureReference(File out) throws Exception {
+      Studio studio = MP4StreamPlugin.getStudio();
+      if (studio == null) {
+         throw new IllegalStateException("no camera");
+      }
+      if (studio.live().isLiveModeOn()) {
+         throw new IllegalStateException("stop Live mode first");
+      }
+      CMMCore core = studio.core();
+      final int w = (int) core.getImageWidth();
+      final int h = (int) core.getImageHeight();
+      final int bpp = (int) core.getBytesPerPixel();
+      if (bpp != 1 && bpp != 2) {
+         throw new IllegalStateException(bpp + "-byte pixels (RGB?) are not supported");
+      }
+      final int n = w * h;
+      final int frames = FlatField.CAPTURE_FRAMES;
+      long[] sum = new long[n];
+      for (int k = 0; k < frames; k++) {
+         core.snapImage();
+         Object px = core.getImage();
+         if (bpp == 1) {
+            byte[] b = (byte[]) px;
+            for (int i = 0; i < n; i++) {
+               sum[i] += b[i] & 0xFF;
+            }
+         } else {
+            short[] s = (short[]) px;
+            for (int i = 0; i < n; i++) {
+               sum[i] += s[i] & 0xFFFF;
+            }
+         }
+      }
+      Object mean;
+      if (bpp == 1) {
+         byte[] b = new byte[n];
+         for (int i = 0; i < n; i++) {
+            b[i] = (byte) ((sum[i] + frames / 2) / frames);
+         }
+         mean = b;
+      } else {
+         short[] s = new short[n];
+         for (int i = 0; i < n; i++) {
+            s[i] = (short) ((sum[i] + frames / 2) / frames);
+         }
+         mean = s;
+      }
+      FlatField.writeTiff(out, mean, w, h);
+      return "Saved the mean of " + frames + " frames (" + w + "x" + h + ") to " + out.getName();
+   }
+
+   private static String calibrationStatusText() {
+      int[] size = cameraSize();
+      if (size == null) {
+         return "Calibrated encoder: no camera";
+      }
+      EncoderProfile profile = EncoderProfile.load(size[0], size[1]);
+      return size[0] + "x" + size[1] + ": "
+            + ((profile != null) ? profile.toString() : "not calibrated (libx264)");
+   }
+
+   // Saves the recommendation and describes the run
+   private static String calibrationReport(EncoderCalibration cal, List<EncoderCalibration.Result> results,
+         int[] size, double fps) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format(java.util.Locale.US, "%dx%d, target %.1f fps (needs %.1f fps to keep up)%n%n",
+            size[0], size[1], fps, fps * EncoderCalibration.HEADROOM));
+      for (EncoderCalibration.Result r : results) {
+         sb.append(r).append(System.lineSeparator());
+      }
+      if (cal.isCancelled()) {
+         return sb.toString();
+      }
+      EncoderProfile best = cal.recommend(results);
+      sb.append(System.lineSeparator());
+      if (best == null) {
+         sb.append("No encoder worked; nothing saved.");
+      } else {
+         best.save(size[0], size[1]);
+         sb.append(best.measuredFps >= fps * EncoderCalibration.HEADROOM
+               ? "Saved: " : "Nothing keeps up; saved the fastest: ").append(best);
+      }
+      return sb.toString();
+   }
+
    @Override
    public void showGUI() {
       // Load current values
       String currentOut = getSetting(KEY_OUTPUT_PATH, "");
       String currentFfmpeg = getSetting(KEY_FFMPEG_PATH, "");
+      boolean currentScratchEnabled = getSettingBoolean(KEY_SCRATCH_ENABLED, DEFAULT_SCRATCH_ENABLED);
+      String currentScratchDir = getSetting(KEY_SCRATCH_DIR, "");
+      double currentMigrateMbps = getSettingDouble(KEY_MIGRATE_MBPS, DEFAULT_MIGRATE_MBPS);
       String currentMode = getSetting(KEY_RECORDING_MODE, MODE_CONSTANT_FPS);
       double currentFps = getSettingDouble(KEY_TARGET_FPS, DEFAULT_TARGET_FPS);
       double currentTlFactor = getSettingDouble(KEY_TIMELAPSE_FACTOR, DEFAULT_TIMELAPSE_FACTOR);
+      boolean currentSkipStatic = getSettingBoolean(KEY_SKIP_STATIC, DEFAULT_SKIP_STATIC);
+      int currentStaticTolerance = getSettingInt(KEY_STATIC_TOLERANCE, DEFAULT_STATIC_TOLERANCE);
+      boolean currentSessionMode = getSettingBoolean(KEY_SESSION_MODE, DEFAULT_SESSION_MODE);
+      double currentSessionGapSec = getSettingDouble(KEY_SESSION_GAP_SEC, DEFAULT_SESSION_GAP_SEC);
+      double currentSessionTimeoutSec = getSettingDouble(KEY_SESSION_TIMEOUT_SEC, DEFAULT_SESSION_TIMEOUT_SEC);
 
       // Snapshot PREFS so Cancel can restore them (immediate-save listeners mutate PREFS)
       final String snapMode = PREFS.get(KEY_RECORDING_MODE, MODE_CONSTANT_FPS);
       final double snapFps = PREFS.getDouble(KEY_TARGET_FPS, DEFAULT_TARGET_FPS);
       final double snapTlFactor = PREFS.getDouble(KEY_TIMELAPSE_FACTOR, DEFAULT_TIMELAPSE_FACTOR);
+      final boolean snapSkipStatic = PREFS.getBoolean(KEY_SKIP_STATIC, DEFAULT_SKIP_STATIC);
+      final boolean snapSessionMode = PREFS.getBoolean(KEY_SESSION_MODE, DEFAULT_SESSION_MODE);
+      final double snapSessionGapSec = PREFS.getDouble(KEY_SESSION_GAP_SEC, DEFAULT_SESSION_GAP_SEC);
+      final double snapSessionTimeoutSec = PREFS.getDouble(KEY_SESSION_TIMEOUT_SEC, DEFAULT_SESSION_TIMEOUT_SEC);
+      final int snapStaticTolerance = PREFS.getInt(KEY_STATIC_TOLERANCE, DEFAULT_STATIC_TOLERANCE);
       final boolean snapTimestampEnabled = PREFS.getBoolean(KEY_TIMESTAMP_ENABLED, DEFAULT_TIMESTAMP_ENABLED);
       final String snapTimestampColor = PREFS.get(KEY_TIMESTAMP_COLOR, DEFAULT_TIMESTAMP_COLOR);
       final boolean snapTimestampBg = PREFS.getBoolean(KEY_TIMESTAMP_BACKGROUND, DEFAULT_TIMESTAMP_BACKGROUND);
       final boolean snapScalebarEnabled = PREFS.getBoolean(KEY_SCALEBAR_ENABLED, DEFAULT_SCALEBAR_ENABLED);
       final int snapFontSize = PREFS.getInt(KEY_FONT_SIZE, DEFAULT_FONT_SIZE);
       final double snapScalebarLength = PREFS.getDouble(KEY_SCALEBAR_LENGTH_UM, DEFAULT_SCALEBAR_LENGTH_UM);
+      final String snapOverlayBackend = PREFS.get(KEY_OVERLAY_BACKEND, DEFAULT_OVERLAY_BACKEND);
+      final int snapArchiveCrf = PREFS.getInt(KEY_ARCHIVE_CRF, DEFAULT_ARCHIVE_CRF);
+      final String snapArchivePreset = PREFS.get(KEY_ARCHIVE_PRESET, DEFAULT_ARCHIVE_PRESET);
+      final boolean snapPreviewEnabled = PREFS.getBoolean(KEY_PREVIEW_ENABLED, DEFAULT_PREVIEW_ENABLED);
+      final int snapPreviewWidth = PREFS.getInt(KEY_PREVIEW_WIDTH, DEFAULT_PREVIEW_WIDTH);
+      final int snapPreviewCrf = PREFS.getInt(KEY_PREVIEW_CRF, DEFAULT_PREVIEW_CRF);
+      final String snapPreviewPreset = PREFS.get(KEY_PREVIEW_PRESET, DEFAULT_PREVIEW_PRESET);
+      final boolean snapStreamEnabled = PREFS.getBoolean(KEY_STREAM_ENABLED, DEFAULT_STREAM_ENABLED);
+      final int snapStreamPort = PREFS.getInt(KEY_STREAM_PORT, DEFAULT_STREAM_PORT);
+      final boolean snapSpoolEnabled = PREFS.getBoolean(KEY_SPOOL_ENABLED, DEFAULT_SPOOL_ENABLED);
+      final int snapSpoolMaxMb = PREFS.getInt(KEY_SPOOL_MAX_MB, DEFAULT_SPOOL_MAX_MB);
+      final boolean snapUseCalibrated = PREFS.getBoolean(KEY_USE_CALIBRATED_PROFILE, DEFAULT_USE_CALIBRATED_PROFILE);
+      final boolean snapJavaYuv = PREFS.getBoolean(KEY_JAVA_YUV, DEFAULT_JAVA_YUV);
+      final String snapVideoColor = PREFS.get(KEY_VIDEO_COLOR, DEFAULT_VIDEO_COLOR);
+      final boolean snapFrameIndex = PREFS.getBoolean(KEY_FRAME_INDEX, DEFAULT_FRAME_INDEX);
+      final boolean snapSeekOptimized = PREFS.getBoolean(KEY_SEEK_OPTIMIZED, DEFAULT_SEEK_OPTIMIZED);
+      final double snapKeyframeSec = PREFS.getDouble(KEY_KEYFRAME_SEC, DEFAULT_KEYFRAME_SEC);
+      final boolean snapThumbnails = PREFS.getBoolean(KEY_THUMBNAILS, DEFAULT_THUMBNAILS);
+      final double snapThumbIntervalSec = PREFS.getDouble(KEY_THUMB_INTERVAL_SEC, DEFAULT_THUMB_INTERVAL_SEC);
+      final boolean snapFixedCanvas = PREFS.getBoolean(KEY_FIXED_CANVAS, DEFAULT_FIXED_CANVAS);
+      final int snapCanvasWidth = PREFS.getInt(KEY_CANVAS_WIDTH, DEFAULT_CANVAS_WIDTH);
+      final int snapCanvasHeight = PREFS.getInt(KEY_CANVAS_HEIGHT, DEFAULT_CANVAS_HEIGHT);
+      final boolean snapMosaic = PREFS.getBoolean(KEY_MOSAIC, DEFAULT_MOSAIC);
+      final int snapMosaicColumns = PREFS.getInt(KEY_MOSAIC_COLUMNS, DEFAULT_MOSAIC_COLUMNS);
+      final int snapMosaicWaitMs = PREFS.getInt(KEY_MOSAIC_WAIT_MS, DEFAULT_MOSAIC_WAIT_MS);
+      final int snapCpuBudget = PREFS.getInt(KEY_CPU_BUDGET, DEFAULT_CPU_BUDGET);
+      final boolean snapLowPriority = PREFS.getBoolean(KEY_ENCODER_LOW_PRIORITY, DEFAULT_ENCODER_LOW_PRIORITY);
+      final boolean snapPinCpus = PREFS.getBoolean(KEY_ENCODER_PIN_CPUS, DEFAULT_ENCODER_PIN_CPUS);
+      final boolean snapVirtualThreads = PREFS.getBoolean(KEY_VIRTUAL_THREADS, DEFAULT_VIRTUAL_THREADS);
+      final boolean snapAutoContrast = PREFS.getBoolean(KEY_AUTO_CONTRAST, DEFAULT_AUTO_CONTRAST);
+      final boolean snapFlatFieldEnabled = PREFS.getBoolean(KEY_FLATFIELD_ENABLED, DEFAULT_FLATFIELD_ENABLED);
+      final String snapDarkPath = PREFS.get(KEY_DARK_FRAME_PATH, "");
+      final String snapFlatPath = PREFS.get(KEY_FLAT_FRAME_PATH, "");
+      final double snapAutoLowPct = PREFS.getDouble(KEY_AUTO_CONTRAST_LOW_PCT, DEFAULT_AUTO_CONTRAST_LOW_PCT);
+      final double snapAutoHighPct = PREFS.getDouble(KEY_AUTO_CONTRAST_HIGH_PCT, DEFAULT_AUTO_CONTRAST_HIGH_PCT);
+      final boolean snapPretriggerEnabled = PREFS.getBoolean(KEY_PRETRIGGER_ENABLED, DEFAULT_PRETRIGGER_ENABLED);
+      final double snapPretriggerSec = PREFS.getDouble(KEY_PRETRIGGER_SEC, DEFAULT_PRETRIGGER_SEC);
+      final double snapPosttriggerSec = PREFS.getDouble(KEY_POSTTRIGGER_SEC, DEFAULT_POSTTRIGGER_SEC);
+      final int snapPretriggerBudget = PREFS.getInt(KEY_PRETRIGGER_BUDGET_MB, DEFAULT_PRETRIGGER_BUDGET_MB);
+      final boolean snapPretriggerOffHeap = PREFS.getBoolean(KEY_PRETRIGGER_OFFHEAP, DEFAULT_PRETRIGGER_OFFHEAP);
 
       // Create dialog
       JDialog dialog = new JDialog();
@@ -205,6 +479,53 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
 
       row++;
 
+      // === Scratch Directory ===
+      JCheckBox cbScratch = new JCheckBox("Scratch directory:", currentScratchEnabled);
+      cbScratch.setToolTipText("Encode to a fast local directory and move finished segments to the output "
+            + "directory in the background");
+      gbc.gridx = 0; gbc.gridy = row; gbc.weightx = 0;
+      mainPanel.add(cbScratch, gbc);
+
+      JTextField scratchField = new JTextField(currentScratchDir, 30);
+      gbc.gridx = 1; gbc.weightx = 1;
+      mainPanel.add(scratchField, gbc);
+
+      JButton browseScratch = new JButton("Browse...");
+      gbc.gridx = 2; gbc.weightx = 0;
+      mainPanel.add(browseScratch, gbc);
+
+      browseScratch.addActionListener(e -> {
+         JFileChooser fc = new JFileChooser();
+         fc.setDialogTitle("Select local scratch directory");
+         fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+         String curr = scratchField.getText();
+         if (!curr.isEmpty()) fc.setCurrentDirectory(new File(curr));
+         if (fc.showOpenDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+            scratchField.setText(fc.getSelectedFile().getAbsolutePath());
+         }
+      });
+
+      row++;
+
+      gbc.gridx = 0; gbc.gridy = row; gbc.weightx = 0;
+      mainPanel.add(new JLabel("Migration limit (MB/s, 0 = none):"), gbc);
+
+      JSpinner migrateSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0.0, Math.min(10000.0, currentMigrateMbps)), 0.0, 10000.0, 10.0));
+      migrateSpinner.setToolTipText("Bandwidth for moving finished segments to the output directory");
+      gbc.gridx = 1; gbc.weightx = 0;
+      mainPanel.add(migrateSpinner, gbc);
+
+      Runnable updateScratchControls = () -> {
+         scratchField.setEnabled(cbScratch.isSelected());
+         browseScratch.setEnabled(cbScratch.isSelected());
+         migrateSpinner.setEnabled(cbScratch.isSelected());
+      };
+      cbScratch.addActionListener(e -> updateScratchControls.run());
+      updateScratchControls.run();
+
+      row++;
+
       // === Recording Mode ===
       JPanel modePanel = new JPanel(new GridBagLayout());
       modePanel.setBorder(BorderFactory.createTitledBorder("Recording Mode"));
@@ -247,6 +568,47 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       mgbc.gridx = 2;
       modePanel.add(new JLabel("x faster"), mgbc);
 
+      // Static-scene skipping (real-time mode only)
+      JCheckBox cbSkipStatic = new JCheckBox("Skip unchanged frames, noise tolerance", currentSkipStatic);
+      cbSkipStatic.setToolTipText("Real-time mode: frames identical to the last written one are not encoded");
+      mgbc.gridx = 0; mgbc.gridy = 3; mgbc.gridwidth = 1;
+      modePanel.add(cbSkipStatic, mgbc);
+
+      JSpinner toleranceSpinner = new JSpinner(new SpinnerNumberModel(currentStaticTolerance, 0, 64, 1));
+      mgbc.gridx = 1;
+      modePanel.add(toleranceSpinner, mgbc);
+
+      mgbc.gridx = 2;
+      modePanel.add(new JLabel("levels"), mgbc);
+
+      // Session mode: Live pause/resume continues the same segment
+      JCheckBox cbSession = new JCheckBox("Session: keep the file open when Live pauses, gap", currentSessionMode);
+      cbSession.setToolTipText("Resuming Live continues the same MP4 without restarting FFmpeg; "
+            + "the pause shows as a held frame of this length");
+      mgbc.gridx = 0; mgbc.gridy = 4; mgbc.gridwidth = 1;
+      modePanel.add(cbSession, mgbc);
+
+      JSpinner sessionGapSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0.0, Math.min(10.0, currentSessionGapSec)), 0.0, 10.0, 0.5));
+      mgbc.gridx = 1;
+      modePanel.add(sessionGapSpinner, mgbc);
+
+      mgbc.gridx = 2;
+      modePanel.add(new JLabel("s"), mgbc);
+
+      JLabel sessionTimeoutLabel = new JLabel("    End session after a pause of");
+      mgbc.gridx = 0; mgbc.gridy = 5; mgbc.gridwidth = 1;
+      modePanel.add(sessionTimeoutLabel, mgbc);
+
+      JSpinner sessionTimeoutSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(10.0, Math.min(86400.0, currentSessionTimeoutSec)), 10.0, 86400.0, 60.0));
+      sessionTimeoutSpinner.setToolTipText("Or call org.jens.mp4stream.MP4StreamTrigger.endSession() from a script");
+      mgbc.gridx = 1;
+      modePanel.add(sessionTimeoutSpinner, mgbc);
+
+      mgbc.gridx = 2;
+      modePanel.add(new JLabel("s"), mgbc);
+
       // Set initial selection
       if (MODE_REALTIME.equals(currentMode)) {
          rbRealtime.setSelected(true);
@@ -263,21 +625,36 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
          PREFS.put(KEY_RECORDING_MODE, mode);
          PREFS.putDouble(KEY_TARGET_FPS, (Double) fpsSpinner.getValue());
          PREFS.putDouble(KEY_TIMELAPSE_FACTOR, (Double) tlSpinner.getValue());
+         PREFS.putBoolean(KEY_SKIP_STATIC, cbSkipStatic.isSelected());
+         PREFS.putInt(KEY_STATIC_TOLERANCE, (Integer) toleranceSpinner.getValue());
+         PREFS.putBoolean(KEY_SESSION_MODE, cbSession.isSelected());
+         PREFS.putDouble(KEY_SESSION_GAP_SEC, (Double) sessionGapSpinner.getValue());
+         PREFS.putDouble(KEY_SESSION_TIMEOUT_SEC, (Double) sessionTimeoutSpinner.getValue());
       };
 
       // Enable/disable spinners based on mode, and save immediately
       Runnable updateSpinners = () -> {
          fpsSpinner.setEnabled(rbConstant.isSelected() || rbTimelapse.isSelected());
          tlSpinner.setEnabled(rbTimelapse.isSelected());
+         cbSkipStatic.setEnabled(rbRealtime.isSelected());
+         toleranceSpinner.setEnabled(rbRealtime.isSelected() && cbSkipStatic.isSelected());
+         sessionGapSpinner.setEnabled(cbSession.isSelected());
+         sessionTimeoutLabel.setEnabled(cbSession.isSelected());
+         sessionTimeoutSpinner.setEnabled(cbSession.isSelected());
          saveModeToPrefs.run(); // Save mode immediately when changed
       };
       rbConstant.addActionListener(e -> updateSpinners.run());
       rbRealtime.addActionListener(e -> updateSpinners.run());
       rbTimelapse.addActionListener(e -> updateSpinners.run());
+      cbSkipStatic.addActionListener(e -> updateSpinners.run());
+      cbSession.addActionListener(e -> updateSpinners.run());
 
       // Also save immediately when spinner values change
       fpsSpinner.addChangeListener(e -> saveModeToPrefs.run());
       tlSpinner.addChangeListener(e -> saveModeToPrefs.run());
+      toleranceSpinner.addChangeListener(e -> saveModeToPrefs.run());
+      sessionGapSpinner.addChangeListener(e -> saveModeToPrefs.run());
+      sessionTimeoutSpinner.addChangeListener(e -> saveModeToPrefs.run());
 
       updateSpinners.run();
 
@@ -293,6 +670,7 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       boolean currentScalebarEnabled = getSettingBoolean(KEY_SCALEBAR_ENABLED, DEFAULT_SCALEBAR_ENABLED);
       int currentFontSize = getSettingInt(KEY_FONT_SIZE, DEFAULT_FONT_SIZE);
       double currentScalebarLength = getSettingDouble(KEY_SCALEBAR_LENGTH_UM, DEFAULT_SCALEBAR_LENGTH_UM);
+      String currentOverlayBackend = getSetting(KEY_OVERLAY_BACKEND, DEFAULT_OVERLAY_BACKEND);
 
       JPanel overlayPanel = new JPanel(new GridBagLayout());
       overlayPanel.setBorder(BorderFactory.createTitledBorder("Overlay"));
@@ -347,6 +725,20 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       ogbc.gridx = 2;
       overlayPanel.add(new JLabel("µm (0=auto)"), ogbc);
 
+      // Rendering backend
+      ogbc.gridx = 0; ogbc.gridy = 6; ogbc.gridwidth = 1;
+      overlayPanel.add(new JLabel("Render in:"), ogbc);
+
+      final String[] overlayBackendKeys = {OVERLAY_BACKEND_JAVA, OVERLAY_BACKEND_FFMPEG};
+      JComboBox<String> overlayBackendCombo = new JComboBox<>(new String[]{
+            "Java (camera thread)", "FFmpeg filters"});
+      overlayBackendCombo.setSelectedIndex(
+            Math.max(0, java.util.Arrays.asList(overlayBackendKeys).indexOf(currentOverlayBackend)));
+      overlayBackendCombo.setToolTipText("FFmpeg filters take overlay work off the camera thread; "
+            + "the timestamp stays in Java in realtime mode");
+      ogbc.gridx = 1; ogbc.gridwidth = 2;
+      overlayPanel.add(overlayBackendCombo, ogbc);
+
       // Enable/disable related controls
       Runnable updateOverlayControls = () -> {
          boolean tsEnabled = cbTimestamp.isSelected();
@@ -354,6 +746,7 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
          fontSizeSpinner.setEnabled(tsEnabled || cbScalebar.isSelected());
          cbBackground.setEnabled(tsEnabled || cbScalebar.isSelected());
          scalebarSpinner.setEnabled(cbScalebar.isSelected());
+         overlayBackendCombo.setEnabled(tsEnabled || cbScalebar.isSelected());
       };
       cbTimestamp.addActionListener(e -> updateOverlayControls.run());
       cbScalebar.addActionListener(e -> updateOverlayControls.run());
@@ -367,6 +760,7 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
          PREFS.putBoolean(KEY_SCALEBAR_ENABLED, cbScalebar.isSelected());
          PREFS.putInt(KEY_FONT_SIZE, (Integer) fontSizeSpinner.getValue());
          PREFS.putDouble(KEY_SCALEBAR_LENGTH_UM, (Double) scalebarSpinner.getValue());
+         PREFS.put(KEY_OVERLAY_BACKEND, overlayBackendKeys[overlayBackendCombo.getSelectedIndex()]);
       };
       cbTimestamp.addActionListener(e -> saveOverlayToPrefs.run());
       colorCombo.addActionListener(e -> saveOverlayToPrefs.run());
@@ -374,12 +768,693 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       cbScalebar.addActionListener(e -> saveOverlayToPrefs.run());
       fontSizeSpinner.addChangeListener(e -> saveOverlayToPrefs.run());
       scalebarSpinner.addChangeListener(e -> saveOverlayToPrefs.run());
+      overlayBackendCombo.addActionListener(e -> saveOverlayToPrefs.run());
 
       gbc.gridx = 0; gbc.gridy = row; gbc.gridwidth = 3;
       mainPanel.add(overlayPanel, gbc);
 
       row++;
 
+      // === Encoder Outputs ===
+      int currentArchiveCrf = getSettingInt(KEY_ARCHIVE_CRF, DEFAULT_ARCHIVE_CRF);
+      String currentArchivePreset = getSetting(KEY_ARCHIVE_PRESET, DEFAULT_ARCHIVE_PRESET);
+      boolean currentPreviewEnabled = getSettingBoolean(KEY_PREVIEW_ENABLED, DEFAULT_PREVIEW_ENABLED);
+      int currentPreviewWidth = getSettingInt(KEY_PREVIEW_WIDTH, DEFAULT_PREVIEW_WIDTH);
+      int currentPreviewCrf = getSettingInt(KEY_PREVIEW_CRF, DEFAULT_PREVIEW_CRF);
+      String currentPreviewPreset = getSetting(KEY_PREVIEW_PRESET, DEFAULT_PREVIEW_PRESET);
+      boolean currentStreamEnabled = getSettingBoolean(KEY_STREAM_ENABLED, DEFAULT_STREAM_ENABLED);
+      int currentStreamPort = getSettingInt(KEY_STREAM_PORT, DEFAULT_STREAM_PORT);
+      boolean currentSpoolEnabled = getSettingBoolean(KEY_SPOOL_ENABLED, DEFAULT_SPOOL_ENABLED);
+      int currentSpoolMaxMb = getSettingInt(KEY_SPOOL_MAX_MB, DEFAULT_SPOOL_MAX_MB);
+      boolean currentUseCalibrated = getSettingBoolean(KEY_USE_CALIBRATED_PROFILE, DEFAULT_USE_CALIBRATED_PROFILE);
+      boolean currentJavaYuv = getSettingBoolean(KEY_JAVA_YUV, DEFAULT_JAVA_YUV);
+      String currentVideoColor = getSetting(KEY_VIDEO_COLOR, DEFAULT_VIDEO_COLOR);
+      boolean currentFrameIndex = getSettingBoolean(KEY_FRAME_INDEX, DEFAULT_FRAME_INDEX);
+      boolean currentSeekOptimized = getSettingBoolean(KEY_SEEK_OPTIMIZED, DEFAULT_SEEK_OPTIMIZED);
+      double currentKeyframeSec = getSettingDouble(KEY_KEYFRAME_SEC, DEFAULT_KEYFRAME_SEC);
+      boolean currentThumbnails = getSettingBoolean(KEY_THUMBNAILS, DEFAULT_THUMBNAILS);
+      double currentThumbIntervalSec = getSettingDouble(KEY_THUMB_INTERVAL_SEC, DEFAULT_THUMB_INTERVAL_SEC);
+      boolean currentFixedCanvas = getSettingBoolean(KEY_FIXED_CANVAS, DEFAULT_FIXED_CANVAS);
+      int currentCanvasWidth = getSettingInt(KEY_CANVAS_WIDTH, DEFAULT_CANVAS_WIDTH);
+      int currentCanvasHeight = getSettingInt(KEY_CANVAS_HEIGHT, DEFAULT_CANVAS_HEIGHT);
+      boolean currentMosaic = getSettingBoolean(KEY_MOSAIC, DEFAULT_MOSAIC);
+      int currentMosaicColumns = getSettingInt(KEY_MOSAIC_COLUMNS, DEFAULT_MOSAIC_COLUMNS);
+      int currentMosaicWaitMs = getSettingInt(KEY_MOSAIC_WAIT_MS, DEFAULT_MOSAIC_WAIT_MS);
+
+      JPanel outputPanel = new JPanel(new GridBagLayout());
+      outputPanel.setBorder(BorderFactory.createTitledBorder("Encoder Outputs"));
+      GridBagConstraints egbc = new GridBagConstraints();
+      egbc.insets = new Insets(3, 5, 3, 5);
+      egbc.anchor = GridBagConstraints.WEST;
+      egbc.fill = GridBagConstraints.HORIZONTAL;
+
+      // Full-resolution archive quality
+      egbc.gridx = 0; egbc.gridy = 0; egbc.gridwidth = 1;
+      outputPanel.add(new JLabel("Archive CRF:"), egbc);
+
+      JSpinner archiveCrfSpinner = new JSpinner(new SpinnerNumberModel(currentArchiveCrf, 0, 51, 1));
+      archiveCrfSpinner.setToolTipText("Lower = better quality, larger files (18 is visually lossless)");
+      egbc.gridx = 1;
+      outputPanel.add(archiveCrfSpinner, egbc);
+
+      JComboBox<String> archivePresetCombo = new JComboBox<>(X264_PRESETS);
+      archivePresetCombo.setSelectedItem(currentArchivePreset);
+      egbc.gridx = 2;
+      outputPanel.add(archivePresetCombo, egbc);
+
+      // Low-resolution preview, encoded from the same piped stream
+      JCheckBox cbPreview = new JCheckBox("Also write low-res preview (*_preview.mp4)", currentPreviewEnabled);
+      egbc.gridx = 0; egbc.gridy = 1; egbc.gridwidth = 3;
+      outputPanel.add(cbPreview, egbc);
+
+      egbc.gridx = 0; egbc.gridy = 2; egbc.gridwidth = 1;
+      outputPanel.add(new JLabel("Preview width:"), egbc);
+
+      JSpinner previewWidthSpinner = new JSpinner(new SpinnerNumberModel(currentPreviewWidth, 64, 4096, 16));
+      previewWidthSpinner.setToolTipText("Also used for the live stream");
+      egbc.gridx = 1;
+      outputPanel.add(previewWidthSpinner, egbc);
+
+      egbc.gridx = 2;
+      outputPanel.add(new JLabel("px"), egbc);
+
+      egbc.gridx = 0; egbc.gridy = 3; egbc.gridwidth = 1;
+      outputPanel.add(new JLabel("Preview CRF:"), egbc);
+
+      JSpinner previewCrfSpinner = new JSpinner(new SpinnerNumberModel(currentPreviewCrf, 0, 51, 1));
+      egbc.gridx = 1;
+      outputPanel.add(previewCrfSpinner, egbc);
+
+      JComboBox<String> previewPresetCombo = new JComboBox<>(X264_PRESETS);
+      previewPresetCombo.setSelectedItem(currentPreviewPreset);
+      egbc.gridx = 2;
+      outputPanel.add(previewPresetCombo, egbc);
+
+      // Low-latency HLS stream served by the plugin
+      JCheckBox cbStream = new JCheckBox("Serve live HLS stream on port", currentStreamEnabled);
+      cbStream.setToolTipText("http://<this-pc>:<port>/live.m3u8 while recording");
+      egbc.gridx = 0; egbc.gridy = 4; egbc.gridwidth = 1;
+      outputPanel.add(cbStream, egbc);
+
+      JSpinner streamPortSpinner = new JSpinner(new SpinnerNumberModel(currentStreamPort, 1024, 65535, 1));
+      streamPortSpinner.setEditor(new JSpinner.NumberEditor(streamPortSpinner, "#"));
+      egbc.gridx = 1;
+      outputPanel.add(streamPortSpinner, egbc);
+
+      // Disk spool for encoder overruns
+      JCheckBox cbSpool = new JCheckBox("Spool to disk when encoder falls behind, up to", currentSpoolEnabled);
+      cbSpool.setToolTipText("Frames the encoder cannot take immediately are queued in a file next to the output");
+      egbc.gridx = 0; egbc.gridy = 5; egbc.gridwidth = 1;
+      outputPanel.add(cbSpool, egbc);
+
+      JSpinner spoolMaxSpinner = new JSpinner(new SpinnerNumberModel(currentSpoolMaxMb, 256, 1 << 20, 256));
+      egbc.gridx = 1;
+      outputPanel.add(spoolMaxSpinner, egbc);
+
+      egbc.gridx = 2;
+      outputPanel.add(new JLabel("MB"), egbc);
+
+      // Gray video packed as yuv420p in Java; colored video always is
+      JCheckBox cbJavaYuv = new JCheckBox("Pack gray video as yuv420p in Java", currentJavaYuv);
+      cbJavaYuv.setToolTipText("Moves FFmpeg's pixel conversion into Java, at 1.5x the bytes piped. "
+            + "Colored video is always packed in Java; odd frame sizes are sent as gray");
+      egbc.gridx = 0; egbc.gridy = 6; egbc.gridwidth = 2;
+      outputPanel.add(cbJavaYuv, egbc);
+
+      final String[] videoColorKeys = {"gray", VIDEO_COLOR_DISPLAY, "green", "red", "blue", "cyan", "magenta", "yellow"};
+      JComboBox<String> videoColorCombo = new JComboBox<>(new String[]{
+            "Gray", "From display", "Green", "Red", "Blue", "Cyan", "Magenta", "Yellow"});
+      videoColorCombo.setSelectedIndex(Math.max(0, java.util.Arrays.asList(videoColorKeys).indexOf(currentVideoColor)));
+      videoColorCombo.setToolTipText("Video color; \"From display\" uses the Live window's channel color");
+      egbc.gridx = 2; egbc.gridwidth = 1;
+      outputPanel.add(videoColorCombo, egbc);
+
+      // Per-resolution codec/preset chosen by measuring this machine
+      JCheckBox cbCalibrated = new JCheckBox("Use calibrated archive encoder for the frame size",
+            currentUseCalibrated);
+      cbCalibrated.setToolTipText("Falls back to libx264 with the preset above for uncalibrated sizes");
+      egbc.gridx = 0; egbc.gridy = 7; egbc.gridwidth = 2;
+      outputPanel.add(cbCalibrated, egbc);
+
+      JButton calibrateButton = new JButton("Calibrate...");
+      calibrateButton.setToolTipText("Encodes synthetic frames at the camera size with each available "
+            + "codec/preset and saves the best one that sustains the target FPS");
+      egbc.gridx = 2; egbc.gridwidth = 1;
+      outputPanel.add(calibrateButton, egbc);
+
+      JLabel calibrationStatus = new JLabel(calibrationStatusText());
+      egbc.gridx = 0; egbc.gridy = 8; egbc.gridwidth = 3;
+      outputPanel.add(calibrationStatus, egbc);
+
+      // Binary per-frame sidecar (time, stage, exposure, contrast)
+      JCheckBox cbFrameIndex = new JCheckBox("Write per-frame index (.frames) next to each video", currentFrameIndex);
+      cbFrameIndex.setToolTipText("Maps every video frame back to its acquisition time, stage position, "
+            + "exposure and display range");
+      egbc.gridx = 0; egbc.gridy = 9; egbc.gridwidth = 3;
+      outputPanel.add(cbFrameIndex, egbc);
+
+      // Seek-optimized archive: fixed keyframe interval, faststart, keyframe table
+      JCheckBox cbSeekOptimized = new JCheckBox("Seek-optimized archive: keyframe every", currentSeekOptimized);
+      cbSeekOptimized.setToolTipText("Forces keyframes at a fixed interval of video time, moves the index to the "
+            + "front of the file after recording (faststart) and writes a .keyframes table");
+      egbc.gridx = 0; egbc.gridy = 10; egbc.gridwidth = 1;
+      outputPanel.add(cbSeekOptimized, egbc);
+
+      JSpinner keyframeSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0.1, Math.min(60.0, currentKeyframeSec)), 0.1, 60.0, 0.5));
+      egbc.gridx = 1;
+      outputPanel.add(keyframeSpinner, egbc);
+
+      egbc.gridx = 2;
+      outputPanel.add(new JLabel("s"), egbc);
+
+      // Thumbnails and contact sheet from the frames being encoded
+      JCheckBox cbThumbnails = new JCheckBox("Thumbnails and contact sheet: one every", currentThumbnails);
+      cbThumbnails.setToolTipText("Saves small PNGs of the first frame, one per interval of Δt and the last "
+            + "frame, plus a tiled contact sheet, without decoding the video");
+      egbc.gridx = 0; egbc.gridy = 11; egbc.gridwidth = 1;
+      outputPanel.add(cbThumbnails, egbc);
+
+      JSpinner thumbIntervalSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0.0, Math.min(3600.0, currentThumbIntervalSec)), 0.0, 3600.0, 1.0));
+      egbc.gridx = 1;
+      outputPanel.add(thumbIntervalSpinner, egbc);
+
+      egbc.gridx = 2;
+      outputPanel.add(new JLabel("s (0 = first and last)"), egbc);
+
+      // Fixed canvas: binning/ROI changes are scaled into the segment instead of starting a new one
+      JCheckBox cbFixedCanvas = new JCheckBox("Fixed canvas, width x height (0 = first frame):", currentFixedCanvas);
+      cbFixedCanvas.setToolTipText("Frames of another size (binning, ROI) are scaled to fit and centered "
+            + "with black bars, so one video keeps running");
+      egbc.gridx = 0; egbc.gridy = 12; egbc.gridwidth = 1;
+      outputPanel.add(cbFixedCanvas, egbc);
+
+      JSpinner canvasWidthSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0, Math.min(16384, currentCanvasWidth)), 0, 16384, 2));
+      egbc.gridx = 1;
+      outputPanel.add(canvasWidthSpinner, egbc);
+
+      JSpinner canvasHeightSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0, Math.min(16384, currentCanvasHeight)), 0, 16384, 2));
+      egbc.gridx = 2;
+      outputPanel.add(canvasHeightSpinner, egbc);
+
+      // Multi-camera mosaic: all cameras' frames as tiles of one video
+      JCheckBox cbMosaic = new JCheckBox("Multi-camera mosaic, tiles per row:", currentMosaic);
+      cbMosaic.setToolTipText("Records the latest frame of each camera (Multi Camera adapter) side by side "
+            + "or in a grid, with one encoder");
+      egbc.gridx = 0; egbc.gridy = 13; egbc.gridwidth = 1;
+      outputPanel.add(cbMosaic, egbc);
+
+      JSpinner mosaicColumnsSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0, Math.min(8, currentMosaicColumns)), 0, 8, 1));
+      egbc.gridx = 1;
+      outputPanel.add(mosaicColumnsSpinner, egbc);
+
+      egbc.gridx = 2;
+      outputPanel.add(new JLabel("(0 = auto)"), egbc);
+
+      JLabel mosaicWaitLabel = new JLabel("    Wait for the other cameras up to");
+      egbc.gridx = 0; egbc.gridy = 14; egbc.gridwidth = 1;
+      outputPanel.add(mosaicWaitLabel, egbc);
+
+      JSpinner mosaicWaitSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0, Math.min(10000, currentMosaicWaitMs)), 0, 10000, 10));
+      mosaicWaitSpinner.setToolTipText("Δt after the first camera's frame; later, the missing cameras' "
+            + "previous frames are used");
+      egbc.gridx = 1;
+      outputPanel.add(mosaicWaitSpinner, egbc);
+
+      egbc.gridx = 2;
+      outputPanel.add(new JLabel("ms"), egbc);
+
+      final EncoderCalibration[] calibration = {null};
+      calibrateButton.addActionListener(e -> {
+         if (calibration[0] != null) {
+            calibration[0].cancel();
+            calibrateButton.setEnabled(false);
+            return;
+         }
+         final int[] size = cameraSize();
+         if (size == null) {
+            calibrationStatus.setText("Calibration needs a camera (no image size available)");
+            return;
+         }
+         final String exe = FfmpegCapabilities.executable(ffmpegField.getText());
+         final double fps = (Double) fpsSpinner.getValue();
+         // Same thread/priority limits as recording (CPU budget controls save immediately)
+         final EncoderCalibration cal = new EncoderCalibration(exe, size[0], size[1], fps,
+               (Integer) archiveCrfSpinner.getValue(), CpuBudget.fromPreferences(PREFS));
+         calibration[0] = cal;
+         calibrateButton.setText("Stop");
+         Thread t = new Thread(() -> {
+            String report;
+            FfmpegCapabilities caps = null;
+            try {
+               caps = FfmpegCapabilities.probeAsync(exe).get();
+            } catch (Exception ignored) {}
+            if (caps != null && !caps.isUsable()) {
+               report = "FFmpeg is not usable: " + caps.describe();
+            } else {
+               List<EncoderCalibration.Result> results = cal.run(caps, msg ->
+                     SwingUtilities.invokeLater(() -> calibrationStatus.setText("Calibrating " + msg)));
+               report = calibrationReport(cal, results, size, fps);
+            }
+            final String text = report;
+            SwingUtilities.invokeLater(() -> {
+               calibration[0] = null;
+               calibrateButton.setText("Calibrate...");
+               calibrateButton.setEnabled(true);
+               calibrationStatus.setText(calibrationStatusText());
+               if (!cal.isCancelled()) {
+                  JTextArea area = new JTextArea(text);
+                  area.setEditable(false);
+                  area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                  JOptionPane.showMessageDialog(dialog, area, "Encoder calibration",
+                        JOptionPane.INFORMATION_MESSAGE);
+               }
+            });
+         }, "mp4stream-calibration");
+         t.setDaemon(true);
+         t.start();
+      });
+
+      Runnable updateOutputControls = () -> {
+         boolean pv = cbPreview.isSelected();
+         previewWidthSpinner.setEnabled(pv || cbStream.isSelected());
+         previewCrfSpinner.setEnabled(pv);
+         previewPresetCombo.setEnabled(pv);
+         streamPortSpinner.setEnabled(cbStream.isSelected());
+         spoolMaxSpinner.setEnabled(cbSpool.isSelected());
+         keyframeSpinner.setEnabled(cbSeekOptimized.isSelected());
+         thumbIntervalSpinner.setEnabled(cbThumbnails.isSelected());
+         canvasWidthSpinner.setEnabled(cbFixedCanvas.isSelected());
+         canvasHeightSpinner.setEnabled(cbFixedCanvas.isSelected());
+         mosaicColumnsSpinner.setEnabled(cbMosaic.isSelected());
+         mosaicWaitLabel.setEnabled(cbMosaic.isSelected());
+         mosaicWaitSpinner.setEnabled(cbMosaic.isSelected());
+      };
+      cbPreview.addActionListener(e -> updateOutputControls.run());
+      cbStream.addActionListener(e -> updateOutputControls.run());
+      cbSpool.addActionListener(e -> updateOutputControls.run());
+      cbSeekOptimized.addActionListener(e -> updateOutputControls.run());
+      cbThumbnails.addActionListener(e -> updateOutputControls.run());
+      cbFixedCanvas.addActionListener(e -> updateOutputControls.run());
+      cbMosaic.addActionListener(e -> updateOutputControls.run());
+      updateOutputControls.run();
+
+      // Save output settings immediately when changed
+      Runnable saveOutputsToPrefs = () -> {
+         PREFS.putInt(KEY_ARCHIVE_CRF, (Integer) archiveCrfSpinner.getValue());
+         PREFS.put(KEY_ARCHIVE_PRESET, (String) archivePresetCombo.getSelectedItem());
+         PREFS.putBoolean(KEY_PREVIEW_ENABLED, cbPreview.isSelected());
+         PREFS.putInt(KEY_PREVIEW_WIDTH, (Integer) previewWidthSpinner.getValue());
+         PREFS.putInt(KEY_PREVIEW_CRF, (Integer) previewCrfSpinner.getValue());
+         PREFS.put(KEY_PREVIEW_PRESET, (String) previewPresetCombo.getSelectedItem());
+         PREFS.putBoolean(KEY_STREAM_ENABLED, cbStream.isSelected());
+         PREFS.putInt(KEY_STREAM_PORT, (Integer) streamPortSpinner.getValue());
+         PREFS.putBoolean(KEY_SPOOL_ENABLED, cbSpool.isSelected());
+         PREFS.putInt(KEY_SPOOL_MAX_MB, (Integer) spoolMaxSpinner.getValue());
+         PREFS.putBoolean(KEY_USE_CALIBRATED_PROFILE, cbCalibrated.isSelected());
+         PREFS.putBoolean(KEY_JAVA_YUV, cbJavaYuv.isSelected());
+         PREFS.put(KEY_VIDEO_COLOR, videoColorKeys[videoColorCombo.getSelectedIndex()]);
+         PREFS.putBoolean(KEY_FRAME_INDEX, cbFrameIndex.isSelected());
+         PREFS.putBoolean(KEY_SEEK_OPTIMIZED, cbSeekOptimized.isSelected());
+         PREFS.putDouble(KEY_KEYFRAME_SEC, (Double) keyframeSpinner.getValue());
+         PREFS.putBoolean(KEY_THUMBNAILS, cbThumbnails.isSelected());
+         PREFS.putDouble(KEY_THUMB_INTERVAL_SEC, (Double) thumbIntervalSpinner.getValue());
+         PREFS.putBoolean(KEY_FIXED_CANVAS, cbFixedCanvas.isSelected());
+         PREFS.putInt(KEY_CANVAS_WIDTH, (Integer) canvasWidthSpinner.getValue());
+         PREFS.putInt(KEY_CANVAS_HEIGHT, (Integer) canvasHeightSpinner.getValue());
+         PREFS.putBoolean(KEY_MOSAIC, cbMosaic.isSelected());
+         PREFS.putInt(KEY_MOSAIC_COLUMNS, (Integer) mosaicColumnsSpinner.getValue());
+         PREFS.putInt(KEY_MOSAIC_WAIT_MS, (Integer) mosaicWaitSpinner.getValue());
+      };
+      archiveCrfSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      archivePresetCombo.addActionListener(e -> saveOutputsToPrefs.run());
+      cbPreview.addActionListener(e -> saveOutputsToPrefs.run());
+      previewWidthSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      previewCrfSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      previewPresetCombo.addActionListener(e -> saveOutputsToPrefs.run());
+      cbStream.addActionListener(e -> saveOutputsToPrefs.run());
+      streamPortSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      cbSpool.addActionListener(e -> saveOutputsToPrefs.run());
+      spoolMaxSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      cbCalibrated.addActionListener(e -> saveOutputsToPrefs.run());
+      cbJavaYuv.addActionListener(e -> saveOutputsToPrefs.run());
+      videoColorCombo.addActionListener(e -> saveOutputsToPrefs.run());
+      cbFrameIndex.addActionListener(e -> saveOutputsToPrefs.run());
+      cbSeekOptimized.addActionListener(e -> saveOutputsToPrefs.run());
+      keyframeSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      cbThumbnails.addActionListener(e -> saveOutputsToPrefs.run());
+      thumbIntervalSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      cbFixedCanvas.addActionListener(e -> saveOutputsToPrefs.run());
+      canvasWidthSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      canvasHeightSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      cbMosaic.addActionListener(e -> saveOutputsToPrefs.run());
+      mosaicColumnsSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+      mosaicWaitSpinner.addChangeListener(e -> saveOutputsToPrefs.run());
+
+      gbc.gridx = 0; gbc.gridy = row; gbc.gridwidth = 3;
+      mainPanel.add(outputPanel, gbc);
+
+      row++;
+
+      // === CPU Budget ===
+      int currentCpuBudget = getSettingInt(KEY_CPU_BUDGET, DEFAULT_CPU_BUDGET);
+      boolean currentLowPriority = getSettingBoolean(KEY_ENCODER_LOW_PRIORITY, DEFAULT_ENCODER_LOW_PRIORITY);
+      boolean currentPinCpus = getSettingBoolean(KEY_ENCODER_PIN_CPUS, DEFAULT_ENCODER_PIN_CPUS);
+      boolean currentVirtualThreads = getSettingBoolean(KEY_VIRTUAL_THREADS, DEFAULT_VIRTUAL_THREADS);
+      int cores = Runtime.getRuntime().availableProcessors();
+
+      JPanel cpuPanel = new JPanel(new GridBagLayout());
+      cpuPanel.setBorder(BorderFactory.createTitledBorder("CPU Budget"));
+      GridBagConstraints cgbc = new GridBagConstraints();
+      cgbc.insets = new Insets(3, 5, 3, 5);
+      cgbc.anchor = GridBagConstraints.WEST;
+      cgbc.fill = GridBagConstraints.HORIZONTAL;
+
+      cgbc.gridx = 0; cgbc.gridy = 0; cgbc.gridwidth = 1;
+      cpuPanel.add(new JLabel("Encoder cores:"), cgbc);
+
+      JSpinner cpuBudgetSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0, Math.min(cores, currentCpuBudget)), 0, cores, 1));
+      cpuBudgetSpinner.setToolTipText("Caps FFmpeg encoder threads and frame conversion threads");
+      cgbc.gridx = 1;
+      cpuPanel.add(cpuBudgetSpinner, cgbc);
+
+      cgbc.gridx = 2;
+      cpuPanel.add(new JLabel("of " + cores + " (0 = all but " + CpuBudget.RESERVED_CORES + ")"), cgbc);
+
+      JCheckBox cbLowPriority = new JCheckBox("Run FFmpeg at lower priority", currentLowPriority);
+      cbLowPriority.setToolTipText("nice on Linux/macOS, BelowNormal on Windows (Java 9+)");
+      cgbc.gridx = 0; cgbc.gridy = 1; cgbc.gridwidth = 3;
+      cpuPanel.add(cbLowPriority, cgbc);
+
+      JCheckBox cbPinCpus = new JCheckBox("Pin FFmpeg to the highest-numbered cores", currentPinCpus);
+      cbPinCpus.setToolTipText("Leaves the low cores to the camera driver (taskset on Linux, affinity on Windows)");
+      cgbc.gridx = 0; cgbc.gridy = 2; cgbc.gridwidth = 3;
+      cpuPanel.add(cbPinCpus, cgbc);
+
+      JCheckBox cbVirtualThreads = new JCheckBox("Run FFmpeg I/O threads as virtual threads (Java 21+)",
+            currentVirtualThreads);
+      cbVirtualThreads.setEnabled(IoThreads.virtualAvailable());
+      cbVirtualThreads.setToolTipText(IoThreads.virtualAvailable()
+            ? "The stderr reader and spool writer of each recording do not hold a platform thread"
+            : "Needs Java 21 or newer; this JVM is " + System.getProperty("java.version"));
+      cgbc.gridx = 0; cgbc.gridy = 3; cgbc.gridwidth = 3;
+      cpuPanel.add(cbVirtualThreads, cgbc);
+
+      // Save CPU budget settings immediately when changed
+      Runnable saveCpuToPrefs = () -> {
+         PREFS.putInt(KEY_CPU_BUDGET, (Integer) cpuBudgetSpinner.getValue());
+         PREFS.putBoolean(KEY_ENCODER_LOW_PRIORITY, cbLowPriority.isSelected());
+         PREFS.putBoolean(KEY_ENCODER_PIN_CPUS, cbPinCpus.isSelected());
+         PREFS.putBoolean(KEY_VIRTUAL_THREADS, cbVirtualThreads.isSelected());
+      };
+      cpuBudgetSpinner.addChangeListener(e -> saveCpuToPrefs.run());
+      cbLowPriority.addActionListener(e -> saveCpuToPrefs.run());
+      cbPinCpus.addActionListener(e -> saveCpuToPrefs.run());
+      cbVirtualThreads.addActionListener(e -> saveCpuToPrefs.run());
+
+      gbc.gridx = 0; gbc.gridy = row; gbc.gridwidth = 3;
+      mainPanel.add(cpuPanel, gbc);
+
+      row++;
+
+      // === Contrast Without Display ===
+      boolean currentAutoContrast = getSettingBoolean(KEY_AUTO_CONTRAST, DEFAULT_AUTO_CONTRAST);
+      double currentAutoLowPct = getSettingDouble(KEY_AUTO_CONTRAST_LOW_PCT, DEFAULT_AUTO_CONTRAST_LOW_PCT);
+      double currentAutoHighPct = getSettingDouble(KEY_AUTO_CONTRAST_HIGH_PCT, DEFAULT_AUTO_CONTRAST_HIGH_PCT);
+
+      JPanel contrastPanel = new JPanel(new GridBagLayout());
+      contrastPanel.setBorder(BorderFactory.createTitledBorder("Contrast Without Display"));
+      GridBagConstraints agbc = new GridBagConstraints();
+      agbc.insets = new Insets(3, 5, 3, 5);
+      agbc.anchor = GridBagConstraints.WEST;
+      agbc.fill = GridBagConstraints.HORIZONTAL;
+
+      JCheckBox cbAutoContrast = new JCheckBox("Auto-contrast from percentiles", currentAutoContrast);
+      cbAutoContrast.setToolTipText("Used when no live display window provides contrast (headless MDA, scripts); "
+            + "otherwise the full pixel range is used");
+      agbc.gridx = 0; agbc.gridy = 0; agbc.gridwidth = 3;
+      contrastPanel.add(cbAutoContrast, agbc);
+
+      agbc.gridx = 0; agbc.gridy = 1; agbc.gridwidth = 1;
+      contrastPanel.add(new JLabel("Black at:"), agbc);
+
+      JSpinner autoLowSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0.0, Math.min(50.0, currentAutoLowPct)), 0.0, 50.0, 0.1));
+      agbc.gridx = 1;
+      contrastPanel.add(autoLowSpinner, agbc);
+
+      agbc.gridx = 2;
+      contrastPanel.add(new JLabel("percentile"), agbc);
+
+      agbc.gridx = 0; agbc.gridy = 2; agbc.gridwidth = 1;
+      contrastPanel.add(new JLabel("White at:"), agbc);
+
+      JSpinner autoHighSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(50.0, Math.min(100.0, currentAutoHighPct)), 50.0, 100.0, 0.1));
+      agbc.gridx = 1;
+      contrastPanel.add(autoHighSpinner, agbc);
+
+      agbc.gridx = 2;
+      contrastPanel.add(new JLabel("percentile"), agbc);
+
+      Runnable updateContrastControls = () -> {
+         autoLowSpinner.setEnabled(cbAutoContrast.isSelected());
+         autoHighSpinner.setEnabled(cbAutoContrast.isSelected());
+      };
+      cbAutoContrast.addActionListener(e -> updateContrastControls.run());
+      updateContrastControls.run();
+
+      // Save auto-contrast settings immediately when changed
+      Runnable saveContrastToPrefs = () -> {
+         PREFS.putBoolean(KEY_AUTO_CONTRAST, cbAutoContrast.isSelected());
+         PREFS.putDouble(KEY_AUTO_CONTRAST_LOW_PCT, (Double) autoLowSpinner.getValue());
+         PREFS.putDouble(KEY_AUTO_CONTRAST_HIGH_PCT, (Double) autoHighSpinner.getValue());
+      };
+      cbAutoContrast.addActionListener(e -> saveContrastToPrefs.run());
+      autoLowSpinner.addChangeListener(e -> saveContrastToPrefs.run());
+      autoHighSpinner.addChangeListener(e -> saveContrastToPrefs.run());
+
+      gbc.gridx = 0; gbc.gridy = row; gbc.gridwidth = 3;
+      mainPanel.add(contrastPanel, gbc);
+
+      row++;
+
+      // === Flat-field Correction ===
+      boolean currentFlatFieldEnabled = getSettingBoolean(KEY_FLATFIELD_ENABLED, DEFAULT_FLATFIELD_ENABLED);
+      String currentDarkPath = getSetting(KEY_DARK_FRAME_PATH, "");
+      String currentFlatPath = getSetting(KEY_FLAT_FRAME_PATH, "");
+
+      JPanel flatPanel = new JPanel(new GridBagLayout());
+      flatPanel.setBorder(BorderFactory.createTitledBorder("Flat-field Correction"));
+      GridBagConstraints fgbc = new GridBagConstraints();
+      fgbc.insets = new Insets(3, 5, 3, 5);
+      fgbc.anchor = GridBagConstraints.WEST;
+      fgbc.fill = GridBagConstraints.HORIZONTAL;
+
+      JCheckBox cbFlatField = new JCheckBox("Subtract dark frame and correct uneven illumination",
+            currentFlatFieldEnabled);
+      cbFlatField.setToolTipText("Either reference may be left empty; frames of another size are not corrected");
+      fgbc.gridx = 0; fgbc.gridy = 0; fgbc.gridwidth = 4;
+      flatPanel.add(cbFlatField, fgbc);
+
+      JTextField darkField = new JTextField(currentDarkPath, 20);
+      JTextField flatField = new JTextField(currentFlatPath, 20);
+      JButton browseDark = new JButton("Browse...");
+      JButton browseFlat = new JButton("Browse...");
+      JButton captureDark = new JButton("Capture...");
+      captureDark.setToolTipText("Block the light path, then snap and average "
+            + FlatField.CAPTURE_FRAMES + " frames");
+      JButton captureFlat = new JButton("Capture...");
+      captureFlat.setToolTipText("Move to an empty, evenly lit field, then snap and average "
+            + FlatField.CAPTURE_FRAMES + " frames");
+      JLabel flatStatus = new JLabel(" ");
+
+      fgbc.gridx = 0; fgbc.gridy = 1; fgbc.gridwidth = 1;
+      flatPanel.add(new JLabel("Dark frame:"), fgbc);
+      fgbc.gridx = 1; fgbc.weightx = 1;
+      flatPanel.add(darkField, fgbc);
+      fgbc.gridx = 2; fgbc.weightx = 0;
+      flatPanel.add(browseDark, fgbc);
+      fgbc.gridx = 3;
+      flatPanel.add(captureDark, fgbc);
+
+      fgbc.gridx = 0; fgbc.gridy = 2;
+      flatPanel.add(new JLabel("Flat field:"), fgbc);
+      fgbc.gridx = 1; fgbc.weightx = 1;
+      flatPanel.add(flatField, fgbc);
+      fgbc.gridx = 2; fgbc.weightx = 0;
+      flatPanel.add(browseFlat, fgbc);
+      fgbc.gridx = 3;
+      flatPanel.add(captureFlat, fgbc);
+
+      fgbc.gridx = 0; fgbc.gridy = 3; fgbc.gridwidth = 4;
+      flatPanel.add(flatStatus, fgbc);
+
+      // Save flat-field settings immediately when changed
+      Runnable saveFlatToPrefs = () -> {
+         PREFS.putBoolean(KEY_FLATFIELD_ENABLED, cbFlatField.isSelected());
+         PREFS.put(KEY_DARK_FRAME_PATH, darkField.getText().trim());
+         PREFS.put(KEY_FLAT_FRAME_PATH, flatField.getText().trim());
+      };
+      cbFlatField.addActionListener(e -> saveFlatToPrefs.run());
+
+      JTextField[] refFields = {darkField, flatField};
+      JButton[] browseButtons = {browseDark, browseFlat};
+      JButton[] captureButtons = {captureDark, captureFlat};
+      String[] refNames = {"dark.tif", "flat.tif"};
+      for (int k = 0; k < 2; k++) {
+         final JTextField field = refFields[k];
+         final String defaultName = refNames[k];
+         browseButtons[k].addActionListener(e -> {
+            JFileChooser fc = new JFileChooser();
+            fc.setFileFilter(new FileNameExtensionFilter("TIFF image or stack (*.tif)", "tif", "tiff"));
+            String curr = field.getText().trim();
+            if (!curr.isEmpty()) fc.setSelectedFile(new File(curr));
+            if (fc.showOpenDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+               field.setText(fc.getSelectedFile().getAbsolutePath());
+               saveFlatToPrefs.run();
+            }
+         });
+         final JButton capture = captureButtons[k];
+         capture.addActionListener(e -> {
+            JFileChooser fc = new JFileChooser();
+            fc.setDialogTitle("Save captured reference");
+            fc.setFileFilter(new FileNameExtensionFilter("TIFF image (*.tif)", "tif"));
+            String curr = field.getText().trim();
+            String outDir = new File(outField.getText().trim()).getAbsoluteFile().getParent();
+            fc.setSelectedFile(!curr.isEmpty() ? new File(curr) : new File(outDir, defaultName));
+            if (fc.showSaveDialog(dialog) != JFileChooser.APPROVE_OPTION) {
+               return;
+            }
+            String path = fc.getSelectedFile().getAbsolutePath();
+            if (!path.toLowerCase().matches(".*\\.tiff?$")) path += ".tif";
+            final File out = new File(path);
+            capture.setEnabled(false);
+            flatStatus.setText("Capturing " + out.getName() + "...");
+            Thread t = new Thread(() -> {
+               String status;
+               boolean ok = false;
+               try {
+                  status = captureReference(out);
+                  ok = true;
+               } catch (Exception ex) {
+                  status = "Capture failed: " + ex.getMessage();
+               }
+               final String text = status;
+               final boolean saved = ok;
+               SwingUtilities.invokeLater(() -> {
+                  capture.setEnabled(true);
+                  flatStatus.setText(text);
+                  if (saved) {
+                     field.setText(out.getAbsolutePath());
+                     saveFlatToPrefs.run();
+                  }
+               });
+            }, "mp4stream-capture");
+            t.setDaemon(true);
+            t.start();
+         });
+      }
+
+      gbc.gridx = 0; gbc.gridy = row; gbc.gridwidth = 3;
+      mainPanel.add(flatPanel, gbc);
+
+      row++;
+
+      // === Pre-trigger Buffer ===
+      boolean currentPretriggerEnabled = getSettingBoolean(KEY_PRETRIGGER_ENABLED, DEFAULT_PRETRIGGER_ENABLED);
+      double currentPretriggerSec = getSettingDouble(KEY_PRETRIGGER_SEC, DEFAULT_PRETRIGGER_SEC);
+      double currentPosttriggerSec = getSettingDouble(KEY_POSTTRIGGER_SEC, DEFAULT_POSTTRIGGER_SEC);
+      int currentPretriggerBudget = getSettingInt(KEY_PRETRIGGER_BUDGET_MB, DEFAULT_PRETRIGGER_BUDGET_MB);
+      boolean currentPretriggerOffHeap = getSettingBoolean(KEY_PRETRIGGER_OFFHEAP, DEFAULT_PRETRIGGER_OFFHEAP);
+
+      JPanel triggerPanel = new JPanel(new GridBagLayout());
+      triggerPanel.setBorder(BorderFactory.createTitledBorder("Pre-trigger Buffer"));
+      GridBagConstraints tgbc = new GridBagConstraints();
+      tgbc.insets = new Insets(3, 5, 3, 5);
+      tgbc.anchor = GridBagConstraints.WEST;
+      tgbc.fill = GridBagConstraints.HORIZONTAL;
+
+      JCheckBox cbPretrigger = new JCheckBox("Buffer frames, record only on trigger", currentPretriggerEnabled);
+      cbPretrigger.setToolTipText("Keeps the last seconds in memory; a trigger saves them plus the following seconds");
+      tgbc.gridx = 0; tgbc.gridy = 0; tgbc.gridwidth = 3;
+      triggerPanel.add(cbPretrigger, tgbc);
+
+      tgbc.gridx = 0; tgbc.gridy = 1; tgbc.gridwidth = 1;
+      triggerPanel.add(new JLabel("Keep before trigger:"), tgbc);
+
+      JSpinner preSpinner = new JSpinner(new SpinnerNumberModel(currentPretriggerSec, 1.0, 600.0, 1.0));
+      tgbc.gridx = 1;
+      triggerPanel.add(preSpinner, tgbc);
+
+      tgbc.gridx = 2;
+      triggerPanel.add(new JLabel("s"), tgbc);
+
+      tgbc.gridx = 0; tgbc.gridy = 2; tgbc.gridwidth = 1;
+      triggerPanel.add(new JLabel("Record after trigger:"), tgbc);
+
+      JSpinner postSpinner = new JSpinner(new SpinnerNumberModel(currentPosttriggerSec, 0.0, 3600.0, 1.0));
+      tgbc.gridx = 1;
+      triggerPanel.add(postSpinner, tgbc);
+
+      tgbc.gridx = 2;
+      triggerPanel.add(new JLabel("s"), tgbc);
+
+      tgbc.gridx = 0; tgbc.gridy = 3; tgbc.gridwidth = 1;
+      triggerPanel.add(new JLabel("Memory limit:"), tgbc);
+
+      JSpinner budgetSpinner = new JSpinner(new SpinnerNumberModel(currentPretriggerBudget, 16, 65536, 64));
+      tgbc.gridx = 1;
+      triggerPanel.add(budgetSpinner, tgbc);
+
+      tgbc.gridx = 2;
+      triggerPanel.add(new JLabel("MB"), tgbc);
+
+      JCheckBox cbOffHeap = new JCheckBox("Allocate off the Java heap", currentPretriggerOffHeap);
+      tgbc.gridx = 0; tgbc.gridy = 4; tgbc.gridwidth = 2;
+      triggerPanel.add(cbOffHeap, tgbc);
+
+      JButton triggerButton = new JButton("Trigger now");
+      triggerButton.addActionListener(e -> MP4StreamTrigger.fire());
+      tgbc.gridx = 2; tgbc.gridwidth = 1;
+      triggerPanel.add(triggerButton, tgbc);
+
+      Runnable updateTriggerControls = () -> {
+         boolean on = cbPretrigger.isSelected();
+         preSpinner.setEnabled(on);
+         postSpinner.setEnabled(on);
+         budgetSpinner.setEnabled(on);
+         cbOffHeap.setEnabled(on);
+         triggerButton.setEnabled(on);
+      };
+      cbPretrigger.addActionListener(e -> updateTriggerControls.run());
+      updateTriggerControls.run();
+
+      // Save pre-trigger settings immediately when changed
+      Runnable saveTriggerToPrefs = () -> {
+         PREFS.putBoolean(KEY_PRETRIGGER_ENABLED, cbPretrigger.isSelected());
+         PREFS.putDouble(KEY_PRETRIGGER_SEC, (Double) preSpinner.getValue());
+         PREFS.putDouble(KEY_POSTTRIGGER_SEC, (Double) postSpinner.getValue());
+         PREFS.putInt(KEY_PRETRIGGER_BUDGET_MB, (Integer) budgetSpinner.getValue());
+         PREFS.putBoolean(KEY_PRETRIGGER_OFFHEAP, cbOffHeap.isSelected());
+      };
+      cbPretrigger.addActionListener(e -> saveTriggerToPrefs.run());
+      preSpinner.addChangeListener(e -> saveTriggerToPrefs.run());
+      postSpinner.addChangeListener(e -> saveTriggerToPrefs.run());
+      budgetSpinner.addChangeListener(e -> saveTriggerToPrefs.run());
+      cbOffHeap.addActionListener(e -> saveTriggerToPrefs.run());
+
+      gbc.gridx = 0; gbc.gridy = row; gbc.gridwidth = 3;
+      mainPanel.add(triggerPanel, gbc);
+
+      row++;
+
       // === Buttons ===
       JPanel buttonPanel = new JPanel();
       JButton okButton = new JButton("OK");
@@ -402,27 +1477,84 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       dialog.setLocationRelativeTo(null);
       dialog.setVisible(true);
 
+      if (calibration[0] != null) {
+         calibration[0].cancel(); // dialog closed mid-calibration
+      }
+
       if (!accepted[0]) {
          // Restore PREFS to pre-dialog state (immediate-save listeners may have changed them)
          PREFS.put(KEY_RECORDING_MODE, snapMode);
          PREFS.putDouble(KEY_TARGET_FPS, snapFps);
          PREFS.putDouble(KEY_TIMELAPSE_FACTOR, snapTlFactor);
+         PREFS.putBoolean(KEY_SKIP_STATIC, snapSkipStatic);
+         PREFS.putInt(KEY_STATIC_TOLERANCE, snapStaticTolerance);
+         PREFS.putBoolean(KEY_SESSION_MODE, snapSessionMode);
+         PREFS.putDouble(KEY_SESSION_GAP_SEC, snapSessionGapSec);
+         PREFS.putDouble(KEY_SESSION_TIMEOUT_SEC, snapSessionTimeoutSec);
          PREFS.putBoolean(KEY_TIMESTAMP_ENABLED, snapTimestampEnabled);
          PREFS.put(KEY_TIMESTAMP_COLOR, snapTimestampColor);
          PREFS.putBoolean(KEY_TIMESTAMP_BACKGROUND, snapTimestampBg);
          PREFS.putBoolean(KEY_SCALEBAR_ENABLED, snapScalebarEnabled);
          PREFS.putInt(KEY_FONT_SIZE, snapFontSize);
          PREFS.putDouble(KEY_SCALEBAR_LENGTH_UM, snapScalebarLength);
+         PREFS.put(KEY_OVERLAY_BACKEND, snapOverlayBackend);
+         PREFS.putInt(KEY_ARCHIVE_CRF, snapArchiveCrf);
+         PREFS.put(KEY_ARCHIVE_PRESET, snapArchivePreset);
+         PREFS.putBoolean(KEY_PREVIEW_ENABLED, snapPreviewEnabled);
+         PREFS.putInt(KEY_PREVIEW_WIDTH, snapPreviewWidth);
+         PREFS.putInt(KEY_PREVIEW_CRF, snapPreviewCrf);
+         PREFS.put(KEY_PREVIEW_PRESET, snapPreviewPreset);
+         PREFS.putBoolean(KEY_STREAM_ENABLED, snapStreamEnabled);
+         PREFS.putInt(KEY_STREAM_PORT, snapStreamPort);
+         PREFS.putBoolean(KEY_SPOOL_ENABLED, snapSpoolEnabled);
+         PREFS.putInt(KEY_SPOOL_MAX_MB, snapSpoolMaxMb);
+         PREFS.putBoolean(KEY_USE_CALIBRATED_PROFILE, snapUseCalibrated);
+         PREFS.putBoolean(KEY_JAVA_YUV, snapJavaYuv);
+         PREFS.put(KEY_VIDEO_COLOR, snapVideoColor);
+         PREFS.putBoolean(KEY_FRAME_INDEX, snapFrameIndex);
+         PREFS.putBoolean(KEY_SEEK_OPTIMIZED, snapSeekOptimized);
+         PREFS.putDouble(KEY_KEYFRAME_SEC, snapKeyframeSec);
+         PREFS.putBoolean(KEY_THUMBNAILS, snapThumbnails);
+         PREFS.putDouble(KEY_THUMB_INTERVAL_SEC, snapThumbIntervalSec);
+         PREFS.putBoolean(KEY_FIXED_CANVAS, snapFixedCanvas);
+         PREFS.putInt(KEY_CANVAS_WIDTH, snapCanvasWidth);
+         PREFS.putInt(KEY_CANVAS_HEIGHT, snapCanvasHeight);
+         PREFS.putBoolean(KEY_MOSAIC, snapMosaic);
+         PREFS.putInt(KEY_MOSAIC_COLUMNS, snapMosaicColumns);
+         PREFS.putInt(KEY_MOSAIC_WAIT_MS, snapMosaicWaitMs);
+         PREFS.putInt(KEY_CPU_BUDGET, snapCpuBudget);
+         PREFS.putBoolean(KEY_ENCODER_LOW_PRIORITY, snapLowPriority);
+         PREFS.putBoolean(KEY_ENCODER_PIN_CPUS, snapPinCpus);
+         PREFS.putBoolean(KEY_VIRTUAL_THREADS, snapVirtualThreads);
+         PREFS.putBoolean(KEY_AUTO_CONTRAST, snapAutoContrast);
+         PREFS.putBoolean(KEY_FLATFIELD_ENABLED, snapFlatFieldEnabled);
+         PREFS.put(KEY_DARK_FRAME_PATH, snapDarkPath);
+         PREFS.put(KEY_FLAT_FRAME_PATH, snapFlatPath);
+         PREFS.putDouble(KEY_AUTO_CONTRAST_LOW_PCT, snapAutoLowPct);
+         PREFS.putDouble(KEY_AUTO_CONTRAST_HIGH_PCT, snapAutoHighPct);
+         PREFS.putBoolean(KEY_PRETRIGGER_ENABLED, snapPretriggerEnabled);
+         PREFS.putDouble(KEY_PRETRIGGER_SEC, snapPretriggerSec);
+         PREFS.putDouble(KEY_POSTTRIGGER_SEC, snapPosttriggerSec);
+         PREFS.putInt(KEY_PRETRIGGER_BUDGET_MB, snapPretriggerBudget);
+         PREFS.putBoolean(KEY_PRETRIGGER_OFFHEAP, snapPretriggerOffHeap);
          return;
       }
 
       // Save settings
       String outPath = outField.getText().trim();
       String ffmpegPath = ffmpegField.getText().trim();
+      boolean scratchEnabled = cbScratch.isSelected();
+      String scratchDir = scratchField.getText().trim();
+      double migrateMbps = (Double) migrateSpinner.getValue();
       String mode = rbRealtime.isSelected() ? MODE_REALTIME :
                     rbTimelapse.isSelected() ? MODE_TIMELAPSE : MODE_CONSTANT_FPS;
       double fps = (Double) fpsSpinner.getValue();
       double tlFactor = (Double) tlSpinner.getValue();
+      boolean skipStatic = cbSkipStatic.isSelected();
+      int staticTolerance = (Integer) toleranceSpinner.getValue();
+      boolean sessionMode = cbSession.isSelected();
+      double sessionGapSec = (Double) sessionGapSpinner.getValue();
+      double sessionTimeoutSec = (Double) sessionTimeoutSpinner.getValue();
 
       // Get overlay settings
       boolean timestampEnabled = cbTimestamp.isSelected();
@@ -431,33 +1563,180 @@ public final class MP4StreamConfigurator implements ProcessorConfigurator {
       boolean scalebarEnabled = cbScalebar.isSelected();
       int fontSize = (Integer) fontSizeSpinner.getValue();
       double scalebarLengthUm = (Double) scalebarSpinner.getValue();
+      String overlayBackend = overlayBackendKeys[overlayBackendCombo.getSelectedIndex()];
+
+      // Get output settings
+      int archiveCrf = (Integer) archiveCrfSpinner.getValue();
+      String archivePreset = (String) archivePresetCombo.getSelectedItem();
+      boolean previewEnabled = cbPreview.isSelected();
+      int previewWidth = (Integer) previewWidthSpinner.getValue();
+      int previewCrf = (Integer) previewCrfSpinner.getValue();
+      String previewPreset = (String) previewPresetCombo.getSelectedItem();
+      boolean streamEnabled = cbStream.isSelected();
+      int streamPort = (Integer) streamPortSpinner.getValue();
+      boolean spoolEnabled = cbSpool.isSelected();
+      int spoolMaxMb = (Integer) spoolMaxSpinner.getValue();
+      boolean useCalibrated = cbCalibrated.isSelected();
+      boolean javaYuv = cbJavaYuv.isSelected();
+      String videoColor = videoColorKeys[videoColorCombo.getSelectedIndex()];
+      boolean frameIndex = cbFrameIndex.isSelected();
+      boolean seekOptimized = cbSeekOptimized.isSelected();
+      double keyframeSec = (Double) keyframeSpinner.getValue();
+      boolean thumbnails = cbThumbnails.isSelected();
+      double thumbIntervalSec = (Double) thumbIntervalSpinner.getValue();
+      boolean fixedCanvas = cbFixedCanvas.isSelected();
+      int canvasWidth = (Integer) canvasWidthSpinner.getValue();
+      int canvasHeight = (Integer) canvasHeightSpinner.getValue();
+      boolean mosaic = cbMosaic.isSelected();
+      int mosaicColumns = (Integer) mosaicColumnsSpinner.getValue();
+      int mosaicWaitMs = (Integer) mosaicWaitSpinner.getValue();
+
+      // Get CPU budget settings
+      int cpuBudget = (Integer) cpuBudgetSpinner.getValue();
+      boolean lowPriority = cbLowPriority.isSelected();
+      boolean pinCpus = cbPinCpus.isSelected();
+      boolean virtualThreads = cbVirtualThreads.isSelected();
+
+      // Get auto-contrast settings
+      boolean autoContrast = cbAutoContrast.isSelected();
+      double autoLowPct = (Double) autoLowSpinner.getValue();
+      double autoHighPct = (Double) autoHighSpinner.getValue();
+
+      // Get flat-field settings
+      boolean flatFieldEnabled = cbFlatField.isSelected();
+      String darkPath = darkField.getText().trim();
+      String flatPath = flatField.getText().trim();
+
+      // Get pre-trigger settings
+      boolean pretriggerEnabled = cbPretrigger.isSelected();
+      double pretriggerSec = (Double) preSpinner.getValue();
+      double posttriggerSec = (Double) postSpinner.getValue();
+      int pretriggerBudget = (Integer) budgetSpinner.getValue();
+      boolean pretriggerOffHeap = cbOffHeap.isSelected();
 
       // Persist to preferences
       PREFS.put(KEY_OUTPUT_PATH, outPath);
       PREFS.put(KEY_FFMPEG_PATH, ffmpegPath);
+      FfmpegCapabilities.probeAsync(FfmpegCapabilities.executable(ffmpegPath)); // ready before recording starts
+      PREFS.putBoolean(KEY_SCRATCH_ENABLED, scratchEnabled);
+      PREFS.put(KEY_SCRATCH_DIR, scratchDir);
+      PREFS.putDouble(KEY_MIGRATE_MBPS, migrateMbps);
       PREFS.put(KEY_RECORDING_MODE, mode);
       PREFS.putDouble(KEY_TARGET_FPS, fps);
       PREFS.putDouble(KEY_TIMELAPSE_FACTOR, tlFactor);
+      PREFS.putBoolean(KEY_SKIP_STATIC, skipStatic);
+      PREFS.putInt(KEY_STATIC_TOLERANCE, staticTolerance);
+      PREFS.putBoolean(KEY_SESSION_MODE, sessionMode);
+      PREFS.putDouble(KEY_SESSION_GAP_SEC, sessionGapSec);
+      PREFS.putDouble(KEY_SESSION_TIMEOUT_SEC, sessionTimeoutSec);
       PREFS.putBoolean(KEY_TIMESTAMP_ENABLED, timestampEnabled);
       PREFS.put(KEY_TIMESTAMP_COLOR, timestampColor);
       PREFS.putBoolean(KEY_TIMESTAMP_BACKGROUND, timestampBg);
       PREFS.putBoolean(KEY_SCALEBAR_ENABLED, scalebarEnabled);
       PREFS.putInt(KEY_FONT_SIZE, fontSize);
       PREFS.putDouble(KEY_SCALEBAR_LENGTH_UM, scalebarLengthUm);
+      PREFS.put(KEY_OVERLAY_BACKEND, overlayBackend);
+      PREFS.putInt(KEY_ARCHIVE_CRF, archiveCrf);
+      PREFS.put(KEY_ARCHIVE_PRESET, archivePreset);
+      PREFS.putBoolean(KEY_PREVIEW_ENABLED, previewEnabled);
+      PREFS.putInt(KEY_PREVIEW_WIDTH, previewWidth);
+      PREFS.putInt(KEY_PREVIEW_CRF, previewCrf);
+      PREFS.put(KEY_PREVIEW_PRESET, previewPreset);
+      PREFS.putBoolean(KEY_STREAM_ENABLED, streamEnabled);
+      PREFS.putInt(KEY_STREAM_PORT, streamPort);
+      PREFS.putBoolean(KEY_SPOOL_ENABLED, spoolEnabled);
+      PREFS.putInt(KEY_SPOOL_MAX_MB, spoolMaxMb);
+      PREFS.putBoolean(KEY_USE_CALIBRATED_PROFILE, useCalibrated);
+      PREFS.putBoolean(KEY_JAVA_YUV, javaYuv);
+      PREFS.put(KEY_VIDEO_COLOR, videoColor);
+      PREFS.putBoolean(KEY_FRAME_INDEX, frameIndex);
+      PREFS.putBoolean(KEY_SEEK_OPTIMIZED, seekOptimized);
+      PREFS.putDouble(KEY_KEYFRAME_SEC, keyframeSec);
+      PREFS.putBoolean(KEY_THUMBNAILS, thumbnails);
+      PREFS.putDouble(KEY_THUMB_INTERVAL_SEC, thumbIntervalSec);
+      PREFS.putBoolean(KEY_FIXED_CANVAS, fixedCanvas);
+      PREFS.putInt(KEY_CANVAS_WIDTH, canvasWidth);
+      PREFS.putInt(KEY_CANVAS_HEIGHT, canvasHeight);
+      PREFS.putBoolean(KEY_MOSAIC, mosaic);
+      PREFS.putInt(KEY_MOSAIC_COLUMNS, mosaicColumns);
+      PREFS.putInt(KEY_MOSAIC_WAIT_MS, mosaicWaitMs);
+      PREFS.putInt(KEY_CPU_BUDGET, cpuBudget);
+      PREFS.putBoolean(KEY_ENCODER_LOW_PRIORITY, lowPriority);
+      PREFS.putBoolean(KEY_ENCODER_PIN_CPUS, pinCpus);
+      PREFS.putBoolean(KEY_VIRTUAL_THREADS, virtualThreads);
+      PREFS.putBoolean(KEY_AUTO_CONTRAST, autoContrast);
+      PREFS.putDouble(KEY_AUTO_CONTRAST_LOW_PCT, autoLowPct);
+      PREFS.putDouble(KEY_AUTO_CONTRAST_HIGH_PCT, autoHighPct);
+      PREFS.putBoolean(KEY_FLATFIELD_ENABLED, flatFieldEnabled);
+      PREFS.put(KEY_DARK_FRAME_PATH, darkPath);
+      PREFS.put(KEY_FLAT_FRAME_PATH, flatPath);
+      PREFS.putBoolean(KEY_PRETRIGGER_ENABLED, pretriggerEnabled);
+      PREFS.putDouble(KEY_PRETRIGGER_SEC, pretriggerSec);
+      PREFS.putDouble(KEY_POSTTRIGGER_SEC, posttriggerSec);
+      PREFS.putInt(KEY_PRETRIGGER_BUDGET_MB, pretriggerBudget);
+      PREFS.putBoolean(KEY_PRETRIGGER_OFFHEAP, pretriggerOffHeap);
 
       // Build pipeline settings
       PropertyMap.Builder b = PropertyMaps.builder();
       b.putString(KEY_OUTPUT_PATH, outPath);
       b.putString(KEY_FFMPEG_PATH, ffmpegPath);
+      b.putBoolean(KEY_SCRATCH_ENABLED, scratchEnabled);
+      b.putString(KEY_SCRATCH_DIR, scratchDir);
+      b.putDouble(KEY_MIGRATE_MBPS, migrateMbps);
       b.putString(KEY_RECORDING_MODE, mode);
       b.putDouble(KEY_TARGET_FPS, fps);
       b.putDouble(KEY_TIMELAPSE_FACTOR, tlFactor);
+      b.putBoolean(KEY_SKIP_STATIC, skipStatic);
+      b.putInteger(KEY_STATIC_TOLERANCE, staticTolerance);
+      b.putBoolean(KEY_SESSION_MODE, sessionMode);
+      b.putDouble(KEY_SESSION_GAP_SEC, sessionGapSec);
+      b.putDouble(KEY_SESSION_TIMEOUT_SEC, sessionTimeoutSec);
       b.putBoolean(KEY_TIMESTAMP_ENABLED, timestampEnabled);
       b.putString(KEY_TIMESTAMP_COLOR, timestampColor);
       b.putBoolean(KEY_TIMESTAMP_BACKGROUND, timestampBg);
       b.putBoolean(KEY_SCALEBAR_ENABLED, scalebarEnabled);
       b.putInteger(KEY_FONT_SIZE, fontSize);
       b.putDouble(KEY_SCALEBAR_LENGTH_UM, scalebarLengthUm);
+      b.putString(KEY_OVERLAY_BACKEND, overlayBackend);
+      b.putInteger(KEY_ARCHIVE_CRF, archiveCrf);
+      b.putString(KEY_ARCHIVE_PRESET, archivePreset);
+      b.putBoolean(KEY_PREVIEW_ENABLED, previewEnabled);
+      b.putInteger(KEY_PREVIEW_WIDTH, previewWidth);
+      b.putInteger(KEY_PREVIEW_CRF, previewCrf);
+      b.putString(KEY_PREVIEW_PRESET, previewPreset);
+      b.putBoolean(KEY_STREAM_ENABLED, streamEnabled);
+      b.putInteger(KEY_STREAM_PORT, streamPort);
+      b.putBoolean(KEY_SPOOL_ENABLED, spoolEnabled);
+      b.putInteger(KEY_SPOOL_MAX_MB, spoolMaxMb);
+      b.putBoolean(KEY_USE_CALIBRATED_PROFILE, useCalibrated);
+      b.putBoolean(KEY_JAVA_YUV, javaYuv);
+      b.putString(KEY_VIDEO_COLOR, videoColor);
+      b.putBoolean(KEY_FRAME_INDEX, frameIndex);
+      b.putBoolean(KEY_SEEK_OPTIMIZED, seekOptimized);
+      b.putDouble(KEY_KEYFRAME_SEC, keyframeSec);
+      b.putBoolean(KEY_THUMBNAILS, thumbnails);
+      b.putDouble(KEY_THUMB_INTERVAL_SEC, thumbIntervalSec);
+      b.putBoolean(KEY_FIXED_CANVAS, fixedCanvas);
+      b.putInteger(KEY_CANVAS_WIDTH, canvasWidth);
+      b.putInteger(KEY_CANVAS_HEIGHT, canvasHeight);
+      b.putBoolean(KEY_MOSAIC, mosaic);
+      b.putInteger(KEY_MOSAIC_COLUMNS, mosaicColumns);
+      b.putInteger(KEY_MOSAIC_WAIT_MS, mosaicWaitMs);
+      b.putInteger(KEY_CPU_BUDGET, cpuBudget);
+      b.putBoolean(KEY_ENCODER_LOW_PRIORITY, lowPriority);
+      b.putBoolean(KEY_ENCODER_PIN_CPUS, pinCpus);
+      b.putBoolean(KEY_VIRTUAL_THREADS, virtualThreads);
+      b.putBoolean(KEY_AUTO_CONTRAST, autoContrast);
+      b.putDouble(KEY_AUTO_CONTRAST_LOW_PCT, autoLowPct);
+      b.putDouble(KEY_AUTO_CONTRAST_HIGH_PCT, autoHighPct);
+      b.putBoolean(KEY_FLATFIELD_ENABLED, flatFieldEnabled);
+      b.putString(KEY_DARK_FRAME_PATH, darkPath);
+      b.putString(KEY_FLAT_FRAME_PATH, flatPath);
+      b.putBoolean(KEY_PRETRIGGER_ENABLED, pretriggerEnabled);
+      b.putDouble(KEY_PRETRIGGER_SEC, pretriggerSec);
+      b.putDouble(KEY_POSTTRIGGER_SEC, posttriggerSec);
+      b.putInteger(KEY_PRETRIGGER_BUDGET_MB, pretriggerBudget);
+      b.putBoolean(KEY_PRETRIGGER_OFFHEAP, pretriggerOffHeap);
       settings_ = b.build();
    }
 
@@ -1,5 +1,7 @@
 package org.jens.mp4stream;
 
+import java.util.prefs.Preferences;
+
 import org.micromanager.MMPlugin;
 import org.micromanager.PropertyMap;
 import org.micromanager.Studio;
@@ -24,6 +26,23 @@ public final class MP4StreamPlugin implements ProcessorPlugin, MMPlugin {
    public void setContext(Studio studio) {
       studio_ = studio;
       studioStatic_ = studio;
+      probeFfmpeg();
+   }
+
+   // Learn what the configured FFmpeg supports before the first recording
+   private void probeFfmpeg() {
+      Preferences prefs = Preferences.userNodeForPackage(MP4StreamConfigurator.class);
+      String exe = FfmpegCapabilities.executable(prefs.get(MP4StreamConfigurator.KEY_FFMPEG_PATH, ""));
+      FfmpegCapabilities.probeAsync(exe).thenAccept(caps -> {
+         Studio studio = studio_;
+         if (studio == null) {
+            return;
+         }
+         studio.logs().logMessage("[MP4Stream] FFmpeg: " + caps.describe());
+         if (caps.isUsable() && !caps.hasEncoder("libx264")) {
+            studio.logs().logMessage("[MP4Stream] WARN: this FFmpeg has no libx264 encoder; recording will fail");
+         }
+      });
    }
 
    @Override
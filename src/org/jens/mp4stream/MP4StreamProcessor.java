@@ -1,22 +1,24 @@
 package org.jens.mp4stream;
 
 import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.prefs.Preferences;
 
 import org.micromanager.LogManager;
@@ -33,6 +35,7 @@ import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.events.LiveModeEvent;
 import org.micromanager.acquisition.AcquisitionEndedEvent;
+import org.micromanager.acquisition.AcquisitionStartedEvent;
 
 import com.google.common.eventbus.Subscribe;
 
@@ -46,14 +49,15 @@ public final class MP4StreamProcessor implements Processor {
 
    public MP4StreamProcessor(Studio studio, PropertyMap settings) {
       studio_ = studio;
+      registerForEvents();
+      MP4StreamTrigger.addSessionListener(endSessionListener_);
    }
 
    // Reused per-dimension
    private int width_ = -1;
    private int height_ = -1;
    private byte[] plane8_ = null;
-   private BufferedImage grayImg_ = null;
-   private Graphics2D g2d_ = null;
+   private OverlayCompositor overlay_ = null;
 
    // FFmpeg session state
    private final Object ffLock_ = new Object();
@@ -65,6 +69,12 @@ public final class MP4StreamProcessor implements Processor {
    private double targetFps_ = MP4StreamConfigurator.DEFAULT_TARGET_FPS;
    private double timelapseFactor_ = MP4StreamConfigurator.DEFAULT_TIMELAPSE_FACTOR;
 
+   // Static-scene skipping (realtime mode only)
+   private boolean skipStatic_ = MP4StreamConfigurator.DEFAULT_SKIP_STATIC;
+   private SceneChangeDetector sceneDetector_ = null;
+   private double lastWrittenDtSec_ = 0.0;
+   private long staticSkipped_ = 0;
+
    // Overlay settings (loaded from prefs)
    private boolean timestampEnabled_ = MP4StreamConfigurator.DEFAULT_TIMESTAMP_ENABLED;
    private String timestampColor_ = MP4StreamConfigurator.DEFAULT_TIMESTAMP_COLOR;
@@ -73,11 +83,67 @@ public final class MP4StreamProcessor implements Processor {
    private int fontSize_ = MP4StreamConfigurator.DEFAULT_FONT_SIZE;
    private double scalebarLengthUm_ = MP4StreamConfigurator.DEFAULT_SCALEBAR_LENGTH_UM;
    private double pixelSizeUm_ = 0.0; // Loaded from image metadata
-
-   // CFR (Constant Frame Rate) output state
-   private long nextOutFrameIndex_ = 0;
-   private boolean haveLastFrame_ = false;
-   private byte[] lastFrame8_ = null;
+   private String overlayBackend_ = MP4StreamConfigurator.DEFAULT_OVERLAY_BACKEND;
+   private boolean ffmpegTimestamp_ = false; // drawn by FFmpeg filters this segment
+   private boolean ffmpegScalebar_ = false;
+
+   // Encoder output settings (loaded from prefs)
+   private int archiveCrf_ = MP4StreamConfigurator.DEFAULT_ARCHIVE_CRF;
+   private String archivePreset_ = MP4StreamConfigurator.DEFAULT_ARCHIVE_PRESET;
+   private boolean previewEnabled_ = MP4StreamConfigurator.DEFAULT_PREVIEW_ENABLED;
+   private int previewWidth_ = MP4StreamConfigurator.DEFAULT_PREVIEW_WIDTH;
+   private int previewCrf_ = MP4StreamConfigurator.DEFAULT_PREVIEW_CRF;
+   private String previewPreset_ = MP4StreamConfigurator.DEFAULT_PREVIEW_PRESET;
+   private boolean streamEnabled_ = MP4StreamConfigurator.DEFAULT_STREAM_ENABLED;
+   private int streamPort_ = MP4StreamConfigurator.DEFAULT_STREAM_PORT;
+   private boolean spoolEnabled_ = MP4StreamConfigurator.DEFAULT_SPOOL_ENABLED;
+   private int spoolMaxMb_ = MP4StreamConfigurator.DEFAULT_SPOOL_MAX_MB;
+   private boolean useCalibratedProfile_ = MP4StreamConfigurator.DEFAULT_USE_CALIBRATED_PROFILE;
+   private boolean javaYuv_ = MP4StreamConfigurator.DEFAULT_JAVA_YUV;
+   private String videoColor_ = MP4StreamConfigurator.DEFAULT_VIDEO_COLOR;
+   private boolean frameIndexEnabled_ = MP4StreamConfigurator.DEFAULT_FRAME_INDEX;
+   private boolean seekOptimized_ = MP4StreamConfigurator.DEFAULT_SEEK_OPTIMIZED;
+   private double keyframeSec_ = MP4StreamConfigurator.DEFAULT_KEYFRAME_SEC;
+
+   // Seek-optimized archive: keyframe table of the open segment, remuxed with faststart when closed
+   private volatile KeyframeTable keyframes_ = null;
+   private String faststartExe_ = null;
+
+   private boolean thumbnailsEnabled_ = MP4StreamConfigurator.DEFAULT_THUMBNAILS;
+   private double thumbIntervalSec_ = MP4StreamConfigurator.DEFAULT_THUMB_INTERVAL_SEC;
+   private Thumbnails thumbs_ = null; // guarded by ffLock_
+
+   // Scratch disk: segments are encoded locally and migrated to the output directory when finalized
+   private SegmentMigrator migrator_ = null;
+   private ScratchGuard scratchGuard_ = null;
+   private File segFile_ = null;
+   private long segStartNanos_ = 0L;
+   private volatile boolean scratchFull_ = false; // stopped by the guard until there is room
+   private long lastScratchCheckNanos_ = 0L;
+   private static final long SCRATCH_CHECK_PERIOD_NANOS = 2_000_000_000L; // 2s
+
+   // Per-frame sidecar of the open segment (null when off); appended under ffLock_
+   private volatile FrameIndex frameIndex_ = null;
+   private final FrameIndex.Source source_ = new FrameIndex.Source();     // frame being written
+   private final FrameIndex.Source prevSource_ = new FrameIndex.Source(); // the one gap fill repeats
+   private long sourceFrames_ = 0;
+   private CpuBudget cpuBudget_ = new CpuBudget(MP4StreamConfigurator.DEFAULT_CPU_BUDGET,
+         MP4StreamConfigurator.DEFAULT_ENCODER_LOW_PRIORITY, MP4StreamConfigurator.DEFAULT_ENCODER_PIN_CPUS);
+
+   // Embedded HLS server; outlives segments, closed in cleanup()
+   private LiveStreamServer streamServer_ = null;
+
+   // CFR (Constant Frame Rate) output state, recreated per segment
+   private CfrFramer cfr_ = null;
+
+   // Pre-trigger buffer state (frames are buffered, not encoded, until triggered)
+   private FrameRingBuffer ring_ = null;
+   private boolean ringArmed_ = false;
+   private long ringRun_ = 0L;              // RecordingState.run() the ring was armed in
+   private long triggerSeen_ = 0L;
+   private byte[] ringScratch_ = null;
+   private double dtOffsetSec_ = 0.0;       // shifts Δt so a flushed segment starts at its oldest frame
+   private double postTriggerEndSec_ = 0.0; // > 0 while recording a triggered segment
 
    // VFR (Variable Frame Rate / Realtime) frame counter
    private long vfrFrameCount_ = 0;
@@ -95,6 +161,26 @@ public final class MP4StreamProcessor implements Processor {
    private boolean scaleBarLoggedThisSegment_ = false;
 
    private static final String LOG_PREFIX = "[MP4Stream] ";
+   private static final String PREVIEW_SUFFIX = "_preview";
+   private static final String RECOVERED_SUFFIX = "_recovered";
+
+   // Orphaned spools: directories scanned this session, replayed one at a time
+   private static final Set<String> SPOOL_DIRS_SCANNED = ConcurrentHashMap.newKeySet();
+   private static final ExecutorService SPOOL_RECOVERY = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "mp4stream-spool-recovery");
+      t.setDaemon(true);
+      return t;
+   });
+
+   // Upper bound on camera rate when sizing the pre-trigger ring
+   private static final double RING_MAX_FPS = 500.0;
+
+   // With static-scene skipping, still write at least one frame per second
+   private static final double STATIC_KEEPALIVE_SEC = 1.0;
+
+   // Live HLS stream tuning
+   private static final double STREAM_PART_SEC = 1.0 / 3; // LL-HLS part (= GOP) length
+   private static final int STREAM_CRF = 23;
 
    // Watchdog tuning: timeout = max(WD_MIN_MS, WD_MULT*exposure + WD_MARGIN_MS)
    private static final double WD_MIN_MS = 1500;     // floor
@@ -104,10 +190,22 @@ public final class MP4StreamProcessor implements Processor {
    // Shared across threads
    private volatile long watchdogTimeoutNanos_ = (long) (WD_MIN_MS * 1e6);
    private volatile long lastFrameNanos_ = 0L; // updated after each encoded frame
-   private volatile Thread watchdog_ = null;
-   private volatile boolean watchdogRun_ = false;
-
-   // Event listener registration tracking
+   private final Watchdog watchdog_ = new Watchdog(() -> lastFrameNanos_, this::currentTimeoutNanos_,
+         this::onWatchdogTimeout);
+
+   // Session mode: pausing Live keeps FFmpeg and the segment open
+   private boolean sessionMode_ = MP4StreamConfigurator.DEFAULT_SESSION_MODE;
+   private double sessionGapSec_ = MP4StreamConfigurator.DEFAULT_SESSION_GAP_SEC;
+   private volatile long sessionTimeoutNanos_ = (long) (MP4StreamConfigurator.DEFAULT_SESSION_TIMEOUT_SEC * 1e9);
+   private volatile boolean resumePending_ = false;
+   private volatile long pausedAtNanos_ = 0L; // lastFrameNanos_ when paused
+   private double lastDtSec_ = 0.0;
+   private double pauseSkipSec_ = 0.0; // paused time taken out of the video timeline
+   private double videoFps_ = MP4StreamConfigurator.DEFAULT_TARGET_FPS;
+   private final Runnable endSessionListener_ = this::endSession;
+
+   // Live/acquisition state from events; registered for the processor's lifetime
+   private final RecordingState state_ = new RecordingState();
    private volatile boolean eventsRegistered_ = false;
 
    // Rate limiting (avoid heavy core calls / log spam)
@@ -122,6 +220,33 @@ public final class MP4StreamProcessor implements Processor {
    private static final long SCALING_LOG_PERIOD_NANOS = 2_000_000_000L; // 2s
    private static final double SCALING_CHANGE_THRESHOLD_PCT = 5.0; // Only log if range changes by >5%
 
+   // Percentile contrast for frames without a display window (kept across segments
+   // while the percentiles stay the same; set by readConversionSettings())
+   private boolean autoContrastEnabled_ = false; // autoContrast_ is non-null when set
+   private AutoContrast autoContrast_ = null;
+
+   // Dark/flat-field correction; settings read by readConversionSettings(), the
+   // references loaded for the first frame and again when the frame size changes
+   private boolean flatFieldEnabled_ = MP4StreamConfigurator.DEFAULT_FLATFIELD_ENABLED;
+   private String darkFramePath_ = "";
+   private String flatFramePath_ = "";
+   private FlatField flatField_ = null;
+   private int flatFieldWidth_ = -1; // size flatField_ was loaded for, -1 = not yet
+   private int flatFieldHeight_ = -1;
+
+   // Fixed canvas: frames of other sizes are scaled into the open segment's size
+   private boolean fixedCanvas_ = MP4StreamConfigurator.DEFAULT_FIXED_CANVAS;
+   private final List<CanvasMap> canvasMaps_ = new ArrayList<>(); // most recently used first
+   private static final int MAX_CANVAS_MAPS = 4;
+   private double canvasScale_ = 1.0; // of the frame in plane8_
+   private FlatField canvasFlatField_ = null;
+   private CanvasMap canvasFlatFieldMap_ = null; // map canvasFlatField_ was resampled for
+
+   // Multi-camera mosaic: one tile per camera, rebuilt for each Live run or acquisition
+   private Mosaic mosaic_ = null;
+   private String[] mosaicCameras_ = new String[0];
+   private long mosaicRun_ = 0L;
+
    private LogManager logs() {
       return (studio_ == null) ? null : studio_.logs();
    }
@@ -193,6 +318,44 @@ public final class MP4StreamProcessor implements Processor {
       }
    }
 
+   /**
+    * One encoded output of an FFmpeg session. All outputs share the single
+    * piped input; FFmpeg splits the decoded stream and encodes each branch.
+    */
+   private static final class OutputSpec {
+      static final String FORMAT_MP4 = "mp4";
+      static final String FORMAT_HLS = "hls";
+
+      final String label;
+      final String path;
+      final int scaleWidth; // 0 = native resolution
+      final String codec;
+      final int crf;
+      final String preset;
+      final String format;
+      final int gop; // keyframe interval in frames, 0 = encoder default
+
+      OutputSpec(String label, String path, int scaleWidth, int crf, String preset) {
+         this(label, path, scaleWidth, EncoderProfile.X264, crf, preset, FORMAT_MP4, 0);
+      }
+
+      OutputSpec(String label, String path, int scaleWidth, String codec, int crf, String preset) {
+         this(label, path, scaleWidth, codec, crf, preset, FORMAT_MP4, 0);
+      }
+
+      OutputSpec(String label, String path, int scaleWidth, String codec, int crf, String preset,
+            String format, int gop) {
+         this.label = label;
+         this.path = path;
+         this.scaleWidth = scaleWidth;
+         this.codec = codec;
+         this.crf = crf;
+         this.preset = preset;
+         this.format = format;
+         this.gop = gop;
+      }
+   }
+
    private void logScalingChangeIfNeeded(DisplayScaling newScaling) {
       if (newScaling == null) {
          return;
@@ -248,19 +411,14 @@ public final class MP4StreamProcessor implements Processor {
    }
 
    private DisplayScaling getLiveDisplayScaling(Image img) {
-      // Fallback: full dynamic range
-      long fallbackMin = 0;
-      long fallbackMax = (img.getBytesPerPixel() == 2) ? 65535 : 255;
-      double fallbackGamma = 1.0;
-
       if (studio_ == null) {
-         return new DisplayScaling(fallbackMin, fallbackMax, fallbackGamma);
+         return fallbackScaling(img);
       }
 
       try {
          DisplayWindow win = studio_.live().getDisplay();
          if (win == null) {
-            return new DisplayScaling(fallbackMin, fallbackMax, fallbackGamma);
+            return fallbackScaling(img);
          }
 
          DisplaySettings ds = win.getDisplaySettings();
@@ -281,13 +439,206 @@ public final class MP4StreamProcessor implements Processor {
          double gamma = c0.getScalingGamma();
 
          if (max <= min || !(gamma > 0.0)) {
-            return new DisplayScaling(fallbackMin, fallbackMax, fallbackGamma);
+            return fallbackScaling(img);
          }
 
          return new DisplayScaling(min, max, gamma);
 
       } catch (Exception e) {
-         return new DisplayScaling(fallbackMin, fallbackMax, fallbackGamma);
+         return fallbackScaling(img);
+      }
+   }
+
+   // No display contrast (headless MDA, scripts): percentile auto-contrast, or the full dynamic range
+   private DisplayScaling fallbackScaling(Image img) {
+      final int bpp = img.getBytesPerPixel();
+      if (autoContrastEnabled_) {
+         // getRawPixels() is not copied; the sample only reads it
+         autoContrast_.update(img.getRawPixels(), bpp);
+         if (autoContrast_.valid()) {
+            return new DisplayScaling(autoContrast_.min(), autoContrast_.max(), 1.0);
+         }
+      }
+      return new DisplayScaling(0, (bpp == 2) ? 65535 : 255, 1.0);
+   }
+
+   // Dark/flat-field correction for w x h frames, or null if off or unusable
+   private FlatField flatField(int w, int h) {
+      if (!flatFieldEnabled_) {
+         return null;
+      }
+      if (w == flatFieldWidth_ && h == flatFieldHeight_) {
+         return flatField_;
+      }
+      flatFieldWidth_ = w;
+      flatFieldHeight_ = h;
+      flatField_ = null;
+      try {
+         flatField_ = FlatField.load(darkFramePath_, flatFramePath_, w, h);
+         if (flatField_ != null) {
+            logInfo_("Flat-field correction: " + flatField_);
+         }
+      } catch (IOException | RuntimeException e) {
+         logWarn_("Flat-field correction off: " + e.getMessage());
+      }
+      return flatField_;
+   }
+
+   // flatField() of the map's source size, resampled onto its canvas
+   private FlatField canvasFlatField(CanvasMap map) {
+      if (!flatFieldEnabled_) {
+         return null;
+      }
+      if (map == canvasFlatFieldMap_) {
+         return canvasFlatField_;
+      }
+      canvasFlatFieldMap_ = map;
+      final FlatField ff = flatField(map.sourceWidth, map.sourceHeight);
+      canvasFlatField_ = (ff == null) ? null : ff.onCanvas(map);
+      return canvasFlatField_;
+   }
+
+   /**
+    * Reads the settings the per-frame conversion uses, so that frames only
+    * touch fields. Called when a segment opens and when the pre-trigger
+    * buffer is armed; the flat-field references are reloaded on the next frame.
+    */
+   private void readConversionSettings() {
+      autoContrastEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_AUTO_CONTRAST,
+            MP4StreamConfigurator.DEFAULT_AUTO_CONTRAST);
+      if (autoContrastEnabled_) {
+         final double lowPct = PREFS.getDouble(MP4StreamConfigurator.KEY_AUTO_CONTRAST_LOW_PCT,
+               MP4StreamConfigurator.DEFAULT_AUTO_CONTRAST_LOW_PCT);
+         final double highPct = PREFS.getDouble(MP4StreamConfigurator.KEY_AUTO_CONTRAST_HIGH_PCT,
+               MP4StreamConfigurator.DEFAULT_AUTO_CONTRAST_HIGH_PCT);
+         if (autoContrast_ == null || !autoContrast_.hasPercentiles(lowPct, highPct)) {
+            autoContrast_ = new AutoContrast(lowPct, highPct);
+         }
+      }
+      flatFieldEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_FLATFIELD_ENABLED,
+            MP4StreamConfigurator.DEFAULT_FLATFIELD_ENABLED);
+      darkFramePath_ = PREFS.get(MP4StreamConfigurator.KEY_DARK_FRAME_PATH, "");
+      flatFramePath_ = PREFS.get(MP4StreamConfigurator.KEY_FLAT_FRAME_PATH, "");
+      flatFieldWidth_ = -1;
+      flatFieldHeight_ = -1;
+      canvasFlatFieldMap_ = null;
+   }
+
+   // Index maps from sw x sh onto the w x h canvas, kept for the last few source sizes
+   private CanvasMap canvasMap(int sw, int sh, int w, int h) {
+      for (int i = 0; i < canvasMaps_.size(); i++) {
+         CanvasMap m = canvasMaps_.get(i);
+         if (m.maps(sw, sh, w, h)) {
+            if (i > 0) {
+               canvasMaps_.add(0, canvasMaps_.remove(i));
+            }
+            return m;
+         }
+      }
+      CanvasMap m = new CanvasMap(sw, sh, w, h);
+      canvasMaps_.add(0, m);
+      if (canvasMaps_.size() > MAX_CANVAS_MAPS) {
+         canvasMaps_.remove(MAX_CANVAS_MAPS);
+      }
+      logInfo_("Fixed canvas: " + m.describe());
+      return m;
+   }
+
+   /**
+    * Converts img (at dtSec) into plane8_ (w x h), or with a mosaic into its
+    * camera's tile. Returns the Δt of the frame now in plane8_, or NaN while
+    * the mosaic waits for other cameras.
+    */
+   private double convertFrame(Image img, DisplayScaling sc, int w, int h, double dtSec) {
+      final Mosaic m = mosaic_;
+      if (m == null) {
+         convertInto(img, sc, plane8_, w, h);
+         return dtSec;
+      }
+      convertInto(img, sc, m.incoming(), m.tileWidth, m.tileHeight);
+      return m.offer(mosaicTile(img), dtSec, plane8_) ? m.dtSec() : Double.NaN;
+   }
+
+   // Converts img into dst (w x h); a frame of another size is placed on the canvas first
+   private void convertInto(Image img, DisplayScaling sc, byte[] dst, int w, int h) {
+      final int bpp = img.getBytesPerPixel();
+      if (img.getWidth() == w && img.getHeight() == h) {
+         canvasScale_ = 1.0;
+         GrayConversion.toGray8(img.getRawPixelsCopy(), bpp, dst, sc.min, sc.max, sc.gamma, flatField(w, h));
+         return;
+      }
+      final CanvasMap map = canvasMap(img.getWidth(), img.getHeight(), w, h);
+      canvasScale_ = map.scale();
+      // getRawPixels() is not copied; the gather only reads it
+      GrayConversion.toGray8(map.gather(img.getRawPixels(), bpp), bpp, dst, sc.min, sc.max, sc.gamma,
+            canvasFlatField(map));
+   }
+
+   // Mosaic for this run's cameras, with tiles of the first frame's size (or the fixed canvas)
+   private Mosaic createMosaic(int tileWidth, int tileHeight) {
+      String[] names = new String[0];
+      try {
+         if (studio_ != null) {
+            final int n = (int) studio_.core().getNumberOfCameraChannels();
+            names = new String[Math.max(1, n)];
+            for (int i = 0; i < n; i++) {
+               names[i] = studio_.core().getCameraChannelName(i);
+            }
+         }
+      } catch (Exception e) {
+         logWarn_("Could not list camera channels; using one tile per channel index: " + e.getMessage());
+      }
+      mosaicCameras_ = names;
+      final Mosaic m = new Mosaic(Math.max(1, names.length),
+            PREFS.getInt(MP4StreamConfigurator.KEY_MOSAIC_COLUMNS, MP4StreamConfigurator.DEFAULT_MOSAIC_COLUMNS),
+            tileWidth, tileHeight,
+            PREFS.getInt(MP4StreamConfigurator.KEY_MOSAIC_WAIT_MS, MP4StreamConfigurator.DEFAULT_MOSAIC_WAIT_MS) / 1000.0);
+      logInfo_("Mosaic: " + m.describe());
+      return m;
+   }
+
+   // Tile of img's camera: by name (Multi Camera adapter), else by channel index
+   private int mosaicTile(Image img) {
+      final Metadata md = getMetadata(img);
+      final String camera = (md == null) ? null : md.getCamera();
+      if (camera != null) {
+         for (int i = 0; i < mosaicCameras_.length; i++) {
+            if (camera.equals(mosaicCameras_[i])) {
+               return i;
+            }
+         }
+      }
+      int ch = 0;
+      try {
+         ch = img.getCoords().getChannel();
+      } catch (Exception ignored) {}
+      return Math.max(0, ch) % mosaic_.cameras;
+   }
+
+   // Color for yuv420p frames: a fixed one, the Live display's channel color, or null for gray
+   private Color videoColor(Image img) {
+      if (!MP4StreamConfigurator.VIDEO_COLOR_DISPLAY.equals(videoColor_)) {
+         return YuvFrames.named(videoColor_);
+      }
+      try {
+         DisplayWindow win = (studio_ == null) ? null : studio_.live().getDisplay();
+         if (win == null) {
+            return null;
+         }
+         DisplaySettings ds = win.getDisplaySettings();
+         if (ds.getColorMode() == DisplaySettings.ColorMode.GRAYSCALE) {
+            return null;
+         }
+         int ch = 0;
+         try {
+            ch = img.getCoords().getChannel();
+         } catch (Exception ignored) {}
+         if (ch < 0 || ch >= ds.getNumberOfChannels()) {
+            ch = 0;
+         }
+         return ds.getChannelSettings(ch).getColor();
+      } catch (Exception e) {
+         return null;
       }
    }
 
@@ -310,30 +661,110 @@ public final class MP4StreamProcessor implements Processor {
 
    @Override
    public void cleanup(ProcessorContext context) {
+      unregisterForEvents();
+      MP4StreamTrigger.removeSessionListener(endSessionListener_);
       // Stop watchdog first, then close ffmpeg.
       stopWatchdog();
       stopFfmpeg();
       disposeOverlay();
+      stopStreamServer();
+      releasePreTrigger();
    }
 
    // --- Event handlers for immediate finalization ---
 
    @Subscribe
    public void onLiveModeEvent(LiveModeEvent event) {
-      if (!event.isOn() && ff_ != null) {
+      final RecordingState.Phase before = state_.phase();
+      if (state_.setLive(event.isOn())) {
          logInfo_("Live mode stopped - finalizing MP4 immediately.");
          stopFfmpeg();
+      } else {
+         sessionPhaseChanged(before);
       }
    }
 
+   @Subscribe
+   public void onAcquisitionStarted(AcquisitionStartedEvent event) {
+      final RecordingState.Phase before = state_.phase();
+      state_.setAcquisition(true);
+      sessionPhaseChanged(before);
+   }
+
+   @Subscribe
+   public void onTriggerEvent(MP4StreamTrigger.Event event) {
+      MP4StreamTrigger.fire();
+   }
+
    @Subscribe
    public void onAcquisitionEnded(AcquisitionEndedEvent event) {
-      if (ff_ != null) {
+      final RecordingState.Phase before = state_.phase();
+      if (state_.setAcquisition(false)) {
          logInfo_("Acquisition ended - finalizing MP4 immediately.");
          stopFfmpeg();
+      } else {
+         sessionPhaseChanged(before);
+      }
+   }
+
+   @Subscribe
+   public void onEndSessionEvent(MP4StreamTrigger.EndSessionEvent event) {
+      endSession();
+   }
+
+   // Session mode: a pause switches the watchdog to the session timeout; a
+   // resume is completed by the next frame (resumeSession)
+   private void sessionPhaseChanged(RecordingState.Phase before) {
+      final RecordingState.Phase now = state_.phase();
+      if (before == RecordingState.Phase.RECORDING && now == RecordingState.Phase.PAUSED) {
+         pausedAtNanos_ = lastFrameNanos_;
+         logInfo_(String.format(java.util.Locale.US, "Sources stopped - session keeps the segment open "
+               + "(finalized after %.0f s or MP4StreamTrigger.endSession()).", sessionTimeoutNanos_ / 1e9));
+         watchdog_.rearm();
+      } else if (before == RecordingState.Phase.PAUSED && now == RecordingState.Phase.RECORDING) {
+         resumePending_ = true;
+         lastFrameNanos_ = System.nanoTime(); // the camera needs a moment to deliver
+         watchdog_.rearm();
+      }
+   }
+
+   private void endSession() {
+      if (ff_ != null && sessionMode_) {
+         logInfo_("Session ended - finalizing MP4.");
+         stopFfmpeg();
       }
    }
 
+   /**
+    * First frame after a paused session resumes. Δt (overlay, sidecars)
+    * goes on by the real length of the pause, the video only by the gap
+    * marker, for which the last frame before the pause is held.
+    */
+   private void resumeSession(Image img) throws IOException {
+      resumePending_ = false;
+      final double pauseSec = Math.max(0.0, (System.nanoTime() - pausedAtNanos_) / 1e9);
+      initTimeZero(img); // Live restarts the elapsed-time clock
+      dtOffsetSec_ = lastDtSec_ + pauseSec;
+      if (MP4StreamConfigurator.MODE_REALTIME.equals(recordingMode_)) {
+         // One video frame per source frame: write the hold explicitly
+         final int n = (int) Math.round(sessionGapSec_ * videoFps_);
+         synchronized (ffLock_) {
+            if (ff_ != null && vfrFrameCount_ > 0 && plane8_ != null) {
+               for (int i = 0; i < n; i++) {
+                  ff_.writeFrame(plane8_, lastDtSec_, i > 0);
+                  frameSent(source_, vfrFrameCount_++, true);
+               }
+            }
+         }
+      } else {
+         // The framer fills the remaining jump with the held frame
+         final double scale = MP4StreamConfigurator.MODE_TIMELAPSE.equals(recordingMode_) ? timelapseFactor_ : 1.0;
+         pauseSkipSec_ += Math.max(0.0, pauseSec - sessionGapSec_ * scale);
+      }
+      logInfo_(String.format(java.util.Locale.US, "Resumed after %.1f s pause - same segment, %.1f s gap.",
+            pauseSec, sessionGapSec_));
+   }
+
    private void registerForEvents() {
       if (studio_ != null && !eventsRegistered_) {
          try {
@@ -343,6 +774,17 @@ public final class MP4StreamProcessor implements Processor {
          } catch (Exception e) {
             logWarn_("Failed to register for events: " + e.getMessage());
          }
+         // The pipeline may be rebuilt while Live or an acquisition already runs
+         try {
+            if (studio_.live().isLiveModeOn()) {
+               state_.setLive(true);
+            }
+         } catch (Exception ignored) {}
+         try {
+            if (studio_.acquisitions().isAcquisitionRunning()) {
+               state_.setAcquisition(true);
+            }
+         } catch (Exception ignored) {}
       }
    }
 
@@ -369,20 +811,64 @@ public final class MP4StreamProcessor implements Processor {
          return;
       }
 
-      // Only record when Live is running or an acquisition (MDA) is running.
-      if (!shouldRecordNow()) {
-         // Stop recording if acquisition/live stopped
-         if (ff_ != null) {
-            stopFfmpeg();
-         }
+      // Only record when Live is running or an acquisition (MDA) is running;
+      // the events finalize the segment when both have stopped.
+      if (!state_.acceptsFrames()) {
+         return;
+      }
+
+      // Stopped by the scratch free-space guard: nothing is converted until migration makes room
+      if (scratchFull_ && !scratchHasRoomRateLimited_()) {
          return;
       }
 
-      final int w = img.getWidth();
-      final int h = img.getHeight();
-      if (w <= 0 || h <= 0) {
+      final int sw = img.getWidth();
+      final int sh = img.getHeight();
+      if (sw <= 0 || sh <= 0) {
          return;
       }
+      // Fixed canvas: an open segment keeps its size; a new one takes the configured size
+      int w = sw;
+      int h = sh;
+      if (ff_ != null && fixedCanvas_ && mosaic_ == null) {
+         w = width_;
+         h = height_;
+      } else if (PREFS.getBoolean(MP4StreamConfigurator.KEY_FIXED_CANVAS, MP4StreamConfigurator.DEFAULT_FIXED_CANVAS)) {
+         final int cw = PREFS.getInt(MP4StreamConfigurator.KEY_CANVAS_WIDTH, MP4StreamConfigurator.DEFAULT_CANVAS_WIDTH);
+         final int ch = PREFS.getInt(MP4StreamConfigurator.KEY_CANVAS_HEIGHT, MP4StreamConfigurator.DEFAULT_CANVAS_HEIGHT);
+         if (cw > 0 && ch > 0) {
+            w = cw;
+            h = ch;
+         }
+      }
+
+      // Mosaic: that size is a tile; the segment is the whole canvas. The
+      // layout is kept while a segment is open or the run goes on.
+      if (PREFS.getBoolean(MP4StreamConfigurator.KEY_MOSAIC, MP4StreamConfigurator.DEFAULT_MOSAIC)) {
+         if (mosaic_ == null || (ff_ == null && mosaicRun_ != state_.run())) {
+            mosaic_ = createMosaic(w, h);
+            mosaicRun_ = state_.run();
+         }
+         w = mosaic_.width;
+         h = mosaic_.height;
+      } else {
+         mosaic_ = null;
+      }
+
+      // Pre-trigger mode: buffer instead of encoding until triggered
+      final boolean preTrigger = PREFS.getBoolean(MP4StreamConfigurator.KEY_PRETRIGGER_ENABLED,
+            MP4StreamConfigurator.DEFAULT_PRETRIGGER_ENABLED);
+      if (preTrigger) {
+         if (ff_ != null && postTriggerEndSec_ > 0 && (w != width_ || h != height_)) {
+            stopFfmpeg(); // resolution change ends the triggered segment
+         }
+         if (ff_ == null) {
+            bufferOrTrigger(outPath, img, w, h);
+            return;
+         }
+      } else if (ring_ != null) {
+         releasePreTrigger();
+      }
 
       // Start if needed, restart on dimension change
       if (ff_ == null || w != width_ || h != height_) {
@@ -393,40 +879,132 @@ public final class MP4StreamProcessor implements Processor {
       } else {
          // Update watchdog timeout occasionally while actively recording (exposure can change mid-live).
          updateWatchdogFromExposureRateLimited_();
+         if (!checkScratchSpaceRateLimited_(outPath, w, h, img)) {
+            return;
+         }
+         if (resumePending_) {
+            resumeSession(img); // before plane8_ is overwritten: it holds the frame to repeat
+         }
       }
 
       ensureBuffersForDimensions(w, h);
 
-      // Convert incoming pixels to gray8 using live display contrast settings
+      // Convert incoming pixels to gray8 using live display contrast settings.
+      // Δt overlay: prefer elapsed time, else received time, else wall clock.
       DisplayScaling sc = getLiveDisplayScaling(img);
       logScalingChangeIfNeeded(sc);
-      convertToGray8WithScaling(img, plane8_, sc.min, sc.max, sc.gamma);
-
-      // Δt overlay: prefer elapsed time, else received time, else wall clock.
-      double dtSec = computeDeltaTSeconds(img);
+      final double dtSec = convertFrame(img, sc, w, h, computeDeltaTSeconds(img) + dtOffsetSec_);
+      if (Double.isNaN(dtSec)) {
+         return; // mosaic waiting for the other cameras
+      }
+      lastDtSec_ = dtSec;
+      noteSource(img, sc, dtSec);
 
       // Write frame using configured recording mode
       writeFrameWithMode(plane8_, w, h, dtSec);
+
+      if (postTriggerEndSec_ > 0 && dtSec >= postTriggerEndSec_) {
+         logInfo_("Post-trigger time elapsed - finalizing triggered segment.");
+         stopFfmpeg(); // next frame re-arms the buffer
+      }
    }
 
-   private boolean shouldRecordNow() {
-      if (studio_ == null) {
-         return false;
+   /**
+    * Pre-trigger mode while no segment is open: copy the converted frame
+    * into the ring, and on a pending trigger flush the ring into a new
+    * segment that then keeps recording for the post-trigger time.
+    */
+   private void bufferOrTrigger(String outPath, Image img, int w, int h) throws IOException {
+      ensureBuffersForDimensions(w, h);
+      if (!ringArmed_ || ringRun_ != state_.run() || ring_ == null || ring_.frameBytes() != w * h) {
+         armPreTrigger(img, w, h);
       }
 
-      try {
-         if (studio_.live().isLiveModeOn()) {
-            return true;
-         }
-      } catch (Exception ignored) {}
+      DisplayScaling sc = getLiveDisplayScaling(img);
+      logScalingChangeIfNeeded(sc);
+      final double dtNow = convertFrame(img, sc, w, h, computeDeltaTSeconds(img));
+      if (Double.isNaN(dtNow)) {
+         return; // mosaic waiting for the other cameras
+      }
+      ring_.put(plane8_, dtNow);
 
-      try {
-         if (studio_.acquisitions().isAcquisitionRunning()) {
-            return true;
+      final long gen = MP4StreamTrigger.generation();
+      if (gen == triggerSeen_) {
+         return;
+      }
+      triggerSeen_ = gen;
+
+      final double preSec = PREFS.getDouble(MP4StreamConfigurator.KEY_PRETRIGGER_SEC,
+            MP4StreamConfigurator.DEFAULT_PRETRIGGER_SEC);
+      final double postSec = PREFS.getDouble(MP4StreamConfigurator.KEY_POSTTRIGGER_SEC,
+            MP4StreamConfigurator.DEFAULT_POSTTRIGGER_SEC);
+      ring_.trimOlderThan(dtNow - preSec);
+      final double d0 = ring_.timeAt(0);
+      final int n = ring_.size();
+
+      segmentIndex_ = 0; // makeSegmentPath deduplicates
+      startFfmpegForDimensions(outPath, w, h, img);
+
+      // startFfmpegForDimensions re-latched t0 at this frame; shift so the
+      // oldest buffered frame is Δt = 0 and live frames continue from there.
+      dtOffsetSec_ = dtNow - d0;
+      postTriggerEndSec_ = dtOffsetSec_ + Math.max(postSec, 1e-3);
+
+      logInfo_(String.format(java.util.Locale.US,
+            "Trigger - flushing %d buffered frames (%.2f s), then recording %.1f s.",
+            n, dtOffsetSec_, postSec));
+
+      if (ringScratch_ == null || ringScratch_.length != w * h) {
+         ringScratch_ = new byte[w * h];
+      }
+      for (int i = 0; i < n; i++) {
+         ring_.copyTo(i, ringScratch_);
+         noteSource(null, null, ring_.timeAt(i) - d0);
+         writeFrameWithMode(ringScratch_, w, h, ring_.timeAt(i) - d0);
+      }
+      ring_.clear();
+      ringArmed_ = false;
+   }
+
+   private void armPreTrigger(Image img, int w, int h) {
+      final int frameBytes = w * h;
+      final double preSec = PREFS.getDouble(MP4StreamConfigurator.KEY_PRETRIGGER_SEC,
+            MP4StreamConfigurator.DEFAULT_PRETRIGGER_SEC);
+      final long budget = PREFS.getInt(MP4StreamConfigurator.KEY_PRETRIGGER_BUDGET_MB,
+            MP4StreamConfigurator.DEFAULT_PRETRIGGER_BUDGET_MB) * (1L << 20);
+      final boolean offHeap = PREFS.getBoolean(MP4StreamConfigurator.KEY_PRETRIGGER_OFFHEAP,
+            MP4StreamConfigurator.DEFAULT_PRETRIGGER_OFFHEAP);
+      final int capacity = FrameRingBuffer.capacityFor(budget, frameBytes, preSec, RING_MAX_FPS);
+      readConversionSettings();
+
+      if (ring_ == null || ring_.frameBytes() != frameBytes || ring_.capacity() != capacity
+            || ring_.isDirect() != offHeap) {
+         ring_ = null; // let the old slots go before allocating new ones
+         try {
+            ring_ = new FrameRingBuffer(capacity, frameBytes, offHeap);
+         } catch (OutOfMemoryError e) {
+            logWarn_("Pre-trigger buffer allocation failed (" + capacity + " x " + frameBytes
+                  + " bytes); lower the memory limit.");
+            throw e;
          }
-      } catch (Exception ignored) {}
+         logInfo_(String.format(java.util.Locale.US,
+               "Pre-trigger buffer armed: %d frames of %dx%d (%.0f MB, %s), %.1f s requested.",
+               capacity, w, h, capacity * (double) frameBytes / (1 << 20),
+               offHeap ? "off-heap" : "heap", preSec));
+      } else {
+         ring_.clear();
+      }
 
-      return false;
+      initTimeZero(img);
+      triggerSeen_ = MP4StreamTrigger.generation(); // ignore triggers fired while not armed
+      ringRun_ = state_.run(); // frames of an earlier Live run are never flushed
+      ringArmed_ = true;
+   }
+
+   private void releasePreTrigger() {
+      ringArmed_ = false;
+      ring_ = null;
+      ringScratch_ = null;
    }
 
    private double computeDeltaTSeconds(Image img) {
@@ -465,7 +1043,22 @@ public final class MP4StreamProcessor implements Processor {
    private void startFfmpegForDimensions(String baseOutPath, int w, int h, Image firstImg) throws IOException {
       // Close any existing stream
       stopFfmpeg();
+      if (!state_.beginSegment()) {
+         return; // Live/acquisition stopped after this frame was accepted
+      }
+      // A stop event waits for FFmpeg to start and then closes it
+      synchronized (ffLock_) {
+         try {
+            openSegment(baseOutPath, w, h, firstImg);
+         } finally {
+            if (ff_ == null) {
+               state_.segmentClosed(); // failed to start
+            }
+         }
+      }
+   }
 
+   private void openSegment(String baseOutPath, int w, int h, Image firstImg) throws IOException {
       width_ = w;
       height_ = h;
       segmentIndex_++;
@@ -478,6 +1071,11 @@ public final class MP4StreamProcessor implements Processor {
             MP4StreamConfigurator.DEFAULT_TARGET_FPS);
       timelapseFactor_ = PREFS.getDouble(MP4StreamConfigurator.KEY_TIMELAPSE_FACTOR, 
             MP4StreamConfigurator.DEFAULT_TIMELAPSE_FACTOR);
+      skipStatic_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_SKIP_STATIC,
+            MP4StreamConfigurator.DEFAULT_SKIP_STATIC);
+      int staticTolerance = PREFS.getInt(MP4StreamConfigurator.KEY_STATIC_TOLERANCE,
+            MP4StreamConfigurator.DEFAULT_STATIC_TOLERANCE);
+      sceneDetector_ = new SceneChangeDetector(staticTolerance);
 
       // Load overlay settings directly from PREFS
       timestampEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_TIMESTAMP_ENABLED,
@@ -492,9 +1090,65 @@ public final class MP4StreamProcessor implements Processor {
             MP4StreamConfigurator.DEFAULT_FONT_SIZE);
       scalebarLengthUm_ = PREFS.getDouble(MP4StreamConfigurator.KEY_SCALEBAR_LENGTH_UM,
             MP4StreamConfigurator.DEFAULT_SCALEBAR_LENGTH_UM);
+      overlayBackend_ = PREFS.get(MP4StreamConfigurator.KEY_OVERLAY_BACKEND,
+            MP4StreamConfigurator.DEFAULT_OVERLAY_BACKEND);
+
+      // Load encoder output settings directly from PREFS
+      archiveCrf_ = PREFS.getInt(MP4StreamConfigurator.KEY_ARCHIVE_CRF,
+            MP4StreamConfigurator.DEFAULT_ARCHIVE_CRF);
+      archivePreset_ = PREFS.get(MP4StreamConfigurator.KEY_ARCHIVE_PRESET,
+            MP4StreamConfigurator.DEFAULT_ARCHIVE_PRESET);
+      previewEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_PREVIEW_ENABLED,
+            MP4StreamConfigurator.DEFAULT_PREVIEW_ENABLED);
+      previewWidth_ = PREFS.getInt(MP4StreamConfigurator.KEY_PREVIEW_WIDTH,
+            MP4StreamConfigurator.DEFAULT_PREVIEW_WIDTH);
+      previewCrf_ = PREFS.getInt(MP4StreamConfigurator.KEY_PREVIEW_CRF,
+            MP4StreamConfigurator.DEFAULT_PREVIEW_CRF);
+      previewPreset_ = PREFS.get(MP4StreamConfigurator.KEY_PREVIEW_PRESET,
+            MP4StreamConfigurator.DEFAULT_PREVIEW_PRESET);
+      streamEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_STREAM_ENABLED,
+            MP4StreamConfigurator.DEFAULT_STREAM_ENABLED);
+      streamPort_ = PREFS.getInt(MP4StreamConfigurator.KEY_STREAM_PORT,
+            MP4StreamConfigurator.DEFAULT_STREAM_PORT);
+      spoolEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_SPOOL_ENABLED,
+            MP4StreamConfigurator.DEFAULT_SPOOL_ENABLED);
+      spoolMaxMb_ = PREFS.getInt(MP4StreamConfigurator.KEY_SPOOL_MAX_MB,
+            MP4StreamConfigurator.DEFAULT_SPOOL_MAX_MB);
+      useCalibratedProfile_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_USE_CALIBRATED_PROFILE,
+            MP4StreamConfigurator.DEFAULT_USE_CALIBRATED_PROFILE);
+      javaYuv_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_JAVA_YUV,
+            MP4StreamConfigurator.DEFAULT_JAVA_YUV);
+      videoColor_ = PREFS.get(MP4StreamConfigurator.KEY_VIDEO_COLOR,
+            MP4StreamConfigurator.DEFAULT_VIDEO_COLOR);
+      frameIndexEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_FRAME_INDEX,
+            MP4StreamConfigurator.DEFAULT_FRAME_INDEX);
+      seekOptimized_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_SEEK_OPTIMIZED,
+            MP4StreamConfigurator.DEFAULT_SEEK_OPTIMIZED);
+      keyframeSec_ = PREFS.getDouble(MP4StreamConfigurator.KEY_KEYFRAME_SEC,
+            MP4StreamConfigurator.DEFAULT_KEYFRAME_SEC);
+      thumbnailsEnabled_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_THUMBNAILS,
+            MP4StreamConfigurator.DEFAULT_THUMBNAILS);
+      thumbIntervalSec_ = PREFS.getDouble(MP4StreamConfigurator.KEY_THUMB_INTERVAL_SEC,
+            MP4StreamConfigurator.DEFAULT_THUMB_INTERVAL_SEC);
+      fixedCanvas_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_FIXED_CANVAS,
+            MP4StreamConfigurator.DEFAULT_FIXED_CANVAS);
+      sessionMode_ = PREFS.getBoolean(MP4StreamConfigurator.KEY_SESSION_MODE,
+            MP4StreamConfigurator.DEFAULT_SESSION_MODE);
+      sessionGapSec_ = PREFS.getDouble(MP4StreamConfigurator.KEY_SESSION_GAP_SEC,
+            MP4StreamConfigurator.DEFAULT_SESSION_GAP_SEC);
+      sessionTimeoutNanos_ = (long) (PREFS.getDouble(MP4StreamConfigurator.KEY_SESSION_TIMEOUT_SEC,
+            MP4StreamConfigurator.DEFAULT_SESSION_TIMEOUT_SEC) * 1e9);
+      state_.setSession(sessionMode_);
+      cpuBudget_ = CpuBudget.fromPreferences(PREFS);
+      ConversionPool.setThreads(cpuBudget_.conversionThreads());
+      IoThreads.setVirtual(PREFS.getBoolean(MP4StreamConfigurator.KEY_VIRTUAL_THREADS,
+            MP4StreamConfigurator.DEFAULT_VIRTUAL_THREADS));
 
       // Try to get pixel size from core
       pixelSizeUm_ = getPixelSizeUm();
+      if (fixedCanvas_ && firstImg != null && (firstImg.getWidth() != w || firstImg.getHeight() != h)) {
+         pixelSizeUm_ /= CanvasMap.fitScale(firstImg.getWidth(), firstImg.getHeight(), w, h);
+      }
 
       // Log overlay settings at debug level
       logDebug_(String.format("Overlay settings: timestamp=%s (color=%s, bg=%s, font=%dpx), scalebar=%s (length=%.0fµm, pixelSize=%.4f µm)",
@@ -505,8 +1159,25 @@ public final class MP4StreamProcessor implements Processor {
          logWarn_("Scale bar enabled but pixel size not configured in Micro-Manager. Scale bar will not be drawn.");
       }
 
+      // Secondary outputs share the segment name with a suffix
+      final List<String> suffixes = new ArrayList<>();
+      if (previewEnabled_) {
+         suffixes.add(PREVIEW_SUFFIX);
+      }
+
+      // Scratch disk: encode locally, migrate to the output directory afterwards
+      File scratchDir = null;
+      if (PREFS.getBoolean(MP4StreamConfigurator.KEY_SCRATCH_ENABLED, MP4StreamConfigurator.DEFAULT_SCRATCH_ENABLED)) {
+         final String scratchPath = PREFS.get(MP4StreamConfigurator.KEY_SCRATCH_DIR, "").trim();
+         if (!scratchPath.isEmpty() && new File(scratchPath).isDirectory()) {
+            scratchDir = new File(scratchPath).getAbsoluteFile();
+         } else {
+            logWarn_("Scratch directory \"" + scratchPath + "\" does not exist; writing to the output directory.");
+         }
+      }
+
       // MP4 cannot change resolution mid-stream. Segment output to new file.
-      final String segPath = makeSegmentPath(baseOutPath, w, h, segmentIndex_);
+      final String segPath = makeSegmentPath(baseOutPath, w, h, segmentIndex_, suffixes, scratchDir);
 
       // Validate output directory exists
       File segFile = new File(segPath);
@@ -514,9 +1185,32 @@ public final class MP4StreamProcessor implements Processor {
       if (parentDir != null && !parentDir.isDirectory()) {
          throw new IOException("Output directory does not exist: " + parentDir.getAbsolutePath());
       }
+      if (scratchDir != null) {
+         final File destDir = new File(baseOutPath).getAbsoluteFile().getParentFile();
+         if (destDir == null || !destDir.isDirectory()) {
+            throw new IOException("Output directory does not exist: " + destDir);
+         }
+         migrator_ = new SegmentMigrator(scratchDir, destDir, PREFS.getDouble(
+               MP4StreamConfigurator.KEY_MIGRATE_MBPS, MP4StreamConfigurator.DEFAULT_MIGRATE_MBPS));
+         if (scratchGuard_ == null || !scratchGuard_.dir().equals(scratchDir)) {
+            scratchGuard_ = new ScratchGuard(scratchDir);
+         }
+      } else {
+         migrator_ = null;
+         scratchGuard_ = null;
+      }
+      segFile_ = segFile;
+      segStartNanos_ = System.nanoTime();
 
       final String ffmpegPath = PREFS.get(MP4StreamConfigurator.KEY_FFMPEG_PATH, "");
-      final String exe = (ffmpegPath == null || ffmpegPath.trim().isEmpty()) ? "ffmpeg" : ffmpegPath;
+      final String exe = FfmpegCapabilities.executable(ffmpegPath);
+
+      // Check settings against the probe started at plugin load; until it has
+      // finished, FFmpeg is started unchecked
+      FfmpegCapabilities caps = FfmpegCapabilities.cached(exe);
+      if (caps != null) {
+         applyCapabilities(caps);
+      }
 
       // Determine effective output FPS based on mode
       double effectiveFps;
@@ -524,7 +1218,7 @@ public final class MP4StreamProcessor implements Processor {
       if (MP4StreamConfigurator.MODE_REALTIME.equals(recordingMode_)) {
          // VFR mode: use reasonable default, actual timing handled via VFR
          effectiveFps = 30.0; // Base rate for VFR container
-         modeDescription = "realtime/VFR";
+         modeDescription = skipStatic_ ? "realtime/VFR, skipping unchanged frames" : "realtime/VFR";
       } else if (MP4StreamConfigurator.MODE_TIMELAPSE.equals(recordingMode_)) {
          // Timelapse: output at target FPS, playback is sped up by factor
          effectiveFps = targetFps_;
@@ -536,53 +1230,139 @@ public final class MP4StreamProcessor implements Processor {
          modeDescription = String.format(java.util.Locale.US, "constant @%.1f fps", targetFps_);
       }
 
-      // Build FFmpeg command as cmd-list
-      List<String> cmd = new ArrayList<>();
-      cmd.add(exe);
-      cmd.add("-f"); cmd.add("rawvideo"); // input format
-      cmd.add("-pix_fmt"); cmd.add("gray"); // pixel format
-      cmd.add("-s"); cmd.add(w + "x" + h); // size
+      // One output per file; FFmpeg decodes the piped input once and splits it
+      List<OutputSpec> outputs = new ArrayList<>();
+      final int archiveGop = seekOptimized_ ? Math.max(1, (int) Math.round(keyframeSec_ * effectiveFps)) : 0;
+      outputs.add(archiveOutput(segPath, w, h, caps, archiveGop));
+      if (previewEnabled_) {
+         // Never upscale; libx264 with yuv420p needs an even width
+         int pw = Math.min(previewWidth_, w) & ~1;
+         outputs.add(new OutputSpec("preview", withSuffix(segPath, PREVIEW_SUFFIX),
+               pw, previewCrf_, previewPreset_));
+      }
+      LiveStreamServer server = streamEnabled_ ? ensureStreamServer() : null;
+      if (server != null) {
+         // Short GOP (~1/3 s): FFmpeg cuts a segment at each keyframe, and
+         // the server publishes those as independent LL-HLS parts
+         int gop = Math.max(1, (int) Math.round(effectiveFps * STREAM_PART_SEC));
+         int sw = Math.min(previewWidth_, w) & ~1;
+         File playlist = server.beginRun(gop / effectiveFps);
+         outputs.add(new OutputSpec("live stream", playlist.getAbsolutePath(), sw,
+               EncoderProfile.X264, STREAM_CRF, "veryfast", OutputSpec.FORMAT_HLS, gop));
+      }
 
-      String fpsStr = String.format(java.util.Locale.US, "%.3f", effectiveFps);
-      cmd.add("-r"); cmd.add(fpsStr); // frame rate
-      cmd.add("-i"); cmd.add("-"); // input from stdin
+      FrameTransport transport = FrameTransport.stdin();
+
+      String overlayFilter = buildOverlayFilter(w, h);
 
-      // video encoding (CPU-only)
-      cmd.add("-an"); // no audio
-      cmd.add("-c:v"); cmd.add("libx264"); // video codec
-      cmd.add("-preset"); cmd.add("veryfast"); // preset
-      cmd.add("-crf"); cmd.add("18"); // constant rate factor
-      cmd.add("-pix_fmt"); cmd.add("yuv420p"); // output pixel format
+      // Colored video is packed as yuv420p in Java through the color's tables.
+      // Gray only if asked: packing moves FFmpeg's conversion into Java but
+      // pipes 1.5x the bytes, so it is no saving by itself.
+      YuvFrames yuv = null;
+      final Color color = videoColor(firstImg);
+      if ((javaYuv_ || color != null) && YuvFrames.supports(w, h)) {
+         yuv = new YuvFrames(w, h, color);
+      } else if (color != null) {
+         logWarn_("Color video needs an even frame size; recording gray.");
+      }
+      final String inputPixFmt = (yuv != null) ? YuvFrames.PIX_FMT : "gray";
 
-      cmd.add(segPath); // output file name
+      String fpsStr = String.format(java.util.Locale.US, "%.3f", effectiveFps);
+      List<String> cmd = cpuBudget_.wrapCommand(buildFfmpegCommand(exe, w, h, fpsStr,
+            inputPixFmt, overlayFilter, outputs, cpuBudget_));
 
       logInfo_("Starting FFmpeg: " + segPath + " (" + w + "x" + h + ", " + modeDescription + ")");
+      for (int i = 1; i < outputs.size(); i++) {
+         OutputSpec o = outputs.get(i);
+         logInfo_("  + " + o.label + ": " + o.path + " (width " + o.scaleWidth
+               + ", crf " + o.crf + ", " + o.preset + ")");
+      }
+      if (archiveGop > 0) {
+         logInfo_("  Seek-optimized: keyframe every " + archiveGop + " frames, faststart after finalize");
+      }
+      if (migrator_ != null) {
+         logInfo_("  Scratch: migrated to " + migrator_.destDir() + " after finalize");
+      }
+      if (server != null) {
+         logInfo_("Live stream: " + server.getPlaylistUrl() + " (LL-HLS)");
+      }
+      logInfo_("CPU budget: " + cpuBudget_ + " (" + cpuBudget_.split(secondaryOutputs(outputs))
+            + "), conversion: " + GrayKernel.ACTIVE.name()
+            + ", I/O threads: " + IoThreads.kind());
+      logInfo_("Frame format: " + ((yuv != null) ? "yuv420p from Java, " + yuv : "gray, converted by FFmpeg"));
       logDebug_("FFmpeg command: " + cmd);
 
-      synchronized (ffLock_) {
-         ff_ = new FfmpegSession(cmd);
+      FrameSpool spool = null;
+      if (spoolEnabled_) {
+         // Replay spools a crashed session left next to the output, then
+         // open this segment's spool (deleted again when fully drained)
+         recoverOrphanSpoolsAsync(segFile.getAbsoluteFile().getParentFile(), exe);
+         try {
+            spool = FrameSpool.create(new File(segPath + FrameSpool.EXTENSION), w, h,
+                  effectiveFps, spoolMaxMb_ * (1L << 20));
+         } catch (IOException e) {
+            logWarn_("Could not create encoder spool, writing directly: " + e.getMessage());
+         }
+      }
+
+      try {
+         synchronized (ffLock_) {
+            ff_ = new FfmpegSession(cmd, spool, transport, yuv);
+            cpuBudget_.applyToProcess(ff_.proc_);
+         }
+      } catch (IOException e) {
+         if (spool != null) {
+            spool.closeAndDeleteIfEmpty();
+         }
+         throw e;
+      }
+
+      if (frameIndexEnabled_) {
+         try {
+            frameIndex_ = FrameIndex.create(new File(segPath + FrameIndex.EXTENSION), w, h, effectiveFps);
+         } catch (IOException e) {
+            logWarn_("Could not create frame index " + segPath + FrameIndex.EXTENSION + ": " + e.getMessage());
+         }
+      }
+      if (archiveGop > 0) {
+         try {
+            keyframes_ = new KeyframeTable(new File(segPath), archiveGop, effectiveFps);
+            faststartExe_ = exe;
+         } catch (IOException e) {
+            logWarn_("Could not create keyframe table " + segPath + KeyframeTable.EXTENSION + ": " + e.getMessage());
+         }
       }
+      thumbs_ = thumbnailsEnabled_ ? new Thumbnails(new File(segPath), w, h, thumbIntervalSec_) : null;
+      sourceFrames_ = 0;
 
       initTimeZero(firstImg);
-      nextOutFrameIndex_ = 0;
-      haveLastFrame_ = false;
-      lastFrame8_ = null;
+      dtOffsetSec_ = 0.0;
+      postTriggerEndSec_ = 0.0;
+      resumePending_ = false;
+      pauseSkipSec_ = 0.0;
+      lastDtSec_ = 0.0;
+      videoFps_ = effectiveFps;
+      cfr_ = new CfrFramer(targetFps_);
+      if (mosaic_ != null) {
+         mosaic_.restart(); // Δt of a pending set was measured from the previous time zero
+      }
       vfrFrameCount_ = 0;
+      lastWrittenDtSec_ = 0.0;
+      staticSkipped_ = 0;
 
       // Reset scaling tracking for new segment (will log on first frame)
       lastScaling_ = null;
+      readConversionSettings(); // picks up references captured since the last segment
 
-      // Recreate overlay resources for this dimension
+      // Recreate overlay layers from this segment's settings
       disposeOverlay();
+      buildOverlay();
       ensureBuffersForDimensions(w, h);
 
       // Arm watchdog baseline and timeout
       lastFrameNanos_ = System.nanoTime();
       updateWatchdogFromExposureRateLimited_(); // immediate update on start
       startWatchdog();
-
-      // Register for Live/Acquisition events to finalize immediately when they stop
-      registerForEvents();
    }
 
    private void initTimeZero(Image img) {
@@ -628,19 +1408,34 @@ public final class MP4StreamProcessor implements Processor {
          if (ff_ == null) {
             return;
          }
+         if (thumbs_ != null) {
+            thumbs_.offer(frame8, dtSec);
+         }
 
          if (MP4StreamConfigurator.MODE_REALTIME.equals(recordingMode_)) {
-            // VFR mode: write every frame exactly once
+            // VFR mode: write every frame exactly once, unless it repeats the
+            // last written one (a keep-alive frame still goes out so Δt advances)
+            if (skipStatic_ && vfrFrameCount_ > 0
+                  && (dtSec - lastWrittenDtSec_) < STATIC_KEEPALIVE_SEC
+                  && !sceneDetector_.hasChanged(frame8)) {
+               staticSkipped_++;
+               return;
+            }
+            if (skipStatic_) {
+               sceneDetector_.accept(frame8); // before the overlay is burned in
+            }
             overlayDeltaT(frame8, w, h, dtSec);
-            ff_.writeFrame(frame8);
+            ff_.writeFrame(frame8, dtSec);
+            frameSent(source_, vfrFrameCount_, false);
             vfrFrameCount_++;
+            lastWrittenDtSec_ = dtSec;
          } else if (MP4StreamConfigurator.MODE_TIMELAPSE.equals(recordingMode_)) {
             // Timelapse mode: compress playback time by factor (10x = plays 10x faster)
-            double compressedDtSec = dtSec / timelapseFactor_;
+            double compressedDtSec = (dtSec - pauseSkipSec_) / timelapseFactor_;
             writeCfrFrame(frame8, w, h, dtSec, compressedDtSec);
          } else {
-            // Constant FPS mode (default): CFR with real time
-            writeCfrFrame(frame8, w, h, dtSec, dtSec);
+            // Constant FPS mode (default): CFR with real time (less session pauses)
+            writeCfrFrame(frame8, w, h, dtSec, dtSec - pauseSkipSec_);
          }
       }
    }
@@ -650,59 +1445,70 @@ public final class MP4StreamProcessor implements Processor {
          throws IOException {
       // framingDtSec determines which frame index this belongs to
       // overlayDtSec is displayed in the overlay (can differ in timelapse mode)
-      long targetIndex = (long) Math.floor((framingDtSec * targetFps_) + 1e-9);
-
-      if (lastFrame8_ == null || lastFrame8_.length != frame8.length) {
-         lastFrame8_ = new byte[frame8.length];
-         haveLastFrame_ = false;
+      final FfmpegSession ff = ff_;
+      final CfrFramer.Sink sink = (frameIndex_ == null && keyframes_ == null) ? ff::writeFrame : (f, dt, unchanged) -> {
+         ff.writeFrame(f, dt, unchanged);
+         final boolean repeat = (f != frame8); // gap fill repeats the previous source frame
+         frameSent(repeat ? prevSource_ : source_, cfr_.nextIndex(), repeat);
+      };
+      long skipped = cfr_.accept(frame8, overlayDtSec, framingDtSec,
+            () -> overlayDeltaT(frame8, w, h, overlayDtSec), sink);
+      if (skipped > 0) {
+         logWarn_("Gap-fill limit reached (" + cfr_.maxGapFrames() + " frames). Skipping "
+               + skipped + " frames to recover.");
       }
+   }
 
-      // Fill gaps using last frame (CFR), capped to prevent runaway writes
-      long maxGapFrames = Math.max(300, (long) (targetFps_ * 10));
-      if (haveLastFrame_) {
-         long filled = 0;
-         while (nextOutFrameIndex_ < targetIndex && filled < maxGapFrames) {
-            ff_.writeFrame(lastFrame8_);
-            nextOutFrameIndex_++;
-            filled++;
-         }
-         if (nextOutFrameIndex_ < targetIndex) {
-            logWarn_("Gap-fill limit reached (" + maxGapFrames + " frames). Skipping "
-                  + (targetIndex - nextOutFrameIndex_) + " frames to recover.");
-            nextOutFrameIndex_ = targetIndex;
-         }
-      } else {
-         nextOutFrameIndex_ = targetIndex;
+   /**
+    * Records what the sidecar needs about the frame about to be written;
+    * img and sc are null for frames flushed from the pre-trigger buffer.
+    */
+   private void noteSource(Image img, DisplayScaling sc, double dtSec) {
+      if (frameIndex_ == null && keyframes_ == null) {
+         return;
       }
+      prevSource_.copyFrom(source_);
+      final FrameIndex.Source s = source_;
+      s.frame = sourceFrames_++;
+      s.dtSec = dtSec;
+      s.wallMs = System.currentTimeMillis();
+      s.flags = (img == null) ? FrameIndex.BUFFERED : 0;
+      s.displayMin = (sc == null) ? 0 : (int) Math.min(Integer.MAX_VALUE, sc.min);
+      s.displayMax = (sc == null) ? 0 : (int) Math.min(Integer.MAX_VALUE, sc.max);
+      s.gamma = (sc == null) ? Float.NaN : (float) sc.gamma;
+      final Metadata md = (img == null) ? null : getMetadata(img);
+      s.exposureMs = (float) orNaN(md == null ? null : md.getExposureMs());
+      s.xUm = orNaN(md == null ? null : md.getXPositionUm());
+      s.yUm = orNaN(md == null ? null : md.getYPositionUm());
+      s.zUm = orNaN(md == null ? null : md.getZPositionUm());
+   }
 
-      // Write at target index
-      if (nextOutFrameIndex_ == targetIndex) {
-         overlayDeltaT(frame8, w, h, overlayDtSec);
-         ff_.writeFrame(frame8);
-         nextOutFrameIndex_++;
-      }
-      
-      // Always update last frame (whether written or dropped)
-      System.arraycopy(frame8, 0, lastFrame8_, 0, frame8.length);
-      haveLastFrame_ = true;
+   private static double orNaN(Double v) {
+      return (v == null) ? Double.NaN : v;
    }
 
-   private static String formatElapsedHhMmSsMmm(double dtSec) {
-      if (dtSec < 0) {
-         dtSec = 0;
+   // Under ffLock_, after each frame sent to FFmpeg. A failing sidecar is closed; the video goes on.
+   private void frameSent(FrameIndex.Source src, long slot, boolean repeat) {
+      final FrameIndex idx = frameIndex_;
+      if (idx != null) {
+         try {
+            idx.append(src, slot, repeat);
+         } catch (IOException e) {
+            logWarn_("Frame index write failed; continuing without it: " + e.getMessage());
+            frameIndex_ = null;
+            try { idx.close(); } catch (IOException ignored) {}
+         }
+      }
+      final KeyframeTable kf = keyframes_;
+      if (kf != null) {
+         try {
+            kf.frameSent(src.dtSec);
+         } catch (IOException e) {
+            logWarn_("Keyframe table write failed; continuing without it: " + e.getMessage());
+            keyframes_ = null;
+            try { kf.close(); } catch (IOException ignored) {}
+         }
       }
-      long totalMs = (long) Math.round(dtSec * 1000.0);
-
-      long ms = totalMs % 1000;
-      long totalSec = totalMs / 1000;
-
-      long sec = totalSec % 60;
-      long totalMin = totalSec / 60;
-
-      long min = totalMin % 60;
-      long hours = totalMin / 60;
-
-      return String.format(java.util.Locale.US, "%02d:%02d:%02d.%03d", hours, min, sec, ms);
    }
 
    private double getCurrentExposureMs_() {
@@ -760,73 +1566,145 @@ public final class MP4StreamProcessor implements Processor {
                "Watchdog timeout updated: %.0f ms (exposure %.0f ms, mult %.1f, margin %.0f ms)",
                wdMs, expMs, WD_MULT, WD_MARGIN_MS));
          watchdogTimeoutNanos_ = wdNs;
+         watchdog_.rearm(); // a shorter timeout must not wait for the old deadline
       }
    }
 
-   private void startWatchdog() {
-      if (watchdog_ != null && watchdog_.isAlive()) {
-         return;
-      }
-
-      watchdogRun_ = true;
-
-      watchdog_ = new Thread(() -> {
-         try {
-            while (watchdogRun_) {
-               try {
-                  Thread.sleep(200);
-               } catch (InterruptedException ie) {
-                  Thread.currentThread().interrupt();
-                  return;
-               }
+   // A paused session waits for the session timeout instead
+   private long currentTimeoutNanos_() {
+      return (state_.phase() == RecordingState.Phase.PAUSED) ? sessionTimeoutNanos_ : watchdogTimeoutNanos_;
+   }
 
-               // Only act if recording is active
-               if (ff_ == null) {
-                  continue;
-               }
+   private void startWatchdog() {
+      watchdog_.start();
+   }
 
-               // Note: Live/MDA stop detection is now handled by event listeners
-               // (onLiveModeEvent, onAcquisitionEnded) for immediate response.
-               // Watchdog only handles timeout (no frames received for too long).
+   private void stopWatchdog() {
+      watchdog_.stop();
+   }
 
-               final long last = lastFrameNanos_;
-               if (last == 0L) {
-                  continue; // not armed
-               }
+   // On its own thread once no frame arrived for watchdogTimeoutNanos_.
+   // Live/MDA stop detection is handled by the event listeners
+   // (onLiveModeEvent, onAcquisitionEnded) for immediate response.
+   private void onWatchdogTimeout() {
+      if (ff_ == null) {
+         return;
+      }
+      logInfo_("Watchdog timeout - finalizing MP4.");
+      stopFfmpeg(); // idempotent
+      lastFrameNanos_ = 0L;
+   }
 
-               final long idleNanos = System.nanoTime() - last;
+   /**
+    * Builds the FFmpeg command line for a raw gray8 stdin input and one or
+    * more encoded outputs. A single native-resolution output keeps the plain
+    * command; otherwise a split filter feeds each output from the same input.
+    */
+   private static List<String> buildFfmpegCommand(String exe, int w, int h, String fpsStr,
+         List<OutputSpec> outputs, CpuBudget budget) {
+      return buildFfmpegCommand(exe, w, h, fpsStr, "gray", null, outputs, budget);
+   }
 
-               // Read current timeout (updated elsewhere)
-               final long timeoutNanos = watchdogTimeoutNanos_;
+   /**
+    * @param inputPixFmt "gray", or "yuv420p" for frames packed by {@link YuvFrames}
+    * @param videoFilter filter chain applied to the input before it is split
+    *                    into the outputs (overlays), or null
+    * @param budget      encoder thread counts (downscaled outputs get a share,
+    *                    the full-resolution one the rest), or null for FFmpeg's default
+    */
+   private static List<String> buildFfmpegCommand(String exe, int w, int h, String fpsStr,
+         String inputPixFmt, String videoFilter, List<OutputSpec> outputs, CpuBudget budget) {
+      List<String> cmd = new ArrayList<>();
+      cmd.add(exe);
+      cmd.add("-f"); cmd.add("rawvideo"); // input format
+      cmd.add("-pix_fmt"); cmd.add(inputPixFmt); // pixel format
+      cmd.add("-s"); cmd.add(w + "x" + h); // size
+      cmd.add("-r"); cmd.add(fpsStr); // frame rate
+      cmd.add("-i"); cmd.add("-"); // input from stdin
 
-               if (idleNanos > timeoutNanos) {
-                  // stopFfmpeg() is idempotent.
-                  logInfo_("Watchdog timeout - finalizing MP4.");
-                  stopFfmpeg();
-                  // Disarm to prevent repeated stop attempts before ff_ becomes visible as null everywhere.
-                  lastFrameNanos_ = 0L;
-               }
+      final boolean single = outputs.size() == 1 && outputs.get(0).scaleWidth <= 0;
+      final int secondaries = secondaryOutputs(outputs);
+      if (single && videoFilter != null) {
+         cmd.add("-vf"); cmd.add(videoFilter);
+      }
+      if (!single) {
+         // e.g. [0:v]split=2[s0][s1];[s1]scale=640:-2[o1]
+         StringBuilder graph = new StringBuilder("[0:v]");
+         if (videoFilter != null) {
+            graph.append(videoFilter).append(',');
+         }
+         graph.append("split=").append(outputs.size());
+         for (int i = 0; i < outputs.size(); i++) {
+            graph.append("[s").append(i).append(']');
+         }
+         for (int i = 0; i < outputs.size(); i++) {
+            OutputSpec o = outputs.get(i);
+            if (o.scaleWidth > 0) {
+               graph.append(";[s").append(i).append("]scale=").append(o.scaleWidth)
+                     .append(":-2[o").append(i).append(']');
             }
-         } finally {
-            // Allow restart
-            watchdog_ = null;
          }
-      }, "mp4stream-watchdog");
+         cmd.add("-filter_complex"); cmd.add(graph.toString());
+      }
 
-      watchdog_.setDaemon(true);
-      watchdog_.start();
+      for (int i = 0; i < outputs.size(); i++) {
+         OutputSpec o = outputs.get(i);
+         if (!single) {
+            cmd.add("-map"); cmd.add(o.scaleWidth > 0 ? "[o" + i + "]" : "[s" + i + "]");
+         }
+         // video encoding (CPU-only)
+         cmd.add("-an"); // no audio
+         EncoderProfile.addCodecArgs(cmd, o.codec, o.preset, o.crf); // codec, preset, constant rate factor
+         if (budget != null) {
+            int threads = (o.scaleWidth > 0) ? budget.secondaryEncoderThreads() : budget.encoderThreads(secondaries);
+            cmd.add("-threads"); cmd.add(Integer.toString(threads));
+         }
+         cmd.add("-pix_fmt"); cmd.add("yuv420p"); // output pixel format
+         if (o.gop > 0) {
+            // Fixed keyframe interval, no scene-cut keyframes in between; forcing
+            // them by frame number also holds for encoders that ignore -g limits
+            cmd.add("-g"); cmd.add(Integer.toString(o.gop));
+            cmd.add("-keyint_min"); cmd.add(Integer.toString(o.gop));
+            cmd.add("-sc_threshold"); cmd.add("0");
+            cmd.add("-force_key_frames"); cmd.add("expr:eq(mod(n," + o.gop + "),0)");
+         }
+         if (OutputSpec.FORMAT_HLS.equals(o.format)) {
+            // No lookahead/B-frames; one segment per GOP, which the server
+            // publishes as LL-HLS parts. hls_time just under the GOP length
+            // so every keyframe cuts; the server deletes the files.
+            double partSec = o.gop / Double.parseDouble(fpsStr);
+            String stem = new File(o.path).getName().replaceFirst("\\.m3u8$", "");
+            cmd.add("-tune"); cmd.add("zerolatency");
+            cmd.add("-f"); cmd.add("hls");
+            cmd.add("-hls_time"); cmd.add(String.format(java.util.Locale.US, "%.3f", 0.9 * partSec));
+            cmd.add("-hls_list_size"); cmd.add("10");
+            cmd.add("-hls_flags"); cmd.add("independent_segments+temp_file");
+            cmd.add("-hls_segment_filename");
+            cmd.add(new File(new File(o.path).getParentFile(), stem + "_%d.ts").getAbsolutePath());
+         }
+         cmd.add(o.path); // output file name
+      }
+      return cmd;
    }
 
-   private void stopWatchdog() {
-      watchdogRun_ = false;
-      Thread t = watchdog_;
-      if (t != null) {
-         t.interrupt();
+   private static int secondaryOutputs(List<OutputSpec> outputs) {
+      int n = 0;
+      for (OutputSpec o : outputs) {
+         if (o.scaleWidth > 0) {
+            n++;
+         }
       }
-      watchdog_ = null;
+      return n;
    }
 
-   private static String makeSegmentPath(String baseOutPath, int w, int h, int idx) {
+   /**
+    * Returns the primary segment path. The index is only considered free if
+    * the primary file and every suffixed sibling (see withSuffix) are unused.
+    * With a scratch directory, the path is there, but a name taken in either
+    * directory is skipped.
+    */
+   private static String makeSegmentPath(String baseOutPath, int w, int h, int idx,
+         List<String> suffixes, File scratchDir) {
       File f = new File(baseOutPath);
       String name = f.getName();
       String parent = f.getParent();
@@ -842,17 +1720,45 @@ public final class MP4StreamProcessor implements Processor {
       // Find an unused filename to avoid overwriting existing files
       int candidate = idx;
       File candidateFile;
+      boolean taken;
       do {
          String segName = String.format("%s_%dx%d_seg%03d.mp4", stem, w, h, candidate);
          candidateFile = new File(parent, segName);
+         taken = nameTaken(candidateFile, suffixes);
+         if (scratchDir != null) {
+            candidateFile = new File(scratchDir, segName);
+            taken |= nameTaken(candidateFile, suffixes);
+         }
          candidate++;
-      } while (candidateFile.exists() && candidate < 10000);
+      } while (taken && candidate < 10000);
 
       return candidateFile.getAbsolutePath();
    }
 
+   private static boolean nameTaken(File seg, List<String> suffixes) {
+      boolean taken = seg.exists();
+      for (String suffix : suffixes) {
+         taken |= new File(withSuffix(seg.getPath(), suffix)).exists();
+      }
+      return taken;
+   }
+
+   // foo_seg001.mp4 + "_preview" -> foo_seg001_preview.mp4
+   private static String withSuffix(String segPath, String suffix) {
+      if (segPath.toLowerCase().endsWith(".mp4")) {
+         return segPath.substring(0, segPath.length() - 4) + suffix + ".mp4";
+      }
+      return segPath + suffix;
+   }
+
    private void stopFfmpeg() {
       FfmpegSession toClose = null;
+      FrameIndex index = null;
+      KeyframeTable keyframes = null;
+      CompletableFuture<Integer> thumbsWritten = null;
+      CompletableFuture<Void> faststarted = null;
+      SegmentMigrator migrator = null;
+      File segFile = null;
 
       synchronized (ffLock_) {
          if (ff_ == null) {
@@ -860,20 +1766,53 @@ public final class MP4StreamProcessor implements Processor {
          }
          toClose = ff_;
          ff_ = null;
+         index = frameIndex_;
+         frameIndex_ = null;
+         keyframes = keyframes_;
+         keyframes_ = null;
+         if (thumbs_ != null) {
+            // Written in the background; the last frame is still in its buffer here
+            final File sheet = thumbs_.contactSheet();
+            thumbsWritten = thumbs_.finish();
+            thumbsWritten.whenComplete((n, e) -> {
+               if (e != null) {
+                  logWarn_("Could not write thumbnails: " + (e.getCause() != null ? e.getCause() : e).getMessage());
+               } else if (n > 0) {
+                  logInfo_("Wrote " + n + " thumbnails and contact sheet " + sheet.getName());
+               }
+            });
+            thumbs_ = null;
+         }
+         migrator = migrator_;
+         segFile = segFile_;
+         segFile_ = null;
+         state_.endSegment();
       }
-
-      // Unregister from events since we're no longer recording
-      unregisterForEvents();
+      stopWatchdog(); // restarted with the next segment
 
       // Close outside lock to avoid blocking producers/watchdog while ffmpeg finalizes.
       long frameCount = MP4StreamConfigurator.MODE_REALTIME.equals(recordingMode_) 
-            ? vfrFrameCount_ : nextOutFrameIndex_;
+            ? vfrFrameCount_ : (cfr_ == null ? 0 : cfr_.nextIndex());
       logInfo_("Stopping FFmpeg and finalizing MP4 file (" + frameCount + " frames)...");
+      long spooled = toClose.spooledFrames();
+      if (spooled > 0) {
+         logInfo_("Encoder fell behind: " + spooled + " frames went through the disk spool (peak backlog "
+               + toClose.spoolPeakBacklog() + "); draining before finalize.");
+      }
+      if (toClose.spoolFullWaits() > 0) {
+         logWarn_("Spool was full " + toClose.spoolFullWaits() + " times; camera thread was held back.");
+      }
+      if (staticSkipped_ > 0) {
+         logInfo_("Skipped " + staticSkipped_ + " unchanged frames.");
+      }
       try {
          toClose.close();
          int exitCode = toClose.exitCode();
          if (exitCode == 0) {
             logInfo_("FFmpeg finalized successfully (" + frameCount + " frames written).");
+            if (keyframes != null) {
+               faststarted = faststartAsync(keyframes.video(), faststartExe_);
+            }
          } else {
             logWarn_("FFmpeg exited with code " + exitCode + " (" + frameCount + " frames).");
             List<String> stderr = toClose.getStderrTail();
@@ -887,264 +1826,605 @@ public final class MP4StreamProcessor implements Processor {
          }
       } catch (Exception e) {
          logWarn_("FFmpeg close failed: " + e.getMessage());
+      } finally {
+         closeFrameIndex(index);
+         if (keyframes != null) {
+            try {
+               keyframes.close();
+            } catch (IOException e) {
+               logWarn_("Keyframe table close failed: " + e.getMessage());
+            }
+         }
+         if (migrator != null && segFile != null) {
+            // After the background faststart and thumbnails, which still write into scratch
+            migrateAsync(migrator, segFile, CompletableFuture.allOf(
+                  thumbsWritten != null ? thumbsWritten : CompletableFuture.completedFuture(null),
+                  faststarted != null ? faststarted : CompletableFuture.completedFuture(null)));
+         }
+         state_.segmentClosed();
       }
    }
 
-   private void ensureBuffersForDimensions(int w, int h) {
-      int n = w * h;
-      if (plane8_ == null || plane8_.length != n) {
-         plane8_ = new byte[n];
+   private void closeFrameIndex(FrameIndex index) {
+      if (index == null) {
+         return;
       }
-
-      if (grayImg_ == null || grayImg_.getWidth() != w || grayImg_.getHeight() != h) {
-         grayImg_ = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
-
-         g2d_ = grayImg_.createGraphics();
-         g2d_.setFont(new Font("SansSerif", Font.BOLD, fontSize_));
-         g2d_.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-         g2d_.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      try {
+         index.close();
+         logDebug_("Frame index: " + index.records() + " records.");
+      } catch (IOException e) {
+         logWarn_("Frame index close failed: " + e.getMessage());
       }
    }
 
-   private void disposeOverlay() {
-      if (g2d_ != null) {
-         try {
-            g2d_.dispose();
-         } catch (Exception ignored) {}
+   /**
+    * Starts (or reuses) the embedded HLS server. Returns null if the port
+    * cannot be bound; recording then continues without the stream output.
+    */
+   private LiveStreamServer ensureStreamServer() {
+      if (streamServer_ != null && streamServer_.getPort() == streamPort_) {
+         return streamServer_; // keeps serving; the next run follows a discontinuity
       }
-      g2d_ = null;
-      grayImg_ = null;
+      stopStreamServer();
+      try {
+         File root = java.nio.file.Files.createTempDirectory("mp4stream-hls").toFile();
+         streamServer_ = new LiveStreamServer(root, streamPort_);
+         logInfo_("Live stream server listening on port " + streamPort_ + " (" + root + ")");
+      } catch (IOException e) {
+         logWarn_("Could not start live stream server on port " + streamPort_ + ": " + e.getMessage());
+         streamServer_ = null;
+      }
+      return streamServer_;
    }
 
-   private static void convertToGray8(Image img, byte[] out8) {
-      final int bpp = img.getBytesPerPixel();
-      final Object raw = img.getRawPixelsCopy();
+   private void stopStreamServer() {
+      LiveStreamServer server = streamServer_;
+      streamServer_ = null;
+      if (server != null) {
+         server.stop();
+         server.clearRoot();
+         server.getRoot().delete();
+      }
+   }
 
-      if (bpp == 1) {
-         byte[] in = (byte[]) raw;
-         System.arraycopy(in, 0, out8, 0, Math.min(in.length, out8.length));
+   /**
+    * Replays spool files left by a crashed session in the output directory
+    * into *_recovered.mp4 files. Spools still held by a live session are
+    * locked and skipped.
+    */
+   private void recoverOrphanSpoolsAsync(File dir, String exe) {
+      // Spools are only orphaned by an earlier crash: one scan per directory and session
+      if (dir == null || !SPOOL_DIRS_SCANNED.add(dir.getAbsolutePath())) {
          return;
       }
+      SPOOL_RECOVERY.execute(() -> {
+         final File[] spools = dir.listFiles((d, n) -> n.endsWith(".mp4" + FrameSpool.EXTENSION));
+         if (spools == null) {
+            return;
+         }
+         for (File f : spools) {
+            try {
+               recoverSpool(f, exe);
+            } catch (Exception e) {
+               logWarn_("Spool recovery failed for " + f + ": " + e.getMessage());
+            }
+         }
+      });
+   }
 
-      if (bpp == 2) {
-         short[] in16 = (short[]) raw;
-         int n = Math.min(in16.length, out8.length);
-         for (int i = 0; i < n; i++) {
-            out8[i] = (byte) ((in16[i] >>> 8) & 0xFF);
+   /**
+    * Moves the moov atom of a finished archive to the front, so players can
+    * seek before the whole file is read (or downloaded). A stream-copy
+    * remux into a temporary file that then replaces the original; in the
+    * background, so finalizing the segment does not wait for the extra pass.
+    */
+   private CompletableFuture<Void> faststartAsync(File video, String exe) {
+      final CpuBudget budget = cpuBudget_;
+      final CompletableFuture<Void> done = new CompletableFuture<>();
+      Thread t = new Thread(() -> {
+         File tmp = new File(video.getPath() + ".faststart.tmp.mp4");
+         List<String> cmd = new ArrayList<>();
+         cmd.add(exe);
+         cmd.add("-nostdin"); cmd.add("-y"); cmd.add("-loglevel"); cmd.add("error");
+         cmd.add("-i"); cmd.add(video.getAbsolutePath());
+         cmd.add("-map"); cmd.add("0"); cmd.add("-c"); cmd.add("copy");
+         cmd.add("-movflags"); cmd.add("+faststart");
+         cmd.add(tmp.getAbsolutePath());
+         try {
+            Process p = new ProcessBuilder(budget.wrapCommand(cmd)).redirectErrorStream(true).start();
+            budget.applyToProcess(p);
+            String lastLine = "";
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+               String line;
+               while ((line = r.readLine()) != null) {
+                  lastLine = line;
+               }
+            }
+            int exit = p.waitFor();
+            if (exit != 0 || !tmp.isFile() || tmp.length() == 0) {
+               logWarn_("Faststart remux of " + video.getName() + " failed (exit " + exit + "): " + lastLine
+                     + "; kept as recorded.");
+               tmp.delete();
+               return;
+            }
+            try {
+               Files.move(tmp.toPath(), video.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                     StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+               Files.move(tmp.toPath(), video.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            logInfo_("Faststart: " + video.getName() + " is ready for seeking.");
+         } catch (IOException e) {
+            logWarn_("Faststart remux of " + video.getName() + " failed: " + e.getMessage());
+            tmp.delete();
+         } catch (InterruptedException e) {
+            tmp.delete();
+            Thread.currentThread().interrupt();
+         } finally {
+            done.complete(null);
          }
-         return;
-      }
+      }, "mp4stream-faststart");
+      t.setDaemon(true);
+      t.start();
+      return done;
+   }
 
-      // Unsupported; leave black
-      for (int i = 0; i < out8.length; i++) {
-         out8[i] = 0;
-      }
+   private void migrateAsync(SegmentMigrator migrator, File video, CompletableFuture<?> ready) {
+      final long t0 = System.nanoTime();
+      migrator.migrate(video, ready).whenComplete((bytes, e) -> {
+         if (e != null) {
+            logWarn_("Migration of " + video.getName() + " failed: "
+                  + (e.getCause() != null ? e.getCause() : e).getMessage());
+         } else {
+            logInfo_(String.format(java.util.Locale.US, "Migrated %s to %s (%.1f MB, %.1f s)",
+                  video.getName(), migrator.destDir(), bytes / 1048576.0, (System.nanoTime() - t0) / 1e9));
+         }
+      });
    }
 
-   private static void convertToGray8WithScaling(Image img, byte[] out8, long min, long max, double gamma) {
-      final int bpp = img.getBytesPerPixel();
-      final Object raw = img.getRawPixelsCopy();
+   /**
+    * While recording to scratch, checks the free space every few seconds:
+    * rotates the segment (so the finished one is migrated) or stops
+    * recording. Returns false if the frame is not to be recorded.
+    */
+   private boolean checkScratchSpaceRateLimited_(String outPath, int w, int h, Image img) throws IOException {
+      final ScratchGuard guard = scratchGuard_;
+      final File seg = segFile_;
+      final long now = System.nanoTime();
+      if (guard == null || seg == null || now - lastScratchCheckNanos_ < SCRATCH_CHECK_PERIOD_NANOS) {
+         return true;
+      }
+      lastScratchCheckNanos_ = now;
+      long bytes = seg.length();
+      if (previewEnabled_) {
+         bytes += new File(withSuffix(seg.getPath(), PREVIEW_SUFFIX)).length();
+      }
+      final SegmentMigrator migrator = migrator_;
+      final long pending = (migrator == null) ? 0L : migrator.pendingBytes();
+      switch (guard.check(bytes, (now - segStartNanos_) / 1e9, pending)) {
+         case STOP:
+            logWarn_(String.format(java.util.Locale.US,
+                  "Scratch disk %s is almost full (%.0f MB free, %.0f MB waiting to migrate, %.1f MB/s); "
+                  + "recording stops until migration makes room.", guard.dir(),
+                  guard.dir().getUsableSpace() / 1048576.0, pending / 1048576.0,
+                  guard.bytesPerSec() / 1048576.0));
+            scratchFull_ = true;
+            stopFfmpeg();
+            return false;
+         case ROTATE:
+            logInfo_("Scratch disk is running low; starting a new segment so this one can be migrated.");
+            startFfmpegForDimensions(outPath, w, h, img);
+            return ff_ != null;
+         default:
+            return true;
+      }
+   }
 
-      if (max <= min) {
-         convertToGray8(img, out8);
-         return;
+   private boolean scratchHasRoomRateLimited_() {
+      final long now = System.nanoTime();
+      if (now - lastScratchCheckNanos_ < SCRATCH_CHECK_PERIOD_NANOS) {
+         return false;
       }
-      if (!(gamma > 0.0)) {
-         gamma = 1.0;
+      lastScratchCheckNanos_ = now;
+      final ScratchGuard guard = scratchGuard_;
+      if (guard == null || guard.hasRoom() || !PREFS.getBoolean(MP4StreamConfigurator.KEY_SCRATCH_ENABLED,
+            MP4StreamConfigurator.DEFAULT_SCRATCH_ENABLED)) {
+         scratchFull_ = false;
+         logInfo_("Scratch disk has room again; recording resumes.");
+         return true;
       }
+      return false;
+   }
 
-      final double invRange = 1.0 / (double) (max - min);
-      final boolean useGamma = (gamma != 1.0);
-
-      if (bpp == 1) {
-         byte[] in = (byte[]) raw;
-         int n = Math.min(in.length, out8.length);
-         for (int i = 0; i < n; i++) {
-            int v = in[i] & 0xFF;
-            double x = Math.max(0.0, Math.min(1.0, (v - (double) min) * invRange));
-            if (useGamma) {
-               x = Math.pow(x, gamma);
-            }
-            out8[i] = (byte) (int) Math.round(255.0 * x);
-         }
-         return;
+   private void recoverSpool(File f, String exe) throws IOException {
+      FrameSpool spool = FrameSpool.openExisting(f);
+      if (spool == null) {
+         return; // in use
       }
-
-      if (bpp == 2) {
-         short[] in16 = (short[]) raw;
-         int n = Math.min(in16.length, out8.length);
-         for (int i = 0; i < n; i++) {
-            int v = in16[i] & 0xFFFF; // unsigned
-            double x = Math.max(0.0, Math.min(1.0, (v - (double) min) * invRange));
-            if (useGamma) {
-               x = Math.pow(x, gamma);
+      try {
+         if (spool.isEmpty()) {
+            return;
+         }
+         String mp4 = f.getAbsolutePath();
+         mp4 = mp4.substring(0, mp4.length() - FrameSpool.EXTENSION.length());
+         String outPath = withSuffix(mp4, RECOVERED_SUFFIX);
+         long n = spool.count();
+         logInfo_("Recovering " + n + " undrained frames from " + f.getName() + " -> " + outPath);
+
+         int sw = spool.getWidth();
+         int sh = spool.getHeight();
+         List<OutputSpec> outputs = new ArrayList<>();
+         outputs.add(new OutputSpec("recovered", outPath, 0, archiveCrf_, archivePreset_));
+         String fpsStr = String.format(java.util.Locale.US, "%.3f", spool.getFps());
+         FfmpegSession session = new FfmpegSession(cpuBudget_.wrapCommand(
+               buildFfmpegCommand(exe, sw, sh, fpsStr, outputs, cpuBudget_)));
+         cpuBudget_.applyToProcess(session.proc_);
+         byte[] frame = new byte[sw * sh];
+         try {
+            while (!spool.isEmpty()) {
+               double t = spool.readNext(frame);
+               session.writeFrame(frame, t);
             }
-            out8[i] = (byte) (int) Math.round(255.0 * x);
+         } finally {
+            session.close();
          }
-         return;
+         logInfo_("Spool recovery finished (exit code " + session.exitCode() + "): " + outPath);
+         final SegmentMigrator migrator = migrator_;
+         if (migrator != null && migrator.scratchDir().equals(new File(outPath).getAbsoluteFile().getParentFile())) {
+            migrateAsync(migrator, new File(outPath), CompletableFuture.completedFuture(null));
+         }
+      } finally {
+         spool.closeAndDeleteIfEmpty();
       }
+   }
 
-      // Unsupported; black
-      for (int i = 0; i < out8.length; i++) {
-         out8[i] = 0;
+   private void ensureBuffersForDimensions(int w, int h) {
+      int n = w * h;
+      if (plane8_ == null || plane8_.length != n) {
+         plane8_ = new byte[n];
       }
    }
 
-   private void overlayDeltaT(byte[] plane8, int w, int h, double dtSec) {
-      if (grayImg_ == null || g2d_ == null) {
-         return;
+   /**
+    * Full-resolution output: x264 with the archive settings, or the codec and
+    * preset calibrated for this frame size (quality still follows the archive CRF).
+    *
+    * @param gop fixed keyframe interval in frames (seek-optimized), 0 = encoder default
+    */
+   private OutputSpec archiveOutput(String segPath, int w, int h, FfmpegCapabilities caps, int gop) {
+      EncoderProfile profile = useCalibratedProfile_ ? EncoderProfile.load(w, h) : null;
+      if (profile == null) {
+         return new OutputSpec("archive", segPath, 0, EncoderProfile.X264, archiveCrf_, archivePreset_,
+               OutputSpec.FORMAT_MP4, gop);
+      }
+      if (caps != null && !caps.hasEncoder(profile.codec)) {
+         logWarn_("Calibrated encoder " + profile.codec + " is not in this FFmpeg; using libx264");
+         return new OutputSpec("archive", segPath, 0, EncoderProfile.X264, archiveCrf_, archivePreset_,
+               OutputSpec.FORMAT_MP4, gop);
+      }
+      logInfo_("Using calibrated encoder profile for " + w + "x" + h + ": " + profile);
+      return new OutputSpec("archive", segPath, 0, profile.codec,
+            EncoderProfile.equivalentCrf(profile.codec, archiveCrf_), profile.preset, OutputSpec.FORMAT_MP4, gop);
+   }
+
+   /**
+    * Fails early if FFmpeg cannot record at all and turns off options this
+    * build does not support, instead of letting FFmpeg exit mid-recording.
+    */
+   private void applyCapabilities(FfmpegCapabilities caps) throws IOException {
+      if (!caps.isUsable()) {
+         throw new IOException("FFmpeg is not usable: " + caps.describe()
+               + ". Check the FFmpeg path in the MP4 Stream settings.");
+      }
+      if (!caps.hasEncoder("libx264")) {
+         throw new IOException(caps.version + " (" + caps.path + ") has no libx264 encoder");
       }
+      logDebug_("FFmpeg: " + caps.describe());
 
-      // Check if any overlay is enabled
-      if (!timestampEnabled_ && !scalebarEnabled_) {
-         return;
+      if (streamEnabled_ && !caps.hasMuxer("hls")) {
+         logWarn_("FFmpeg has no HLS muxer; live stream disabled for this segment");
+         streamEnabled_ = false;
+      }
+      if (MP4StreamConfigurator.OVERLAY_BACKEND_FFMPEG.equals(overlayBackend_)
+            && (!caps.hasFilter("drawtext") || !caps.hasFilter("drawbox"))) {
+         logWarn_("FFmpeg was built without drawtext; drawing overlays in Java");
+         overlayBackend_ = MP4StreamConfigurator.OVERLAY_BACKEND_JAVA;
       }
+   }
 
-      // Copy into BufferedImage backing
-      byte[] backing = ((DataBufferByte) grayImg_.getRaster().getDataBuffer()).getData();
-      System.arraycopy(plane8, 0, backing, 0, Math.min(plane8.length, backing.length));
+   /**
+    * With the FFmpeg overlay backend, returns the drawtext/drawbox chain for
+    * this segment and marks which overlays FFmpeg takes over. Δt comes from
+    * the frame PTS, so it needs the constant-rate modes; in realtime mode
+    * every frame is 1/fps apart regardless of acquisition time and the
+    * timestamp stays on the Java side. So it does in session mode, where Δt
+    * jumps by the length of each pause but video time does not.
+    */
+   private String buildOverlayFilter(int w, int h) {
+      ffmpegTimestamp_ = false;
+      ffmpegScalebar_ = false;
+      if (!MP4StreamConfigurator.OVERLAY_BACKEND_FFMPEG.equals(overlayBackend_)) {
+         return null;
+      }
 
-      // Determine colors
-      Color textColor = MP4StreamConfigurator.COLOR_BLACK.equals(timestampColor_) 
-            ? Color.BLACK : Color.WHITE;
-      Color shadowColor = (textColor == Color.WHITE) ? Color.BLACK : Color.WHITE;
-      Color bgColor = new Color(
-            shadowColor.getRed(), shadowColor.getGreen(), shadowColor.getBlue(), 180);
+      String textColor = MP4StreamConfigurator.COLOR_BLACK.equals(timestampColor_) ? "black" : "white";
+      String shadowColor = "black".equals(textColor) ? "white" : "black";
+      List<String> filters = new ArrayList<>();
 
-      // Draw timestamp overlay (top-left)
       if (timestampEnabled_) {
-         String text = "\u0394t " + formatElapsedHhMmSsMmm(dtSec);
-         g2d_.setFont(new Font("Monospaced", Font.BOLD, fontSize_));
-
-         java.awt.FontMetrics fm = g2d_.getFontMetrics();
-         int textWidth = fm.stringWidth(text);
-         int textHeight = fm.getHeight();
-         int margin = 10;
-         int textX = margin;
-         int textY = margin + fm.getAscent();
-
-         if (timestampBackground_) {
-            g2d_.setColor(bgColor);
-            g2d_.fillRect(margin - 5, margin - 2, textWidth + 10, textHeight + 4);
+         if (MP4StreamConfigurator.MODE_REALTIME.equals(recordingMode_)) {
+            logInfo_("Realtime mode has no constant frame clock; drawing the timestamp in Java");
+         } else if (sessionMode_) {
+            logInfo_("Session mode skips pauses in video time; drawing the timestamp in Java");
+         } else {
+            double timeScale = MP4StreamConfigurator.MODE_TIMELAPSE.equals(recordingMode_)
+                  ? timelapseFactor_ : 1.0;
+            filters.add(FfmpegOverlayFilter.timestamp(fontSize_, textColor, shadowColor,
+                  timestampBackground_, timeScale));
+            ffmpegTimestamp_ = true;
          }
-
-         g2d_.setColor(shadowColor);
-         g2d_.drawString(text, textX + 1, textY + 1);
-         g2d_.setColor(textColor);
-         g2d_.drawString(text, textX, textY);
       }
-
-      // Draw scale bar (bottom-right) - read pixel size fresh each time
-      // to handle objective changes during recording
       if (scalebarEnabled_) {
-         double currentPixelSize = getPixelSizeUm();
-         if (currentPixelSize > 0) {
-            drawScaleBar(w, h, textColor, shadowColor, bgColor, currentPixelSize);
+         String bar = FfmpegOverlayFilter.scaleBar(w, h, pixelSizeUm_, scalebarLengthUm_, fontSize_,
+               textColor, shadowColor, timestampBackground_);
+         if (bar != null) {
+            filters.add(bar);
          }
+         // Without a pixel size neither backend can draw it
+         ffmpegScalebar_ = true;
       }
-
-      // Copy back out
-      System.arraycopy(backing, 0, plane8, 0, Math.min(plane8.length, backing.length));
+      return filters.isEmpty() ? null : String.join(",", filters);
    }
 
-   private void drawScaleBar(int w, int h, Color textColor, 
-         Color shadowColor, Color bgColor, double pixelSizeUm) {
-      double scaleUm;
+   /** Builds the overlay layers for this segment from the loaded settings. */
+   private void buildOverlay() {
+      overlay_ = OverlayCompositor.standard(timestampEnabled_ && !ffmpegTimestamp_,
+            scalebarEnabled_ && !ffmpegScalebar_, fontSize_,
+            MP4StreamConfigurator.COLOR_BLACK.equals(timestampColor_), timestampBackground_,
+            scalebarLengthUm_);
+   }
 
-      if (scalebarLengthUm_ > 0) {
-         // Use user-specified length
-         scaleUm = scalebarLengthUm_;
-      } else {
-         // Auto-calculate: find a nice round number (~15% of image width)
-         double imageWidthUm = w * pixelSizeUm;
-         double targetUm = imageWidthUm * 0.15;
-         double[] niceValues = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
-         scaleUm = niceValues[0];
-         for (double v : niceValues) {
-            if (v <= targetUm) {
-               scaleUm = v;
-            } else {
-               break;
-            }
-         }
-      }
+   private void disposeOverlay() {
+      overlay_ = null;
+   }
 
-      // Log scale bar calculation once per segment
-      if (!scaleBarLoggedThisSegment_) {
-         logDebug_(String.format(java.util.Locale.US, 
-               "Scale bar: pixelSize=%.4f µm, imageWidth=%.0f µm, scaleUm=%.0f",
-               pixelSizeUm, w * pixelSizeUm, scaleUm));
-         scaleBarLoggedThisSegment_ = true;
+   private void overlayDeltaT(byte[] plane8, int w, int h, double dtSec) {
+      if (overlay_ == null) {
+         return;
       }
 
-      int barLengthPx = (int) Math.round(scaleUm / pixelSizeUm);
-      if (barLengthPx < 20) barLengthPx = 20; // Minimum visible length
-      if (barLengthPx > w - 20) barLengthPx = w - 20; // Max 
-
-      // Position: bottom-right with margin
-      int margin = 15;
-      int barHeight = Math.max(4, fontSize_ / 3); // Scale bar height proportional to font
-      int barX = w - margin - barLengthPx;
-      int barY = h - margin - barHeight;
-
-      // Format label
-      String label = (scaleUm >= 1000) ? 
-            String.format(java.util.Locale.US, "%.0f mm", scaleUm / 1000) :
-            String.format(java.util.Locale.US, "%.0f µm", scaleUm);
+      OverlayLayer.Context ctx = overlay_.context();
+      ctx.dtSec = dtSec;
 
-      // Use slightly smaller font for scale bar label
-      int scalebarFontSize = Math.max(10, fontSize_ * 3 / 4);
-      g2d_.setFont(new Font("SansSerif", Font.BOLD, scalebarFontSize));
-      java.awt.FontMetrics fm = g2d_.getFontMetrics();
-      int labelWidth = fm.stringWidth(label);
-      int labelX = barX + (barLengthPx - labelWidth) / 2;
-      int labelY = barY - 4;
+      // Read pixel size fresh each time to handle objective changes during
+      // recording; the scale bar only re-renders when it actually changes
+      if (scalebarEnabled_ && !ffmpegScalebar_) {
+         double currentPixelSize = getPixelSizeUm() / canvasScale_;
+         ctx.pixelSizeUm = currentPixelSize;
 
-      if (timestampBackground_) {
-         // Draw background for better visibility
-         g2d_.setColor(bgColor);
-         g2d_.fillRect(barX - 5, labelY - fm.getAscent() - 2, 
-               barLengthPx + 10, fm.getHeight() + barHeight + 10);
+         // Log scale bar calculation once per segment
+         if (!scaleBarLoggedThisSegment_ && currentPixelSize > 0) {
+            logDebug_(String.format(java.util.Locale.US,
+                  "Scale bar: pixelSize=%.4f µm, imageWidth=%.0f µm, scaleUm=%.0f",
+                  currentPixelSize, w * currentPixelSize,
+                  ScaleBarLayer.chooseScaleUm(w, currentPixelSize, scalebarLengthUm_)));
+            scaleBarLoggedThisSegment_ = true;
+         }
       }
 
-      // Draw scale bar
-      g2d_.setColor(shadowColor);
-      g2d_.fillRect(barX + 1, barY + 1, barLengthPx, barHeight);
-      g2d_.setColor(textColor);
-      g2d_.fillRect(barX, barY, barLengthPx, barHeight);
-
-      // Draw label
-      g2d_.setColor(shadowColor);
-      g2d_.drawString(label, labelX + 1, labelY + 1);
-      g2d_.setColor(textColor);
-      g2d_.drawString(label, labelX, labelY);
+      overlay_.apply(plane8, w, h);
    }
 
-
    /**
     * Minimal FFmpeg wrapper that captures stderr tail for diagnostics.
+    *
+    * <p>With a spool, frames are handed to a writer thread instead of being
+    * written on the caller's thread. While the writer is busy (FFmpeg not
+    * keeping up), further frames are appended to the disk spool and drained
+    * in order behind the live edge, so no frame is dropped or blocks the
+    * camera thread unless the spool itself is full.
     */
    private static final class FfmpegSession implements AutoCloseable {
       private final Process proc_;
-      private final OutputStream stdin_;
+      private final FrameTransport transport_;
+      private final YuvFrames yuv_; // null: frames go to FFmpeg as gray8
+      private boolean packed_ = false; // yuv_ holds the last frame sent (sending thread only)
       private final Thread stderrDrainer_;
       private final ArrayList<String> stderrTail_ = new ArrayList<>();
       private static final int MAX_STDERR_LINES = 50;
       private static final int CLOSE_TIMEOUT_SECONDS = 30;
 
+      // Spooled (asynchronous) writing; all guarded by queueLock_. A
+      // ReentrantLock, not a monitor: the writer may be a virtual thread,
+      // and waiting inside synchronized would pin its carrier (JDK 21).
+      private final FrameSpool spool_;
+      private final ReentrantLock queueLock_ = new ReentrantLock();
+      private final Condition queueChanged_ = queueLock_.newCondition();
+      private Thread writer_ = null;
+      private byte[] pending_ = null;   // next frame handed to the writer
+      private boolean pendingFull_ = false;
+      private boolean pendingUnchanged_ = false; // pending_ not filled: resend writing_
+      private boolean handedOff_ = false;        // the writer has a frame to resend
+      private byte[] writing_ = null;   // owned by the writer thread
+      private boolean closing_ = false;
+      private IOException writeError_ = null;
+      private long spooledFrames_ = 0;
+      private long spoolFullWaits_ = 0;
+
       FfmpegSession(List<String> cmd) throws IOException {
-         ProcessBuilder pb = new ProcessBuilder(cmd);
-         pb.redirectErrorStream(false);
-         proc_ = pb.start();
-         stdin_ = new BufferedOutputStream(proc_.getOutputStream(), 1 << 20);
+         this(cmd, null, FrameTransport.stdin(), null);
+      }
+
+      /**
+       * cmd must read its input from transport.inputUrl(), as yuv420p if yuv
+       * is given (frames are still handed in as gray8 and spooled as such).
+       */
+      FfmpegSession(List<String> cmd, FrameSpool spool, FrameTransport transport, YuvFrames yuv)
+            throws IOException {
+         transport_ = transport;
+         yuv_ = yuv;
+         // A failed start must not leave the process or its pipe behind
+         Process proc = null;
+         try {
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(false);
+            proc = pb.start();
+            final Process started = proc;
+            stderrDrainer_ = IoThreads.start("ffmpeg-stderr", () -> captureStderr(started.getErrorStream()));
+            transport_.connect(proc);
+         } catch (IOException | RuntimeException e) {
+            if (proc != null) {
+               proc.destroyForcibly();
+            }
+            try { transport_.close(); } catch (Exception ignored) {}
+            throw e;
+         }
+         proc_ = proc;
+
+         spool_ = spool;
+         if (spool_ != null) {
+            writer_ = IoThreads.start("ffmpeg-writer", this::drainLoop);
+         }
+      }
 
-         stderrDrainer_ = new Thread(() -> captureStderr(proc_.getErrorStream()), "ffmpeg-stderr");
-         stderrDrainer_.setDaemon(true);
-         stderrDrainer_.start();
+      void writeFrame(byte[] gray8, double tSec) throws IOException {
+         writeFrame(gray8, tSec, false);
       }
 
-      void writeFrame(byte[] gray8) throws IOException {
-         stdin_.write(gray8);
+      /**
+       * @param unchanged gray8 holds the same pixels as the frame written just
+       *                  before (a CFR gap fill): it is not copied or packed again
+       */
+      void writeFrame(byte[] gray8, double tSec, boolean unchanged) throws IOException {
+         if (spool_ == null) {
+            send(gray8, unchanged);
+            return;
+         }
+         queueLock_.lock();
+         try {
+            if (writeError_ != null) {
+               throw writeError_;
+            }
+            // Fast path: writer idle and nothing spooled ahead of this frame
+            if (!pendingFull_ && spool_.isEmpty()) {
+               // Everything before this frame has reached the writer, so an
+               // unchanged frame is what it last took
+               pendingUnchanged_ = unchanged && handedOff_;
+               if (!pendingUnchanged_) {
+                  if (pending_ == null || pending_.length != gray8.length) {
+                     pending_ = new byte[gray8.length];
+                  }
+                  System.arraycopy(gray8, 0, pending_, 0, gray8.length);
+               }
+               pendingFull_ = true;
+               handedOff_ = true;
+               queueChanged_.signalAll();
+               return;
+            }
+            // Overrun: append behind whatever is already queued
+            while (!spool_.append(gray8, tSec)) {
+               spoolFullWaits_++;
+               try {
+                  queueChanged_.await(100, TimeUnit.MILLISECONDS);
+               } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+                  throw new IOException("Interrupted while waiting for a full spool");
+               }
+               if (writeError_ != null) {
+                  throw writeError_;
+               }
+            }
+            spooledFrames_++;
+            handedOff_ = true;
+            queueChanged_.signalAll();
+         } finally {
+            queueLock_.unlock();
+         }
+      }
+
+      long spooledFrames() {
+         queueLock_.lock();
+         try {
+            return spooledFrames_;
+         } finally {
+            queueLock_.unlock();
+         }
+      }
+
+      long spoolPeakBacklog() {
+         queueLock_.lock();
+         try {
+            return (spool_ == null) ? 0 : spool_.peakCount();
+         } finally {
+            queueLock_.unlock();
+         }
+      }
+
+      long spoolFullWaits() {
+         queueLock_.lock();
+         try {
+            return spoolFullWaits_;
+         } finally {
+            queueLock_.unlock();
+         }
+      }
+
+      private void drainLoop() {
+         try {
+            while (true) {
+               byte[] toWrite;
+               boolean unchanged = false;
+               queueLock_.lock();
+               try {
+                  while (!pendingFull_ && spool_.isEmpty() && !closing_) {
+                     queueChanged_.await();
+                  }
+                  if (pendingFull_) {
+                     // The handed-off frame is always older than anything spooled
+                     unchanged = pendingUnchanged_;
+                     if (!unchanged) {
+                        byte[] t = writing_;
+                        writing_ = pending_;
+                        pending_ = t;
+                     }
+                     pendingFull_ = false;
+                  } else if (!spool_.isEmpty()) {
+                     int n = spool_.getWidth() * spool_.getHeight();
+                     if (writing_ == null || writing_.length != n) {
+                        writing_ = new byte[n];
+                     }
+                     spool_.readNext(writing_);
+                  } else {
+                     return; // closing and fully drained
+                  }
+                  toWrite = writing_;
+                  queueChanged_.signalAll(); // producer may be waiting for spool space
+               } finally {
+                  queueLock_.unlock();
+               }
+               send(toWrite, unchanged);
+            }
+         } catch (IOException e) {
+            queueLock_.lock();
+            try {
+               writeError_ = e;
+               queueChanged_.signalAll();
+            } finally {
+               queueLock_.unlock();
+            }
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      // One thread at a time: the caller without a spool, else the writer
+      private void send(byte[] gray8, boolean unchanged) throws IOException {
+         if (yuv_ == null) {
+            transport_.write(gray8);
+            return;
+         }
+         transport_.write((unchanged && packed_) ? yuv_.packed() : yuv_.pack(gray8));
+         packed_ = true;
       }
 
       int exitCode() {
@@ -1163,8 +2443,29 @@ public final class MP4StreamProcessor implements Processor {
 
       @Override
       public void close() throws IOException {
-         try { stdin_.flush(); } catch (Exception ignored) {}
-         try { stdin_.close(); } catch (Exception ignored) {}
+         if (spool_ != null) {
+            // Let the writer catch up on everything spooled before closing stdin
+            queueLock_.lock();
+            try {
+               closing_ = true;
+               queueChanged_.signalAll();
+            } finally {
+               queueLock_.unlock();
+            }
+            try {
+               writer_.join();
+            } catch (InterruptedException ie) {
+               Thread.currentThread().interrupt();
+            }
+            queueLock_.lock();
+            try {
+               spool_.closeAndDeleteIfEmpty();
+            } catch (IOException ignored) {
+            } finally {
+               queueLock_.unlock();
+            }
+         }
+         try { transport_.close(); } catch (Exception ignored) {}
          try {
             if (!proc_.waitFor(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
                proc_.destroyForcibly();
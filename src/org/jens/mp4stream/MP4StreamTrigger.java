@@ -0,0 +1,65 @@
+package org.jens.mp4stream;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trigger for the pre-trigger buffer mode: saves the buffered frames plus the
+ * configured post-trigger time into a new segment.
+ *
+ * <p>From a script (Tools → Script Panel):
+ * <pre>
+ * org.jens.mp4stream.MP4StreamTrigger.fire();
+ * </pre>
+ * or via the event bus:
+ * <pre>
+ * mm.events().post(new org.jens.mp4stream.MP4StreamTrigger.Event());
+ * </pre>
+ *
+ * <p>{@link #endSession()} (or {@link EndSessionEvent}) finalizes the
+ * segment a session-mode recording keeps open while Live is paused.
+ */
+public final class MP4StreamTrigger {
+
+   // Processors compare against the generation they last acted on, so a
+   // single fire() reaches every armed processor exactly once.
+   private static final AtomicLong GENERATION = new AtomicLong();
+
+   // Processors, for endSession(); a paused session gets no frames to poll with
+   private static final List<Runnable> SESSION_LISTENERS = new CopyOnWriteArrayList<>();
+
+   private MP4StreamTrigger() {
+   }
+
+   public static void fire() {
+      GENERATION.incrementAndGet();
+   }
+
+   static long generation() {
+      return GENERATION.get();
+   }
+
+   /** Finalizes every open session-mode segment, paused or not. */
+   public static void endSession() {
+      for (Runnable r : SESSION_LISTENERS) {
+         r.run();
+      }
+   }
+
+   static void addSessionListener(Runnable r) {
+      SESSION_LISTENERS.add(r);
+   }
+
+   static void removeSessionListener(Runnable r) {
+      SESSION_LISTENERS.remove(r);
+   }
+
+   /** Event-bus form of {@link #fire()}. */
+   public static final class Event {
+   }
+
+   /** Event-bus form of {@link #endSession()}. */
+   public static final class EndSessionEvent {
+   }
+}
@@ -0,0 +1,103 @@
+package org.jens.mp4stream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the top-level scalar entries of the JSON metadata Micro-Manager
+ * stores with each image ("ElapsedTime-ms", "PixelSizeUm", axis indices).
+ * Nested objects and arrays are skipped; this is not a general JSON parser.
+ */
+final class MetadataJson {
+
+   private MetadataJson() {}
+
+   /**
+    * Top-level keys with number, string or boolean values, as text (strings
+    * unquoted, escapes other than \" and \\ left as is). JSON null is omitted.
+    */
+   static Map<String, String> scalars(String json) {
+      Map<String, String> out = new LinkedHashMap<>();
+      final int n = json.length();
+      int depth = 0;
+      for (int i = 0; i < n; i++) {
+         char c = json.charAt(i);
+         if (c == '"') {
+            int end = stringEnd(json, i);
+            int colon = skipSpace(json, end + 1);
+            if (depth == 1 && colon < n && json.charAt(colon) == ':') {
+               int v = skipSpace(json, colon + 1);
+               if (v < n && json.charAt(v) == '"') {
+                  int vEnd = stringEnd(json, v);
+                  out.put(unescape(json, i + 1, end), unescape(json, v + 1, vEnd));
+                  i = vEnd;
+                  continue;
+               }
+               if (v < n && json.charAt(v) != '{' && json.charAt(v) != '[') {
+                  int vEnd = v;
+                  while (vEnd < n && ",}] \t\r\n".indexOf(json.charAt(vEnd)) < 0) {
+                     vEnd++;
+                  }
+                  String value = json.substring(v, vEnd);
+                  if (!"null".equals(value)) {
+                     out.put(unescape(json, i + 1, end), value);
+                  }
+                  i = vEnd - 1;
+                  continue;
+               }
+            }
+            i = end;
+         } else if (c == '{' || c == '[') {
+            depth++;
+         } else if (c == '}' || c == ']') {
+            depth--;
+         }
+      }
+      return out;
+   }
+
+   static double number(Map<String, String> md, String key, double fallback) {
+      String s = md.get(key);
+      if (s == null) {
+         return fallback;
+      }
+      try {
+         return Double.parseDouble(s.trim());
+      } catch (NumberFormatException e) {
+         return fallback;
+      }
+   }
+
+   static int integer(Map<String, String> md, String key, int fallback) {
+      double d = number(md, key, Double.NaN);
+      return Double.isNaN(d) ? fallback : (int) d;
+   }
+
+   // Index of the quote closing the string that opens at start
+   private static int stringEnd(String s, int start) {
+      for (int i = start + 1; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '\\') {
+            i++;
+         } else if (c == '"') {
+            return i;
+         }
+      }
+      return s.length();
+   }
+
+   private static int skipSpace(String s, int i) {
+      while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+         i++;
+      }
+      return i;
+   }
+
+   private static String unescape(String s, int from, int to) {
+      String raw = s.substring(from, Math.min(to, s.length()));
+      if (raw.indexOf('\\') < 0) {
+         return raw;
+      }
+      return raw.replace("\\\"", "\"").replace("\\\\", "\\");
+   }
+}
@@ -0,0 +1,130 @@
+package org.jens.mp4stream;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Multi-camera mosaic: the 8-bit frames of N cameras are tiles of one
+ * canvas (side by side, or a grid), so one encoder records them all. A
+ * mosaic frame is composed when every camera has delivered a frame since
+ * the last one. A camera that is late or stopped only holds it for the
+ * bounded wait, counted in Δt from the first frame of the set; then its
+ * previous frame is used. Frames arrive one at a time on the processor
+ * thread, so the wait never blocks: it ends with the next frame that is
+ * past it.
+ *
+ * <p>Each frame is converted into {@link #incoming()} and handed over with
+ * {@link #offer}, which swaps it into the camera's tile without copying.
+ */
+final class Mosaic {
+
+   final int cameras;
+   final int columns;
+   final int rows;
+   final int tileWidth;
+   final int tileHeight;
+   final int width;
+   final int height;
+
+   private final double waitSec_;
+   private final byte[][] tiles_;
+   private final boolean[] fresh_;
+   private byte[] incoming_;
+   private int freshCount_ = 0;
+   private double setStartSec_ = 0.0; // Δt of the first frame of the pending set
+   private double setDtSec_ = 0.0;    // Δt of its newest frame
+   private double dtSec_ = 0.0;       // of the last composed frame
+
+   /**
+    * @param columns tiles per row; 0 = side by side up to three cameras, else a square-ish grid
+    * @param waitSec how long (Δt) a set waits for its last cameras
+    */
+   Mosaic(int cameras, int columns, int tileWidth, int tileHeight, double waitSec) {
+      this.cameras = Math.max(1, cameras);
+      this.columns = (columns > 0) ? Math.min(columns, this.cameras) : autoColumns(this.cameras);
+      this.rows = (this.cameras + this.columns - 1) / this.columns;
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+      this.width = this.columns * tileWidth;
+      this.height = rows * tileHeight;
+      waitSec_ = Math.max(0.0, waitSec);
+      tiles_ = new byte[this.cameras][tileWidth * tileHeight];
+      fresh_ = new boolean[this.cameras];
+      incoming_ = new byte[tileWidth * tileHeight];
+   }
+
+   static int autoColumns(int cameras) {
+      return (cameras <= 3) ? cameras : (int) Math.ceil(Math.sqrt(cameras));
+   }
+
+   /** For the log, e.g. "2 cameras, 2x1 tiles of 1024x1024 -> 2048x1024". */
+   String describe() {
+      return String.format(Locale.US, "%d camera%s, %dx%d tiles of %dx%d -> %dx%d",
+            cameras, (cameras == 1) ? "" : "s", columns, rows, tileWidth, tileHeight, width, height);
+   }
+
+   /** Buffer (tileWidth x tileHeight) to convert the next camera frame into. */
+   byte[] incoming() {
+      return incoming_;
+   }
+
+   /**
+    * Takes the frame in {@link #incoming()} as camera's tile. If this
+    * completes a set, or the pending set is given up on (camera already
+    * has a frame in it, or its wait is over), composes the set into out
+    * (width x height) and returns true; {@link #dtSec()} is then its Δt.
+    * A frame that ends a set by waiting starts the next one.
+    */
+   boolean offer(int camera, double dtSec, byte[] out) {
+      boolean composed = false;
+      if (freshCount_ > 0 && (fresh_[camera] || dtSec - setStartSec_ > waitSec_)) {
+         compose(out);
+         composed = true;
+      }
+      final byte[] t = tiles_[camera];
+      tiles_[camera] = incoming_;
+      incoming_ = t;
+      if (freshCount_ == 0) {
+         setStartSec_ = dtSec;
+         setDtSec_ = dtSec;
+      } else {
+         setDtSec_ = Math.max(setDtSec_, dtSec);
+      }
+      fresh_[camera] = true;
+      freshCount_++;
+      if (!composed && freshCount_ == cameras) {
+         compose(out);
+         composed = true;
+      }
+      return composed;
+   }
+
+   /** Δt of the last composed frame: that of its newest camera frame. */
+   double dtSec() {
+      return dtSec_;
+   }
+
+   /** Drops the pending set (new segment: Δt restarts); tiles keep their last frames. */
+   void restart() {
+      Arrays.fill(fresh_, false);
+      freshCount_ = 0;
+   }
+
+   private void compose(byte[] out) {
+      for (int c = 0; c < columns * rows; c++) {
+         final int x0 = (c % columns) * tileWidth;
+         final int y0 = (c / columns) * tileHeight;
+         final byte[] tile = (c < cameras) ? tiles_[c] : null;
+         for (int y = 0; y < tileHeight; y++) {
+            final int dst = (y0 + y) * width + x0;
+            if (tile != null) {
+               System.arraycopy(tile, y * tileWidth, out, dst, tileWidth);
+            } else {
+               Arrays.fill(out, dst, dst + tileWidth, (byte) 0); // empty cell; out is reused
+            }
+         }
+      }
+      dtSec_ = setDtSec_;
+      restart();
+   }
+}
@@ -0,0 +1,236 @@
+package org.jens.mp4stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro-Manager multipage TIFF (MMStack_Pos*.ome.tif and continuation
+ * files). Each IFD is one uncompressed gray plane; its JSON metadata is in
+ * the private Micro-Manager tag. BigTIFF, compression and RGB are not
+ * supported (Micro-Manager does not write them).
+ */
+final class MultipageTiffDataset implements StoredDataset {
+
+   private static final int TAG_WIDTH = 256;
+   private static final int TAG_HEIGHT = 257;
+   private static final int TAG_BITS_PER_SAMPLE = 258;
+   private static final int TAG_COMPRESSION = 259;
+   private static final int TAG_STRIP_OFFSETS = 273;
+   private static final int TAG_SAMPLES_PER_PIXEL = 277;
+   private static final int TAG_STRIP_BYTE_COUNTS = 279;
+   private static final int TAG_MM_METADATA = 51123;
+
+   private static final int TYPE_SHORT = 3;
+
+   private final String name_;
+   private final List<RandomAccessFile> files_;
+   private final List<Plane> planes_;
+
+   private MultipageTiffDataset(String name, List<RandomAccessFile> files, List<Plane> planes) {
+      name_ = name;
+      files_ = files;
+      planes_ = planes;
+   }
+
+   static MultipageTiffDataset open(File path) throws IOException {
+      File[] tiffs = path.isDirectory()
+            ? path.listFiles((d, n) -> n.toLowerCase().endsWith(".tif") || n.toLowerCase().endsWith(".tiff"))
+            : new File[]{path};
+      if (tiffs == null || tiffs.length == 0) {
+         throw new IOException("No NDTiff.index or TIFF files in " + path);
+      }
+      Arrays.sort(tiffs); // Pos0.ome.tif before its continuation Pos0_1.ome.tif
+
+      String name = path.getName();
+      if (!path.isDirectory()) {
+         name = name.replaceFirst("(?i)(\\.ome)?\\.tiff?$", "");
+      }
+      List<RandomAccessFile> files = new ArrayList<>();
+      List<Plane> planes = new ArrayList<>();
+      try {
+         for (File f : tiffs) {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            files.add(raf);
+            readPlanes(f, raf.getChannel(), planes);
+         }
+      } catch (IOException | RuntimeException e) {
+         for (RandomAccessFile raf : files) {
+            try { raf.close(); } catch (IOException ignored) {}
+         }
+         throw e;
+      }
+      return new MultipageTiffDataset(name, files, Collections.unmodifiableList(planes));
+   }
+
+   @Override
+   public String name() {
+      return name_;
+   }
+
+   @Override
+   public List<Plane> planes() {
+      return planes_;
+   }
+
+   @Override
+   public void close() throws IOException {
+      for (RandomAccessFile raf : files_) {
+         raf.close();
+      }
+   }
+
+   private static void readPlanes(File f, FileChannel ch, List<Plane> planes) throws IOException {
+      ByteBuffer header = read(ch, 0, 8, ByteOrder.LITTLE_ENDIAN);
+      ByteOrder order;
+      if (header.get(0) == 'I' && header.get(1) == 'I') {
+         order = ByteOrder.LITTLE_ENDIAN;
+      } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+         order = ByteOrder.BIG_ENDIAN;
+      } else {
+         throw new IOException("Not a TIFF file: " + f);
+      }
+      header.order(order);
+      if (header.getShort(2) != 42) {
+         throw new IOException("BigTIFF is not supported: " + f);
+      }
+
+      final long size = ch.size();
+      long ifd = header.getInt(4) & 0xFFFFFFFFL;
+      while (ifd != 0 && ifd + 2 <= size) {
+         int count = read(ch, ifd, 2, order).getShort(0) & 0xFFFF;
+         ByteBuffer entries = read(ch, ifd + 2, count * 12 + 4, order);
+
+         int width = 0;
+         int height = 0;
+         int bits = 8;
+         int samples = 1;
+         int compression = 1;
+         long[] stripOffsets = null;
+         long[] stripBytes = null;
+         String json = null;
+         for (int i = 0; i < count; i++) {
+            int e = i * 12;
+            int tag = entries.getShort(e) & 0xFFFF;
+            switch (tag) {
+               case TAG_WIDTH: width = (int) value(entries, e); break;
+               case TAG_HEIGHT: height = (int) value(entries, e); break;
+               case TAG_BITS_PER_SAMPLE: bits = (int) value(entries, e); break;
+               case TAG_SAMPLES_PER_PIXEL: samples = (int) value(entries, e); break;
+               case TAG_COMPRESSION: compression = (int) value(entries, e); break;
+               case TAG_STRIP_OFFSETS: stripOffsets = values(ch, entries, e, order); break;
+               case TAG_STRIP_BYTE_COUNTS: stripBytes = values(ch, entries, e, order); break;
+               case TAG_MM_METADATA: json = text(ch, entries, e, order); break;
+               default: break;
+            }
+         }
+         if (compression != 1 || samples != 1 || (bits != 8 && bits != 16)) {
+            throw new IOException("Unsupported image format in " + f + " (compression " + compression
+                  + ", " + samples + " samples of " + bits + " bits)");
+         }
+         if (stripOffsets == null || stripBytes == null || !contiguous(stripOffsets, stripBytes)) {
+            throw new IOException("Unsupported strip layout in " + f);
+         }
+
+         Map<String, String> md = MetadataJson.scalars(json != null ? json : "{}");
+         int bytesPerPixel = bits / 8;
+         planes.add(new Plane(
+               first(md, "", "PositionIndex"),
+               first(md, md.getOrDefault("Channel", ""), "ChannelIndex"),
+               Integer.parseInt(first(md, "0", "SliceIndex", "Slice")),
+               Integer.parseInt(first(md, "0", "FrameIndex", "Frame")),
+               width, height, bytesPerPixel,
+               MetadataJson.integer(md, "BitDepth", bits),
+               MetadataJson.number(md, "ElapsedTime-ms", Double.NaN),
+               MetadataJson.number(md, "PixelSizeUm", 0.0),
+               ch, stripOffsets[0], order));
+
+         ifd = entries.getInt(count * 12) & 0xFFFFFFFFL;
+      }
+   }
+
+   // First of the keys holding an integer, as text (Micro-Manager versions differ in key names)
+   private static String first(Map<String, String> md, String fallback, String... keys) {
+      for (String k : keys) {
+         int v = MetadataJson.integer(md, k, Integer.MIN_VALUE);
+         if (v != Integer.MIN_VALUE) {
+            return Integer.toString(v);
+         }
+      }
+      return fallback;
+   }
+
+   private static boolean contiguous(long[] offsets, long[] bytes) {
+      if (offsets.length == 0 || offsets.length != bytes.length) {
+         return false;
+      }
+      for (int i = 1; i < offsets.length; i++) {
+         if (offsets[i] != offsets[i - 1] + bytes[i - 1]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // Single SHORT or LONG value of the entry at e
+   private static long value(ByteBuffer entries, int e) {
+      if ((entries.getShort(e + 2) & 0xFFFF) == TYPE_SHORT) {
+         return entries.getShort(e + 8) & 0xFFFF;
+      }
+      return entries.getInt(e + 8) & 0xFFFFFFFFL;
+   }
+
+   private static long[] values(FileChannel ch, ByteBuffer entries, int e, ByteOrder order) throws IOException {
+      boolean shorts = (entries.getShort(e + 2) & 0xFFFF) == TYPE_SHORT;
+      int n = entries.getInt(e + 4);
+      int bytes = n * (shorts ? 2 : 4);
+      ByteBuffer b;
+      if (bytes <= 4) {
+         b = entries.duplicate().order(order);
+         b.position(e + 8);
+         b = b.slice().order(order);
+      } else {
+         b = read(ch, entries.getInt(e + 8) & 0xFFFFFFFFL, bytes, order);
+      }
+      long[] v = new long[n];
+      for (int i = 0; i < n; i++) {
+         v[i] = shorts ? (b.getShort(i * 2) & 0xFFFF) : (b.getInt(i * 4) & 0xFFFFFFFFL);
+      }
+      return v;
+   }
+
+   private static String text(FileChannel ch, ByteBuffer entries, int e, ByteOrder order) throws IOException {
+      int n = entries.getInt(e + 4);
+      if (n <= 4) {
+         return null; // too short to be JSON
+      }
+      ByteBuffer b = read(ch, entries.getInt(e + 8) & 0xFFFFFFFFL, n, order);
+      byte[] bytes = new byte[n];
+      b.get(bytes);
+      int len = n;
+      while (len > 0 && bytes[len - 1] == 0) {
+         len--; // ASCII values are NUL-terminated
+      }
+      return new String(bytes, 0, len, StandardCharsets.UTF_8);
+   }
+
+   private static ByteBuffer read(FileChannel ch, long pos, int n, ByteOrder order) throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(n).order(order);
+      while (b.hasRemaining()) {
+         if (ch.read(b, pos + b.position()) < 0) {
+            throw new IOException("Unexpected end of file");
+         }
+      }
+      b.flip();
+      return b;
+   }
+}
@@ -0,0 +1,189 @@
+package org.jens.mp4stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NDTiff dataset (Micro-Manager 2.0 "NDTiff" storage, pycro-manager). The
+ * NDTiff.index file lists every image with its axes, file, pixel and
+ * metadata offsets, so no TIFF structure needs to be walked.
+ *
+ * <p>Index entry (little-endian): int axesLength, axes JSON, int
+ * filenameLength, filename, then uint pixelOffset, int width, int height,
+ * int pixelType, int pixelCompression, uint metadataOffset, int
+ * metadataLength, int metadataCompression.
+ */
+final class NDTiffDataset implements StoredDataset {
+
+   static final String INDEX_NAME = "NDTiff.index";
+
+   // Axes that are not positions
+   private static final String AXIS_CHANNEL = "channel";
+   private static final String AXIS_Z = "z";
+   private static final String AXIS_TIME = "time";
+
+   private final String name_;
+   private final Map<String, RandomAccessFile> files_;
+   private final List<Plane> planes_;
+
+   private NDTiffDataset(String name, Map<String, RandomAccessFile> files, List<Plane> planes) {
+      name_ = name;
+      files_ = files;
+      planes_ = planes;
+   }
+
+   static NDTiffDataset open(File dir) throws IOException {
+      Map<String, RandomAccessFile> files = new LinkedHashMap<>();
+      Map<String, ByteOrder> orders = new LinkedHashMap<>();
+      List<Plane> planes = new ArrayList<>();
+      try (RandomAccessFile indexFile = new RandomAccessFile(new File(dir, INDEX_NAME), "r")) {
+         FileChannel ich = indexFile.getChannel();
+         MappedByteBuffer index = ich.map(FileChannel.MapMode.READ_ONLY, 0, ich.size());
+         index.order(ByteOrder.LITTLE_ENDIAN);
+
+         // An acquisition that did not finish may leave a truncated last entry
+         while (index.remaining() >= 4) {
+            String axesJson = string(index);
+            String fileName = string(index);
+            if (axesJson == null || fileName == null || index.remaining() < 32) {
+               break;
+            }
+            long pixelOffset = index.getInt() & 0xFFFFFFFFL;
+            int width = index.getInt();
+            int height = index.getInt();
+            int pixelType = index.getInt();
+            int pixelCompression = index.getInt();
+            long metadataOffset = index.getInt() & 0xFFFFFFFFL;
+            int metadataLength = index.getInt();
+            int metadataCompression = index.getInt();
+
+            int bytesPerPixel;
+            int bitDepth;
+            switch (pixelType) {
+               case 0: bytesPerPixel = 1; bitDepth = 8; break;
+               case 1: bytesPerPixel = 2; bitDepth = 16; break;
+               case 3: bytesPerPixel = 2; bitDepth = 10; break;
+               case 4: bytesPerPixel = 2; bitDepth = 12; break;
+               case 5: bytesPerPixel = 2; bitDepth = 14; break;
+               case 6: bytesPerPixel = 2; bitDepth = 11; break;
+               default:
+                  throw new IOException("Unsupported NDTiff pixel type " + pixelType + " (RGB?) in " + dir);
+            }
+            if (pixelCompression != 0) {
+               throw new IOException("Compressed NDTiff pixels are not supported: " + dir);
+            }
+
+            RandomAccessFile raf = files.get(fileName);
+            if (raf == null) {
+               raf = new RandomAccessFile(new File(dir, fileName), "r");
+               files.put(fileName, raf);
+               orders.put(fileName, byteOrder(raf.getChannel(), fileName));
+            }
+            FileChannel ch = raf.getChannel();
+
+            Map<String, String> md = (metadataCompression == 0 && metadataLength > 0)
+                  ? MetadataJson.scalars(readString(ch, metadataOffset, metadataLength))
+                  : Collections.<String, String>emptyMap();
+            Map<String, String> axes = MetadataJson.scalars(axesJson);
+
+            planes.add(new Plane(
+                  positionLabel(axes),
+                  axes.getOrDefault(AXIS_CHANNEL, ""),
+                  MetadataJson.integer(axes, AXIS_Z, 0),
+                  MetadataJson.integer(axes, AXIS_TIME, 0),
+                  width, height, bytesPerPixel,
+                  MetadataJson.integer(md, "BitDepth", bitDepth),
+                  MetadataJson.number(md, "ElapsedTime-ms", Double.NaN),
+                  MetadataJson.number(md, "PixelSizeUm", 0.0),
+                  ch, pixelOffset, orders.get(fileName)));
+         }
+      } catch (IOException | RuntimeException e) {
+         for (RandomAccessFile raf : files.values()) {
+            try { raf.close(); } catch (IOException ignored) {}
+         }
+         throw e;
+      }
+      return new NDTiffDataset(dir.getName(), files, Collections.unmodifiableList(planes));
+   }
+
+   @Override
+   public String name() {
+      return name_;
+   }
+
+   @Override
+   public List<Plane> planes() {
+      return planes_;
+   }
+
+   @Override
+   public void close() throws IOException {
+      for (RandomAccessFile raf : files_.values()) {
+         raf.close();
+      }
+   }
+
+   // "position" -> its value; tiled data ("row", "column") -> "row1_column2"
+   private static String positionLabel(Map<String, String> axes) {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, String> e : axes.entrySet()) {
+         String k = e.getKey();
+         if (AXIS_CHANNEL.equals(k) || AXIS_Z.equals(k) || AXIS_TIME.equals(k)) {
+            continue;
+         }
+         if (sb.length() > 0) {
+            sb.append('_');
+         }
+         sb.append("position".equals(k) ? "" : k).append(e.getValue());
+      }
+      return sb.toString();
+   }
+
+   // Length-prefixed UTF-8 string, or null if the index ends inside it
+   private static String string(ByteBuffer b) {
+      if (b.remaining() < 4) {
+         return null;
+      }
+      int n = b.getInt();
+      if (n < 0 || n > b.remaining()) {
+         return null;
+      }
+      byte[] bytes = new byte[n];
+      b.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   private static String readString(FileChannel ch, long pos, int n) throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(n);
+      while (b.hasRemaining()) {
+         if (ch.read(b, pos + b.position()) < 0) {
+            throw new IOException("Unexpected end of file");
+         }
+      }
+      return new String(b.array(), StandardCharsets.UTF_8);
+   }
+
+   private static ByteOrder byteOrder(FileChannel ch, String fileName) throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(2);
+      ch.read(b, 0);
+      byte[] h = b.array();
+      if (h[0] == 'M' && h[1] == 'M') {
+         return ByteOrder.BIG_ENDIAN;
+      }
+      if (h[0] == 'I' && h[1] == 'I') {
+         return ByteOrder.LITTLE_ENDIAN;
+      }
+      throw new IOException("Not a TIFF file: " + fileName);
+   }
+}
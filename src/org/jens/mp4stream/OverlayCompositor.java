@@ -0,0 +1,108 @@
+package org.jens.mp4stream;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the masks of all overlay layers for a frame and blends them onto
+ * the gray8 plane in one pass. Only the pixels under a mask are touched, so
+ * cost scales with overlay area rather than frame size.
+ */
+final class OverlayCompositor implements OverlayLayer.Sink {
+
+   private final List<OverlayLayer> layers_ = new ArrayList<>();
+   private final OverlayLayer.Context ctx_ = new OverlayLayer.Context();
+
+   // Placements for the current frame (reused, grown as needed)
+   private OverlayLayer.Mask[] masks_ = new OverlayLayer.Mask[16];
+   private int[] xs_ = new int[16];
+   private int[] ys_ = new int[16];
+   private int count_ = 0;
+
+   /**
+    * The timestamp and/or scale bar as configured in the plugin settings, or
+    * null if neither is drawn. Text is white on black or black on white.
+    */
+   static OverlayCompositor standard(boolean timestamp, boolean scaleBar, int fontSize,
+         boolean blackText, boolean background, double scaleBarLengthUm) {
+      Color textColor = blackText ? Color.BLACK : Color.WHITE;
+      Color shadowColor = (textColor == Color.WHITE) ? Color.BLACK : Color.WHITE;
+      Color bgColor = new Color(
+            shadowColor.getRed(), shadowColor.getGreen(), shadowColor.getBlue(), 180);
+
+      OverlayCompositor overlay = new OverlayCompositor();
+      if (timestamp) {
+         overlay.addLayer(new TimestampLayer(fontSize, textColor, shadowColor, bgColor, background));
+      }
+      if (scaleBar) {
+         overlay.addLayer(new ScaleBarLayer(fontSize, scaleBarLengthUm, textColor, shadowColor,
+               bgColor, background));
+      }
+      return overlay.isEmpty() ? null : overlay;
+   }
+
+   void addLayer(OverlayLayer layer) {
+      layers_.add(layer);
+   }
+
+   boolean isEmpty() {
+      return layers_.isEmpty();
+   }
+
+   OverlayLayer.Context context() {
+      return ctx_;
+   }
+
+   @Override
+   public void add(OverlayLayer.Mask mask, int x, int y) {
+      if (count_ == masks_.length) {
+         masks_ = Arrays.copyOf(masks_, count_ * 2);
+         xs_ = Arrays.copyOf(xs_, count_ * 2);
+         ys_ = Arrays.copyOf(ys_, count_ * 2);
+      }
+      masks_[count_] = mask;
+      xs_[count_] = x;
+      ys_[count_] = y;
+      count_++;
+   }
+
+   /** Renders all layers for the frame described by context() onto plane8. */
+   void apply(byte[] plane8, int w, int h) {
+      ctx_.width = w;
+      ctx_.height = h;
+      count_ = 0;
+      for (OverlayLayer layer : layers_) {
+         layer.emit(ctx_, this);
+      }
+      for (int i = 0; i < count_; i++) {
+         blend(plane8, w, h, masks_[i], xs_[i], ys_[i]);
+         masks_[i] = null;
+      }
+   }
+
+   private static void blend(byte[] plane8, int w, int h, OverlayLayer.Mask m, int x0, int y0) {
+      final int xStart = Math.max(0, -x0);
+      final int yStart = Math.max(0, -y0);
+      final int xEnd = Math.min(m.w, w - x0);
+      final int yEnd = Math.min(m.h, h - y0);
+      for (int my = yStart; my < yEnd; my++) {
+         int mi = my * m.w + xStart;
+         int pi = (y0 + my) * w + x0 + xStart;
+         for (int mx = xStart; mx < xEnd; mx++, mi++, pi++) {
+            int a = m.alpha[mi] & 0xFF;
+            if (a == 0) {
+               continue;
+            }
+            if (a == 255) {
+               plane8[pi] = m.value[mi];
+            } else {
+               int v = m.value[mi] & 0xFF;
+               int bg = plane8[pi] & 0xFF;
+               plane8[pi] = (byte) ((v * a + bg * (255 - a) + 127) / 255);
+            }
+         }
+      }
+   }
+}
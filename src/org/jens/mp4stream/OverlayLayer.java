@@ -0,0 +1,107 @@
+package org.jens.mp4stream;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * One overlay element burned into the gray8 plane. Layers do not draw into
+ * the frame themselves; they emit pre-rasterized {@link Mask}s, which the
+ * {@link OverlayCompositor} blends onto the plane in a single pass.
+ *
+ * <p>Static content (scale bar, logos, labels) should extend {@link Cached},
+ * which re-rasterizes only when the layer's inputs change. Dynamic content
+ * (timestamps, counters) should assemble its output from masks it rendered
+ * once, so no Java2D work happens per frame.
+ */
+interface OverlayLayer {
+
+   /** Emits this layer's masks for the current frame. */
+   void emit(Context ctx, Sink sink);
+
+   /** Receives mask placements in compositing order. */
+   interface Sink {
+      void add(Mask mask, int x, int y);
+   }
+
+   /** Per-frame inputs; reused between frames, so layers must not keep it. */
+   final class Context {
+      int width;
+      int height;
+      double dtSec;
+      double pixelSizeUm;
+   }
+
+   /** Gray value plus coverage (alpha) for a w x h patch. */
+   final class Mask {
+      final int w;
+      final int h;
+      final byte[] value;
+      final byte[] alpha;
+
+      Mask(int w, int h, byte[] value, byte[] alpha) {
+         this.w = w;
+         this.h = h;
+         this.value = value;
+         this.alpha = alpha;
+      }
+
+      /**
+       * Extracts a mask from a TYPE_INT_ARGB image drawn with gray colors
+       * on a transparent background.
+       */
+      static Mask fromArgb(BufferedImage argb) {
+         final int w = argb.getWidth();
+         final int h = argb.getHeight();
+         final int[] px = argb.getRGB(0, 0, w, h, null, 0, w);
+         final byte[] v = new byte[w * h];
+         final byte[] a = new byte[w * h];
+         for (int i = 0; i < px.length; i++) {
+            int p = px[i];
+            int r = (p >>> 16) & 0xFF;
+            int g = (p >>> 8) & 0xFF;
+            int b = p & 0xFF;
+            v[i] = (byte) ((r + g + b) / 3);
+            a[i] = (byte) (p >>> 24);
+         }
+         return new Mask(w, h, v, a);
+      }
+   }
+
+   /**
+    * Base for static layers: the mask is rendered once and reused until
+    * {@link #inputsKey} returns a different value.
+    */
+   abstract class Cached implements OverlayLayer {
+      private Object key_ = null;
+      private boolean valid_ = false;
+      private Mask mask_ = null;
+      private int x_;
+      private int y_;
+
+      /** Everything the rendering depends on; compared with equals(). */
+      protected abstract Object inputsKey(Context ctx);
+
+      /**
+       * Renders the mask; returns null to draw nothing. Sets the position
+       * through {@link #place}.
+       */
+      protected abstract Mask render(Context ctx);
+
+      protected final void place(int x, int y) {
+         x_ = x;
+         y_ = y;
+      }
+
+      @Override
+      public final void emit(Context ctx, Sink sink) {
+         Object key = inputsKey(ctx);
+         if (!valid_ || (key == null ? key_ != null : !key.equals(key_))) {
+            mask_ = render(ctx);
+            key_ = key;
+            valid_ = true;
+         }
+         if (mask_ != null) {
+            sink.add(mask_, x_, y_);
+         }
+      }
+   }
+}
@@ -0,0 +1,122 @@
+package org.jens.mp4stream;
+
+/**
+ * Whether the processor records, driven by Live and acquisition events
+ * instead of asking Micro-Manager on every frame:
+ * <pre>
+ * IDLE        neither Live nor an acquisition runs; frames pass through
+ * ARMED       a source runs, no segment is open (or frames are buffered)
+ * RECORDING   a segment is open
+ * PAUSED      session mode: the sources stopped, the segment stays open
+ * FINALIZING  the segment is closing; frames pass through
+ * </pre>
+ * The camera thread only reads the volatile phase. Transitions are
+ * synchronized, so a segment cannot start after its source stopped, and a
+ * stop that arrives while FFmpeg is closing hands over to IDLE once it is
+ * closed.
+ */
+final class RecordingState {
+
+   enum Phase { IDLE, ARMED, RECORDING, PAUSED, FINALIZING }
+
+   private volatile Phase phase_ = Phase.IDLE;
+   private volatile long run_ = 0;
+
+   // Guarded by this
+   private boolean live_ = false;
+   private boolean acquisition_ = false;
+   private boolean session_ = false;
+
+   Phase phase() {
+      return phase_;
+   }
+
+   /** Whether frames are recorded or buffered (ARMED or RECORDING). */
+   boolean acceptsFrames() {
+      final Phase p = phase_;
+      return p == Phase.ARMED || p == Phase.RECORDING;
+   }
+
+   /** Counts the times a source started from none running; buffers kept from an older run are stale. */
+   long run() {
+      return run_;
+   }
+
+   /** Session mode: when the sources stop, RECORDING pauses instead of finalizing. */
+   synchronized void setSession(boolean session) {
+      session_ = session;
+   }
+
+   /** @return true if the open segment must now be finalized by the caller */
+   synchronized boolean setLive(boolean on) {
+      final boolean wasActive = active();
+      live_ = on;
+      return sourceChanged(wasActive);
+   }
+
+   /** @return true if the open segment must now be finalized by the caller */
+   synchronized boolean setAcquisition(boolean running) {
+      final boolean wasActive = active();
+      acquisition_ = running;
+      return sourceChanged(wasActive);
+   }
+
+   /** ARMED to RECORDING; false (and no change) in any other phase. */
+   synchronized boolean beginSegment() {
+      if (phase_ != Phase.ARMED) {
+         return false;
+      }
+      phase_ = Phase.RECORDING;
+      return true;
+   }
+
+   /** RECORDING or PAUSED to FINALIZING, before the segment is closed. */
+   synchronized void endSegment() {
+      if (phase_ == Phase.RECORDING || phase_ == Phase.PAUSED) {
+         phase_ = Phase.FINALIZING;
+      }
+   }
+
+   /** After the segment closed (or failed to open): ARMED if a source still runs, else IDLE. */
+   synchronized void segmentClosed() {
+      if (phase_ == Phase.RECORDING || phase_ == Phase.PAUSED || phase_ == Phase.FINALIZING) {
+         phase_ = active() ? Phase.ARMED : Phase.IDLE;
+      }
+   }
+
+   private boolean active() {
+      return live_ || acquisition_;
+   }
+
+   private boolean sourceChanged(boolean wasActive) {
+      final boolean active = active();
+      if (active && !wasActive) {
+         run_++;
+      }
+      switch (phase_) {
+         case IDLE:
+            if (active) {
+               phase_ = Phase.ARMED;
+            }
+            return false;
+         case ARMED:
+            if (!active) {
+               phase_ = Phase.IDLE;
+            }
+            return false;
+         case RECORDING:
+            if (!active) {
+               phase_ = session_ ? Phase.PAUSED : Phase.FINALIZING;
+               return !session_;
+            }
+            return false;
+         case PAUSED:
+            if (active) {
+               phase_ = Phase.RECORDING;
+            }
+            return false;
+         default:
+            return false; // FINALIZING: segmentClosed() picks the next phase
+      }
+   }
+}
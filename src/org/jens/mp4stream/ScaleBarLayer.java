@@ -0,0 +1,129 @@
+package org.jens.mp4stream;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Scale bar with label (bottom-right). Static: rasterized once and only
+ * re-rendered when the frame size or pixel size (objective) changes.
+ */
+final class ScaleBarLayer extends OverlayLayer.Cached {
+
+   private static final int MARGIN = 15;
+   private static final double[] NICE_VALUES_UM = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+   private final int fontSize_;
+   private final double fixedLengthUm_;
+   private final Color textColor_;
+   private final Color shadowColor_;
+   private final Color bgColor_;
+   private final boolean background_;
+
+   ScaleBarLayer(int fontSize, double fixedLengthUm, Color textColor, Color shadowColor,
+         Color bgColor, boolean background) {
+      fontSize_ = fontSize;
+      fixedLengthUm_ = fixedLengthUm;
+      textColor_ = textColor;
+      shadowColor_ = shadowColor;
+      bgColor_ = bgColor;
+      background_ = background;
+   }
+
+   /** User-specified length, or a round number near 15% of the image width. */
+   static double chooseScaleUm(int w, double pixelSizeUm, double fixedLengthUm) {
+      if (fixedLengthUm > 0) {
+         return fixedLengthUm;
+      }
+      double targetUm = w * pixelSizeUm * 0.15;
+      double scaleUm = NICE_VALUES_UM[0];
+      for (double v : NICE_VALUES_UM) {
+         if (v <= targetUm) {
+            scaleUm = v;
+         } else {
+            break;
+         }
+      }
+      return scaleUm;
+   }
+
+   @Override
+   protected Object inputsKey(OverlayLayer.Context ctx) {
+      return Arrays.asList(ctx.width, ctx.height, ctx.pixelSizeUm);
+   }
+
+   @Override
+   protected OverlayLayer.Mask render(OverlayLayer.Context ctx) {
+      final int w = ctx.width;
+      final int h = ctx.height;
+      final double pixelSizeUm = ctx.pixelSizeUm;
+      if (!(pixelSizeUm > 0)) {
+         return null;
+      }
+      final double scaleUm = chooseScaleUm(w, pixelSizeUm, fixedLengthUm_);
+
+      int barLengthPx = (int) Math.round(scaleUm / pixelSizeUm);
+      if (barLengthPx < 20) barLengthPx = 20; // Minimum visible length
+      if (barLengthPx > w - 20) barLengthPx = w - 20; // Max
+
+      int barHeight = Math.max(4, fontSize_ / 3); // Scale bar height proportional to font
+      int barX = w - MARGIN - barLengthPx;
+      int barY = h - MARGIN - barHeight;
+
+      String label = (scaleUm >= 1000) ?
+            String.format(java.util.Locale.US, "%.0f mm", scaleUm / 1000) :
+            String.format(java.util.Locale.US, "%.0f µm", scaleUm);
+
+      // Slightly smaller font for the label
+      Font font = new Font("SansSerif", Font.BOLD, Math.max(10, fontSize_ * 3 / 4));
+      BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D sg = scratch.createGraphics();
+      sg.setFont(font);
+      FontMetrics fm = sg.getFontMetrics();
+      sg.dispose();
+
+      int labelWidth = fm.stringWidth(label);
+      int labelX = barX + (barLengthPx - labelWidth) / 2;
+      int labelY = barY - 4;
+
+      // Bounding box of background, bar (+shadow) and label (+shadow)
+      int left = Math.min(barX - 5, labelX) - 1;
+      int top = labelY - fm.getAscent() - 3;
+      int right = Math.max(barX + barLengthPx + 6, labelX + labelWidth + 2);
+      int bottom = Math.max(barY + barHeight + 2, labelY - fm.getAscent() - 2 + fm.getHeight() + barHeight + 10);
+
+      BufferedImage img = new BufferedImage(right - left, bottom - top, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = img.createGraphics();
+      try {
+         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+         g.setFont(font);
+         g.translate(-left, -top);
+
+         if (background_) {
+            g.setColor(bgColor_);
+            g.fillRect(barX - 5, labelY - fm.getAscent() - 2,
+                  barLengthPx + 10, fm.getHeight() + barHeight + 10);
+         }
+
+         g.setColor(shadowColor_);
+         g.fillRect(barX + 1, barY + 1, barLengthPx, barHeight);
+         g.setColor(textColor_);
+         g.fillRect(barX, barY, barLengthPx, barHeight);
+
+         g.setColor(shadowColor_);
+         g.drawString(label, labelX + 1, labelY + 1);
+         g.setColor(textColor_);
+         g.drawString(label, labelX, labelY);
+      } finally {
+         g.dispose();
+      }
+
+      place(left, top);
+      return OverlayLayer.Mask.fromArgb(img);
+   }
+}
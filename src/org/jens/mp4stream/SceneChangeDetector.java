@@ -0,0 +1,63 @@
+package org.jens.mp4stream;
+
+/**
+ * Cheap static-scene detector for gray8 planes. Compares a fixed lattice of
+ * roughly SAMPLE_TARGET pixels against the same pixels of the last frame that
+ * was actually written, so slow drift still registers as a change.
+ */
+final class SceneChangeDetector {
+
+   private static final int SAMPLE_TARGET = 4096;
+
+   // A frame counts as changed when more than this fraction of samples differ
+   private static final double CHANGED_FRACTION = 0.005;
+
+   private final int tolerance_;
+   private byte[] ref_ = null;
+   private int stride_ = 1;
+   private int planeLength_ = -1;
+
+   /**
+    * @param tolerance per-sample absolute difference (in 8-bit levels) treated
+    *                  as sensor noise rather than change
+    */
+   SceneChangeDetector(int tolerance) {
+      tolerance_ = Math.max(0, tolerance);
+   }
+
+   /** True if the plane differs from the last accepted one (or none exists yet). */
+   boolean hasChanged(byte[] plane8) {
+      if (ref_ == null || planeLength_ != plane8.length) {
+         return true;
+      }
+      final int limit = (int) Math.max(1, ref_.length * CHANGED_FRACTION);
+      int changed = 0;
+      for (int k = 0, i = 0; k < ref_.length; k++, i += stride_) {
+         int d = (plane8[i] & 0xFF) - (ref_[k] & 0xFF);
+         if (d > tolerance_ || d < -tolerance_) {
+            if (++changed >= limit) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /** Latches the samples of a frame that has just been written. */
+   void accept(byte[] plane8) {
+      if (planeLength_ != plane8.length) {
+         planeLength_ = plane8.length;
+         // Odd stride so the lattice does not lock onto row-periodic structure
+         stride_ = Math.max(1, plane8.length / SAMPLE_TARGET) | 1;
+         ref_ = new byte[(plane8.length + stride_ - 1) / stride_];
+      }
+      for (int k = 0, i = 0; k < ref_.length; k++, i += stride_) {
+         ref_[k] = plane8[i];
+      }
+   }
+
+   void reset() {
+      ref_ = null;
+      planeLength_ = -1;
+   }
+}
@@ -0,0 +1,71 @@
+package org.jens.mp4stream;
+
+import java.io.File;
+
+/**
+ * Free-space guard for the scratch directory, sized by the bitrate the
+ * open segment actually writes. It keeps {@link #HEADROOM_SEC} of
+ * recording free. Segments already queued for migration count as
+ * free-to-be: while they would restore the headroom nothing happens;
+ * otherwise the open segment is rotated if migrating it as well would.
+ * With less than {@link #STOP_SEC} left (or {@link #MIN_FREE_BYTES}),
+ * recording stops until migration has made room.
+ */
+final class ScratchGuard {
+
+   enum Action { OK, ROTATE, STOP }
+
+   static final double HEADROOM_SEC = 120.0;
+   static final double STOP_SEC = 10.0;
+   static final long MIN_FREE_BYTES = 256L << 20;
+
+   // Bitrate is measured once a segment has run this long; before, the last one is used
+   private static final double MIN_MEASURE_SEC = 5.0;
+
+   private final File dir_;
+   private double bytesPerSec_ = 0.0;
+
+   ScratchGuard(File dir) {
+      dir_ = dir;
+   }
+
+   File dir() {
+      return dir_;
+   }
+
+   /** Observed bytes per second of recording (0 until measured). */
+   double bytesPerSec() {
+      return bytesPerSec_;
+   }
+
+   /**
+    * @param segmentBytes bytes the open segment has written so far
+    * @param segmentSec   seconds it has been recording
+    * @param pendingBytes bytes of finished segments waiting to be migrated
+    */
+   Action check(long segmentBytes, double segmentSec, long pendingBytes) {
+      if (segmentSec >= MIN_MEASURE_SEC) {
+         bytesPerSec_ = segmentBytes / segmentSec;
+      }
+      final long free = dir_.getUsableSpace();
+      if (free < MIN_FREE_BYTES + (long) (bytesPerSec_ * STOP_SEC)) {
+         return Action.STOP;
+      }
+      final long reserve = reserve();
+      if (free + pendingBytes >= reserve) {
+         return Action.OK; // queued migrations will restore the headroom
+      }
+      // Rotating frees the segment once it is migrated; not worth it for a short one
+      return (pendingBytes + segmentBytes >= reserve - free) ? Action.ROTATE : Action.OK;
+   }
+
+   /** Whether there is room to start a segment (after a stop). */
+   boolean hasRoom() {
+      return dir_.getUsableSpace() >= reserve();
+   }
+
+   /** Free bytes wanted: the minimum plus the headroom at the observed bitrate. */
+   long reserve() {
+      return MIN_FREE_BYTES + (long) (bytesPerSec_ * HEADROOM_SEC);
+   }
+}
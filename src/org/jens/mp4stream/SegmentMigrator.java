@@ -0,0 +1,200 @@
+package org.jens.mp4stream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Moves finished segments from the local scratch directory to the output
+ * directory (typically a network share), one at a time on a shared
+ * background thread, so encoding never waits for the share.
+ *
+ * <p>A segment is every file in the scratch directory named after it
+ * ({@code stem.mp4}, {@code stem.mp4.frames}, {@code stem_preview.mp4},
+ * {@code stem_thumbs/...}). Each file is copied to {@code name.part} while
+ * its CRC-32 is computed, read back and checked, renamed into place and
+ * only then deleted from scratch. Copy and read-back together stay under
+ * the bandwidth cap. A file already at the destination is never
+ * overwritten; the segment then stays in scratch.
+ */
+final class SegmentMigrator {
+
+   private static final int CHUNK = 1 << 20;
+   private static final String PART = ".part";
+
+   private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "mp4stream-migrate");
+      t.setDaemon(true);
+      t.setPriority(Thread.NORM_PRIORITY - 1);
+      return t;
+   });
+
+   private final File scratch_;
+   private final File dest_;
+   private final long bytesPerSec_;
+   private final AtomicLong pendingBytes_ = new AtomicLong();
+
+   /**
+    * @param maxMbPerSec bandwidth cap in MB/s (copy plus read-back); 0 = unlimited
+    */
+   SegmentMigrator(File scratch, File dest, double maxMbPerSec) {
+      scratch_ = scratch.getAbsoluteFile();
+      dest_ = dest.getAbsoluteFile();
+      bytesPerSec_ = (maxMbPerSec > 0) ? (long) (maxMbPerSec * (1 << 20)) : 0L;
+   }
+
+   File scratchDir() {
+      return scratch_;
+   }
+
+   File destDir() {
+      return dest_;
+   }
+
+   /** Bytes queued or being moved, for the free-space guard. */
+   long pendingBytes() {
+      return pendingBytes_.get();
+   }
+
+   /**
+    * Queues the segment of video (a file in the scratch directory), after
+    * ready completes. Completes with the number of bytes moved.
+    */
+   CompletableFuture<Long> migrate(File video, CompletableFuture<?> ready) {
+      final String stem = stem(video.getName());
+      final long size = video.length();
+      pendingBytes_.addAndGet(size);
+      return ready.handle((r, e) -> null).thenApplyAsync(x -> {
+         try {
+            return moveGroup(stem);
+         } catch (IOException e) {
+            throw new CompletionException(e);
+         } finally {
+            pendingBytes_.addAndGet(-size);
+         }
+      }, WORKER);
+   }
+
+   private long moveGroup(String stem) throws IOException {
+      final List<Path> files = new ArrayList<>();
+      final List<Path> dirs = new ArrayList<>();
+      File[] top = scratch_.listFiles((d, n) -> belongsTo(n, stem) && !n.endsWith(FrameSpool.EXTENSION));
+      if (top == null) {
+         throw new IOException("Cannot list " + scratch_);
+      }
+      for (File f : top) {
+         if (f.isDirectory()) {
+            try (Stream<Path> walk = Files.walk(f.toPath())) {
+               walk.forEach(p -> (Files.isDirectory(p) ? dirs : files).add(p));
+            }
+         } else {
+            files.add(f.toPath());
+         }
+      }
+      final Path root = scratch_.toPath();
+      long moved = 0;
+      for (Path src : files) {
+         Path dst = dest_.toPath().resolve(root.relativize(src));
+         moved += moveFile(src, dst);
+      }
+      Collections.reverse(dirs); // children first
+      for (Path d : dirs) {
+         Files.deleteIfExists(d);
+      }
+      return moved;
+   }
+
+   private long moveFile(Path src, Path dst) throws IOException {
+      if (Files.exists(dst)) {
+         throw new IOException(dst + " already exists; " + src.getFileName() + " kept in scratch");
+      }
+      Files.createDirectories(dst.getParent());
+      final Path part = dst.resolveSibling(dst.getFileName() + PART);
+      final long srcCrc;
+      final long size;
+      try (InputStream in = Files.newInputStream(src);
+            OutputStream out = Files.newOutputStream(part, StandardOpenOption.CREATE,
+                  StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+         CRC32 crc = new CRC32();
+         size = pump(in, out, crc);
+         srcCrc = crc.getValue();
+      }
+      final long dstCrc;
+      try (InputStream in = Files.newInputStream(part)) {
+         CRC32 crc = new CRC32();
+         pump(in, null, crc);
+         dstCrc = crc.getValue();
+      }
+      if (srcCrc != dstCrc || Files.size(part) != size) {
+         Files.deleteIfExists(part);
+         throw new IOException("Checksum mismatch copying " + src.getFileName() + "; kept in scratch");
+      }
+      try {
+         Files.move(part, dst, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+         Files.move(part, dst);
+      }
+      Files.delete(src);
+      return size;
+   }
+
+   // Copies (or only reads, if out is null) in chunks, sleeping to stay under the cap
+   private long pump(InputStream in, OutputStream out, CRC32 crc) throws IOException {
+      final byte[] buf = new byte[CHUNK];
+      final long t0 = System.nanoTime();
+      long total = 0;
+      int n;
+      while ((n = in.read(buf)) > 0) {
+         crc.update(buf, 0, n);
+         if (out != null) {
+            out.write(buf, 0, n);
+         }
+         total += n;
+         if (bytesPerSec_ > 0) {
+            final long aheadNanos = total * 1_000_000_000L / bytesPerSec_ - (System.nanoTime() - t0);
+            if (aheadNanos > 0) {
+               try {
+                  Thread.sleep(aheadNanos / 1_000_000L, (int) (aheadNanos % 1_000_000L));
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new IOException("Interrupted", e);
+               }
+            }
+         }
+      }
+      return total;
+   }
+
+   // foo_seg001.mp4 -> foo_seg001
+   static String stem(String name) {
+      return name.toLowerCase().endsWith(".mp4") ? name.substring(0, name.length() - 4) : name;
+   }
+
+   // stem itself, or stem followed by '.' or '_' (so seg001 does not take seg0010)
+   static boolean belongsTo(String name, String stem) {
+      if (!name.startsWith(stem)) {
+         return false;
+      }
+      if (name.length() == stem.length()) {
+         return true;
+      }
+      final char c = name.charAt(stem.length());
+      return c == '.' || c == '_';
+   }
+}
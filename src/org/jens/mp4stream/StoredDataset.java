@@ -0,0 +1,83 @@
+package org.jens.mp4stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A saved Micro-Manager dataset, read without Micro-Manager: NDTiff (a
+ * folder with NDTiff.index) or multipage TIFF (MMStack *.ome.tif files).
+ * The index and per-image metadata are read on open; pixels are
+ * memory-mapped from the files when a plane is read.
+ */
+interface StoredDataset extends Closeable {
+
+   /** Folder or file name, used to name the exported videos. */
+   String name();
+
+   /** All planes in file order. */
+   List<Plane> planes();
+
+   /** Opens an NDTiff folder, a folder of TIFF files, or a single TIFF file. */
+   static StoredDataset open(File path) throws IOException {
+      if (path.isDirectory() && new File(path, NDTiffDataset.INDEX_NAME).isFile()) {
+         return NDTiffDataset.open(path);
+      }
+      return MultipageTiffDataset.open(path);
+   }
+
+   /** One stored image: its axes, format, timing and where its pixels are. */
+   final class Plane {
+      final String position;    // "" if the dataset has no position axis
+      final String channel;     // "" if the dataset has no channel axis
+      final int z;
+      final int time;
+      final int width;
+      final int height;
+      final int bytesPerPixel;  // 1 or 2
+      final int bitDepth;       // significant bits, e.g. 12 for a 12-bit camera
+      final double elapsedMs;   // ElapsedTime-ms, NaN if not recorded
+      final double pixelSizeUm; // 0 if unknown
+      private final FileChannel file_;
+      private final long offset_;
+      private final ByteOrder order_;
+
+      Plane(String position, String channel, int z, int time, int width, int height,
+            int bytesPerPixel, int bitDepth, double elapsedMs, double pixelSizeUm,
+            FileChannel file, long offset, ByteOrder order) {
+         this.position = position;
+         this.channel = channel;
+         this.z = z;
+         this.time = time;
+         this.width = width;
+         this.height = height;
+         this.bytesPerPixel = bytesPerPixel;
+         this.bitDepth = bitDepth;
+         this.elapsedMs = elapsedMs;
+         this.pixelSizeUm = pixelSizeUm;
+         file_ = file;
+         offset_ = offset;
+         order_ = order;
+      }
+
+      /** A buffer read() accepts: byte[] for 8-bit, short[] for 16-bit planes. */
+      Object newBuffer() {
+         return (bytesPerPixel == 1) ? new byte[width * height] : new short[width * height];
+      }
+
+      /** Copies the pixels into dst (see newBuffer()). Thread-safe. */
+      void read(Object dst) throws IOException {
+         final int n = width * height;
+         MappedByteBuffer buf = file_.map(FileChannel.MapMode.READ_ONLY, offset_, (long) n * bytesPerPixel);
+         if (bytesPerPixel == 1) {
+            buf.get((byte[]) dst, 0, n);
+         } else {
+            buf.order(order_).asShortBuffer().get((short[]) dst, 0, n);
+         }
+      }
+   }
+}
@@ -0,0 +1,250 @@
+package org.jens.mp4stream;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+/**
+ * Thumbnails of a segment, taken from the 8-bit frames on their way to
+ * FFmpeg, so a recording never has to be decoded again to preview it:
+ * the first frame, one every interval of Δt, and the last. At finalize
+ * they are written as {@code {segment}_thumbs/thumb_NNN_*.png} and tiled
+ * into {@code {segment}_contact.png}.
+ *
+ * <p>The camera thread only copies a due frame into one of two reused
+ * buffers; downsampling (box average) and PNG encoding run on a shared
+ * low-priority thread. If both buffers are busy the frame is skipped and
+ * the next one is taken. A long recording keeps at most {@link #MAX_THUMBS}:
+ * when they fill up, every other one is dropped and the interval doubles.
+ */
+final class Thumbnails {
+
+   static final int THUMB_WIDTH = 160;
+   static final int MAX_THUMBS = 64;
+
+   private static final int COLUMNS = 8;
+   private static final int GAP = 2;
+   private static final int LABEL_HEIGHT = 14;
+
+   private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "mp4stream-thumbnails");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY); // acquisition and encoding first
+      return t;
+   });
+
+   private static final class Thumb {
+      final double dtSec;
+      final byte[] pixels;
+
+      Thumb(double dtSec, byte[] pixels) {
+         this.dtSec = dtSec;
+         this.pixels = pixels;
+      }
+   }
+
+   private final File video_;
+   private final int w_;
+   private final int h_;
+   private final int tw_;
+   private final int th_;
+   private final BlockingQueue<byte[]> free_ = new ArrayBlockingQueue<>(2);
+   private int allocated_ = 0;
+
+   // Camera side (the caller's lock)
+   private double interval_;
+   private double nextDt_ = Double.NEGATIVE_INFINITY;
+   private int taken_ = 0;
+   private double lastTakenDt_ = Double.NaN;
+   private byte[] lastFrame_ = null;
+   private double lastDt_ = Double.NaN;
+
+   // Worker side
+   private final List<Thumb> thumbs_ = new ArrayList<>();
+
+   /**
+    * @param video       the segment's archive file; output goes next to it
+    * @param intervalSec Δt between thumbnails; 0 = first and last frame only
+    */
+   Thumbnails(File video, int w, int h, double intervalSec) {
+      video_ = video;
+      w_ = w;
+      h_ = h;
+      tw_ = Math.min(w, THUMB_WIDTH);
+      th_ = Math.max(1, (int) Math.round((double) h * tw_ / w));
+      interval_ = Math.max(0.0, intervalSec);
+   }
+
+   /** A frame about to be written (before overlays are burned in); copies it if a thumbnail is due. */
+   void offer(byte[] frame8, double dtSec) {
+      if (frame8.length < w_ * h_) {
+         return;
+      }
+      lastFrame_ = frame8;
+      lastDt_ = dtSec;
+      if (dtSec < nextDt_ || (interval_ <= 0 && taken_ > 0)) {
+         return;
+      }
+      if (take(frame8, dtSec)) {
+         nextDt_ = dtSec + interval_;
+         if (++taken_ >= MAX_THUMBS && interval_ > 0) {
+            interval_ *= 2;
+            taken_ = MAX_THUMBS / 2; // as many survive the worker's thinning
+         }
+      }
+   }
+
+   /**
+    * Adds the last frame and writes the thumbnails and contact sheet on
+    * the worker thread. Call once, while the last offered frame is
+    * unchanged. Never blocks (the caller holds the recording lock).
+    * Completes with the number of thumbnails.
+    */
+   CompletableFuture<Integer> finish() {
+      if (lastFrame_ != null && !(lastDt_ <= lastTakenDt_)) {
+         byte[] buf = free_.poll();
+         if (buf == null) {
+            buf = new byte[w_ * h_]; // both busy: a one-off copy rather than waiting for the worker
+         }
+         submit(lastFrame_, buf, lastDt_, false);
+      }
+      lastFrame_ = null;
+      return CompletableFuture.supplyAsync(() -> {
+         try {
+            return write();
+         } catch (IOException e) {
+            throw new CompletionException(e);
+         }
+      }, WORKER);
+   }
+
+   /** The contact sheet written next to the video. */
+   File contactSheet() {
+      return new File(stem() + "_contact.png");
+   }
+
+   private boolean take(byte[] frame8, double dtSec) {
+      byte[] buf = free_.poll();
+      if (buf == null) {
+         if (allocated_ >= 2) {
+            return false; // worker behind; try the next frame
+         }
+         buf = new byte[w_ * h_];
+         allocated_++;
+      }
+      submit(frame8, buf, dtSec, true);
+      return true;
+   }
+
+   private void submit(byte[] frame8, byte[] buf, double dtSec, boolean thin) {
+      System.arraycopy(frame8, 0, buf, 0, w_ * h_);
+      lastTakenDt_ = dtSec;
+      WORKER.execute(() -> {
+         try {
+            Thumb t = new Thumb(dtSec, downsample(buf));
+            synchronized (thumbs_) {
+               thumbs_.add(t);
+               if (thin && thumbs_.size() > MAX_THUMBS) {
+                  for (int i = thumbs_.size() - 2; i > 0; i -= 2) {
+                     thumbs_.remove(i);
+                  }
+               }
+            }
+         } finally {
+            free_.offer(buf);
+         }
+      });
+   }
+
+   // Box average of the source pixels that fall on each thumbnail pixel
+   private byte[] downsample(byte[] src) {
+      final byte[] out = new byte[tw_ * th_];
+      for (int oy = 0; oy < th_; oy++) {
+         final int y0 = (int) ((long) oy * h_ / th_);
+         final int y1 = Math.max(y0 + 1, (int) ((long) (oy + 1) * h_ / th_));
+         for (int ox = 0; ox < tw_; ox++) {
+            final int x0 = (int) ((long) ox * w_ / tw_);
+            final int x1 = Math.max(x0 + 1, (int) ((long) (ox + 1) * w_ / tw_));
+            long sum = 0;
+            for (int y = y0; y < y1; y++) {
+               final int row = y * w_;
+               for (int x = x0; x < x1; x++) {
+                  sum += src[row + x] & 0xFF;
+               }
+            }
+            out[oy * tw_ + ox] = (byte) (sum / ((long) (y1 - y0) * (x1 - x0)));
+         }
+      }
+      return out;
+   }
+
+   private int write() throws IOException {
+      final List<Thumb> thumbs;
+      synchronized (thumbs_) {
+         thumbs = new ArrayList<>(thumbs_);
+      }
+      if (thumbs.isEmpty()) {
+         return 0;
+      }
+      File dir = new File(stem() + "_thumbs");
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create " + dir);
+      }
+      for (int i = 0; i < thumbs.size(); i++) {
+         Thumb t = thumbs.get(i);
+         File f = new File(dir, String.format(Locale.US, "thumb_%03d_%.3fs.png", i, t.dtSec));
+         ImageIO.write(gray(t.pixels), "png", f);
+      }
+
+      final int cols = Math.min(COLUMNS, thumbs.size());
+      final int rows = (thumbs.size() + cols - 1) / cols;
+      final int cellW = tw_ + GAP;
+      final int cellH = th_ + LABEL_HEIGHT + GAP;
+      BufferedImage sheet = new BufferedImage(cols * cellW + GAP, rows * cellH + GAP, BufferedImage.TYPE_BYTE_GRAY);
+      Graphics2D g = sheet.createGraphics();
+      try {
+         g.setColor(new Color(32, 32, 32));
+         g.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+         g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, LABEL_HEIGHT - 3));
+         g.setColor(Color.WHITE);
+         for (int i = 0; i < thumbs.size(); i++) {
+            Thumb t = thumbs.get(i);
+            final int x = GAP + (i % cols) * cellW;
+            final int y = GAP + (i / cols) * cellH;
+            sheet.getRaster().setDataElements(x, y, tw_, th_, t.pixels);
+            g.drawString(TimestampLayer.formatElapsedHhMmSsMmm(t.dtSec), x + 2, y + th_ + LABEL_HEIGHT - 3);
+         }
+      } finally {
+         g.dispose();
+      }
+      ImageIO.write(sheet, "png", contactSheet());
+      return thumbs.size();
+   }
+
+   private BufferedImage gray(byte[] pixels) {
+      BufferedImage img = new BufferedImage(tw_, th_, BufferedImage.TYPE_BYTE_GRAY);
+      img.getRaster().setDataElements(0, 0, tw_, th_, pixels);
+      return img;
+   }
+
+   // foo_seg001.mp4 -> foo_seg001
+   private String stem() {
+      final String p = video_.getPath();
+      return p.toLowerCase(Locale.ROOT).endsWith(".mp4") ? p.substring(0, p.length() - 4) : p;
+   }
+}
@@ -0,0 +1,124 @@
+package org.jens.mp4stream;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Δt timestamp (top-left). Each character is rasterized once, with its
+ * shadow, into a glyph mask; per frame the text is assembled from cached
+ * glyphs, so there is no Java2D work on the camera thread after warm-up.
+ */
+final class TimestampLayer implements OverlayLayer {
+
+   private static final int MARGIN = 10;
+   private static final int PAD = 2; // room for shadow and antialiasing overhang
+
+   private final Font font_;
+   private final Color textColor_;
+   private final Color shadowColor_;
+   private final Color bgColor_;
+   private final boolean background_;
+   private final FontMetrics fm_;
+   private final Map<Character, Mask> glyphs_ = new HashMap<>();
+   private Mask box_ = null;
+   private int boxTextWidth_ = -1;
+
+   TimestampLayer(int fontSize, Color textColor, Color shadowColor, Color bgColor, boolean background) {
+      font_ = new Font("Monospaced", Font.BOLD, fontSize);
+      textColor_ = textColor;
+      shadowColor_ = shadowColor;
+      bgColor_ = bgColor;
+      background_ = background;
+      BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = scratch.createGraphics();
+      g.setFont(font_);
+      fm_ = g.getFontMetrics();
+      g.dispose();
+   }
+
+   static String formatElapsedHhMmSsMmm(double dtSec) {
+      if (dtSec < 0) {
+         dtSec = 0;
+      }
+      long totalMs = Math.round(dtSec * 1000.0);
+
+      long ms = totalMs % 1000;
+      long totalSec = totalMs / 1000;
+
+      long sec = totalSec % 60;
+      long totalMin = totalSec / 60;
+
+      long min = totalMin % 60;
+      long hours = totalMin / 60;
+
+      return String.format(java.util.Locale.US, "%02d:%02d:%02d.%03d", hours, min, sec, ms);
+   }
+
+   @Override
+   public void emit(Context ctx, Sink sink) {
+      final String text = "\u0394t " + formatElapsedHhMmSsMmm(ctx.dtSec);
+
+      if (background_) {
+         int textWidth = 0;
+         for (int i = 0; i < text.length(); i++) {
+            textWidth += fm_.charWidth(text.charAt(i));
+         }
+         sink.add(box(textWidth), MARGIN - 5, MARGIN - 2);
+      }
+
+      int x = MARGIN;
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c != ' ') {
+            sink.add(glyph(c), x - PAD, MARGIN - PAD);
+         }
+         x += fm_.charWidth(c);
+      }
+   }
+
+   private Mask box(int textWidth) {
+      if (box_ == null || boxTextWidth_ != textWidth) {
+         int bw = textWidth + 10;
+         int bh = fm_.getHeight() + 4;
+         byte[] v = new byte[bw * bh];
+         byte[] a = new byte[bw * bh];
+         java.util.Arrays.fill(v, (byte) bgColor_.getRed());
+         java.util.Arrays.fill(a, (byte) bgColor_.getAlpha());
+         box_ = new Mask(bw, bh, v, a);
+         boxTextWidth_ = textWidth;
+      }
+      return box_;
+   }
+
+   private Mask glyph(char c) {
+      Mask m = glyphs_.get(c);
+      if (m == null) {
+         int gw = fm_.charWidth(c) + 2 * PAD + 1;
+         int gh = fm_.getHeight() + 2 * PAD + 1;
+         BufferedImage img = new BufferedImage(gw, gh, BufferedImage.TYPE_INT_ARGB);
+         Graphics2D g = img.createGraphics();
+         try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setFont(font_);
+            String s = String.valueOf(c);
+            int baseline = PAD + fm_.getAscent();
+            g.setColor(shadowColor_);
+            g.drawString(s, PAD + 1, baseline + 1);
+            g.setColor(textColor_);
+            g.drawString(s, PAD, baseline);
+         } finally {
+            g.dispose();
+         }
+         m = Mask.fromArgb(img);
+         glyphs_.put(c, m);
+      }
+      return m;
+   }
+}
@@ -0,0 +1,104 @@
+package org.jens.mp4stream;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Idle timeout on one shared scheduler thread for all processors. Instead
+ * of polling, each watchdog schedules a single check at the moment its
+ * timeout would expire (last activity + timeout). If activity happened in
+ * the meantime, the check re-arms itself for the new deadline, so an active
+ * recording costs one wakeup per timeout period and a stopped watchdog
+ * none.
+ */
+final class Watchdog {
+
+   private static final ScheduledThreadPoolExecutor SCHEDULER = newScheduler();
+
+   private final LongSupplier lastActivityNanos_; // System.nanoTime() of the last activity, 0 = disarmed
+   private final LongSupplier timeoutNanos_;
+   private final Runnable onTimeout_;
+
+   // Guarded by this
+   private boolean running_ = false;
+   private ScheduledFuture<?> pending_ = null;
+   private long token_ = 0; // identifies the current check; stale ones return
+
+   /**
+    * @param onTimeout runs on its own thread once the idle time exceeds
+    *                  the timeout (finalizing must not hold up the other
+    *                  watchdogs); the watchdog is stopped first
+    */
+   Watchdog(LongSupplier lastActivityNanos, LongSupplier timeoutNanos, Runnable onTimeout) {
+      lastActivityNanos_ = lastActivityNanos;
+      timeoutNanos_ = timeoutNanos;
+      onTimeout_ = onTimeout;
+   }
+
+   /** Starts watching; no-op if already running. */
+   synchronized void start() {
+      if (!running_) {
+         running_ = true;
+         schedule(timeoutNanos_.getAsLong());
+      }
+   }
+
+   /** Stops watching; a check already running finishes without firing. */
+   synchronized void stop() {
+      running_ = false;
+      cancelPending();
+   }
+
+   /** Re-computes the deadline, e.g. after the timeout got shorter. */
+   synchronized void rearm() {
+      if (running_) {
+         cancelPending();
+         check(token_);
+      }
+   }
+
+   private void check(long token) {
+      synchronized (this) {
+         if (!running_ || token != token_) {
+            return;
+         }
+         pending_ = null;
+         final long last = lastActivityNanos_.getAsLong();
+         final long timeout = timeoutNanos_.getAsLong();
+         final long remaining = (last == 0L) ? timeout : last + timeout - System.nanoTime();
+         if (last == 0L || remaining > 0) {
+            schedule(remaining);
+            return;
+         }
+         running_ = false;
+      }
+      Thread t = new Thread(onTimeout_, "mp4stream-watchdog-timeout");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   private void schedule(long delayNanos) {
+      final long token = ++token_;
+      pending_ = SCHEDULER.schedule(() -> check(token), Math.max(1L, delayNanos), TimeUnit.NANOSECONDS);
+   }
+
+   private void cancelPending() {
+      token_++;
+      if (pending_ != null) {
+         pending_.cancel(false);
+         pending_ = null;
+      }
+   }
+
+   private static ScheduledThreadPoolExecutor newScheduler() {
+      ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread t = new Thread(r, "mp4stream-watchdog");
+         t.setDaemon(true);
+         return t;
+      });
+      s.setRemoveOnCancelPolicy(true); // re-armed checks do not pile up in the queue
+      return s;
+   }
+}
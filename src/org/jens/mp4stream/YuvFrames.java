@@ -0,0 +1,133 @@
+package org.jens.mp4stream;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Packs gray8 frames as yuv420p for FFmpeg's rawvideo input, so FFmpeg
+ * encodes them without a swscale pixel-format conversion. A color turns
+ * gray levels into shades of that color (a green LUT for GFP, ...) through
+ * per-level Y/U/V tables, with no RGB stage.
+ *
+ * <p>Levels map like swscale maps gray to yuv420p: BT.601, limited range
+ * (Y 16-235). Without a color the chroma planes are constant, so they are
+ * filled once and only the Y plane is written per frame.
+ */
+final class YuvFrames {
+
+   static final String PIX_FMT = "yuv420p";
+
+   // Color names accepted by named(); "gray" is no color
+   static final String[] COLOR_NAMES = {"gray", "green", "red", "blue", "cyan", "magenta", "yellow"};
+
+   private final int width_;
+   private final int height_;
+   private final boolean neutral_; // gray: chroma stays 128
+   private final byte[] yLut_ = new byte[256];
+   private final byte[] uLut_ = new byte[256];
+   private final byte[] vLut_ = new byte[256];
+   private final byte[] frame_;    // Y plane, then U, then V
+   private final String description_;
+
+   /**
+    * @param color level 255 becomes this color; null or any gray means grayscale
+    * @throws IllegalArgumentException if w or h is odd (4:2:0 needs even sizes)
+    */
+   YuvFrames(int w, int h, Color color) {
+      if (!supports(w, h)) {
+         throw new IllegalArgumentException("yuv420p needs an even frame size, not " + w + "x" + h);
+      }
+      width_ = w;
+      height_ = h;
+      if (color != null && color.getRed() == color.getGreen() && color.getGreen() == color.getBlue()) {
+         color = null;
+      }
+      neutral_ = (color == null);
+      final double r = neutral_ ? 1.0 : color.getRed() / 255.0;
+      final double g = neutral_ ? 1.0 : color.getGreen() / 255.0;
+      final double b = neutral_ ? 1.0 : color.getBlue() / 255.0;
+      for (int level = 0; level < 256; level++) {
+         double s = level / 255.0;
+         yLut_[level] = clamp(16.0 + s * (65.481 * r + 128.553 * g + 24.966 * b));
+         uLut_[level] = clamp(128.0 + s * (-37.797 * r - 74.203 * g + 112.0 * b));
+         vLut_[level] = clamp(128.0 + s * (112.0 * r - 93.786 * g - 18.214 * b));
+      }
+      frame_ = new byte[w * h * 3 / 2];
+      if (neutral_) {
+         Arrays.fill(frame_, w * h, frame_.length, (byte) 128);
+      }
+      description_ = neutral_ ? "gray" : String.format(Locale.US, "color #%02x%02x%02x",
+            color.getRed(), color.getGreen(), color.getBlue());
+   }
+
+   /** Whether a w x h frame can be packed (both even). */
+   static boolean supports(int w, int h) {
+      return w > 0 && h > 0 && ((w | h) & 1) == 0;
+   }
+
+   /** A color from COLOR_NAMES, or null for "gray" and unknown names. */
+   static Color named(String name) {
+      switch (name == null ? "" : name.toLowerCase(Locale.ROOT)) {
+         case "green": return Color.GREEN;
+         case "red": return Color.RED;
+         case "blue": return Color.BLUE;
+         case "cyan": return Color.CYAN;
+         case "magenta": return Color.MAGENTA;
+         case "yellow": return Color.YELLOW;
+         default: return null;
+      }
+   }
+
+   /**
+    * The yuv420p frame for gray8 (w x h levels). Returns an internal buffer
+    * that the next call overwrites.
+    */
+   byte[] pack(byte[] gray8) {
+      final int w = width_;
+      final int h = height_;
+      final byte[] out = frame_;
+      final byte[] yLut = yLut_;
+      final int n = w * h;
+      for (int i = 0; i < n; i++) {
+         out[i] = yLut[gray8[i] & 0xFF];
+      }
+      if (neutral_) {
+         return out;
+      }
+
+      // 4:2:0 chroma: the tables are linear in the level, so the table entry
+      // of the block mean is the mean of the four entries
+      final int cw = w / 2;
+      final int uBase = n;
+      final int vBase = n + n / 4;
+      for (int cy = 0; cy < h / 2; cy++) {
+         int row0 = (2 * cy) * w;
+         int row1 = row0 + w;
+         int c = cy * cw;
+         for (int cx = 0; cx < cw; cx++, c++) {
+            int x = 2 * cx;
+            int sum = (gray8[row0 + x] & 0xFF) + (gray8[row0 + x + 1] & 0xFF)
+                  + (gray8[row1 + x] & 0xFF) + (gray8[row1 + x + 1] & 0xFF);
+            int mean = (sum + 2) >> 2;
+            out[uBase + c] = uLut_[mean];
+            out[vBase + c] = vLut_[mean];
+         }
+      }
+      return out;
+   }
+
+   /** The frame the last {@link #pack} returned, for a source frame sent again unchanged. */
+   byte[] packed() {
+      return frame_;
+   }
+
+   @Override
+   public String toString() {
+      return description_;
+   }
+
+   private static byte clamp(double v) {
+      return (byte) Math.max(0, Math.min(255, (int) Math.round(v)));
+   }
+}